@@ -0,0 +1,55 @@
+package com.titp.server.benchmark;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * j8583 parse and encode of each message type in config_titp.xml
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class CodecBenchmark {
+    @Param({"0100", "0110", "0200", "0210", "0220", "0230", "0400", "0410",
+            "0420", "0421", "0430", "0500", "0510", "0800", "0810"})
+    public String mti;
+
+    private MessageFactory<IsoMessage> messageFactory;
+    private IsoMessage message;
+    private byte[] isoBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        messageFactory = Fixtures.messageFactory();
+        int type = Integer.parseInt(mti, 16);
+        message = Fixtures.message(messageFactory, type);
+        isoBytes = HeaderStripper.stripHeaderIfPresent(Fixtures.frame(messageFactory, type));
+    }
+
+    @Benchmark
+    public IsoMessage parse() throws Exception {
+        return messageFactory.parseMessage(isoBytes, 0);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return message.writeData();
+    }
+}
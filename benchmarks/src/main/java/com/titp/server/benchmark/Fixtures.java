@@ -0,0 +1,213 @@
+package com.titp.server.benchmark;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import com.titp.server.config.MessageFactoryManager;
+import com.titp.server.config.ServerConfig;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Benchmark messages generated from the parse guides in config_titp.xml.
+ * <p>
+ * Each MTI gets the fields a terminal or host would typically send for its message class; field types
+ * and lengths are taken from the parse guide, so fixtures follow the configuration as it changes.
+ */
+public final class Fixtures {
+    private static final int[] FINANCIAL_FIELDS = {2, 3, 4, 7, 11, 12, 13, 22, 25, 41, 42, 49};
+    private static final int[] REVERSAL_FIELDS = {37, 90};
+    private static final int[] RECONCILIATION_FIELDS = {3, 7, 11, 41, 74, 75, 76, 77, 86, 87, 88, 89};
+    private static final int[] NETWORK_FIELDS = {3, 7, 11, 41};
+    private static final int[] RESPONSE_FIELDS = {37, 38, 39, 97};
+    private static final Map<Integer, String> VALUES = new HashMap<>();
+
+    static {
+        VALUES.put(2, "4761739001010010");
+        VALUES.put(3, "000000");
+        VALUES.put(4, "000000001000");
+        VALUES.put(7, "1018120000");
+        VALUES.put(11, "000123");
+        VALUES.put(12, "120000");
+        VALUES.put(13, "1018");
+        VALUES.put(22, "051");
+        VALUES.put(25, "00");
+        VALUES.put(37, "000000000123");
+        VALUES.put(38, "123456");
+        VALUES.put(39, "00");
+        VALUES.put(41, "TERM0001");
+        VALUES.put(42, "MERCHANT0000001");
+        VALUES.put(49, "840");
+        VALUES.put(97, "D0000000000001000");
+    }
+
+    private static Map<Integer, Map<Integer, FieldSpec>> parseGuides;
+
+    private Fixtures() {
+    }
+
+    public static MessageFactory<IsoMessage> messageFactory() throws IOException {
+        return new MessageFactoryManager(ServerConfig.getDefault()).createMessageFactory();
+    }
+
+    /**
+     * All MTIs with a parse guide, in ascending order
+     */
+    public static int[] mtis() {
+        return parseGuides().keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * A message of the given MTI with the fields typical for its class
+     */
+    public static IsoMessage message(MessageFactory<IsoMessage> messageFactory, int mti) {
+        Map<Integer, FieldSpec> guide = parseGuides().get(mti);
+        if (guide == null) {
+            throw new IllegalArgumentException("No parse guide for MTI " + String.format("%04X", mti));
+        }
+        IsoMessage message = messageFactory.newMessage(mti);
+        for (int field : fieldsFor(mti)) {
+            FieldSpec spec = guide.get(field);
+            if (spec != null) {
+                message.setValue(field, value(mti, field, spec), spec.type, spec.length);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Encoded message as received from a client: ISO header (when configured) and message, no length prefix.
+     * The frame is parsed back to make sure it matches the parse guide.
+     */
+    public static byte[] frame(MessageFactory<IsoMessage> messageFactory, int mti) {
+        byte[] frame = message(messageFactory, mti).writeData();
+        try {
+            IsoMessage parsed = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(frame), 0);
+            if (parsed.getType() != mti) {
+                throw new IllegalStateException("Fixture for " + String.format("%04X", mti) + " parsed as "
+                        + String.format("%04X", parsed.getType()));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Fixture for " + String.format("%04X", mti) + " does not parse", e);
+        }
+        return frame;
+    }
+
+    private static int[] fieldsFor(int mti) {
+        int messageClass = (mti >> 8) & 0xF;
+        boolean response = (mti & 0x10) != 0;
+        int[] fields;
+        if (messageClass == 8) {
+            fields = NETWORK_FIELDS;
+        } else if (messageClass == 5) {
+            fields = RECONCILIATION_FIELDS;
+        } else if (messageClass == 4) {
+            fields = concat(FINANCIAL_FIELDS, REVERSAL_FIELDS);
+        } else {
+            fields = FINANCIAL_FIELDS;
+        }
+        return response ? concat(fields, RESPONSE_FIELDS) : fields;
+    }
+
+    private static Object value(int mti, int field, FieldSpec spec) {
+        String text = VALUES.get(field);
+        if (field == 3 && (mti >> 8) == 8) {
+            text = "990000";
+        }
+        if (text == null) {
+            text = spec.type == IsoType.NUMERIC ? "1" : "X";
+        }
+        switch (spec.type) {
+            case NUMERIC:
+                return leftPad(text, spec.length, '0');
+            case ALPHA:
+                return text.length() >= spec.length ? text.substring(0, spec.length) : leftPad(text, spec.length, '0');
+            case LLBCDBIN:
+                return bcd(text);
+            case BINARY:
+            case LLBIN:
+            case LLLBIN:
+                byte[] bytes = new byte[spec.type == IsoType.BINARY ? spec.length : Math.min(spec.length, 16)];
+                Arrays.fill(bytes, (byte) 0x5A);
+                return bytes;
+            default:
+                return text.length() > spec.length ? text.substring(0, spec.length) : text;
+        }
+    }
+
+    private static String leftPad(String text, int length, char padding) {
+        StringBuilder padded = new StringBuilder(length);
+        for (int i = text.length(); i < length; i++) {
+            padded.append(padding);
+        }
+        return padded.append(text).toString();
+    }
+
+    private static byte[] bcd(String digits) {
+        String even = digits.length() % 2 == 0 ? digits : "0" + digits;
+        byte[] bcd = new byte[even.length() / 2];
+        for (int i = 0; i < bcd.length; i++) {
+            bcd[i] = (byte) (((even.charAt(2 * i) - '0') << 4) | (even.charAt(2 * i + 1) - '0'));
+        }
+        return bcd;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        int[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static synchronized Map<Integer, Map<Integer, FieldSpec>> parseGuides() {
+        if (parseGuides == null) {
+            parseGuides = readParseGuides(ServerConfig.DEFAULT_CONFIG_FILE);
+        }
+        return parseGuides;
+    }
+
+    private static Map<Integer, Map<Integer, FieldSpec>> readParseGuides(String resource) {
+        try (InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalStateException(resource + " not found on the classpath");
+            }
+            Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in).getDocumentElement();
+            Map<Integer, Map<Integer, FieldSpec>> guides = new TreeMap<>();
+            NodeList parses = root.getElementsByTagName("parse");
+            for (int i = 0; i < parses.getLength(); i++) {
+                Element parse = (Element) parses.item(i);
+                Map<Integer, FieldSpec> fields = new HashMap<>();
+                NodeList fieldNodes = parse.getElementsByTagName("field");
+                for (int j = 0; j < fieldNodes.getLength(); j++) {
+                    Element field = (Element) fieldNodes.item(j);
+                    String length = field.getAttribute("length");
+                    fields.put(Integer.parseInt(field.getAttribute("num")), new FieldSpec(
+                            IsoType.valueOf(field.getAttribute("type")),
+                            length.isEmpty() ? 0 : Integer.parseInt(length)));
+                }
+                guides.put(Integer.parseInt(parse.getAttribute("type").trim(), 16), fields);
+            }
+            return guides;
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot read parse guides from " + resource, e);
+        }
+    }
+
+    private static final class FieldSpec {
+        final IsoType type;
+        final int length;
+
+        FieldSpec(IsoType type, int length) {
+            this.type = type;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.titp.server.benchmark;
+
+import com.titp.server.HeaderStripper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header detection and stripping on a 0200 frame that carries the "02020" header and on a 0100 frame without one
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class HeaderStripperBenchmark {
+    private byte[] withHeader;
+    private byte[] withoutHeader;
+
+    @Setup
+    public void setUp() throws Exception {
+        withHeader = Fixtures.frame(Fixtures.messageFactory(), 0x200);
+        withoutHeader = Fixtures.frame(Fixtures.messageFactory(), 0x100);
+    }
+
+    @Benchmark
+    public byte[] stripWithHeader() {
+        return HeaderStripper.stripHeaderIfPresent(withHeader);
+    }
+
+    @Benchmark
+    public byte[] stripWithoutHeader() {
+        return HeaderStripper.stripHeaderIfPresent(withoutHeader);
+    }
+}
@@ -0,0 +1,97 @@
+package com.titp.server.benchmark;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import com.titp.server.mac.MacAlgorithm;
+import com.titp.server.mac.MacService;
+import com.titp.server.mac.MacVerificationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MAC cost per message: verifying a MAC'd 0200 as received and generating the MAC of its encoded 0210, with
+ * requests spread round-robin over one or many terminals, each with its own session key
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class MacBenchmark {
+    private static final byte[] KEK = {0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+            (byte) 0x88, (byte) 0x99, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD, (byte) 0xEE, (byte) 0xFF};
+
+    @Param({"RETAIL", "CMAC"})
+    public String algorithm;
+
+    @Param({"1", "1000"})
+    public int terminals;
+
+    private MacService macService;
+    private IsoMessage[] requests;
+    private byte[][] requestFrames;
+    private IsoMessage[] responses;
+    private byte[][] responseFrames;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        MessageFactory<IsoMessage> messageFactory = Fixtures.messageFactory();
+        macService = new MacService(MacAlgorithm.valueOf(algorithm), KEK, false, terminals);
+        requests = new IsoMessage[terminals];
+        requestFrames = new byte[terminals][];
+        responses = new IsoMessage[terminals];
+        responseFrames = new byte[terminals][];
+        for (int i = 0; i < terminals; i++) {
+            String terminalId = String.format("TERM%04d", i);
+            macService.issueKey(terminalId);
+            IsoMessage request = Fixtures.message(messageFactory, 0x200);
+            request.setValue(41, terminalId, IsoType.ALPHA, 8);
+            request.setValue(64, new byte[MacAlgorithm.MAC_LENGTH], IsoType.BINARY, MacAlgorithm.MAC_LENGTH);
+            // The terminal's side of the exchange: the same MAC the server generates for its responses
+            byte[] frame = request.writeData();
+            macService.sign(request, frame);
+            requestFrames[i] = HeaderStripper.stripHeaderIfPresent(frame);
+            requests[i] = messageFactory.parseMessage(requestFrames[i], 0);
+            macService.verify(requests[i], requestFrames[i]);
+
+            responses[i] = messageFactory.createResponse(requests[i]);
+            responses[i].setField(39, new IsoValue<>(IsoType.ALPHA, "00", 2));
+            responseFrames[i] = responses[i].writeData();
+        }
+    }
+
+    @Benchmark
+    public IsoMessage verify() throws MacVerificationException {
+        int i = nextTerminal();
+        macService.verify(requests[i], requestFrames[i]);
+        return requests[i];
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        int i = nextTerminal();
+        return macService.sign(responses[i], responseFrames[i]);
+    }
+
+    private int nextTerminal() {
+        int i = next;
+        next = i + 1 == terminals ? 0 : i + 1;
+        return i;
+    }
+}
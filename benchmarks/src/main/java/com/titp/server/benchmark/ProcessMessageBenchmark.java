@@ -0,0 +1,74 @@
+package com.titp.server.benchmark;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.MessageProcessor;
+import com.titp.server.advice.AdviceQueue;
+import com.titp.server.advice.SettlementAdviceHandler;
+import com.titp.server.processor.ProcessorFactory;
+import com.titp.server.settlement.SettlementTotals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Full MessageProcessor.processMessage (header strip, parse, MTI processor, response build) per request type
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class ProcessMessageBenchmark {
+    @Param({"0100", "0200", "0220", "0400", "0420", "0421", "0500", "0800"})
+    public String mti;
+
+    private Path adviceDirectory;
+    private AdviceQueue adviceQueue;
+    private MessageProcessor messageProcessor;
+    private byte[] frame;
+    private long messageId;
+
+    @Setup
+    public void setUp() throws Exception {
+        MessageFactory<IsoMessage> messageFactory = Fixtures.messageFactory();
+        SettlementTotals settlementTotals = new SettlementTotals();
+        adviceDirectory = Files.createTempDirectory("titp-benchmark-advice");
+        adviceQueue = new AdviceQueue(adviceDirectory, messageFactory,
+                new SettlementAdviceHandler(settlementTotals), 100, false);
+        adviceQueue.start();
+        ProcessorFactory.initialize(messageFactory, settlementTotals, adviceQueue);
+        messageProcessor = new MessageProcessor(messageFactory);
+        frame = Fixtures.frame(messageFactory, Integer.parseInt(mti, 16));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        adviceQueue.close();
+        try (Stream<Path> files = Files.walk(adviceDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public MessageProcessor.MessageResult processMessage() {
+        return messageProcessor.processMessage(frame, ++messageId);
+    }
+}
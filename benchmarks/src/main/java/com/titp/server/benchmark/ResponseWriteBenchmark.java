@@ -0,0 +1,50 @@
+package com.titp.server.benchmark;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.MessageSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageSender.sendMessage (encode, length prefix and write) of each response type into a discarding stream
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmark.xml")
+public class ResponseWriteBenchmark {
+    @Param({"0110", "0210", "0230", "0410", "0430", "0510", "0810"})
+    public String mti;
+
+    private MessageSender messageSender;
+    private IsoMessage response;
+
+    @Setup
+    public void setUp() throws Exception {
+        MessageFactory<IsoMessage> messageFactory = Fixtures.messageFactory();
+        response = Fixtures.message(messageFactory, Integer.parseInt(mti, 16));
+        messageSender = new MessageSender(new DataOutputStream(OutputStream.nullOutputStream()));
+    }
+
+    @Benchmark
+    public byte[] sendMessage() throws IOException {
+        return messageSender.sendMessage(response);
+    }
+}
@@ -0,0 +1,292 @@
+package com.titp.loadgen;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives one connection on a fixed schedule: request k is due at start + phase + k * period, whether or
+ * not earlier responses have arrived (open loop). In lock-step mode a late response delays the next send,
+ * and that delay is charged to the next request's latency since it is measured from its due time.
+ * <p>
+ * A request unanswered after the response timeout counts as a timeout. In pipelined mode it also gives back
+ * its in-flight slot, so a server that stops answering some requests cannot stall the sender, and the
+ * sender stops as soon as the connection's reader does. Requests still due once the run is over by more
+ * than the response timeout are not sent but counted as timeouts, so a stalled server ends the run on time
+ * without its stall going unreported.
+ */
+class ConnectionDriver implements Runnable {
+    private static final long SPIN_THRESHOLD_NANOS = 100_000;
+    private static final long EXPIRY_CHECK_MILLIS = 10;
+
+    private final int index;
+    private final LoadConfig config;
+    private final MessageFactory<IsoMessage> messageFactory;
+    private final RequestFactory requestFactory;
+    private final LoadStats stats;
+    private final long startNanos;
+    private final long endNanos;
+    private final long periodNanos;
+    private final long phaseNanos;
+    private final long timeoutNanos;
+    private final Map<Integer, long[]> pending = new ConcurrentHashMap<>();
+    private volatile boolean readerDone;
+    private volatile boolean closing;
+
+    ConnectionDriver(int index, LoadConfig config, MessageFactory<IsoMessage> messageFactory, LoadStats stats,
+                     long startNanos, long endNanos) {
+        this.index = index;
+        this.config = config;
+        this.messageFactory = messageFactory;
+        this.requestFactory = new RequestFactory(messageFactory, index, System.nanoTime() + index);
+        this.stats = stats;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.periodNanos = TimeUnit.SECONDS.toNanos(config.getConnections()) / config.getTargetTps();
+        this.phaseNanos = periodNanos * index / config.getConnections();
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getResponseTimeoutMs());
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = new Socket(config.getHost(), config.getPort())) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(config.getResponseTimeoutMs());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (config.getMode() == LoadConfig.Mode.LOCKSTEP) {
+                runLockstep(in, out);
+            } else if (config.getMode() == LoadConfig.Mode.CLOSED) {
+                runClosed(in, out);
+            } else {
+                runPipelined(socket, in, out);
+            }
+        } catch (IOException e) {
+            stats.error();
+            System.err.println("Connection " + index + " failed: " + e.getMessage());
+        }
+    }
+
+    private void runLockstep(DataInputStream in, DataOutputStream out) throws IOException {
+        for (long k = 0; ; k++) {
+            long intended = startNanos + phaseNanos + k * periodNanos;
+            if (intended >= endNanos || overrun(intended)) {
+                return;
+            }
+            waitUntil(intended);
+            IsoMessage request = requestFactory.next(config.getMix().next(requestFactory.random()));
+            byte[] data = request.writeData();
+            long sent = System.nanoTime();
+            write(out, data);
+            try {
+                IsoMessage response = receiveAnswer(in, stan(request));
+                stats.responseReceived(intended, sent, System.nanoTime(), responseCode(response));
+            } catch (SocketTimeoutException e) {
+                // Carry on with the next request; a late answer to this one is skipped by its STAN
+                stats.timeouts(1);
+            }
+        }
+    }
+
+    /**
+     * Closed loop: send each request as soon as the previous one is answered until the run ends. Nothing is
+     * due at a set time, so both latencies are measured from the send.
+     */
+    private void runClosed(DataInputStream in, DataOutputStream out) throws IOException {
+        waitUntil(startNanos);
+        while (System.nanoTime() < endNanos) {
+            IsoMessage request = requestFactory.next(config.getMix().next(requestFactory.random()));
+            byte[] data = request.writeData();
+            long sent = System.nanoTime();
+            write(out, data);
+            try {
+                IsoMessage response = receiveAnswer(in, stan(request));
+                stats.responseReceived(sent, sent, System.nanoTime(), responseCode(response));
+            } catch (SocketTimeoutException e) {
+                stats.timeouts(1);
+            }
+        }
+    }
+
+    /**
+     * Read responses until the one to the given STAN, skipping late answers to requests that timed out
+     */
+    private IsoMessage receiveAnswer(DataInputStream in, int stan) throws IOException {
+        while (true) {
+            IsoMessage response = receive(in);
+            if (response.hasField(11) && stan(response) == stan) {
+                return response;
+            }
+        }
+    }
+
+    private void runPipelined(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        Semaphore inFlight = new Semaphore(config.getMaxInFlight());
+        Thread reader = new Thread(() -> readResponses(in, inFlight), "loadgen-reader-" + index);
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            for (long k = 0; ; k++) {
+                long intended = startNanos + phaseNanos + k * periodNanos;
+                if (intended >= endNanos) {
+                    break;
+                }
+                waitUntil(intended);
+                if (!acquire(inFlight)) {
+                    break;
+                }
+                if (overrun(intended)) {
+                    inFlight.release();
+                    break;
+                }
+                IsoMessage request = requestFactory.next(config.getMix().next(requestFactory.random()));
+                byte[] data = request.writeData();
+                long[] overwritten = pending.put(stan(request), new long[]{intended, System.nanoTime()});
+                if (overwritten != null) {
+                    // The STAN sequence wrapped onto a request still unanswered
+                    stats.timeouts(1);
+                    inFlight.release();
+                }
+                write(out, data);
+            }
+
+            while (!pending.isEmpty() && !readerDone) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(EXPIRY_CHECK_MILLIS));
+                expire(inFlight);
+            }
+        } finally {
+            closing = true;
+            stats.timeouts(pending.size());
+            pending.clear();
+            socket.close();
+        }
+    }
+
+    /**
+     * Whether the run is over by more than the response timeout while requests from the one due at the given
+     * time on are still unsent; those are counted as timeouts
+     */
+    private boolean overrun(long intended) {
+        if (System.nanoTime() - endNanos <= timeoutNanos) {
+            return false;
+        }
+        stats.timeouts((int) ((endNanos - intended + periodNanos - 1) / periodNanos));
+        return true;
+    }
+
+    /**
+     * Take an in-flight slot, timing out the requests that have waited too long for theirs to come back
+     * @return false once the reader has stopped, when no more requests should be sent
+     */
+    private boolean acquire(Semaphore inFlight) throws IOException {
+        try {
+            while (!inFlight.tryAcquire(EXPIRY_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (readerDone) {
+                    return false;
+                }
+                expire(inFlight);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for an in-flight slot", e);
+        }
+        return !readerDone;
+    }
+
+    /**
+     * Count the requests unanswered for longer than the response timeout as timeouts and free their slots;
+     * an answer arriving later is not matched to them any more
+     */
+    private void expire(Semaphore inFlight) {
+        long cutoff = System.nanoTime() - timeoutNanos;
+        for (Map.Entry<Integer, long[]> entry : pending.entrySet()) {
+            if (entry.getValue()[1] - cutoff < 0 && pending.remove(entry.getKey(), entry.getValue())) {
+                stats.timeouts(1);
+                inFlight.release();
+            }
+        }
+    }
+
+    private void readResponses(DataInputStream in, Semaphore inFlight) {
+        try {
+            while (true) {
+                IsoMessage response;
+                try {
+                    response = receive(in);
+                } catch (SocketTimeoutException e) {
+                    // Nothing arrived for a while; requests waiting that long are expired by the sender
+                    continue;
+                }
+                long received = System.nanoTime();
+                long[] times = response.hasField(11) ? pending.remove(stan(response)) : null;
+                if (times == null) {
+                    // An answer to an expired request, or one matching nothing sent; it holds no slot
+                    stats.error();
+                    continue;
+                }
+                inFlight.release();
+                stats.responseReceived(times[0], times[1], received, responseCode(response));
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                stats.error();
+                System.err.println("Connection " + index + " lost: "
+                        + (e instanceof EOFException ? "closed by the server" : e.getMessage()));
+            }
+        } finally {
+            readerDone = true;
+        }
+    }
+
+    private void write(DataOutputStream out, byte[] data) throws IOException {
+        out.writeShort(data.length);
+        out.write(data);
+        out.flush();
+        stats.requestSent();
+    }
+
+    private IsoMessage receive(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readUnsignedShort()];
+        in.readFully(frame);
+        try {
+            return messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(frame), 0);
+        } catch (Exception e) {
+            throw new IOException("Unparseable response", e);
+        }
+    }
+
+    private static int stan(IsoMessage message) {
+        Object value = message.getObjectValue(11);
+        return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+    }
+
+    private static String responseCode(IsoMessage response) {
+        Object value = response.hasField(39) ? response.getObjectValue(39) : null;
+        return value == null ? null : value.toString();
+    }
+
+    private static void waitUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
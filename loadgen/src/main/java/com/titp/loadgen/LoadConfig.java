@@ -0,0 +1,173 @@
+package com.titp.loadgen;
+
+/**
+ * Settings of a load run
+ */
+public class LoadConfig {
+    public static final String DEFAULT_MIX = "0100:10,0200:70,0400:10,0800:10";
+
+    /**
+     * How requests are issued on a connection
+     */
+    public enum Mode {
+        /** Send the next request only after the previous response arrived */
+        LOCKSTEP,
+        /** Send on schedule regardless of outstanding responses, up to maxInFlight per connection */
+        PIPELINED,
+        /** Send the next request as soon as the previous response arrived, unpaced, to saturate the server */
+        CLOSED
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int targetTps;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int reportIntervalSeconds;
+    private final Mode mode;
+    private final int maxInFlight;
+    private final MessageMix mix;
+    private final int responseTimeoutMs;
+
+    private LoadConfig(Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.connections = builder.connections;
+        this.targetTps = builder.targetTps;
+        this.durationSeconds = builder.durationSeconds;
+        this.warmupSeconds = builder.warmupSeconds;
+        this.reportIntervalSeconds = builder.reportIntervalSeconds;
+        this.mode = builder.mode;
+        this.maxInFlight = builder.maxInFlight;
+        this.mix = builder.mix;
+        this.responseTimeoutMs = builder.responseTimeoutMs;
+    }
+
+    public String getHost() { return host; }
+    public int getPort() { return port; }
+    public int getConnections() { return connections; }
+    public int getTargetTps() { return targetTps; }
+    public int getDurationSeconds() { return durationSeconds; }
+    public int getWarmupSeconds() { return warmupSeconds; }
+    public int getReportIntervalSeconds() { return reportIntervalSeconds; }
+    public Mode getMode() { return mode; }
+    public int getMaxInFlight() { return maxInFlight; }
+    public MessageMix getMix() { return mix; }
+    public int getResponseTimeoutMs() { return responseTimeoutMs; }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d, %d connections, %s, %s, %ds (+%ds warm-up), mix %s",
+                host, port, connections, mode == Mode.CLOSED ? "unpaced" : targetTps + " TPS",
+                mode.name().toLowerCase(), durationSeconds, warmupSeconds, mix);
+    }
+
+    /**
+     * Builder pattern for LoadConfig
+     */
+    public static class Builder {
+        private String host = "localhost";
+        private int port = 8080;
+        private int connections = 4;
+        private int targetTps = 1000;
+        private int durationSeconds = 60;
+        private int warmupSeconds = 10;
+        private int reportIntervalSeconds = 5;
+        private Mode mode = Mode.PIPELINED;
+        private int maxInFlight = 64;
+        private MessageMix mix = MessageMix.parse(DEFAULT_MIX);
+        private int responseTimeoutMs = 10000;
+
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder connections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        public Builder targetTps(int targetTps) {
+            this.targetTps = targetTps;
+            return this;
+        }
+
+        public Builder durationSeconds(int durationSeconds) {
+            this.durationSeconds = durationSeconds;
+            return this;
+        }
+
+        public Builder warmupSeconds(int warmupSeconds) {
+            this.warmupSeconds = warmupSeconds;
+            return this;
+        }
+
+        public Builder reportIntervalSeconds(int reportIntervalSeconds) {
+            this.reportIntervalSeconds = reportIntervalSeconds;
+            return this;
+        }
+
+        public Builder mode(Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        public Builder mix(MessageMix mix) {
+            this.mix = mix;
+            return this;
+        }
+
+        public Builder responseTimeoutMs(int responseTimeoutMs) {
+            this.responseTimeoutMs = responseTimeoutMs;
+            return this;
+        }
+
+        public LoadConfig build() {
+            if (connections <= 0 || targetTps <= 0 || durationSeconds <= 0) {
+                throw new IllegalArgumentException("connections, tps and duration must be positive");
+            }
+            return new LoadConfig(this);
+        }
+    }
+
+    /**
+     * Parse --name=value arguments, e.g. --port=8080 --tps=2000 --mode=lockstep --mix=0200:90,0800:10
+     */
+    public static LoadConfig fromArgs(String[] args) {
+        Builder builder = new Builder();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "host": builder.host(value); break;
+                case "port": builder.port(Integer.parseInt(value)); break;
+                case "connections": builder.connections(Integer.parseInt(value)); break;
+                case "tps": builder.targetTps(Integer.parseInt(value)); break;
+                case "duration": builder.durationSeconds(Integer.parseInt(value)); break;
+                case "warmup": builder.warmupSeconds(Integer.parseInt(value)); break;
+                case "report": builder.reportIntervalSeconds(Integer.parseInt(value)); break;
+                case "mode": builder.mode(Mode.valueOf(value.toUpperCase())); break;
+                case "maxInFlight": builder.maxInFlight(Integer.parseInt(value)); break;
+                case "mix": builder.mix(MessageMix.parse(value)); break;
+                case "timeout": builder.responseTimeoutMs(Integer.parseInt(value)); break;
+                default: throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,87 @@
+package com.titp.loadgen;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.config.MessageFactoryManager;
+import com.titp.server.config.ServerConfig;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open-loop ISO 8583 load generator for the TITP server.
+ * <p>
+ * Requests are issued at a fixed target rate spread over N connections; latency percentiles are reported
+ * both from the scheduled send time (coordinated-omission corrected) and from the actual send time. In closed
+ * mode each connection instead sends as soon as it is answered, measuring saturation throughput.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = LoadConfig.fromArgs(args);
+        LoadReport report = run(config);
+        report.print(System.out);
+        System.exit(report.getReceived() > 0 && report.getErrors() == 0 ? 0 : 1);
+    }
+
+    public static LoadReport run(LoadConfig config) throws Exception {
+        MessageFactory<IsoMessage> messageFactory = messageFactory();
+        LoadStats stats = new LoadStats();
+
+        long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+
+        System.out.println("Starting load run: " + config);
+        List<Thread> drivers = new ArrayList<>();
+        for (int i = 0; i < config.getConnections(); i++) {
+            Thread driver = new Thread(new ConnectionDriver(i, config, messageFactory, stats, startNanos, endNanos),
+                    "loadgen-" + i);
+            driver.start();
+            drivers.add(driver);
+        }
+
+        sleepUntil(measureNanos);
+        stats.reset();
+        long measuredFrom = System.nanoTime();
+
+        long reportNanos = TimeUnit.SECONDS.toNanos(config.getReportIntervalSeconds());
+        long lastReceived = 0;
+        for (long next = measuredFrom + reportNanos; next < endNanos; next += reportNanos) {
+            sleepUntil(next);
+            stats.rollInterval();
+            long received = stats.getReceived();
+            printInterval((next - measuredFrom) / 1_000_000_000L, (received - lastReceived) / (double) config.getReportIntervalSeconds(),
+                    stats.getIntervalCorrected());
+            lastReceived = received;
+        }
+
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        stats.rollInterval();
+        return new LoadReport(config, (Math.min(System.nanoTime(), endNanos) - measuredFrom) / 1e9, stats);
+    }
+
+    private static void printInterval(long seconds, double tps, Histogram interval) {
+        System.out.printf("%5ds %10.1f TPS  p50 %9.1fus  p99 %9.1fus  p99.9 %9.1fus  max %9.1fus%n",
+                seconds, tps,
+                LoadReport.micros(interval.getValueAtPercentile(50)),
+                LoadReport.micros(interval.getValueAtPercentile(99)),
+                LoadReport.micros(interval.getValueAtPercentile(99.9)),
+                LoadReport.micros(interval.getMaxValue()));
+    }
+
+    private static MessageFactory<IsoMessage> messageFactory() throws Exception {
+        return new MessageFactoryManager(ServerConfig.getDefault()).createMessageFactory();
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.titp.loadgen;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Outcome of a load run, excluding the warm-up
+ */
+public class LoadReport {
+    static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final LoadConfig config;
+    private final double elapsedSeconds;
+    private final long sent;
+    private final long received;
+    private final long errors;
+    private final long timeouts;
+    private final Map<String, Long> responseCodes;
+    private final Histogram corrected;
+    private final Histogram uncorrected;
+
+    LoadReport(LoadConfig config, double elapsedSeconds, LoadStats stats) {
+        this.config = config;
+        this.elapsedSeconds = elapsedSeconds;
+        this.sent = stats.getSent();
+        this.received = stats.getReceived();
+        this.errors = stats.getErrors();
+        this.timeouts = stats.getTimeouts();
+        this.responseCodes = stats.getResponseCodes();
+        this.corrected = stats.getTotalCorrected();
+        this.uncorrected = stats.getTotalUncorrected();
+    }
+
+    public LoadConfig getConfig() { return config; }
+    public double getElapsedSeconds() { return elapsedSeconds; }
+    public long getSent() { return sent; }
+    public long getReceived() { return received; }
+    public long getErrors() { return errors; }
+    public long getTimeouts() { return timeouts; }
+    public Map<String, Long> getResponseCodes() { return responseCodes; }
+
+    public double getAchievedTps() {
+        return elapsedSeconds > 0 ? received / elapsedSeconds : 0;
+    }
+
+    /**
+     * Latency from the scheduled send time, corrected for coordinated omission
+     */
+    public Histogram getCorrected() { return corrected; }
+
+    /**
+     * Latency from the actual send time (service time)
+     */
+    public Histogram getUncorrected() { return uncorrected; }
+
+    public void print(PrintStream out) {
+        out.println();
+        out.println("Load run: " + config);
+        out.printf("  requests   sent %d, received %d, errors %d, timeouts %d%n", sent, received, errors, timeouts);
+        if (config.getMode() == LoadConfig.Mode.CLOSED) {
+            out.printf("  throughput %.1f TPS achieved unpaced over %.1fs%n", getAchievedTps(), elapsedSeconds);
+        } else {
+            out.printf("  throughput %.1f TPS achieved of %d TPS target over %.1fs%n",
+                    getAchievedTps(), config.getTargetTps(), elapsedSeconds);
+        }
+        out.printf("  %-12s %12s %12s%n", "latency (us)", "corrected", "uncorrected");
+        for (double percentile : PERCENTILES) {
+            out.printf("  %-12s %12.1f %12.1f%n", "p" + format(percentile),
+                    micros(corrected.getValueAtPercentile(percentile)),
+                    micros(uncorrected.getValueAtPercentile(percentile)));
+        }
+        out.printf("  %-12s %12.1f %12.1f%n", "max", micros(corrected.getMaxValue()), micros(uncorrected.getMaxValue()));
+        out.println("  response codes " + responseCodes);
+    }
+
+    /**
+     * The run as a JSON object, latencies in microseconds
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"target\":\"").append(config.getHost()).append(':').append(config.getPort()).append('"')
+                .append(",\"connections\":").append(config.getConnections())
+                .append(",\"targetTps\":").append(config.getTargetTps())
+                .append(",\"mode\":\"").append(config.getMode().name().toLowerCase()).append('"')
+                .append(",\"mix\":\"").append(config.getMix()).append('"')
+                .append(",\"elapsedSeconds\":").append(decimal(elapsedSeconds))
+                .append(",\"sent\":").append(sent)
+                .append(",\"received\":").append(received)
+                .append(",\"errors\":").append(errors)
+                .append(",\"timeouts\":").append(timeouts)
+                .append(",\"achievedTps\":").append(decimal(getAchievedTps()))
+                .append(",\"latencyUs\":{\"corrected\":");
+        appendPercentiles(json, corrected);
+        json.append(",\"uncorrected\":");
+        appendPercentiles(json, uncorrected);
+        json.append("},\"responseCodes\":{");
+        String separator = "";
+        for (Map.Entry<String, Long> entry : responseCodes.entrySet()) {
+            json.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    private static void appendPercentiles(StringBuilder json, Histogram histogram) {
+        json.append('{');
+        for (double percentile : PERCENTILES) {
+            json.append("\"p").append(format(percentile)).append("\":")
+                    .append(decimal(micros(histogram.getValueAtPercentile(percentile)))).append(',');
+        }
+        json.append("\"max\":").append(decimal(micros(histogram.getMaxValue()))).append('}');
+    }
+
+    static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+}
@@ -0,0 +1,111 @@
+package com.titp.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and outcome counters shared by all connection drivers.
+ * <p>
+ * Every response is recorded twice: from the time the request was scheduled to be sent (corrected for
+ * coordinated omission, since a stalled server delays later sends and that delay counts as latency) and
+ * from the time it was actually written (service time, what a closed-loop client would report).
+ */
+class LoadStats {
+    private static final long HIGHEST_NANOS = 60_000_000_000L;
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder corrected = new Recorder(HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    private final Recorder uncorrected = new Recorder(HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    private final Histogram totalCorrected = new Histogram(HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    private final Histogram totalUncorrected = new Histogram(HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    private Histogram intervalCorrected;
+    private Histogram intervalUncorrected;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final Map<String, LongAdder> responseCodes = new ConcurrentHashMap<>();
+
+    void requestSent() {
+        sent.increment();
+    }
+
+    void responseReceived(long intendedNanos, long sentNanos, long receivedNanos, String responseCode) {
+        corrected.recordValue(Math.min(HIGHEST_NANOS, Math.max(0, receivedNanos - intendedNanos)));
+        uncorrected.recordValue(Math.min(HIGHEST_NANOS, Math.max(0, receivedNanos - sentNanos)));
+        received.increment();
+        responseCodes.computeIfAbsent(responseCode == null ? "none" : responseCode, code -> new LongAdder()).increment();
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    void timeouts(int count) {
+        timeouts.add(count);
+    }
+
+    /**
+     * Close the current interval and add it to the totals
+     */
+    synchronized void rollInterval() {
+        intervalCorrected = corrected.getIntervalHistogram(intervalCorrected);
+        intervalUncorrected = uncorrected.getIntervalHistogram(intervalUncorrected);
+        totalCorrected.add(intervalCorrected);
+        totalUncorrected.add(intervalUncorrected);
+    }
+
+    /**
+     * Discard everything recorded so far, e.g. at the end of the warm-up
+     */
+    synchronized void reset() {
+        rollInterval();
+        totalCorrected.reset();
+        totalUncorrected.reset();
+        sent.reset();
+        received.reset();
+        errors.reset();
+        timeouts.reset();
+        responseCodes.clear();
+    }
+
+    synchronized Histogram getIntervalCorrected() {
+        return intervalCorrected.copy();
+    }
+
+    synchronized Histogram getTotalCorrected() {
+        return totalCorrected.copy();
+    }
+
+    synchronized Histogram getTotalUncorrected() {
+        return totalUncorrected.copy();
+    }
+
+    long getSent() {
+        return sent.sum();
+    }
+
+    long getReceived() {
+        return received.sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    Map<String, Long> getResponseCodes() {
+        Map<String, Long> counts = new TreeMap<>();
+        responseCodes.forEach((code, count) -> counts.put(code, count.sum()));
+        return counts;
+    }
+}
@@ -0,0 +1,61 @@
+package com.titp.loadgen;
+
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Weighted choice of request MTIs, e.g. "0100:10,0200:70,0400:10,0800:10"
+ */
+public class MessageMix {
+    private final int[] mtis;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+
+    private MessageMix(int[] mtis, int[] weights) {
+        this.mtis = mtis;
+        this.cumulativeWeights = new int[weights.length];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += weights[i];
+            cumulativeWeights[i] = total;
+        }
+        this.totalWeight = total;
+    }
+
+    public static MessageMix parse(String mix) {
+        String[] entries = mix.split(",");
+        int[] mtis = new int[entries.length];
+        int[] weights = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String[] parts = entries[i].trim().split(":");
+            mtis[i] = Integer.parseInt(parts[0], 16);
+            weights[i] = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("Weight must be positive: " + entries[i]);
+            }
+        }
+        return new MessageMix(mtis, weights);
+    }
+
+    public int next(Random random) {
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return mtis[i];
+            }
+        }
+        return mtis[mtis.length - 1];
+    }
+
+    public int[] getMtis() {
+        return mtis.clone();
+    }
+
+    @Override
+    public String toString() {
+        return IntStream.range(0, mtis.length)
+                .mapToObj(i -> String.format("%04X:%d", mtis[i], cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1])))
+                .collect(Collectors.joining(","));
+    }
+}
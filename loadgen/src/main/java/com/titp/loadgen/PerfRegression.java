@@ -0,0 +1,311 @@
+package com.titp.loadgen;
+
+import com.titp.server.TITPServer;
+import com.titp.server.config.ServerConfig;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performance regression check: starts the server in-process on an ephemeral port and drives it over loopback
+ * with the workloads from the baseline file. Saturation throughput comes from closed-loop runs, which send
+ * unpaced so the server, not the offered rate, sets the TPS; corrected p99 latency and server-side allocation
+ * per message come from runs at the fixed workload rate. Each is run several times and the median compared
+ * against the stored baseline. Writes a JSON report and exits non-zero on a regression, failing the build.
+ * <p>
+ * Arguments: --baseline=perf-baseline.properties --report=target/perf-report.json [--update-baseline=true]
+ */
+public class PerfRegression {
+    private static final String LOADGEN_THREAD_PREFIX = "loadgen";
+    private static final long STARTUP_TIMEOUT_MILLIS = 30_000;
+
+    private final Properties baseline;
+
+    private PerfRegression(Properties baseline) {
+        this.baseline = baseline;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path baselineFile = Paths.get("perf-baseline.properties");
+        Path reportFile = Paths.get("target", "perf-report.json");
+        boolean updateBaseline = false;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--baseline=")) {
+                baselineFile = Paths.get(value);
+            } else if (arg.startsWith("--report=")) {
+                reportFile = Paths.get(value);
+            } else if (arg.startsWith("--update-baseline=")) {
+                updateBaseline = Boolean.parseBoolean(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+
+        Properties baseline = new Properties();
+        try (Reader reader = Files.newBufferedReader(baselineFile, StandardCharsets.UTF_8)) {
+            baseline.load(reader);
+        }
+        boolean passed = new PerfRegression(baseline).run(baselineFile, reportFile, updateBaseline);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run(Path baselineFile, Path reportFile, boolean updateBaseline) throws Exception {
+        Path workDirectory = reportFile.toAbsolutePath().getParent();
+        Files.createDirectories(workDirectory);
+        TITPServer server = new TITPServer(new ServerConfig.Builder()
+                .port(0)
+                .adviceQueueDirectory(workDirectory.resolve("perf-advice").toString())
+                .build());
+        Thread serverThread = new Thread(server::start, "titp-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitStartup(server);
+
+        int runs = intValue("runs");
+        List<LoadReport> saturation = new ArrayList<>();
+        List<LoadReport> fixedRate = new ArrayList<>();
+        double[] saturationTps = new double[runs];
+        double[] p99s = new double[runs];
+        double[] allocations = new double[runs];
+        long errors = 0;
+        try {
+            LoadGenerator.run(workload(server.getPort(), intValue("workload.warmup")));
+            for (int run = 0; run < runs; run++) {
+                LoadReport closed = LoadGenerator.run(saturationWorkload(server.getPort()));
+                saturationTps[run] = closed.getAchievedTps();
+                saturation.add(closed);
+
+                Map<Long, Long> allocatedBefore = serverAllocations();
+                LoadReport report = LoadGenerator.run(workload(server.getPort(), intValue("workload.duration")));
+                allocations[run] = allocatedSince(allocatedBefore) / (double) Math.max(1, report.getReceived());
+                p99s[run] = LoadReport.micros(report.getCorrected().getValueAtPercentile(99));
+                fixedRate.add(report);
+                errors += closed.getErrors() + closed.getTimeouts() + report.getErrors() + report.getTimeouts();
+            }
+        } finally {
+            server.stop();
+        }
+        for (int run = 0; run < runs; run++) {
+            saturation.get(run).print(System.out);
+            fixedRate.get(run).print(System.out);
+        }
+
+        double tps = median(saturationTps);
+        double p99 = median(p99s);
+        double allocationPerMessage = median(allocations);
+        List<Check> checks = new ArrayList<>();
+        checks.add(Check.floor("throughput.saturation.tps", tps,
+                doubleValue("baseline.saturation.tps") * (1 - doubleValue("tolerance.tps"))));
+        checks.add(Check.ceiling("latency.p99.us", p99,
+                doubleValue("baseline.p99.us") * (1 + doubleValue("tolerance.p99"))));
+        checks.add(Check.ceiling("allocation.bytesPerMessage", allocationPerMessage,
+                doubleValue("baseline.allocation.bytes") * (1 + doubleValue("tolerance.allocation"))));
+        checks.add(Check.ceiling("errors", errors, 0));
+
+        boolean passed = checks.stream().allMatch(check -> check.passed);
+        System.out.printf("%n  medians of %d runs: saturation %.1f TPS, p99 %.1f us, server allocation %.0f bytes/message%n",
+                runs, tps, p99, allocationPerMessage);
+        for (Check check : checks) {
+            System.out.println("  " + check);
+        }
+        System.out.println(passed ? "Performance regression check PASSED" : "Performance regression check FAILED");
+
+        Files.write(reportFile, toJson(saturation, fixedRate, allocations, checks, passed).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Report written to " + reportFile);
+
+        if (updateBaseline) {
+            Map<String, String> measured = new HashMap<>();
+            measured.put("baseline.saturation.tps", LoadReport.decimal(tps));
+            measured.put("baseline.p99.us", LoadReport.decimal(p99));
+            measured.put("baseline.allocation.bytes", LoadReport.decimal(allocationPerMessage));
+            updateBaseline(baselineFile, measured);
+            System.out.println("Baseline updated in " + baselineFile);
+            return true;
+        }
+        return passed;
+    }
+
+    private LoadConfig workload(int port, int durationSeconds) {
+        return new LoadConfig.Builder()
+                .host("localhost")
+                .port(port)
+                .connections(intValue("workload.connections"))
+                .targetTps(intValue("workload.tps"))
+                .durationSeconds(durationSeconds)
+                .warmupSeconds(0)
+                .reportIntervalSeconds(intValue("workload.report"))
+                .mode(LoadConfig.Mode.valueOf(baseline.getProperty("workload.mode").trim().toUpperCase()))
+                .maxInFlight(intValue("workload.maxInFlight"))
+                .mix(MessageMix.parse(baseline.getProperty("workload.mix")))
+                .build();
+    }
+
+    /**
+     * Closed-loop workload: the workload's mix over its own connections, each sending as fast as it is answered
+     */
+    private LoadConfig saturationWorkload(int port) {
+        return new LoadConfig.Builder()
+                .host("localhost")
+                .port(port)
+                .connections(intValue("saturation.connections"))
+                .targetTps(intValue("workload.tps"))
+                .durationSeconds(intValue("saturation.duration"))
+                .warmupSeconds(0)
+                .reportIntervalSeconds(intValue("workload.report"))
+                .mode(LoadConfig.Mode.CLOSED)
+                .mix(MessageMix.parse(baseline.getProperty("workload.mix")))
+                .build();
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static void awaitStartup(TITPServer server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (!server.isRunning()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Server did not start within " + STARTUP_TIMEOUT_MILLIS + " ms");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    /**
+     * Bytes allocated so far by each live thread other than the load generator's; handler threads are pooled,
+     * so they outlive the connections of a run
+     */
+    private static Map<Long, Long> serverAllocations() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long current = Thread.currentThread().getId();
+        Map<Long, Long> allocations = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadId() != current && !info.getThreadName().startsWith(LOADGEN_THREAD_PREFIX)) {
+                long allocated = threads.getThreadAllocatedBytes(info.getThreadId());
+                if (allocated >= 0) {
+                    allocations.put(info.getThreadId(), allocated);
+                }
+            }
+        }
+        return allocations;
+    }
+
+    private static long allocatedSince(Map<Long, Long> before) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : serverAllocations().entrySet()) {
+            total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+
+    private String toJson(List<LoadReport> saturation, List<LoadReport> fixedRate, double[] allocations,
+                          List<Check> checks, boolean passed) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"timestamp\":\"").append(Instant.now()).append('"')
+                .append(",\"commit\":\"").append(System.getProperty("perf.commit", "")).append('"')
+                .append(",\"javaVersion\":\"").append(System.getProperty("java.version")).append('"')
+                .append(",\"availableProcessors\":").append(Runtime.getRuntime().availableProcessors())
+                .append(",\"passed\":").append(passed)
+                .append(",\"saturationRuns\":[");
+        for (int i = 0; i < saturation.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(saturation.get(i).toJson());
+        }
+        json.append("],\"fixedRateRuns\":[");
+        for (int i = 0; i < fixedRate.size(); i++) {
+            json.append(i == 0 ? "" : ",").append("{\"allocationBytesPerMessage\":")
+                    .append(LoadReport.decimal(allocations[i]))
+                    .append(",\"run\":").append(fixedRate.get(i).toJson()).append('}');
+        }
+        json.append("],\"checks\":[");
+        for (int i = 0; i < checks.size(); i++) {
+            Check check = checks.get(i);
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"name\":\"").append(check.name).append('"')
+                    .append(",\"kind\":\"").append(check.floor ? "floor" : "ceiling").append('"')
+                    .append(",\"measured\":").append(LoadReport.decimal(check.measured))
+                    .append(",\"limit\":").append(LoadReport.decimal(check.limit))
+                    .append(",\"passed\":").append(check.passed).append('}');
+        }
+        return json.append("]}\n").toString();
+    }
+
+    /**
+     * Rewrite the baseline.* values in place, keeping the workload, tolerances and comments
+     */
+    private static void updateBaseline(Path baselineFile, Map<String, String> measured) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(baselineFile, StandardCharsets.UTF_8)) {
+            int separator = line.indexOf('=');
+            String key = separator > 0 ? line.substring(0, separator).trim() : null;
+            lines.add(key != null && measured.containsKey(key) ? key + "=" + measured.get(key) : line);
+        }
+        Files.write(baselineFile, lines, StandardCharsets.UTF_8);
+    }
+
+    private int intValue(String key) {
+        return Integer.parseInt(property(key));
+    }
+
+    private double doubleValue(String key) {
+        return Double.parseDouble(property(key));
+    }
+
+    private String property(String key) {
+        String value = baseline.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + key + " in baseline");
+        }
+        return value.trim();
+    }
+
+    /**
+     * One threshold comparison
+     */
+    private static final class Check {
+        final String name;
+        final boolean floor;
+        final double measured;
+        final double limit;
+        final boolean passed;
+
+        private Check(String name, boolean floor, double measured, double limit) {
+            this.name = name;
+            this.floor = floor;
+            this.measured = measured;
+            this.limit = limit;
+            this.passed = floor ? measured >= limit : measured <= limit;
+        }
+
+        static Check floor(String name, double measured, double limit) {
+            return new Check(name, true, measured, limit);
+        }
+
+        static Check ceiling(String name, double measured, double limit) {
+            return new Check(name, false, measured, limit);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %12.1f %s %12.1f  %s", name, measured, floor ? ">=" : "<=", limit,
+                    passed ? "ok" : "REGRESSION");
+        }
+    }
+}
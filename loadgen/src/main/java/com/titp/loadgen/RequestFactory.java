@@ -0,0 +1,94 @@
+package com.titp.loadgen;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Builds randomized requests for one connection: Luhn-valid PANs, random amounts and a STAN sequence
+ * starting at a random value
+ */
+class RequestFactory {
+    private static final long MIN_AMOUNT = 100;
+    private static final long MAX_AMOUNT = 50000;
+
+    private final MessageFactory<IsoMessage> messageFactory;
+    private final Random random;
+    private final String terminalId;
+    private final String merchantId;
+    private final SimpleDateFormat transmissionTime = new SimpleDateFormat("MMddHHmmss");
+    private int stan;
+
+    RequestFactory(MessageFactory<IsoMessage> messageFactory, int connectionIndex, long seed) {
+        this.messageFactory = messageFactory;
+        this.random = new Random(seed);
+        this.terminalId = String.format("LOAD%04d", connectionIndex % 10000);
+        this.merchantId = String.format("LOADMERCHANT%03d", connectionIndex % 1000);
+        this.stan = 1 + random.nextInt(999999);
+    }
+
+    Random random() {
+        return random;
+    }
+
+    /**
+     * Next request of the given MTI; its STAN (field 11) identifies the response
+     */
+    IsoMessage next(int mti) {
+        IsoMessage request = messageFactory.newMessage(mti);
+        int requestStan = nextStan();
+        request.setValue(3, mti == 0x800 ? "990000" : "000000", IsoType.NUMERIC, 6);
+        request.setValue(7, transmissionTime.format(new Date()), IsoType.NUMERIC, 10);
+        request.setValue(11, String.format("%06d", requestStan), IsoType.NUMERIC, 6);
+        request.setValue(41, terminalId, IsoType.ALPHA, 8);
+        if (mti != 0x800) {
+            request.setValue(2, bcd(randomPan()), IsoType.LLBCDBIN, 0);
+            long amount = MIN_AMOUNT + (long) (random.nextDouble() * (MAX_AMOUNT - MIN_AMOUNT));
+            request.setValue(4, String.format("%012d", amount), IsoType.NUMERIC, 12);
+            request.setValue(42, merchantId, IsoType.ALPHA, 15);
+        }
+        return request;
+    }
+
+    private int nextStan() {
+        int current = stan;
+        stan = stan == 999999 ? 1 : stan + 1;
+        return current;
+    }
+
+    /**
+     * 16-digit test PAN starting with 4 and ending in a valid Luhn check digit
+     */
+    private String randomPan() {
+        char[] digits = new char[16];
+        digits[0] = '4';
+        for (int i = 1; i < 15; i++) {
+            digits[i] = (char) ('0' + random.nextInt(10));
+        }
+        int sum = 0;
+        for (int i = 14, position = 0; i >= 0; i--, position++) {
+            int digit = digits[i] - '0';
+            if (position % 2 == 0) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+        }
+        digits[15] = (char) ('0' + (10 - sum % 10) % 10);
+        return new String(digits);
+    }
+
+    private static byte[] bcd(String digits) {
+        byte[] bcd = new byte[digits.length() / 2];
+        for (int i = 0; i < bcd.length; i++) {
+            bcd[i] = (byte) (((digits.charAt(2 * i) - '0') << 4) | (digits.charAt(2 * i + 1) - '0'));
+        }
+        return bcd;
+    }
+}
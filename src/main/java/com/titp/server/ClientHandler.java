@@ -1,41 +1,127 @@
 package com.titp.server;
 
-import com.solab.iso8583.MessageFactory;
-import com.titp.server.utils.IsoLogger;
+import com.solab.iso8583.IsoMessage;
+import com.titp.server.batch.RequestBatcher;
+import com.titp.server.capture.CaptureWriter;
+import com.titp.server.jfr.MessageProcessedEvent;
+import com.titp.server.keyed.KeyedExecutor;
+import com.titp.server.lane.Lane;
+import com.titp.server.lane.LaneScheduler;
+import com.titp.server.lane.LaneTask;
+import com.titp.server.listener.Framing;
+import com.titp.server.listener.Listener;
+import com.titp.server.listener.ListenerStats;
+import com.titp.server.mac.MacService;
+import com.titp.server.metrics.LatencyMetrics;
+import com.titp.server.metrics.Stage;
+import com.titp.server.metrics.StageTimings;
+import com.titp.server.pipeline.MessagePipeline;
+import com.titp.server.pipeline.PipelineConnection;
+import com.titp.server.pipeline.PipelineSlot;
+import com.titp.server.processor.ProcessorSet;
+import com.titp.server.ratelimit.RateLimiter;
+import com.titp.server.shard.Shard;
+import com.titp.server.stats.ConnectionStats;
+import com.titp.server.stats.TrafficStats;
+import com.titp.server.trace.Direction;
+import com.titp.server.trace.MessageTracer;
+import com.titp.server.utils.ISOResponseCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Handles individual client connections and processes ISO 8583 messages
+ * Handles individual client connections and processes ISO 8583 messages. In pipeline mode the handler only
+ * reads frames and publishes them to its shard's pipeline, whose write stage answers them. With priority
+ * lanes it queues them by MTI class for the shard's lane workers, which process and answer them. With
+ * terminal-ordered processing it parses them and hands them to the shard's keyed executor, which processes
+ * each terminal's requests in arrival order.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, PipelineConnection {
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
-    private static final AtomicLong messageCounter = new AtomicLong(0);
+    private static final AtomicLong connectionCounter = new AtomicLong(0);
+    // Value of inFlight once the connection is being closed; no request may start after that
+    private static final int CLOSING = -1;
+    // How long a connection handing requests to other threads, once its client has gone waits for its remaining responses
+    private static final long STAGED_RESPONSES_TIMEOUT_MILLIS = 5000;
 
     private final Socket clientSocket;
     private final MessageProcessor messageProcessor;
     private final MessageSender messageSender;
     private final DataInputStream inputStream;
     private final String clientAddress;
+    private final long connectionId;
+    private final EchoFastPath echoFastPath;
+    private final MessageTracer messageTracer;
+    private final CaptureWriter captureWriter;
+    private final LatencyMetrics latencyMetrics;
+    private final StageTimings timings = new StageTimings();
+    private final TrafficStats trafficStats;
+    private final ConnectionStats connectionStats;
+    private final Framing framing;
+    private final ListenerStats listenerStats;
+    private final Shard shard;
+    private final ConnectionDrainer drainer;
+    private final MessagePipeline pipeline;
+    private final LaneScheduler lanes;
+    private final KeyedExecutor keyedExecutor;
+    private final RequestBatcher batcher;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private boolean closed;
 
-    public ClientHandler(Socket clientSocket, MessageFactory<?> messageFactory) throws IOException {
+    /**
+     * @param listener The listener that accepted the connection: its framing, processors and counters
+     * @param shard The shard the connection is pinned to; its processors and counters are used throughout
+     * @param drainer Tracks the connection and its request in flight for a graceful drain
+     * @param terminalLimiter Declines requests of terminals over their rate limit, or null for no limit
+     * @param macService Verifies the MAC of requests and generates that of responses, or null for none
+     */
+    public ClientHandler(Socket clientSocket, Listener listener, Shard shard,
+                         MessageTracer messageTracer, CaptureWriter captureWriter,
+                         LatencyMetrics latencyMetrics, TrafficStats trafficStats,
+                         ConnectionDrainer drainer, RateLimiter terminalLimiter,
+                         MacService macService) throws IOException {
         this.clientSocket = clientSocket;
+        this.connectionId = connectionCounter.incrementAndGet();
+        this.echoFastPath = listener.getEchoFastPath();
+        this.framing = listener.getFramingCodec();
+        this.listenerStats = listener.getStats();
+        this.messageTracer = messageTracer;
+        this.captureWriter = captureWriter;
+        this.latencyMetrics = latencyMetrics;
         this.clientAddress = clientSocket.getInetAddress().getHostAddress();
-        this.messageProcessor = new MessageProcessor(messageFactory);
-        this.messageSender = new MessageSender(new DataOutputStream(clientSocket.getOutputStream()));
+        this.trafficStats = trafficStats;
+        this.connectionStats = trafficStats.connectionOpened(connectionId, clientAddress);
+        this.listenerStats.connectionOpened();
+        this.shard = shard;
+        shard.connectionOpened();
+        this.messageProcessor = new MessageProcessor(shard.processors(listener), timings, connectionId, terminalLimiter,
+                macService);
+        // Answered by threads serving other connections too, the connection's responses are queued for the
+        // shard's writers instead of being written by those threads
+        this.messageSender = new MessageSender(new DataOutputStream(clientSocket.getOutputStream()), framing, connectionId,
+                macService, shard.getResponseWriters(), shard.getResponseQueueCapacity(), this::closeConnection);
         this.inputStream = new DataInputStream(clientSocket.getInputStream());
+        this.pipeline = shard.getPipeline();
+        this.lanes = shard.getLanes();
+        this.keyedExecutor = shard.getKeyedExecutor();
+        this.batcher = shard.getBatcher();
+        this.drainer = drainer;
+        drainer.register(this);
     }
 
     @Override
     public void run() {
         try {
-            logger.info("Client handler started for {}", clientAddress);
+            logger.info("Client handler started for {} (conn={})", clientAddress, connectionId);
             processClientMessages();
         } catch (IOException e) {
             if (!clientSocket.isClosed()) {
@@ -54,92 +140,421 @@ public class ClientHandler implements Runnable {
             MessageData messageData = readMessage();
             if (messageData == null) {
                 logger.info("Client {} disconnected", clientAddress);
+                awaitStagedResponses();
                 break;
             }
-            
-            processMessage(messageData);
+
+            boolean staged = false;
+            try {
+                staged = processMessage(messageData);
+            } finally {
+                // A staged request ends when the thread it was handed to has answered it
+                if (!staged) {
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Give the pipeline time to answer the requests of a client that has stopped sending, and the shard's
+     * writers time to write those answers
+     */
+    private void awaitStagedResponses() {
+        if (pipeline == null && lanes == null && keyedExecutor == null && batcher == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STAGED_RESPONSES_TIMEOUT_MILLIS);
+        try {
+            while ((inFlight.get() > 0 || messageSender.getQueuedFrames() > 0) && System.nanoTime() - deadline < 0) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Read a complete message from the client
+     * @return The message, or null when the client has disconnected or sent an unusable length
      */
     private MessageData readMessage() throws IOException {
+        int messageLength;
         try {
-            // Read message length (2 bytes)
-            int messageLength = inputStream.readShort();
-            if (messageLength <= 0) {
-                logger.warn("Invalid message length from {}: {}", clientAddress, messageLength);
-                return null;
-            }
+            messageLength = framing.readLength(inputStream);
+        } catch (EOFException e) {
+            // The client closed the connection between messages
+            return null;
+        }
+        if (!beginRequest()) {
+            // Closed for drain while the prefix was arriving: the request is never read, so never processed
+            return null;
+        }
+        if (messageLength <= 0) {
+            inFlight.decrementAndGet();
+            logger.warn("Invalid message length from {}: {}", clientAddress, messageLength);
+            return null;
+        }
 
-            // Read the ISO message
-            byte[] messageBytes = new byte[messageLength];
-            int bytesRead = inputStream.read(messageBytes);
-            if (bytesRead != messageLength) {
-                logger.warn("Expected {} bytes but read {} from {}", messageLength, bytesRead, clientAddress);
-                return null;
+        // Read the ISO message; timing starts once the length prefix has arrived
+        long readStart = System.nanoTime();
+        timings.reset(readStart);
+        byte[] messageBytes = new byte[messageLength];
+        try {
+            inputStream.readFully(messageBytes);
+        } catch (EOFException e) {
+            inFlight.decrementAndGet();
+            logger.warn("Client {} disconnected in the middle of a {} byte message", clientAddress, messageLength);
+            return null;
+        } catch (IOException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+        timings.stop(Stage.READ, readStart);
+
+        return new MessageData(messageBytes, messageLength);
+    }
+
+    /**
+     * Count a request in flight unless the connection is already closing
+     */
+    private boolean beginRequest() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current == CLOSING) {
+                return false;
             }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
 
-            return new MessageData(messageBytes, messageLength);
-            
+    /**
+     * Close the socket if no request is in flight, once the responses still queued are written; the blocked
+     * read then fails and the handler cleans up
+     * @return true if this call closed the connection
+     */
+    boolean closeIfIdle() {
+        if (!inFlight.compareAndSet(0, CLOSING)) {
+            return false;
+        }
+        try {
+            messageSender.close();
         } catch (IOException e) {
-            if (!clientSocket.isClosed()) {
-                logger.error("Error reading message from {}", clientAddress, e);
-            }
-            throw e;
+            closeSocket();
+        }
+        return true;
+    }
+
+    /**
+     * Close the socket even though a request is in flight; its response is lost
+     * @return true if the connection was not already closing
+     */
+    boolean forceClose() {
+        boolean wasOpen = inFlight.getAndSet(CLOSING) != CLOSING;
+        closeSocket();
+        return wasOpen;
+    }
+
+    /**
+     * @return Requests read on this connection and not yet answered
+     */
+    int getInFlight() {
+        return Math.max(0, inFlight.get());
+    }
+
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing socket of {} (conn={}): {}", clientAddress, connectionId, e.getMessage());
         }
     }
 
     /**
      * Process a single message
+     * @return true if the message was handed to the pipeline, a lane or the keyed executor, which then answers
+     *         it and ends the request
      */
-    private void processMessage(MessageData messageData) throws IOException {
-        long messageId = messageCounter.incrementAndGet();
-        logger.debug("Processing message #{} from {} ({} bytes)", messageId, clientAddress, messageData.length);
+    private boolean processMessage(MessageData messageData) throws IOException {
+        int frameBytes = messageData.length + framing.getPrefixLength();
+        long messageId = trafficStats.messageReceived(connectionStats, frameBytes);
+        listenerStats.messageReceived(frameBytes);
+        shard.messageReceived();
+        captureWriter.capture(connectionId, Direction.IN, messageData.bytes, 0, messageData.length);
+        boolean traced = messageTracer.sample(messageData.bytes);
+        if (traced) {
+            messageTracer.record(Direction.IN, connectionId, messageData.bytes, 0, messageData.length);
+        }
+
+        // Echo tests are answered from the raw bytes, bypassing parse, logging and processing
+        if (echoFastPath != null) {
+            byte[] echoResponse = echoFastPath.tryRespond(messageData.bytes);
+            if (echoResponse != null) {
+                long writeStart = System.nanoTime();
+                messageSender.sendFrame(echoResponse);
+                timings.stop(Stage.WRITE, writeStart);
+                trafficStats.responseSent(connectionStats, echoResponse.length);
+                listenerStats.responseSent(echoResponse.length, System.nanoTime() - timings.getStartNanos());
+                latencyMetrics.record(0x800, ISOResponseCode.SUCCESS.getCode(), timings);
+                recordResponse(traced, echoResponse);
+                return false;
+            }
+        }
+
+        logger.debug("Processing message #{} from {} (conn={}, {} bytes)",
+                messageId, clientAddress, connectionId, messageData.length);
+
+        if (pipeline != null) {
+            pipeline.publish(this, messageData.bytes, messageId, traced, messageProcessor.currentProcessors(), timings);
+            return true;
+        }
+        if (lanes != null) {
+            return submitToLane(messageData.bytes, messageId, traced);
+        }
+        if (keyedExecutor != null) {
+            return submitKeyed(messageData.bytes, messageId, traced);
+        }
+        if (batcher != null) {
+            return submitBatched(messageData.bytes, messageId, traced);
+        }
 
         // Process the message
         MessageProcessor.MessageResult result = messageProcessor.processMessage(messageData.bytes, messageId);
+        completeMessage(result, messageId, messageData.bytes.length, traced, timings);
+        return false;
+    }
+
+    @Override
+    public MessageProcessor getMessageProcessor() {
+        return messageProcessor;
+    }
+
+    @Override
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Write stage of the pipeline: answer a staged request and end it
+     */
+    @Override
+    public void completeStaged(PipelineSlot slot) {
+        completeHandedOff(slot.getResult(), slot.getMessageId(), slot.getFrameLength(), slot.isTraced(),
+                slot.getTimings());
+    }
 
-        if (result.isSuccess()) {
-            handleSuccessfulProcessing(result, messageId);
-        } else {
-            handleFailedProcessing(result, messageId);
+    /**
+     * Parse a message here and queue it in the lane of its MTI class, behind the earlier requests of its
+     * terminal whatever their lanes; a request without terminal or merchant is not ordered
+     * @return true if the message was queued; false if it failed to parse and was answered here
+     */
+    private boolean submitToLane(byte[] frame, long messageId, boolean traced) throws IOException {
+        ProcessorSet processors = messageProcessor.currentProcessors();
+        IsoMessage request;
+        try {
+            request = messageProcessor.parse(processors, frame, messageId, timings);
+        } catch (Exception e) {
+            completeMessage(messageProcessor.failed(processors, messageId, e), messageId, frame.length, traced,
+                    timings);
+            return false;
+        }
+        try {
+            lanes.submit(Lane.of(frame), MessageProcessor.orderingKey(request),
+                    new LanedMessage(request, messageId, frame.length, traced, processors));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing message #" + messageId, e);
         }
     }
 
     /**
-     * Handle successful message processing
+     * Parse a message here and queue its processing behind the earlier requests of its terminal; a request
+     * without terminal or merchant is ordered with the rest of its connection
+     * @return true if the message was queued; false if it failed to parse and was answered here
      */
-    private void handleSuccessfulProcessing(MessageProcessor.MessageResult result, long messageId) throws IOException {
-        // Log the response message
-        logger.info("Response Iso Message:");
-        IsoLogger.logResponseMessage(result.getResponse());
+    private boolean submitKeyed(byte[] frame, long messageId, boolean traced) throws IOException {
+        ProcessorSet processors = messageProcessor.currentProcessors();
+        IsoMessage request;
+        try {
+            request = messageProcessor.parse(processors, frame, messageId, timings);
+        } catch (Exception e) {
+            completeMessage(messageProcessor.failed(processors, messageId, e), messageId, frame.length, traced,
+                    timings);
+            return false;
+        }
+        Object key = MessageProcessor.orderingKey(request);
+        keyedExecutor.execute(key != null ? key : this,
+                new KeyedMessage(request, messageId, frame.length, traced, processors));
+        return true;
+    }
+
+    /**
+     * Parse a message here and add it to the batch collecting for its processor; messages of MTIs that are
+     * not batched, or that arrive once the batcher has stopped, are processed here as usual
+     * @return true if the message was batched; false if it was answered here
+     */
+    private boolean submitBatched(byte[] frame, long messageId, boolean traced) throws IOException {
+        ProcessorSet processors = messageProcessor.currentProcessors();
+        IsoMessage request;
+        try {
+            request = messageProcessor.parse(processors, frame, messageId, timings);
+        } catch (Exception e) {
+            completeMessage(messageProcessor.failed(processors, messageId, e), messageId, frame.length, traced,
+                    timings);
+            return false;
+        }
+        StageTimings messageTimings = new StageTimings();
+        messageTimings.copyFrom(timings);
+        if (messageProcessor.processBatched(batcher, processors, request, messageId, messageTimings,
+                result -> completeHandedOff(result, messageId, frame.length, traced, messageTimings))) {
+            return true;
+        }
+        completeMessage(messageProcessor.process(processors, request, messageId, timings), messageId, frame.length,
+                traced, timings);
+        return false;
+    }
 
+    /**
+     * Answer a request processed on another thread and end it; never throws, as that thread serves other
+     * connections too
+     */
+    private void completeHandedOff(MessageProcessor.MessageResult result, long messageId, int requestBytes,
+                                   boolean traced, StageTimings messageTimings) {
+        try {
+            if (result == null) {
+                logger.error("Message #{} from {} was handed off but not processed", messageId, clientAddress);
+                closeConnection();
+            } else {
+                completeMessage(result, messageId, requestBytes, traced, messageTimings);
+            }
+        } catch (IOException e) {
+            if (!clientSocket.isClosed()) {
+                logger.error("Error writing response to {}", clientAddress, e);
+            }
+            closeConnection();
+        } catch (RuntimeException e) {
+            logger.error("Error completing message #{} from {}", messageId, clientAddress, e);
+            closeConnection();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Send the response of a processed message, or the error response, and record it. Every request that is
+     * not an echo fast path ends here, whichever thread processed it, so this is where its flight recorder
+     * event is committed.
+     * @param requestBytes Size of the request frame without its length prefix
+     * @param messageTimings The message's stage durations, completed here with the write
+     */
+    private void completeMessage(MessageProcessor.MessageResult result, long messageId, int requestBytes,
+                                 boolean traced, StageTimings messageTimings) throws IOException {
+        MessageProcessedEvent event = new MessageProcessedEvent();
+        event.begin();
+        try {
+            if (result.isSuccess()) {
+                handleSuccessfulProcessing(result, messageId, traced, messageTimings);
+            } else {
+                handleFailedProcessing(result, messageId, traced, messageTimings);
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.connectionId = connectionId;
+                event.messageId = messageId;
+                event.requestBytes = requestBytes;
+                event.setRequest(result.getRequest());
+                event.setResponse(result.getResponse());
+                event.success = result.isSuccess();
+                event.latency = System.nanoTime() - messageTimings.getStartNanos();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Handle successful message processing
+     */
+    private void handleSuccessfulProcessing(MessageProcessor.MessageResult result, long messageId, boolean traced,
+                                            StageTimings timings) throws IOException {
         // Send response
-        messageSender.sendMessage(result.getResponse());
-        logger.info("Message #{} processed successfully for {}", messageId, clientAddress);
+        IsoMessage response = result.getResponse();
+        long writeStart = System.nanoTime();
+        byte[] output = messageSender.sendMessage(response);
+        timings.stop(Stage.WRITE, writeStart);
+        recordSent(result.getRequest(), response, output, traced, timings);
+        logger.debug("Message #{} processed successfully for {} (conn={})", messageId, clientAddress, connectionId);
     }
 
     /**
-     * Handle failed message processing
+     * Count, time, capture and trace a response written to the client
+     * @param request The request answered, or null when it could not be parsed
      */
-    private void handleFailedProcessing(MessageProcessor.MessageResult result, long messageId) throws IOException {
+    private void recordSent(IsoMessage request, IsoMessage response, byte[] output, boolean traced,
+                            StageTimings timings) {
+        trafficStats.responseSent(connectionStats, output.length);
+        long latencyNanos = System.nanoTime() - timings.getStartNanos();
+        listenerStats.responseSent(output.length, latencyNanos);
+        if (request != null) {
+            recordTerminal(request, latencyNanos);
+        }
+        // Without a parsed request the response's MTI tells which request it answers
+        latencyMetrics.record(request != null ? request.getType() : response.getType() & ~0x10,
+                response.hasField(39) ? response.getObjectValue(39).toString() : null, timings);
+        recordResponse(traced, output);
+    }
+
+    /**
+     * Count the message and its latency against its terminal (field 41) when it carries one
+     */
+    private void recordTerminal(IsoMessage request, long latencyNanos) {
+        if (request.hasField(41)) {
+            trafficStats.terminalMessage(request.getObjectValue(41).toString(), latencyNanos);
+        }
+    }
+
+    /**
+     * Capture a sent frame and trace it when the request was sampled (both skip the length prefix)
+     */
+    private void recordResponse(boolean traced, byte[] output) {
+        int prefixLength = framing.getPrefixLength();
+        captureWriter.capture(connectionId, Direction.OUT, output, prefixLength, output.length - prefixLength);
+        if (traced) {
+            messageTracer.record(Direction.OUT, connectionId, output, prefixLength, output.length - prefixLength);
+        }
+    }
+
+    /**
+     * Handle failed message processing: the error response, if one could be built, is sent and recorded like
+     * any other response before the connection is closed
+     */
+    private void handleFailedProcessing(MessageProcessor.MessageResult result, long messageId, boolean traced,
+                                        StageTimings timings) throws IOException {
+        trafficStats.errorOccurred(connectionStats);
+        listenerStats.errorOccurred();
         logger.error("Error processing message #{} from {}: {}", 
             messageId, clientAddress, result.getError().getMessage());
         
-        if (result.getResponse() != null) {
-            messageSender.sendErrorResponse(result.getResponse());
+        IsoMessage response = result.getResponse();
+        long writeStart = System.nanoTime();
+        byte[] output = messageSender.sendErrorResponse(response);
+        timings.stop(Stage.WRITE, writeStart);
+        if (output != null) {
+            recordSent(result.getRequest(), response, output, traced, timings);
+        }
+
+        // Close connection on processing error; with queued responses the writer closes the socket once the
+        // error response is out, and the handler cleans up when its read fails
+        if (!messageSender.isQueued()) {
+            closeConnection();
         }
-        
-        // Close connection on processing error
-        closeConnection();
     }
 
     /**
-     * Close the client connection and cleanup resources
+     * Close the client connection and cleanup resources; called from the handler and the pipeline's write stage
      */
-    private void closeConnection() {
+    private synchronized void closeConnection() {
         try {
             if (inputStream != null) {
                 inputStream.close();
@@ -147,12 +562,86 @@ public class ClientHandler implements Runnable {
             if (clientSocket != null && !clientSocket.isClosed()) {
                 clientSocket.close();
             }
+            trafficStats.connectionClosed(connectionStats);
+            if (!closed) {
+                closed = true;
+                listenerStats.connectionClosed();
+                shard.connectionClosed();
+                drainer.unregister(this);
+            }
             logger.info("Client connection closed: {}", clientAddress);
         } catch (IOException e) {
             logger.error("Error closing client connection for {}", clientAddress, e);
         }
     }
 
+    /**
+     * A parsed message waiting in a priority lane, with its own copy of the timings taken while it was read
+     */
+    private final class LanedMessage implements LaneTask {
+        private final IsoMessage request;
+        private final long messageId;
+        private final int requestBytes;
+        private final boolean traced;
+        private final ProcessorSet processors;
+        private final StageTimings messageTimings = new StageTimings();
+
+        LanedMessage(IsoMessage request, long messageId, int requestBytes, boolean traced,
+                     ProcessorSet processors) {
+            this.request = request;
+            this.messageId = messageId;
+            this.requestBytes = requestBytes;
+            this.traced = traced;
+            this.processors = processors;
+            this.messageTimings.copyFrom(timings);
+        }
+
+        @Override
+        public void run(long enqueuedNanos) {
+            messageTimings.stop(Stage.QUEUE, enqueuedNanos);
+            MessageProcessor.MessageResult result = null;
+            try {
+                result = messageProcessor.process(processors, request, messageId, messageTimings);
+            } finally {
+                completeHandedOff(result, messageId, requestBytes, traced, messageTimings);
+            }
+        }
+    }
+
+    /**
+     * A parsed message queued behind the earlier requests of its terminal
+     */
+    private final class KeyedMessage implements Runnable {
+        private final IsoMessage request;
+        private final long messageId;
+        private final int requestBytes;
+        private final boolean traced;
+        private final ProcessorSet processors;
+        private final StageTimings messageTimings = new StageTimings();
+        private final long enqueuedNanos = System.nanoTime();
+
+        KeyedMessage(IsoMessage request, long messageId, int requestBytes, boolean traced,
+                     ProcessorSet processors) {
+            this.request = request;
+            this.messageId = messageId;
+            this.requestBytes = requestBytes;
+            this.traced = traced;
+            this.processors = processors;
+            this.messageTimings.copyFrom(timings);
+        }
+
+        @Override
+        public void run() {
+            messageTimings.stop(Stage.QUEUE, enqueuedNanos);
+            MessageProcessor.MessageResult result = null;
+            try {
+                result = messageProcessor.process(processors, request, messageId, messageTimings);
+            } finally {
+                completeHandedOff(result, messageId, requestBytes, traced, messageTimings);
+            }
+        }
+    }
+
     /**
      * Data class to hold message information
      */
@@ -0,0 +1,177 @@
+package com.titp.server;
+
+import com.titp.server.metrics.PrometheusExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Graceful drain for rolling restarts: stop accepting connections, let every request already read be
+ * processed and answered, and close each connection as soon as it has nothing in flight. Connections still
+ * busy at the deadline are closed anyway, so a stuck upstream cannot hold up the restart for ever.
+ * <p>
+ * A connection is idle between requests and busy from the moment a request's length prefix has arrived
+ * until its response is written. The switch from idle to closing is atomic, so a request is either
+ * answered or never read; it is never processed without its response reaching the terminal.
+ */
+public class ConnectionDrainer implements ConnectionDrainerMXBean, PrometheusExporter {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionDrainer.class);
+    private static final long POLL_MILLIS = 20;
+    private static final long PROGRESS_LOG_MILLIS = 1000;
+
+    enum State { RUNNING, DRAINING, DRAINED }
+
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<State> state = new AtomicReference<>(State.RUNNING);
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private final Runnable stopAccepting;
+    private final long timeoutMillis;
+    private final LongAdder closedIdle = new LongAdder();
+    private final LongAdder closedInFlight = new LongAdder();
+    private volatile long drainStartNanos;
+
+    /**
+     * @param stopAccepting Closes the listeners' server sockets
+     * @param timeoutMillis How long requests in flight may take to complete once the drain starts
+     */
+    public ConnectionDrainer(Runnable stopAccepting, long timeoutMillis) {
+        this.stopAccepting = stopAccepting;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    void register(ClientHandler connection) {
+        connections.add(connection);
+    }
+
+    void unregister(ClientHandler connection) {
+        connections.remove(connection);
+    }
+
+    public boolean isDraining() {
+        return state.get() != State.RUNNING;
+    }
+
+    /**
+     * Drain all connections and return once they are closed; if a drain is already under way, wait for it
+     */
+    public void drain() {
+        if (!state.compareAndSet(State.RUNNING, State.DRAINING)) {
+            awaitDrained();
+            return;
+        }
+        drainStartNanos = System.nanoTime();
+        stopAccepting.run();
+        logger.info("Draining {} connections with {} requests in flight, deadline {} ms",
+                connections.size(), getInFlightRequests(), timeoutMillis);
+
+        long deadline = drainStartNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long nextLog = drainStartNanos + TimeUnit.MILLISECONDS.toNanos(PROGRESS_LOG_MILLIS);
+        try {
+            while (!connections.isEmpty() && System.nanoTime() - deadline < 0) {
+                for (ClientHandler connection : connections) {
+                    if (connection.closeIfIdle()) {
+                        closedIdle.increment();
+                    }
+                }
+                if (System.nanoTime() - nextLog >= 0) {
+                    logger.info("Draining: {} connections open, {} requests in flight, {} ms left",
+                            connections.size(), getInFlightRequests(),
+                            TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                    nextLog += TimeUnit.MILLISECONDS.toNanos(PROGRESS_LOG_MILLIS);
+                }
+                TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (ClientHandler connection : connections) {
+            if (connection.closeIfIdle()) {
+                closedIdle.increment();
+            } else if (connection.forceClose()) {
+                closedInFlight.increment();
+            }
+        }
+        state.set(State.DRAINED);
+        drained.countDown();
+        logger.info("Drain finished after {} ms: {} connections closed idle, {} closed with a request in flight",
+                getDrainElapsedMillis(), closedIdle.sum(), closedInFlight.sum());
+    }
+
+    private void awaitDrained() {
+        try {
+            if (!drained.await(timeoutMillis + PROGRESS_LOG_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Drain still in progress after {} ms", timeoutMillis + PROGRESS_LOG_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void startDrain() {
+        if (!isDraining()) {
+            Thread drainer = new Thread(this::drain, "connection-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+    }
+
+    @Override
+    public String getState() {
+        return state.get().name();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        int inFlight = 0;
+        for (ClientHandler connection : connections) {
+            inFlight += connection.getInFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public long getDrainElapsedMillis() {
+        return isDraining() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStartNanos) : 0;
+    }
+
+    @Override
+    public long getDrainTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public long getClosedIdle() {
+        return closedIdle.sum();
+    }
+
+    @Override
+    public long getClosedInFlight() {
+        return closedInFlight.sum();
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        out.append("# HELP titp_drain_state Drain state: 0 running, 1 draining, 2 drained\n");
+        out.append("# TYPE titp_drain_state gauge\n");
+        out.append("titp_drain_state ").append(state.get().ordinal()).append('\n');
+        out.append("# HELP titp_requests_in_flight Requests read but not yet answered\n");
+        out.append("# TYPE titp_requests_in_flight gauge\n");
+        out.append("titp_requests_in_flight ").append(getInFlightRequests()).append('\n');
+        out.append("# HELP titp_drain_closed_in_flight_total Connections closed at the drain deadline with a request in flight\n");
+        out.append("# TYPE titp_drain_closed_in_flight_total counter\n");
+        out.append("titp_drain_closed_in_flight_total ").append(closedInFlight.sum()).append('\n');
+    }
+}
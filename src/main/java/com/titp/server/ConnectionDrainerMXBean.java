@@ -0,0 +1,40 @@
+package com.titp.server;
+
+/**
+ * Progress of the graceful drain, and a trigger to start it without stopping the process
+ */
+public interface ConnectionDrainerMXBean {
+    /**
+     * RUNNING, DRAINING or DRAINED
+     */
+    String getState();
+
+    int getOpenConnections();
+
+    /**
+     * Requests read but not yet answered, over all connections
+     */
+    int getInFlightRequests();
+
+    /**
+     * Time since the drain started, or 0 when it has not
+     */
+    long getDrainElapsedMillis();
+
+    long getDrainTimeoutMillis();
+
+    /**
+     * Connections closed while idle since the drain started
+     */
+    long getClosedIdle();
+
+    /**
+     * Connections closed at the deadline with a request still in flight
+     */
+    long getClosedInFlight();
+
+    /**
+     * Stop accepting connections and close existing ones as their requests complete; returns immediately
+     */
+    void startDrain();
+}
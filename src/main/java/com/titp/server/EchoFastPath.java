@@ -0,0 +1,210 @@
+package com.titp.server;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Answers link-level echo tests (MTI 0800, processing code 99xxxx) straight from the raw frame.
+ * <p>
+ * Recognition only looks at the MTI, the bitmap and the first processing code byte. The 0810 reply is
+ * a pre-encoded template into which the request's fields 3, 7, 11 and 41 are patched, which is byte
+ * for byte what the general pipeline produces for an echo. Any frame that does not have the exact
+ * expected shape returns null and goes through the general pipeline.
+ * <p>
+ * The templates are checked against the message factory whenever they are built: a sample echo is answered
+ * both by the template and by the factory, and the fast path stands aside while the two differ, e.g. after a
+ * reload changed the field types or the 0810 template of the dictionary.
+ */
+public class EchoFastPath {
+    private static final Logger logger = LoggerFactory.getLogger(EchoFastPath.class);
+    private static final int MTI_LENGTH = 2;
+    private static final int BITMAP_LENGTH = 8;
+
+    // Encoded sizes in the binary TITP dictionary: NUMERIC is BCD, ALPHA is raw
+    private static final int PROCESSING_CODE_LENGTH = 3;  // field 3, NUMERIC 6
+    private static final int TRANSMISSION_DATE_LENGTH = 5; // field 7, NUMERIC 10
+    private static final int STAN_LENGTH = 3;             // field 11, NUMERIC 6
+    private static final int RESPONSE_CODE_LENGTH = 2;    // field 39, ALPHA 2
+    private static final int TERMINAL_ID_LENGTH = 8;      // field 41, ALPHA 8
+
+    private static final byte ECHO_TRANSACTION_TYPE = (byte) 0x99;
+
+    private static final long REQUIRED_FIELDS = bit(3) | bit(7) | bit(11);
+    private static final long REQUIRED_FIELDS_WITH_TERMINAL = REQUIRED_FIELDS | bit(41);
+
+    // Fields 3, 7, 11 and 41 of the sample echo the templates are checked with
+    private static final byte[] SAMPLE_FIELDS = {(byte) 0x99, 0x00, 0x01, 0x10, 0x19, 0x12, 0x34, 0x56, 0x00,
+            0x12, 0x34, 'E', 'C', 'H', 'O', 'T', 'E', 'S', 'T'};
+
+    private volatile Templates templates;
+
+    public EchoFastPath(MessageFactory<IsoMessage> messageFactory) {
+        reload(messageFactory);
+    }
+
+    /**
+     * Rebuild the response templates after a configuration reload, which may change the 0810 header or the
+     * dictionary, and disable the fast path if they no longer match what the message factory encodes
+     */
+    public void reload(MessageFactory<IsoMessage> messageFactory) {
+        String header = messageFactory.getIsoHeader(0x810);
+        byte[] headerBytes = header != null ? header.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        Templates rebuilt = new Templates(buildTemplate(headerBytes, false), buildTemplate(headerBytes, true));
+        String mismatch = check(rebuilt, messageFactory, false);
+        if (mismatch == null) {
+            mismatch = check(rebuilt, messageFactory, true);
+        }
+        if (mismatch != null) {
+            logger.warn("Echo fast path disabled, echoes go through the general pipeline: {}", mismatch);
+            templates = null;
+        } else {
+            templates = rebuilt;
+        }
+    }
+
+    /**
+     * Whether echoes are currently answered from the templates
+     */
+    public boolean isActive() {
+        return templates != null;
+    }
+
+    /**
+     * Build the encoded echo response for a raw request frame
+     * @param frame The message bytes as read from the socket, without the length prefix
+     * @return The complete response frame including its 2-byte length prefix, or null if the
+     *         frame is not an echo test of the expected shape
+     */
+    public byte[] tryRespond(byte[] frame) {
+        Templates current = templates;
+        return current != null ? respond(current, frame) : null;
+    }
+
+    private static byte[] respond(Templates current, byte[] frame) {
+        int offset = HeaderStripper.headerLength(frame);
+        if (frame.length < offset + MTI_LENGTH + BITMAP_LENGTH + PROCESSING_CODE_LENGTH
+                || frame[offset] != 0x08 || frame[offset + 1] != 0x00) {
+            return null;
+        }
+
+        long bitmap = readBitmap(frame, offset + MTI_LENGTH);
+        int fieldsOffset = offset + MTI_LENGTH + BITMAP_LENGTH;
+        if (frame[fieldsOffset] != ECHO_TRANSACTION_TYPE) {
+            return null;
+        }
+
+        boolean hasTerminal = bitmap == REQUIRED_FIELDS_WITH_TERMINAL;
+        if (bitmap != REQUIRED_FIELDS && !hasTerminal) {
+            return null;
+        }
+        int fieldsLength = PROCESSING_CODE_LENGTH + TRANSMISSION_DATE_LENGTH + STAN_LENGTH;
+        if (frame.length != fieldsOffset + fieldsLength + (hasTerminal ? TERMINAL_ID_LENGTH : 0)) {
+            return null;
+        }
+
+        byte[] response = hasTerminal ? current.withTerminal.clone() : current.plain.clone();
+
+        // Fields 3, 7 and 11 are contiguous in both request and response; 39 follows, then 41
+        int responseFieldsOffset = response.length - fieldsLength - RESPONSE_CODE_LENGTH
+                - (hasTerminal ? TERMINAL_ID_LENGTH : 0);
+        System.arraycopy(frame, fieldsOffset, response, responseFieldsOffset, fieldsLength);
+        if (hasTerminal) {
+            System.arraycopy(frame, fieldsOffset + fieldsLength, response,
+                    response.length - TERMINAL_ID_LENGTH, TERMINAL_ID_LENGTH);
+        }
+        return response;
+    }
+
+    /**
+     * Answer the sample echo from the templates and through the message factory, as the general pipeline
+     * does, and compare the two
+     * @return What differs, or null if the template reply is the factory's byte for byte
+     */
+    private static String check(Templates candidate, MessageFactory<IsoMessage> messageFactory, boolean withTerminal) {
+        int fieldsLength = SAMPLE_FIELDS.length - (withTerminal ? 0 : TERMINAL_ID_LENGTH);
+        byte[] request = new byte[MTI_LENGTH + BITMAP_LENGTH + fieldsLength];
+        request[0] = 0x08;
+        long bitmap = withTerminal ? REQUIRED_FIELDS_WITH_TERMINAL : REQUIRED_FIELDS;
+        for (int i = 0; i < BITMAP_LENGTH; i++) {
+            request[MTI_LENGTH + i] = (byte) (bitmap >>> (56 - 8 * i));
+        }
+        System.arraycopy(SAMPLE_FIELDS, 0, request, MTI_LENGTH + BITMAP_LENGTH, fieldsLength);
+
+        byte[] expected;
+        try {
+            IsoMessage parsed = messageFactory.parseMessage(request, 0);
+            IsoMessage response = messageFactory.createResponse(parsed);
+            response.setValue(39, "00", IsoType.ALPHA, 2);
+            expected = response.writeData();
+        } catch (Exception e) {
+            return "the dictionary does not round-trip a binary 0800 echo (" + e + ")";
+        }
+        byte[] fast = respond(candidate, request);
+        if (fast == null || !Arrays.equals(fast, 2, fast.length, expected, 0, expected.length)) {
+            return "the 0810 template differs from the dictionary's" + (withTerminal ? " with field 41" : "");
+        }
+        return null;
+    }
+
+    /**
+     * Length prefix, header, MTI 0810, bitmap, zeroed fields 3/7/11, "00", optionally zeroed field 41
+     */
+    private static byte[] buildTemplate(byte[] header, boolean withTerminal) {
+        int length = header.length + MTI_LENGTH + BITMAP_LENGTH
+                + PROCESSING_CODE_LENGTH + TRANSMISSION_DATE_LENGTH + STAN_LENGTH + RESPONSE_CODE_LENGTH
+                + (withTerminal ? TERMINAL_ID_LENGTH : 0);
+        byte[] frame = new byte[2 + length];
+        frame[0] = (byte) (length >> 8);
+        frame[1] = (byte) length;
+
+        int position = 2;
+        System.arraycopy(header, 0, frame, position, header.length);
+        position += header.length;
+        frame[position++] = 0x08;
+        frame[position++] = 0x10;
+
+        long bitmap = REQUIRED_FIELDS | bit(39) | (withTerminal ? bit(41) : 0);
+        for (int i = 0; i < BITMAP_LENGTH; i++) {
+            frame[position++] = (byte) (bitmap >>> (56 - 8 * i));
+        }
+
+        position += PROCESSING_CODE_LENGTH + TRANSMISSION_DATE_LENGTH + STAN_LENGTH;
+        frame[position++] = '0';
+        frame[position] = '0';
+        return frame;
+    }
+
+    private static long readBitmap(byte[] frame, int offset) {
+        long bitmap = 0;
+        for (int i = 0; i < BITMAP_LENGTH; i++) {
+            bitmap = (bitmap << 8) | (frame[offset + i] & 0xFF);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Bitmap mask for an ISO field number in the primary bitmap (field 1 is the most significant bit)
+     */
+    private static long bit(int field) {
+        return 1L << (64 - field);
+    }
+
+    /**
+     * Both templates of one configuration, swapped together
+     */
+    private static final class Templates {
+        final byte[] plain;
+        final byte[] withTerminal;
+
+        Templates(byte[] plain, byte[] withTerminal) {
+            this.plain = plain;
+            this.withTerminal = withTerminal;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory;
  */
 public class HeaderStripper {
     private static final Logger logger = LoggerFactory.getLogger(HeaderStripper.class);
+    private static final int HEADER_LENGTH = 5;
 
     /**
      * Strips the 5-byte header from the message if present
@@ -15,19 +16,33 @@ public class HeaderStripper {
      * @return The message bytes without the header
      */
     public static byte[] stripHeaderIfPresent(byte[] messageBytes) {
-        // Check if message starts with 5-byte header pattern
-        if (messageBytes.length >= 5) {
-            // Look for common header patterns like "02020"
-            String header = new String(messageBytes, 0, 5);
-            if (header.matches("\\d{5}")) {
-                logger.debug("Stripping 5-byte header: {}", header);
-                byte[] isoMessageBytes = new byte[messageBytes.length - 5];
-                System.arraycopy(messageBytes, 5, isoMessageBytes, 0, isoMessageBytes.length);
-                return isoMessageBytes;
+        int headerLength = headerLength(messageBytes);
+        if (headerLength == 0) {
+            // No header found, return original message
+            return messageBytes;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Stripping 5-byte header: {}", new String(messageBytes, 0, headerLength));
+        }
+        byte[] isoMessageBytes = new byte[messageBytes.length - headerLength];
+        System.arraycopy(messageBytes, headerLength, isoMessageBytes, 0, isoMessageBytes.length);
+        return isoMessageBytes;
+    }
+
+    /**
+     * Length of the header at the start of the message: 5 when it starts with
+     * five ASCII digits (e.g. "02020"), otherwise 0
+     */
+    public static int headerLength(byte[] messageBytes) {
+        if (messageBytes.length < HEADER_LENGTH) {
+            return 0;
+        }
+        for (int i = 0; i < HEADER_LENGTH; i++) {
+            if (messageBytes[i] < '0' || messageBytes[i] > '9') {
+                return 0;
             }
         }
-        
-        // No header found, return original message
-        return messageBytes;
+        return HEADER_LENGTH;
     }
 }
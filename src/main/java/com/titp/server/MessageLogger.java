@@ -1,34 +1,38 @@
 package com.titp.server;
 
 import com.solab.iso8583.IsoMessage;
+import com.titp.server.trace.Direction;
 import com.titp.server.utils.IsoLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
+
 /**
- * Handles logging of ISO 8583 messages
+ * Handles logging of ISO 8583 messages.
+ * Called from the message tracer's background thread, never from handler threads.
  */
 public class MessageLogger {
     private static final Logger logger = LoggerFactory.getLogger(MessageLogger.class);
 
     /**
-     * Logs detailed information about a received ISO 8583 message
+     * Logs detailed information about a traced ISO 8583 message
      */
-    public static void logReceivedMessage(IsoMessage message, long messageId, int messageLength,
-                                          int isoMessageLength) {
+    public static void logTracedMessage(IsoMessage message, Direction direction, long connectionId,
+                                        long timestampMillis, int messageLength) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
         try {
-            logger.info("=== Message #{} Received ===", messageId);
-            logger.info("Raw message length: {} bytes", messageLength);
-            if (messageLength != isoMessageLength) {
-                logger.info("ISO message length (after header): {} bytes", isoMessageLength);
-            }
+            logger.info("=== {} conn={} at {} ({} bytes) ===",
+                    direction == Direction.IN ? "Received" : "Sent", connectionId,
+                    Instant.ofEpochMilli(timestampMillis), messageLength);
             IsoLogger.logResponseMessage(message);
-            logger.info("=== End Message #{} ===", messageId);
         } catch (Exception e) {
             logger.warn("Error logging message details: {}", e.getMessage());
             // Fallback to basic logging
-            logger.info("Message #{} received: MTI={}, Length={} bytes",
-                    messageId, message.getType(), messageLength);
+            logger.info("{} conn={}: MTI={}, Length={} bytes",
+                    direction, connectionId, Integer.toString(message.getType(), 16), messageLength);
         }
     }
 
@@ -5,21 +5,89 @@ import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.batch.RequestBatcher;
+import com.titp.server.mac.MacService;
+import com.titp.server.mac.MacVerificationException;
+import com.titp.server.metrics.Stage;
+import com.titp.server.metrics.StageTimings;
 import com.titp.server.processor.MTIProcessor;
 import com.titp.server.processor.ProcessorFactory;
+import com.titp.server.processor.ProcessorSet;
+import com.titp.server.ratelimit.RateLimiter;
 import com.titp.server.utils.ISOResponseCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
 /**
  * Handles ISO 8583 message processing logic with improved separation of concerns
  */
 public class MessageProcessor {
     private static final Logger logger = LoggerFactory.getLogger(MessageProcessor.class);
+    // Field 39 of every rate limit decline; never modified, so shared
+    private static final IsoValue<String> RATE_LIMIT_DECLINE =
+            new IsoValue<>(IsoType.ALPHA, ISOResponseCode.EXCEEDS_FREQUENCY_LIMIT.getCode(), 2);
     private final MessageFactory<?> messageFactory;
+    private final Supplier<ProcessorSet> processorSets;
+    private final StageTimings timings;
+    private final long connectionId;
+    private final RateLimiter terminalLimiter;
+    private final MacService macService;
 
+    /**
+     * Processor pinned to one message factory, e.g. for benchmarks; processors still come from the factory
+     */
     public MessageProcessor(MessageFactory<?> messageFactory) {
+        this(messageFactory, ProcessorFactory::current, new StageTimings(), 0, null, null);
+    }
+
+    /**
+     * Processor that follows configuration reloads: each message is handled entirely with the message factory
+     * and processors current when it arrives
+     * @param timings Receives the strip, parse, process and build durations of each message
+     * @param connectionId Connection the messages arrive on
+     */
+    public MessageProcessor(StageTimings timings, long connectionId) {
+        this(null, ProcessorFactory::current, timings, connectionId, null, null);
+    }
+
+    /**
+     * Processor for a listener with its own message factory profile and processors
+     * @param processorSets Supplies the set current when each message arrives
+     */
+    public MessageProcessor(Supplier<ProcessorSet> processorSets, StageTimings timings, long connectionId) {
+        this(null, processorSets, timings, connectionId, null, null);
+    }
+
+    /**
+     * Processor for a listener that declines requests of terminals over their rate limit
+     * @param terminalLimiter Limits requests per terminal (field 41), or null for no limit
+     */
+    public MessageProcessor(Supplier<ProcessorSet> processorSets, StageTimings timings, long connectionId,
+                            RateLimiter terminalLimiter) {
+        this(null, processorSets, timings, connectionId, terminalLimiter, null);
+    }
+
+    /**
+     * Processor for a listener that also verifies the MAC of each request as it is parsed
+     * @param macService Verifies MACs with the terminals' session keys, or null to leave MACs unchecked
+     */
+    public MessageProcessor(Supplier<ProcessorSet> processorSets, StageTimings timings, long connectionId,
+                            RateLimiter terminalLimiter, MacService macService) {
+        this(null, processorSets, timings, connectionId, terminalLimiter, macService);
+    }
+
+    private MessageProcessor(MessageFactory<?> messageFactory, Supplier<ProcessorSet> processorSets,
+                             StageTimings timings, long connectionId, RateLimiter terminalLimiter,
+                             MacService macService) {
         this.messageFactory = messageFactory;
+        this.processorSets = processorSets;
+        this.timings = timings;
+        this.connectionId = connectionId;
+        this.terminalLimiter = terminalLimiter;
+        this.macService = macService;
     }
 
     /**
@@ -30,83 +98,231 @@ public class MessageProcessor {
      * @return Processed message result
      */
     public MessageResult processMessage(byte[] messageBytes, long messageId) {
+        ProcessorSet processors = processorSets.get();
+        IsoMessage request;
         try {
             // Step 1: Parse the message
-            IsoMessage request = parseMessage(messageBytes, messageId);
-            
-            // Step 2: Process using template pattern
-            MTIProcessor.ProcessingResult processingResult = processRequestWithTemplate(request);
-            
-            // Step 3: Create appropriate response
-            IsoMessage response = createAppropriateResponse(request, processingResult);
-            
+            request = parse(processors, messageBytes, messageId, timings);
+        } catch (Exception e) {
+            return failed(processors, messageId, e);
+        }
+        // Steps 2 and 3: Process using template pattern and create the response
+        return process(processors, request, messageId, timings);
+    }
+
+    /**
+     * The processor set a message arriving now is handled with; take it once per message
+     */
+    public ProcessorSet currentProcessors() {
+        return processorSets.get();
+    }
+
+    /**
+     * Parse stage: strip the header, parse with the set's message factory and verify the request's MAC
+     * @param stageTimings Receives the strip and parse durations; the parse duration includes the MAC check
+     * @throws MacVerificationException When the request fails the MAC check; {@link #failed} declines it
+     */
+    public IsoMessage parse(ProcessorSet processors, byte[] messageBytes, long messageId, StageTimings stageTimings)
+            throws Exception {
+        return parseMessage(factoryOf(processors), messageBytes, messageId, stageTimings);
+    }
+
+    /**
+     * Process stage: run the MTI processor on a parsed request and create the response
+     * @param stageTimings Receives the process and build durations
+     */
+    public MessageResult process(ProcessorSet processors, IsoMessage request, long messageId, StageTimings stageTimings) {
+        MessageFactory<?> factory = factoryOf(processors);
+        try {
+            if (isOverRateLimit(request)) {
+                return new MessageResult(true, request, createRateLimitDecline(factory, request), null);
+            }
+            long stageStart = System.nanoTime();
+            MTIProcessor.ProcessingResult processingResult = processRequestWithTemplate(processors, request);
+            stageStart = stageTimings.stop(Stage.PROCESS, stageStart);
+
+            IsoMessage response = createAppropriateResponse(factory, request, processingResult);
+            stageTimings.stop(Stage.BUILD, stageStart);
+
             return new MessageResult(true, request, response, null);
-            
+
         } catch (Exception e) {
             logger.error("Error processing message #{}", messageId, e);
-            return handleProcessingError(messageId, e);
+            return handleProcessingError(factory, messageId, e);
         }
     }
 
+    /**
+     * Process stage through a batcher: hand the request to the batch collecting for its processor and
+     * deliver the result once the batch has been processed
+     * @param stageTimings Receives the queue, process and build durations; must not be shared with other messages
+     * @param done Receives the result, on one of the batcher's writer threads or, for a rate limit decline,
+     * on this one
+     * @return false, with nothing delivered, when the request's MTI is not batched or the batcher has been
+     * stopped, and the request must be processed with {@link #process}
+     */
+    public boolean processBatched(RequestBatcher batcher, ProcessorSet processors, IsoMessage request,
+                                  long messageId, StageTimings stageTimings, Consumer<MessageResult> done) {
+        MTIProcessor processor = processors.getProcessor(request.getType());
+        if (processor == null || !processor.isBatchable() || !batcher.batches(request.getType())) {
+            return false;
+        }
+        MessageFactory<?> factory = factoryOf(processors);
+        if (isOverRateLimit(request)) {
+            done.accept(new MessageResult(true, request, createRateLimitDecline(factory, request), null));
+            return true;
+        }
+        RequestBatcher.Callback callback = (processingResult, enqueuedNanos, batchStartNanos) -> {
+            stageTimings.record(Stage.QUEUE, batchStartNanos - enqueuedNanos);
+            long stageStart = stageTimings.stop(Stage.PROCESS, batchStartNanos);
+            MessageResult result;
+            try {
+                IsoMessage response = createAppropriateResponse(factory, request, processingResult);
+                stageTimings.stop(Stage.BUILD, stageStart);
+                result = new MessageResult(true, request, response, null);
+            } catch (Exception e) {
+                logger.error("Error processing message #{}", messageId, e);
+                result = handleProcessingError(factory, messageId, e);
+            }
+            done.accept(result);
+        };
+        try {
+            batcher.submit(processor, request, callback);
+        } catch (IllegalStateException e) {
+            // Stopped while the server shuts down; the connection still gets its answer
+            logger.debug("Message #{} not batched: {}", messageId, e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Result for a message that could not be parsed, carrying the generic error response, or for a request
+     * that failed its MAC check, carrying a security violation decline
+     */
+    public MessageResult failed(ProcessorSet processors, long messageId, Exception error) {
+        if (error instanceof MacVerificationException) {
+            IsoMessage request = ((MacVerificationException) error).getRequest();
+            logger.warn("Message #{} declined: {}", messageId, error.getMessage());
+            return new MessageResult(true, request, createMacDecline(factoryOf(processors), request), null);
+        }
+        logger.error("Error processing message #{}", messageId, error);
+        return handleProcessingError(factoryOf(processors), messageId, error);
+    }
+
+    /**
+     * Key whose requests must be processed in arrival order: the terminal (field 41), else the merchant
+     * (field 42), else null when the request identifies neither
+     */
+    public static String orderingKey(IsoMessage request) {
+        if (request.hasField(41)) {
+            return request.getObjectValue(41).toString();
+        }
+        return request.hasField(42) ? request.getObjectValue(42).toString() : null;
+    }
+
+    private MessageFactory<?> factoryOf(ProcessorSet processors) {
+        return messageFactory != null ? messageFactory : processors.getMessageFactory();
+    }
+
     /**
      * Parse raw message bytes into ISO message
      */
-    private IsoMessage parseMessage(byte[] messageBytes, long messageId) throws Exception {
+    private IsoMessage parseMessage(MessageFactory<?> factory, byte[] messageBytes, long messageId,
+                                    StageTimings timings) throws Exception {
         // Strip header if present
+        long stageStart = System.nanoTime();
         byte[] isoMessageBytes = HeaderStripper.stripHeaderIfPresent(messageBytes);
+        stageStart = timings.stop(Stage.STRIP, stageStart);
         
-        logger.debug("Message #{} - Raw bytes: {}, Stripped bytes: {}", 
-            messageId, 
-            ByteArrayUtil.toHexString(messageBytes), 
-            ByteArrayUtil.toHexString(isoMessageBytes));
-        
-        IsoMessage request = messageFactory.parseMessage(isoMessageBytes, 0);
-        
-        // Log the received message
-        MessageLogger.logReceivedMessage(
-            request,
-            messageId,
-            messageBytes.length,
-            isoMessageBytes.length);
-        
+        if (logger.isDebugEnabled()) {
+            logger.debug("Message #{} - Raw bytes: {}, Stripped bytes: {}",
+                messageId,
+                ByteArrayUtil.toHexString(messageBytes),
+                ByteArrayUtil.toHexString(isoMessageBytes));
+        }
+
+        // Field-level logging of the request is done asynchronously by the message tracer
+        IsoMessage request = factory.parseMessage(isoMessageBytes, 0);
+        if (macService != null && request != null) {
+            macService.verify(request, isoMessageBytes);
+        }
+        timings.stop(Stage.PARSE, stageStart);
         return request;
     }
 
     /**
      * Process request using the Template Pattern
      */
-    private MTIProcessor.ProcessingResult processRequestWithTemplate(IsoMessage request) {
+    private MTIProcessor.ProcessingResult processRequestWithTemplate(ProcessorSet processors, IsoMessage request) {
         int mti = request.getType();
-        MTIProcessor processor = ProcessorFactory.getProcessor(mti);
+        MTIProcessor processor = processors.getProcessor(mti);
         
         if (processor == null) {
             logger.warn("No processor found for MTI: {}, using default processing", String.format("%04X", mti));
             return new MTIProcessor.ProcessingResult(true, ISOResponseCode.SUCCESS, "Default processing");
         }
         
-        logger.info("Using processor for MTI: {}", String.format("%04X", mti));
+        if (logger.isDebugEnabled()) {
+            logger.debug("Using {} for MTI: {}", processor.getClass().getSimpleName(), Integer.toHexString(mti));
+        }
         return processor.process(request);
     }
 
     /**
      * Create appropriate response based on processing result
      */
-    private IsoMessage createAppropriateResponse(IsoMessage request, MTIProcessor.ProcessingResult processingResult) {
+    private IsoMessage createAppropriateResponse(MessageFactory<?> factory, IsoMessage request,
+                                                 MTIProcessor.ProcessingResult processingResult) {
         if (processingResult.hasCustomResponse()) {
             logger.debug("Using custom response from processor");
             return processingResult.getResponse();
         } else {
             logger.debug("Creating default response with code: {}", processingResult.getResponseCode().getCode());
-            return createDefaultResponse(request, processingResult.getResponseCode());
+            return createDefaultResponse(factory, request, processingResult.getResponseCode());
+        }
+    }
+
+    /**
+     * Whether the request's terminal has used up its rate limit; requests without field 41, and requests of
+     * MTIs the limiter does not cover, are not limited
+     */
+    private boolean isOverRateLimit(IsoMessage request) {
+        if (terminalLimiter == null || !request.hasField(41) || !terminalLimiter.limits(request.getType())) {
+            return false;
         }
+        return !terminalLimiter.tryAcquire(request.getObjectValue(41).toString());
+    }
+
+    /**
+     * Decline for a terminal over its rate limit, built without running any processor
+     */
+    @SuppressWarnings("unchecked")
+    private IsoMessage createRateLimitDecline(MessageFactory<?> factory, IsoMessage request) {
+        logger.debug("Terminal {} over its rate limit, declining MTI {}",
+                request.getObjectValue(41), String.format("%04X", request.getType()));
+        IsoMessage response = ((MessageFactory<IsoMessage>) factory).createResponse(request);
+        response.setField(39, RATE_LIMIT_DECLINE);
+        return response;
+    }
+
+    /**
+     * Decline for a request that failed its MAC check, without a MAC since the terminal's key is not trusted
+     */
+    @SuppressWarnings("unchecked")
+    private IsoMessage createMacDecline(MessageFactory<?> factory, IsoMessage request) {
+        IsoMessage response = ((MessageFactory<IsoMessage>) factory).createResponse(request);
+        response.removeFields(64, 128);
+        response.setField(39, new IsoValue<>(IsoType.ALPHA, ISOResponseCode.SECURITY_VIOLATION.getCode(), 2));
+        return response;
     }
 
     /**
      * Creates a default response message for the given request
      */
     @SuppressWarnings("unchecked")
-    private IsoMessage createDefaultResponse(IsoMessage request, ISOResponseCode responseCode) {
-        IsoMessage response = ((MessageFactory<IsoMessage>) messageFactory).createResponse(request);
+    private IsoMessage createDefaultResponse(MessageFactory<?> factory, IsoMessage request, ISOResponseCode responseCode) {
+        IsoMessage response = ((MessageFactory<IsoMessage>) factory).createResponse(request);
         response.setField(39, new IsoValue<>(IsoType.ALPHA, responseCode.getCode(), 2));
         return response;
     }
@@ -114,11 +330,11 @@ public class MessageProcessor {
     /**
      * Handle processing errors and create error response
      */
-    private MessageResult handleProcessingError(long messageId, Exception error) {
+    private MessageResult handleProcessingError(MessageFactory<?> factory, long messageId, Exception error) {
         logger.error("Processing error for message #{}: {}", messageId, error.getMessage());
         
         try {
-            IsoMessage errorResponse = createErrorResponse();
+            IsoMessage errorResponse = createErrorResponse(factory);
             return new MessageResult(false, null, errorResponse, error);
         } catch (Exception responseError) {
             logger.error("Failed to create error response for message #{}", messageId, responseError);
@@ -130,9 +346,9 @@ public class MessageProcessor {
      * Create a generic error response when request parsing fails
      */
     @SuppressWarnings("unchecked")
-    private IsoMessage createErrorResponse() {
+    private IsoMessage createErrorResponse(MessageFactory<?> factory) {
         // Create a minimal error response
-        IsoMessage errorResponse = ((MessageFactory<IsoMessage>) messageFactory).createResponse(null);
+        IsoMessage errorResponse = ((MessageFactory<IsoMessage>) factory).createResponse(null);
         errorResponse.setField(39, new IsoValue<>(IsoType.ALPHA, ISOResponseCode.ERROR.getCode(), 2));
         return errorResponse;
     }
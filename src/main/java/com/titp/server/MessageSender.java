@@ -2,55 +2,224 @@ package com.titp.server;
 
 import ch.qos.logback.core.encoder.ByteArrayUtil;
 import com.solab.iso8583.IsoMessage;
+import com.titp.server.jfr.MessageSentEvent;
+import com.titp.server.listener.Framing;
+import com.titp.server.mac.MacService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Handles sending messages to clients
+ * Handles sending messages to clients. Each frame is written and flushed as one unit, so responses written
+ * by different threads, as in the staged pipeline, never interleave.
+ * <p>
+ * A sender can queue its frames instead of writing them on the calling thread, for connections answered by
+ * threads that serve other connections too: the frames are written in order by a task on the writer
+ * executor, which runs while the connection has frames queued. A client that stops reading then only holds
+ * up its own responses. Once it has the queue's capacity outstanding, further sends fail.
  */
 public class MessageSender {
     private static final Logger logger = LoggerFactory.getLogger(MessageSender.class);
+    // Queued after the last frame to close the stream once everything before it is written
+    private static final byte[] CLOSE = new byte[0];
+
     private final DataOutputStream outputStream;
+    private final Framing framing;
+    private final long connectionId;
+    private final MacService macService;
+    private final Executor writer;
+    private final int capacity;
+    private final Runnable onWriteFailure;
+    private final Queue<byte[]> queue;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
 
     public MessageSender(DataOutputStream outputStream) {
+        this(outputStream, Framing.BINARY2, 0);
+    }
+
+    /**
+     * @param framing Length prefix written in front of each message
+     * @param connectionId Connection the stream belongs to, reported in flight recorder events
+     */
+    public MessageSender(DataOutputStream outputStream, Framing framing, long connectionId) {
+        this(outputStream, framing, connectionId, null);
+    }
+
+    /**
+     * @param macService Generates the MAC of responses to MAC'd requests, or null to send them as built
+     */
+    public MessageSender(DataOutputStream outputStream, Framing framing, long connectionId, MacService macService) {
+        this(outputStream, framing, connectionId, macService, null, 0, null);
+    }
+
+    /**
+     * @param writer Runs the task writing queued frames, or null to write on the sending thread
+     * @param capacity Frames that may wait to be written before sends fail
+     * @param onWriteFailure Called on the writer when a queued frame cannot be written; the remaining frames
+     * are dropped
+     */
+    public MessageSender(DataOutputStream outputStream, Framing framing, long connectionId, MacService macService,
+                         Executor writer, int capacity, Runnable onWriteFailure) {
         this.outputStream = outputStream;
+        this.framing = framing;
+        this.connectionId = connectionId;
+        this.macService = macService;
+        this.writer = writer;
+        this.capacity = capacity;
+        this.onWriteFailure = onWriteFailure;
+        this.queue = writer != null ? new ConcurrentLinkedQueue<>() : null;
     }
 
     /**
      * Sends an ISO 8583 message to the client
+     * @return The frame written, including its length prefix
      */
-    public void sendMessage(IsoMessage message) throws IOException {
+    public byte[] sendMessage(IsoMessage message) throws IOException {
+        MessageSentEvent event = new MessageSentEvent();
+        event.begin();
         byte[] messageBytes = message.writeData();
+        if (macService != null) {
+            messageBytes = macService.sign(message, messageBytes);
+        }
+
+        int prefixLength = framing.getPrefixLength();
+        byte[] output = new byte[prefixLength + messageBytes.length];
+        try {
+            framing.writeLength(output, messageBytes.length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Cannot frame response MTI " + Integer.toString(message.getType(), 16), e);
+        }
+        System.arraycopy(messageBytes, 0, output, prefixLength, messageBytes.length);
+
+        writeFrame(output);
+
+        if (event.shouldCommit()) {
+            event.connectionId = connectionId;
+            event.setResponse(message);
+            event.bytes = output.length;
+            event.commit();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Response sent: MTI={}, Length={}, output = {}", Integer.toString(message.getType(), 16), output.length, ByteArrayUtil.toHexString(output));
+        }
+        return output;
+    }
+
+    /**
+     * Sends a pre-encoded frame that already carries its length prefix
+     */
+    public void sendFrame(byte[] frame) throws IOException {
+        writeFrame(frame);
+    }
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(messageBytes.length + 2);
-        byteBuffer.putShort((short) messageBytes.length);
-        byteBuffer.put(messageBytes);
+    /**
+     * Whether frames are queued for the writer executor rather than written by the sending thread
+     */
+    public boolean isQueued() {
+        return writer != null;
+    }
+
+    /**
+     * Frames waiting to be written
+     */
+    public int getQueuedFrames() {
+        return queued.get();
+    }
+
+    private void writeFrame(byte[] frame) throws IOException {
+        if (writer == null) {
+            synchronized (outputStream) {
+                outputStream.write(frame);
+                outputStream.flush();
+            }
+            return;
+        }
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            throw new IOException("Client of connection " + connectionId + " is not reading, " + capacity
+                    + " responses are waiting");
+        }
+        queue.add(frame);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() throws IOException {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                throw new IOException("No writer for connection " + connectionId, e);
+            }
+        }
+    }
 
-        byte[] output = byteBuffer.array();
-        outputStream.write(output);
-        outputStream.flush();
+    /**
+     * Write the queued frames in order, then give up the writer unless more arrived meanwhile
+     */
+    private void drain() {
+        try {
+            do {
+                byte[] frame;
+                while ((frame = queue.poll()) != null) {
+                    if (frame == CLOSE) {
+                        outputStream.close();
+                        return;
+                    }
+                    outputStream.write(frame);
+                    queued.decrementAndGet();
+                }
+                outputStream.flush();
+                draining.set(false);
+            } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+        } catch (IOException e) {
+            logger.debug("Writing queued responses of connection {} failed: {}", connectionId, e.getMessage());
+            queue.clear();
+            onWriteFailure.run();
+        }
+    }
 
-        logger.debug("Response sent: MTI={}, Length={}, output = {}", Integer.toString(message.getType(), 16), output.length, ByteArrayUtil.toHexString(output));
+    /**
+     * Close the output stream, and with it the socket; a queueing sender closes it once the frames queued
+     * before are written
+     */
+    public void close() throws IOException {
+        if (writer == null) {
+            outputStream.close();
+        } else {
+            queue.add(CLOSE);
+            scheduleDrain();
+        }
     }
 
     /**
-     * Sends an error response
+     * Sends an error response through {@link #sendMessage(IsoMessage)}, then closes the output stream; a
+     * queueing sender closes it once the frames queued before are written
+     * @return The frame written or queued, or null when the response could not be sent
      */
-    public void sendErrorResponse(IsoMessage response) throws IOException {
+    public byte[] sendErrorResponse(IsoMessage response) throws IOException {
         try {
             if (response != null) {
-                sendMessage(response);
+                byte[] output = sendMessage(response);
                 logger.warn("Sending error response due to processing failure");
+                return output;
             }
+            return null;
         } catch (Exception e) {
             logger.error("Error sending error response", e);
+            return null;
         } finally {
             // Close the output stream to indicate error
-            outputStream.close();
+            close();
         }
     }
 }
@@ -1,18 +1,53 @@
 package com.titp.server;
 
+import ch.qos.logback.core.encoder.ByteArrayUtil;
 import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.advice.AdviceQueue;
+import com.titp.server.advice.SettlementAdviceHandler;
+import com.titp.server.batch.RequestBatcher;
+import com.titp.server.capture.CaptureWriter;
+import com.titp.server.config.ConfigReloader;
+import com.titp.server.config.ListenerConfig;
 import com.titp.server.config.MessageFactoryManager;
 import com.titp.server.config.ServerConfig;
+import com.titp.server.keyed.KeyedExecutor;
+import com.titp.server.lane.LaneMetrics;
+import com.titp.server.lane.LaneScheduler;
+import com.titp.server.ledger.AccountLedger;
+import com.titp.server.listener.Framing;
+import com.titp.server.listener.Listener;
+import com.titp.server.listener.ListenerMetrics;
+import com.titp.server.mac.MacAlgorithm;
+import com.titp.server.mac.MacService;
+import com.titp.server.metrics.LatencyMetrics;
+import com.titp.server.metrics.MetricsHttpServer;
+import com.titp.server.pipeline.MessagePipeline;
 import com.titp.server.processor.ProcessorFactory;
+import com.titp.server.processor.ProcessorSet;
+import com.titp.server.proxy.UpstreamConnectionPool;
+import com.titp.server.ratelimit.RateLimiter;
+import com.titp.server.registry.TerminalRegistry;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.shard.Shard;
+import com.titp.server.shard.ShardSet;
+import com.titp.server.stats.TrafficStats;
+import com.titp.server.trace.MessageTracer;
+import com.titp.server.warmup.JitWarmUp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * TITP ISO 8583 Socket Server using j8583 library
@@ -20,18 +55,170 @@ import java.util.concurrent.Executors;
  */
 public class TITPServer {
     private static final Logger logger = LoggerFactory.getLogger(TITPServer.class);
+    private static final long HANDLER_EXIT_TIMEOUT_SECONDS = 5;
 
     private final ServerConfig serverConfig;
-    private final MessageFactory<IsoMessage> messageFactory;
-    private final ExecutorService executorService;
-    private ServerSocket serverSocket;
+    private volatile MessageFactory<IsoMessage> messageFactory;
+    private final ShardSet shards;
+    private final SettlementTotals settlementTotals = new SettlementTotals();
+    private final AdviceQueue adviceQueue;
+    private final EchoFastPath echoFastPath;
+    private final MessageTracer messageTracer;
+    private final CaptureWriter captureWriter = new CaptureWriter();
+    private final LatencyMetrics latencyMetrics;
+    private final TrafficStats trafficStats;
+    private final ConfigReloader configReloader;
+    private final List<Listener> listeners = new ArrayList<>();
+    private final List<ConfigReloader> listenerReloaders = new ArrayList<>();
+    private final Listener defaultListener;
+    private final JitWarmUp jitWarmUp;
+    private final ConnectionDrainer connectionDrainer;
+    private final List<RateLimiter> rateLimiters = new ArrayList<>();
+    private final RateLimiter ipLimiter;
+    private final RateLimiter terminalLimiter;
+    private TerminalRegistry terminalRegistry;
+    private AccountLedger accountLedger;
+    private MacService macService;
+    private UpstreamConnectionPool upstreamPool;
+    private MetricsHttpServer metricsHttpServer;
     private volatile boolean running = false;
 
     public TITPServer(ServerConfig serverConfig) throws IOException {
         this.serverConfig = serverConfig;
-        this.executorService = Executors.newFixedThreadPool(serverConfig.getThreadPoolSize());
+        this.shards = new ShardSet(serverConfig.getShards(), serverConfig.getThreadPoolSize(),
+                serverConfig.isPipeline() ? this::createPipeline : null,
+                serverConfig.isLanes() && !serverConfig.isPipeline() ? this::createLanes : null,
+                serverConfig.isKeyed() && !serverConfig.isPipeline() && !serverConfig.isLanes()
+                        ? index -> new KeyedExecutor("shard-" + index, serverConfig.getKeyedWorkers()) : null,
+                serverConfig.isBatch() && !serverConfig.isPipeline() && !serverConfig.isLanes() && !serverConfig.isKeyed()
+                        ? this::createBatcher : null,
+                serverConfig.getResponseQueueCapacity());
         this.messageFactory = initializeMessageFactory();
+        if (serverConfig.isLedger()) {
+            this.accountLedger = initializeLedger();
+        }
+        this.adviceQueue = initializeAdviceQueue();
+        this.echoFastPath = initializeEchoFastPath();
+        this.messageTracer = initializeMessageTracer();
+        registerMBean(captureWriter, "com.titp.server:type=Capture");
+        registerMBean(settlementTotals, "com.titp.server:type=SettlementTotals");
+        this.latencyMetrics = new LatencyMetrics(serverConfig.getMetricsInterval());
+        registerMBean(latencyMetrics, "com.titp.server:type=LatencyMetrics");
+        this.trafficStats = new TrafficStats(serverConfig.getStatsTerminals());
+        registerMBean(trafficStats, "com.titp.server:type=TrafficStats");
         initializeProcessorFactory();
+        if (serverConfig.getRegistryFile() != null) {
+            initializeRegistry();
+        }
+        if (accountLedger != null) {
+            ProcessorFactory.registerLedger(accountLedger);
+            registerMBean(accountLedger, "com.titp.server:type=AccountLedger");
+        }
+        if (serverConfig.getMacAlgorithm() != null) {
+            initializeMac();
+        }
+        if (serverConfig.isProxyEnabled()) {
+            initializeUpstreamPool();
+        }
+        this.configReloader = new ConfigReloader(new MessageFactoryManager(serverConfig),
+                ProcessorFactory::getSupportedMTIs, this::applyMessageFactory, serverConfig.getConfigWatchDelay());
+        registerMBean(configReloader, "com.titp.server:type=ConfigReloader");
+        this.defaultListener = addListener(new Listener("default", serverConfig.getPort(), Framing.BINARY2,
+                serverConfig.getConfigFile(), ProcessorFactory::current, echoFastPath));
+        for (ListenerConfig listenerConfig : serverConfig.getListeners()) {
+            initializeListener(listenerConfig);
+        }
+        this.jitWarmUp = new JitWarmUp(serverConfig.isWarmUp(), serverConfig.getWarmUpBatch(),
+                serverConfig.getWarmUpMaxMillis());
+        registerMBean(jitWarmUp, "com.titp.server:type=JitWarmUp");
+        this.connectionDrainer = new ConnectionDrainer(this::closeListeners, serverConfig.getDrainTimeout());
+        registerMBean(connectionDrainer, "com.titp.server:type=ConnectionDrainer");
+        this.ipLimiter = initializeRateLimiter("ip", serverConfig.getIpRateLimit(), serverConfig.getIpRateBurst());
+        this.terminalLimiter = initializeRateLimiter("terminal", serverConfig.getTerminalRateLimit(),
+                serverConfig.getTerminalRateBurst());
+        if (terminalLimiter != null) {
+            // Reversals, advices and network management must get through to a terminal that is over its limit
+            terminalLimiter.setMtis(serverConfig.getTerminalRateMtis());
+        }
+        for (Shard shard : shards.getShards()) {
+            registerMBean(shard, "com.titp.server:type=Shard,index=" + shard.getIndex());
+            if (shard.getPipeline() != null) {
+                registerMBean(shard.getPipeline(), "com.titp.server:type=Pipeline,shard=" + shard.getIndex());
+            }
+            if (shard.getLanes() != null) {
+                registerMBean(shard.getLanes(), "com.titp.server:type=Lanes,shard=" + shard.getIndex());
+            }
+            if (shard.getKeyedExecutor() != null) {
+                registerMBean(shard.getKeyedExecutor(), "com.titp.server:type=KeyedExecutor,shard=" + shard.getIndex());
+            }
+            if (shard.getBatcher() != null) {
+                registerMBean(shard.getBatcher(), "com.titp.server:type=Batcher,shard=" + shard.getIndex());
+            }
+        }
+    }
+
+    /**
+     * Create a rate limiter when a rate is configured
+     * @return The limiter, or null when the rate is 0
+     */
+    private RateLimiter initializeRateLimiter(String name, int ratePerSecond, int burst) {
+        if (ratePerSecond <= 0) {
+            return null;
+        }
+        RateLimiter limiter = new RateLimiter(name, ratePerSecond, burst, serverConfig.getRateLimitMaxKeys());
+        rateLimiters.add(limiter);
+        registerMBean(limiter, "com.titp.server:type=RateLimiter,name=" + name);
+        return limiter;
+    }
+
+    /**
+     * Create the priority lanes of a shard, with the weights and workers configured
+     */
+    private LaneScheduler createLanes(int shardIndex) {
+        return new LaneScheduler("shard-" + shardIndex, serverConfig.getLaneWeights(),
+                serverConfig.getLaneCapacity(), serverConfig.getLaneWorkers());
+    }
+
+    /**
+     * Create the request batcher of a shard, with the batch size, wait, MTIs and writers configured
+     */
+    private RequestBatcher createBatcher(int shardIndex) {
+        return new RequestBatcher("shard-" + shardIndex, serverConfig.getBatchMaxSize(),
+                serverConfig.getBatchMaxWaitMicros(), serverConfig.getBatchMtis(), serverConfig.getBatchWriterThreads());
+    }
+
+    /**
+     * Create the message pipeline of a shard, with the stage workers and wait strategy configured
+     */
+    private MessagePipeline createPipeline(int shardIndex) {
+        return new MessagePipeline("shard-" + shardIndex, serverConfig.getPipelineRingSize(),
+                serverConfig.getPipelineParseWorkers(), serverConfig.getPipelineProcessWorkers(),
+                serverConfig.getPipelineWriteWorkers(), serverConfig.getPipelineWaitStrategy());
+    }
+
+    /**
+     * Create an additional listener with its own message factory and processor set, reloaded on its own when
+     * its configuration file changes
+     */
+    private void initializeListener(ListenerConfig listenerConfig) throws IOException {
+        MessageFactoryManager factoryManager = new MessageFactoryManager(serverConfig, listenerConfig.getConfigFile());
+        MessageFactory<IsoMessage> listenerFactory = factoryManager.createMessageFactory();
+        AtomicReference<ProcessorSet> processors = new AtomicReference<>(ProcessorFactory.build(listenerFactory));
+        Listener listener = addListener(new Listener(listenerConfig.getName(), listenerConfig.getPort(),
+                listenerConfig.getFraming(), listenerConfig.getConfigFile(), processors::get, null));
+
+        // A reload must keep serving the MTIs the profile defined at startup
+        int[] profileMtis = factoryManager.roundTripMtis(listenerFactory, ProcessorFactory.getSupportedMTIs());
+        ConfigReloader reloader = new ConfigReloader(factoryManager, () -> profileMtis,
+                reloaded -> processors.set(ProcessorFactory.build(reloaded)), serverConfig.getConfigWatchDelay());
+        listenerReloaders.add(reloader);
+        registerMBean(reloader, "com.titp.server:type=ConfigReloader,listener=" + listener.getName());
+    }
+
+    private Listener addListener(Listener listener) {
+        listeners.add(listener);
+        registerMBean(listener, "com.titp.server:type=Listener,name=" + listener.getName());
+        return listener;
     }
 
     /**
@@ -44,20 +231,144 @@ public class TITPServer {
         return messageFactory;
     }
 
+    /**
+     * Swap a reloaded message factory into every component that parses or builds messages. Each is a single
+     * reference swap, so no connection is paused or dropped. The advice queue keeps the factory it was opened
+     * with, since journaled advices do not depend on the dictionary.
+     */
+    private void applyMessageFactory(MessageFactory<IsoMessage> reloaded) {
+        messageFactory = reloaded;
+        ProcessorFactory.reload(reloaded);
+        if (echoFastPath != null) {
+            echoFastPath.reload(reloaded);
+        }
+        messageTracer.setMessageFactory(reloaded);
+        if (upstreamPool != null) {
+            upstreamPool.setMessageFactory(reloaded);
+        }
+    }
+
+    /**
+     * Open the advice store-and-forward queue, recovering advices not applied before the last shutdown
+     */
+    private AdviceQueue initializeAdviceQueue() throws IOException {
+        return new AdviceQueue(
+                Paths.get(serverConfig.getAdviceQueueDirectory()),
+                messageFactory,
+                new SettlementAdviceHandler(settlementTotals, accountLedger),
+                serverConfig.getAdviceBatchSize(),
+                serverConfig.isAdviceSyncWrites());
+    }
+
+    /**
+     * Create the echo fast path; its templates assume binary bitmap and binary fields
+     */
+    private EchoFastPath initializeEchoFastPath() {
+        if (!serverConfig.isEchoFastPath() || !serverConfig.isUseBinaryBitmap() || !serverConfig.isBinaryFields()) {
+            return null;
+        }
+        EchoFastPath fastPath = new EchoFastPath(messageFactory);
+        if (fastPath.isActive()) {
+            logger.info("Echo fast path enabled for 0800 processing code 99xxxx");
+        }
+        return fastPath;
+    }
+
+    /**
+     * Create the asynchronous message tracer; sampling and MTI filters can be changed at runtime over JMX
+     */
+    private MessageTracer initializeMessageTracer() {
+        MessageTracer tracer = new MessageTracer(
+                messageFactory,
+                serverConfig.getTraceBufferSlots(),
+                serverConfig.getTraceSlotSize(),
+                serverConfig.isTraceEnabled(),
+                serverConfig.getTraceSampleEvery(),
+                serverConfig.getTraceMtis());
+        registerMBean(tracer, "com.titp.server:type=MessageTracer");
+        return tracer;
+    }
+
+    /**
+     * Register a management bean with the platform MBean server
+     */
+    private void registerMBean(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (Exception e) {
+            logger.warn("Could not register MBean {}: {}", name, e.getMessage());
+        }
+    }
+
     /**
      * Initialize the processor factory with message factory
      */
     private void initializeProcessorFactory() {
         logger.info("Initializing processor factory...");
-        ProcessorFactory.initialize(messageFactory);
+        ProcessorFactory.initialize(messageFactory, settlementTotals, adviceQueue);
         logger.info("Processor factory initialized successfully");
     }
 
+    /**
+     * Map the terminal registry and check authorizations and financial transactions against it
+     */
+    private void initializeRegistry() throws IOException {
+        terminalRegistry = new TerminalRegistry(Paths.get(serverConfig.getRegistryFile()),
+                serverConfig.getRegistryCheckInterval());
+        ProcessorFactory.registerRegistry(terminalRegistry);
+        registerMBean(terminalRegistry, "com.titp.server:type=TerminalRegistry");
+    }
+
+    /**
+     * Create the account ledger, restored from its last snapshot. It is created ahead of the advice queue,
+     * whose reversal advices it undoes, and posted to by the processors once they are built.
+     */
+    private AccountLedger initializeLedger() throws IOException {
+        String snapshot = serverConfig.getLedgerSnapshotFile();
+        return new AccountLedger(serverConfig.getLedgerStripes(), serverConfig.getLedgerExpectedAccounts(),
+                serverConfig.getLedgerOpeningBalance(), snapshot != null ? Paths.get(snapshot) : null,
+                serverConfig.getLedgerSnapshotInterval(), serverConfig.getLedgerReversalWindow());
+    }
+
+    /**
+     * Issue per-terminal session keys on working key downloads, verify the MAC of requests and generate that
+     * of their responses
+     */
+    private void initializeMac() {
+        String kek = serverConfig.getMacKek();
+        if (kek == null || !kek.matches("[0-9A-Fa-f]{32}")) {
+            throw new IllegalArgumentException("titp.mac needs titp.mac.kek, a 16-byte key encryption key as 32 hex digits");
+        }
+        macService = new MacService(MacAlgorithm.parse(serverConfig.getMacAlgorithm()),
+                ByteArrayUtil.hexStringToByteArray(kek), serverConfig.isMacRequired(), serverConfig.getMacCacheSize());
+        ProcessorFactory.registerMac(macService);
+        registerMBean(macService, "com.titp.server:type=Mac");
+    }
+
+    /**
+     * Create the upstream connection pool and route the configured MTIs through it
+     */
+    private void initializeUpstreamPool() {
+        upstreamPool = new UpstreamConnectionPool(
+                serverConfig.getUpstreamHost(),
+                serverConfig.getUpstreamPort(),
+                serverConfig.getUpstreamConnections(),
+                serverConfig.getUpstreamMaxInFlight(),
+                messageFactory);
+        ProcessorFactory.registerProxy(upstreamPool, serverConfig.getProxyMtis(), serverConfig.getUpstreamTimeout());
+        registerMBean(upstreamPool, "com.titp.server:type=UpstreamPool");
+    }
+
     /**
      * Start the server and begin accepting client connections
      */
     public void start() {
         try {
+            warmUp();
+            if (serverConfig.isWarmUpExit()) {
+                logger.info("Warm-up finished, exiting without opening the ports");
+                return;
+            }
             startServerSocket();
             runServerLoop();
         } catch (IOException e) {
@@ -66,26 +377,116 @@ public class TITPServer {
         }
     }
 
+    /**
+     * Run the JIT warm-up over the message factory of every distinct listener profile
+     */
+    @SuppressWarnings("unchecked")
+    private void warmUp() throws IOException {
+        Map<String, MessageFactory<IsoMessage>> profiles = new LinkedHashMap<>();
+        for (Listener listener : listeners) {
+            profiles.putIfAbsent(listener.getConfigFile(),
+                    (MessageFactory<IsoMessage>) listener.getProcessors().get().getMessageFactory());
+        }
+        jitWarmUp.run(new ArrayList<>(profiles.values()), echoFastPath);
+    }
+
     /**
      * Initialize and start the server socket
      */
     private void startServerSocket() throws IOException {
-        serverSocket = new ServerSocket(serverConfig.getPort());
+        messageTracer.start();
+        if (serverConfig.getCaptureFile() != null) {
+            captureWriter.startCapture(serverConfig.getCaptureFile());
+        }
+        adviceQueue.start();
+        rateLimiters.forEach(RateLimiter::start);
+        if (terminalRegistry != null) {
+            terminalRegistry.start();
+        }
+        if (accountLedger != null) {
+            accountLedger.start();
+        }
+        if (upstreamPool != null) {
+            upstreamPool.start();
+        }
+        startMetrics();
+        if (serverConfig.isConfigWatch()) {
+            configReloader.start();
+            for (ConfigReloader reloader : listenerReloaders) {
+                reloader.start();
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.bind();
+        }
         running = true;
-        logger.info("TITP Server started on port {}", serverConfig.getPort());
+        for (Listener listener : listeners) {
+            if (listener != defaultListener) {
+                Thread acceptor = new Thread(() -> acceptLoop(listener), "listener-" + listener.getName());
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+        }
+        logger.info("TITP Server started on port {}", defaultListener.getPort());
+        jitWarmUp.markReady();
+    }
+
+    /**
+     * Start the latency interval roll-over, the traffic summary log and, when a metrics port is configured,
+     * the local /metrics endpoint
+     */
+    private void startMetrics() throws IOException {
+        latencyMetrics.start();
+        trafficStats.start(serverConfig.getStatsLogInterval());
+        if (serverConfig.getMetricsPort() > 0) {
+            metricsHttpServer = new MetricsHttpServer(serverConfig.getMetricsPort());
+            metricsHttpServer.addExporter(trafficStats);
+            metricsHttpServer.addExporter(latencyMetrics);
+            metricsHttpServer.addExporter(new ListenerMetrics(listeners));
+            metricsHttpServer.addExporter(connectionDrainer);
+            List<LaneScheduler> laneSchedulers = new ArrayList<>();
+            for (Shard shard : shards.getShards()) {
+                if (shard.getLanes() != null) {
+                    laneSchedulers.add(shard.getLanes());
+                }
+            }
+            if (!laneSchedulers.isEmpty()) {
+                metricsHttpServer.addExporter(new LaneMetrics(laneSchedulers));
+            }
+            List<RequestBatcher> batchers = new ArrayList<>();
+            for (Shard shard : shards.getShards()) {
+                if (shard.getBatcher() != null) {
+                    batchers.add(shard.getBatcher());
+                }
+            }
+            if (!batchers.isEmpty()) {
+                metricsHttpServer.addExporter(RequestBatcher.exporter(batchers));
+            }
+            if (!rateLimiters.isEmpty()) {
+                metricsHttpServer.addExporter(RateLimiter.exporter(rateLimiters));
+            }
+            metricsHttpServer.start();
+        }
     }
 
     /**
-     * Main server loop for accepting client connections
+     * Main server loop for accepting client connections on the default listener
      */
     private void runServerLoop() {
-        while (running) {
+        acceptLoop(defaultListener);
+    }
+
+    /**
+     * Accept connections on a listener until the server stops or drains; every listener feeds the same shards
+     */
+    private void acceptLoop(Listener listener) {
+        while (running && !connectionDrainer.isDraining()) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                handleNewClient(clientSocket);
+                Socket clientSocket = listener.accept();
+                handleNewClient(listener, clientSocket);
             } catch (IOException e) {
-                if (running) {
-                    logger.error("Error accepting client connection", e);
+                if (running && !connectionDrainer.isDraining()) {
+                    logger.error("Error accepting client connection on listener {}", listener.getName(), e);
                 }
             }
         }
@@ -94,13 +495,25 @@ public class TITPServer {
     /**
      * Handle a new client connection
      */
-    private void handleNewClient(Socket clientSocket) {
+    private void handleNewClient(Listener listener, Socket clientSocket) {
         String clientAddress = clientSocket.getInetAddress().getHostAddress();
-        logger.info("New client connected: {}", clientAddress);
+        if (connectionDrainer.isDraining()) {
+            logger.info("Refusing client {} accepted as the drain started", clientAddress);
+            closeClientSocket(clientSocket);
+            return;
+        }
+        if (ipLimiter != null && !ipLimiter.tryAcquire(clientAddress)) {
+            logger.debug("Refusing client {}: over its connection rate limit", clientAddress);
+            closeClientSocket(clientSocket);
+            return;
+        }
+        Shard shard = shards.assign();
+        logger.info("New client connected: {} (listener {}, shard {})", clientAddress, listener.getName(), shard.getIndex());
         
         try {
-            // Handle each client in a separate thread
-            executorService.submit(new ClientHandler(clientSocket, messageFactory));
+            // The connection stays on its shard's handler threads for its lifetime
+            shard.execute(new ClientHandler(clientSocket, listener, shard,
+                    messageTracer, captureWriter, latencyMetrics, trafficStats, connectionDrainer, terminalLimiter, macService));
         } catch (Exception e) {
             logger.error("Error creating client handler for {}", clientAddress, e);
             closeClientSocket(clientSocket);
@@ -121,38 +534,93 @@ public class TITPServer {
     }
 
     /**
-     * Stop the server and cleanup resources
+     * Stop the server and cleanup resources. Connections are drained first: no new ones are accepted and
+     * requests in flight are answered, up to the drain timeout.
      */
     public void stop() {
         logger.info("Stopping TITP Server...");
         
         running = false;
-        closeServerSocket();
-        shutdownExecutorService();
+        configReloader.stop();
+        listenerReloaders.forEach(ConfigReloader::stop);
+        connectionDrainer.drain();
+        shutdownShards();
+        closeAdviceQueue();
+        if (upstreamPool != null) {
+            upstreamPool.close();
+        }
+        messageTracer.stop();
+        captureWriter.stopCapture();
+        if (metricsHttpServer != null) {
+            metricsHttpServer.close();
+        }
+        latencyMetrics.stop();
+        rateLimiters.forEach(RateLimiter::stop);
+        if (terminalRegistry != null) {
+            terminalRegistry.stop();
+        }
+        if (accountLedger != null) {
+            // After the shards, so the last snapshot holds every posting answered
+            accountLedger.stop();
+        }
+        trafficStats.stop();
         
         logger.info("TITP Server stopped");
     }
 
     /**
-     * Close the server socket
+     * Close the server sockets of all listeners
      */
-    private void closeServerSocket() {
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                logger.error("Error closing server socket", e);
+    private void closeListeners() {
+        for (Listener listener : listeners) {
+            listener.close();
+        }
+    }
+
+    /**
+     * Stop the shards' handler threads
+     */
+    private void shutdownShards() {
+        logger.info("Shutting down handler threads of {} shards", shards.getShards().size());
+        try {
+            // Connections are closed by now, so handlers only have their cleanup left
+            if (!shards.shutdown(HANDLER_EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Client handlers still running {}s after the drain", HANDLER_EXIT_TIMEOUT_SECONDS);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Shutdown the executor service gracefully
+     * Get the running settlement totals, e.g. to perform a cutover
+     */
+    public SettlementTotals getSettlementTotals() {
+        return settlementTotals;
+    }
+
+    /**
+     * Get the latency histograms, e.g. to read percentiles in-process
+     */
+    public LatencyMetrics getLatencyMetrics() {
+        return latencyMetrics;
+    }
+
+    /**
+     * Get the traffic counters, e.g. to take a snapshot in-process
+     */
+    public TrafficStats getTrafficStats() {
+        return trafficStats;
+    }
+
+    /**
+     * Stop the advice drainer; unapplied advices stay in the journal for the next start
      */
-    private void shutdownExecutorService() {
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdown();
-            logger.info("Executor service shutdown initiated");
+    private void closeAdviceQueue() {
+        try {
+            adviceQueue.close();
+        } catch (IOException e) {
+            logger.error("Error closing advice queue", e);
         }
     }
 
@@ -164,10 +632,31 @@ public class TITPServer {
     }
 
     /**
-     * Get the server port
+     * Get the server port; once started, the bound port, which differs from the configured one when that is 0
      */
     public int getPort() {
-        return serverConfig.getPort();
+        return defaultListener.getPort();
+    }
+
+    /**
+     * Get the startup time and JIT warm-up outcome
+     */
+    public JitWarmUp getJitWarmUp() {
+        return jitWarmUp;
+    }
+
+    /**
+     * Get the connection drainer, e.g. to drain without stopping
+     */
+    public ConnectionDrainer getConnectionDrainer() {
+        return connectionDrainer;
+    }
+
+    /**
+     * Get all listeners, the default one first
+     */
+    public List<Listener> getListeners() {
+        return listeners;
     }
 
     /**
@@ -0,0 +1,88 @@
+package com.titp.server.advice;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Journal form of an advice that does not depend on any message factory: the MTI and each field's value as
+ * its listener's dictionary rendered it, so an advice reads back the same whichever listener received it and
+ * whatever dictionary is loaded when it is applied.
+ * <p>
+ * Layout: marker 0xFF, version, 2-byte MTI, field count, then per field its number, kind (text or binary),
+ * 4-byte length and bytes. Text is ISO-8859-1. Raw ISO messages, as journaled before this form, never start
+ * with the marker.
+ */
+final class AdviceCodec {
+    private static final byte MARKER = (byte) 0xFF;
+    private static final byte VERSION = 1;
+    private static final byte TEXT = 0;
+    private static final byte BINARY = 1;
+
+    private AdviceCodec() {
+    }
+
+    static byte[] encode(IsoMessage advice) {
+        int count = 0;
+        int size = 5;
+        byte[][] values = new byte[129][];
+        boolean[] binary = new boolean[129];
+        for (int i = 2; i <= 128; i++) {
+            IsoValue<?> value = advice.getField(i);
+            if (value == null) {
+                continue;
+            }
+            binary[i] = value.getValue() instanceof byte[];
+            values[i] = binary[i] ? (byte[]) value.getValue() : value.toString().getBytes(StandardCharsets.ISO_8859_1);
+            size += 6 + values[i].length;
+            count++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MARKER).put(VERSION).putShort((short) advice.getType()).put((byte) count);
+        for (int i = 2; i <= 128; i++) {
+            if (values[i] != null) {
+                buffer.put((byte) i).put(binary[i] ? BINARY : TEXT).putInt(values[i].length).put(values[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    static boolean isEncoded(byte[] payload) {
+        return payload.length > 1 && payload[0] == MARKER;
+    }
+
+    static IsoMessage decode(byte[] payload) throws InvalidAdviceException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            buffer.get();
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new InvalidAdviceException("Stored advice has unknown journal version " + version);
+            }
+            IsoMessage message = new IsoMessage();
+            message.setType(buffer.getShort() & 0xffff);
+            int count = buffer.get() & 0xff;
+            for (int n = 0; n < count; n++) {
+                int field = buffer.get() & 0xff;
+                byte kind = buffer.get();
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                if (kind == BINARY) {
+                    message.setField(field, new IsoValue<>(IsoType.BINARY, bytes, Math.max(1, bytes.length)));
+                } else {
+                    // Fixed-length types need a non-zero length even for an empty value
+                    message.setField(field, new IsoValue<>(IsoType.ALPHA,
+                            new String(bytes, StandardCharsets.ISO_8859_1), Math.max(1, bytes.length)));
+                }
+            }
+            return message;
+        } catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException e) {
+            throw new InvalidAdviceException("Stored advice is malformed (" + payload.length + " bytes)", e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.titp.server.advice;
+
+import com.solab.iso8583.IsoMessage;
+
+/**
+ * Applies stored advices to the processing/ledger layer, one at a time and in arrival order.
+ * An advice that failed with a transient error is applied again, so a failing call must leave no effect behind.
+ */
+public interface AdviceHandler {
+
+    /**
+     * Apply one advice
+     * @param advice The parsed advice message
+     * @throws InvalidAdviceException when the advice can never be applied; it is dead-lettered, not retried
+     * @throws Exception on a transient failure, to have the advice retried with backoff
+     */
+    void handle(IsoMessage advice) throws Exception;
+}
@@ -0,0 +1,392 @@
+package com.titp.server.advice;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store-and-forward queue for advice messages (0220/0420).
+ * <p>
+ * Advices are appended to a local journal before they are acknowledged and are then applied
+ * one at a time by a background drainer, off the client handler threads. The position of the last
+ * applied record is persisted after each batch, so advices not yet applied are replayed on restart.
+ * <p>
+ * An advice that fails transiently is retried with backoff before the drainer moves on, so advices are
+ * applied in order and a retry never repeats the advices before it. An advice that can never be applied
+ * (it does not parse, or the handler rejects it as invalid) is moved to the dead-letter file so it cannot
+ * block the advices behind it.
+ * <p>
+ * Journal and dead-letter record layout: 4-byte length, 4-byte CRC32 of the payload, payload. The payload
+ * holds the advice's MTI and field values rather than its wire encoding, so it reads back without the
+ * dictionary of the listener that received it, nor the one loaded when it is applied. Records in raw ISO form,
+ * left by versions before that, are parsed with the message factory the queue was opened with, which a
+ * configuration reload does not replace: it is the dictionary of the startup that recovered them.
+ */
+public class AdviceQueue implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AdviceQueue.class);
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final long DRAIN_TIMEOUT_MS = 5_000;
+
+    private final MessageFactory<IsoMessage> messageFactory;
+    private final AdviceHandler handler;
+    private final int batchSize;
+    private final boolean syncWrites;
+    private final FileChannel journal;
+    private final FileChannel offsetFile;
+    private final FileChannel deadLetterFile;
+    private final Path journalPath;
+    private final BlockingQueue<PendingAdvice> pending = new LinkedBlockingQueue<>();
+    private final Object appendLock = new Object();
+    private final ByteBuffer offsetBuffer = ByteBuffer.allocate(Long.BYTES);
+
+    private long writePosition;
+    private volatile long committedPosition;
+    private volatile long deadLettered; // written by the drainer only
+    private volatile boolean running;
+    private Thread drainer;
+
+    public AdviceQueue(Path directory, MessageFactory<IsoMessage> messageFactory, AdviceHandler handler,
+                       int batchSize, boolean syncWrites) throws IOException {
+        this.messageFactory = messageFactory;
+        this.handler = handler;
+        this.batchSize = batchSize;
+        this.syncWrites = syncWrites;
+
+        Files.createDirectories(directory);
+        this.journalPath = directory.resolve("advice.journal");
+        this.journal = FileChannel.open(journalPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.offsetFile = FileChannel.open(directory.resolve("advice.offset"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.deadLetterFile = FileChannel.open(directory.resolve("advice.deadletter"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        recover();
+    }
+
+    /**
+     * Start the background drainer
+     */
+    public void start() {
+        running = true;
+        drainer = new Thread(this::drainLoop, "advice-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        logger.info("Advice queue started with {} pending advices", pending.size());
+    }
+
+    /**
+     * Durably append an advice. Once this returns the advice may be acknowledged.
+     */
+    public void append(IsoMessage advice) throws IOException {
+        byte[] payload = AdviceCodec.encode(advice);
+        ByteBuffer record = record(payload);
+
+        synchronized (appendLock) {
+            long position = writePosition;
+            while (record.hasRemaining()) {
+                position += journal.write(record, position);
+            }
+            if (syncWrites) {
+                journal.force(false);
+            }
+            writePosition = position;
+            pending.add(new PendingAdvice(payload, position));
+        }
+    }
+
+    /**
+     * Get the number of advices stored but not yet applied
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Get the number of advices moved to the dead-letter file since start
+     */
+    public long getDeadLetterCount() {
+        return deadLettered;
+    }
+
+    /**
+     * Stop the drainer, giving it a short time to apply what is pending.
+     * Anything left over stays in the journal and is replayed on the next start.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (drainer != null) {
+            try {
+                drainer.join(DRAIN_TIMEOUT_MS);
+                if (drainer.isAlive()) {
+                    logger.warn("Advice drainer did not finish, {} advices left for replay", pending.size());
+                    drainer.interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        journal.close();
+        offsetFile.close();
+        deadLetterFile.close();
+    }
+
+    /**
+     * Reload advices that were stored but not applied before the last shutdown.
+     * A torn record at the tail (crash mid-append) was never acknowledged and is truncated. A bad record
+     * followed by further records is corruption, not a torn append: truncating there would drop advices
+     * that were acknowledged, so the queue refuses to start instead.
+     */
+    private void recover() throws IOException {
+        long committed = 0;
+        if (offsetFile.size() >= Long.BYTES) {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            offsetFile.read(buffer, 0);
+            committed = buffer.flip().getLong();
+        }
+        long size = journal.size();
+        if (committed > size) {
+            committed = 0;
+        }
+
+        long position = committed;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            journal.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            long end = position + RECORD_HEADER_SIZE + length;
+            if (length <= 0) {
+                if (isZeroFilled(position)) {
+                    break;
+                }
+                throw corrupt(position, "invalid record length " + length);
+            }
+            if (end > size) {
+                // The record runs past the end of the file: the last append was cut short
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            journal.read(payload, position + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                if (end == size) {
+                    break;
+                }
+                throw corrupt(position, "CRC mismatch");
+            }
+
+            position = end;
+            pending.add(new PendingAdvice(payload.array(), position));
+        }
+
+        if (position < size) {
+            logger.warn("Truncating {} bytes of incomplete advice journal tail", size - position);
+            journal.truncate(position);
+        }
+
+        writePosition = position;
+        committedPosition = committed;
+        if (!pending.isEmpty()) {
+            logger.info("Recovered {} unapplied advices from journal", pending.size());
+        }
+    }
+
+    /**
+     * Whether the journal holds only zeros from the given position on, as left by a crash that extended the
+     * file before the record was written
+     */
+    private boolean isZeroFilled(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < journal.size()) {
+            buffer.clear();
+            int read = journal.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) != 0) {
+                    return false;
+                }
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private IOException corrupt(long position, String reason) throws IOException {
+        return new IOException(String.format("Advice journal %s is corrupt at offset %d (%s) with %d bytes after it;"
+                        + " move it aside or repair it before starting, unapplied advices are in it",
+                journalPath, position, reason, journal.size() - position));
+    }
+
+    /**
+     * Background loop: take up to batchSize advices, apply them one by one, then commit the journal position
+     */
+    private void drainLoop() {
+        List<PendingAdvice> batch = new ArrayList<>(batchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingAdvice first = pending.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, batchSize - 1);
+
+                for (PendingAdvice advice : batch) {
+                    applyWithRetry(advice);
+                }
+                commitWithRetry(batch.get(batch.size() - 1).endPosition);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply one advice, retrying transient failures with exponential backoff until the handler accepts it.
+     * An advice that can never be applied is dead-lettered instead.
+     */
+    private void applyWithRetry(PendingAdvice advice) throws InterruptedException {
+        long backoff = INITIAL_BACKOFF_MS;
+        while (true) {
+            try {
+                try {
+                    handler.handle(parse(advice));
+                } catch (InvalidAdviceException e) {
+                    deadLetter(advice, e);
+                }
+                return;
+            } catch (Exception e) {
+                logger.warn("Failed to apply advice, retrying in {}ms: {}", backoff, e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private IsoMessage parse(PendingAdvice advice) throws InvalidAdviceException {
+        if (AdviceCodec.isEncoded(advice.bytes)) {
+            return AdviceCodec.decode(advice.bytes);
+        }
+        IsoMessage message;
+        try {
+            message = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(advice.bytes), 0);
+        } catch (Exception e) {
+            throw new InvalidAdviceException("Stored advice does not parse (" + advice.bytes.length + " bytes)", e);
+        }
+        if (message == null) {
+            throw new InvalidAdviceException("Stored advice has an unknown MTI (" + advice.bytes.length + " bytes)");
+        }
+        return message;
+    }
+
+    /**
+     * Move an advice that can never be applied to the dead-letter file, in the journal's record layout
+     */
+    private void deadLetter(PendingAdvice advice, InvalidAdviceException reason) throws IOException {
+        ByteBuffer record = record(advice.bytes);
+        while (record.hasRemaining()) {
+            deadLetterFile.write(record);
+        }
+        if (syncWrites) {
+            deadLetterFile.force(false);
+        }
+        deadLettered++;
+        logger.error("Dead-lettered advice: {}", reason.getMessage(), reason);
+    }
+
+    /**
+     * Persist a journal position, retrying until it is stored. Advices are not taken until it is, since
+     * applying more behind a position that was not stored would have them all applied again after a restart.
+     */
+    private void commitWithRetry(long position) throws InterruptedException {
+        long backoff = INITIAL_BACKOFF_MS;
+        while (true) {
+            try {
+                commit(position);
+                return;
+            } catch (IOException e) {
+                logger.error("Error committing advice journal position, retrying in {}ms", backoff, e);
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    /**
+     * Persist the position of the last applied record and reclaim the journal once fully applied
+     */
+    private void commit(long position) throws IOException {
+        writeOffset(position);
+        committedPosition = position;
+
+        synchronized (appendLock) {
+            if (committedPosition == writePosition && writePosition > 0) {
+                journal.truncate(0);
+                writePosition = 0;
+                committedPosition = 0;
+                writeOffset(0);
+            }
+        }
+    }
+
+    private void writeOffset(long position) throws IOException {
+        offsetBuffer.clear();
+        offsetBuffer.putLong(position).flip();
+        offsetFile.write(offsetBuffer, 0);
+        if (syncWrites) {
+            offsetFile.force(false);
+        }
+    }
+
+    private static ByteBuffer record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        return record.flip();
+    }
+
+    /**
+     * Stored advice waiting to be applied
+     */
+    private static class PendingAdvice {
+        final byte[] bytes;
+        final long endPosition;
+
+        PendingAdvice(byte[] bytes, long endPosition) {
+            this.bytes = bytes;
+            this.endPosition = endPosition;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.titp.server.advice;
+
+/**
+ * A stored advice that can never be applied, e.g. because it does not parse or carries a malformed amount.
+ * It is moved to the dead-letter file instead of being retried.
+ */
+public class InvalidAdviceException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidAdviceException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public InvalidAdviceException(String message) {
+        super(message);
+    }
+}
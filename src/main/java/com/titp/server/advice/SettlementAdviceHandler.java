@@ -0,0 +1,80 @@
+package com.titp.server.advice;
+
+import com.solab.iso8583.IsoMessage;
+import com.titp.server.ledger.AccountLedger;
+import com.titp.server.ledger.Reversal;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.settlement.TransactionClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds financial advices (0220) and reversal advices (0420) to the settlement totals. With a ledger, a
+ * reversal advice undoes its original's posting the same way a 0400 does, and one that comes before its
+ * original, conflicts with it or repeats one already applied leaves both the ledger and the totals alone.
+ */
+public class SettlementAdviceHandler implements AdviceHandler {
+    private static final Logger logger = LoggerFactory.getLogger(SettlementAdviceHandler.class);
+
+    private final SettlementTotals settlementTotals;
+    private final AccountLedger ledger;
+
+    public SettlementAdviceHandler(SettlementTotals settlementTotals) {
+        this(settlementTotals, null);
+    }
+
+    /**
+     * @param ledger Account balances reversal advices restore, or null for the totals only
+     */
+    public SettlementAdviceHandler(SettlementTotals settlementTotals, AccountLedger ledger) {
+        this.settlementTotals = settlementTotals;
+        this.ledger = ledger;
+    }
+
+    @Override
+    public void handle(IsoMessage advice) throws InvalidAdviceException {
+        if (!advice.hasField(4)) {
+            logger.warn("Skipping advice MTI {} without amount", Integer.toString(advice.getType(), 16));
+            return;
+        }
+
+        String terminalId = advice.hasField(41) ? String.valueOf(advice.getField(41).getValue()) : null;
+        long amount = parseNumber(advice, 4);
+
+        // A reversal advice repeats its original's processing code, which tells a reversed debit from a
+        // reversed credit
+        long processingCode = advice.hasField(3) ? parseNumber(advice, 3) : 0;
+        TransactionClass transactionClass;
+        if (advice.getType() == 0x420) {
+            transactionClass = TransactionClass.reversalOf(processingCode);
+            if (ledger != null) {
+                Reversal reversal = ledger.reverse(advice, amount);
+                if (reversal == Reversal.UNKNOWN_ACCOUNT) {
+                    throw new InvalidAdviceException("Reversal advice for terminal " + terminalId
+                            + " cannot be posted, its original's account is unknown");
+                }
+                if (reversal != Reversal.REVERSED) {
+                    logger.info("Reversal advice for terminal {} not applied: {}", terminalId, reversal);
+                    return;
+                }
+            }
+        } else {
+            transactionClass = TransactionClass.fromProcessingCode(processingCode);
+        }
+
+        // Everything is validated before the totals change, so a rejected advice leaves no trace in them; a
+        // reversal advice only reaches here once its ledger posting is done
+        settlementTotals.record(transactionClass, terminalId, amount);
+        logger.debug("Applied advice MTI {} to settlement totals", Integer.toString(advice.getType(), 16));
+    }
+
+    private static long parseNumber(IsoMessage advice, int field) throws InvalidAdviceException {
+        String value = String.valueOf(advice.getField(field).getValue()).trim();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new InvalidAdviceException("Field " + field + " of advice MTI "
+                    + Integer.toString(advice.getType(), 16) + " is not a number: " + value, e);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.titp.server.batch;
+
+import com.solab.iso8583.IsoMessage;
+import com.titp.server.metrics.PrometheusExporter;
+import com.titp.server.processor.MTIProcessor;
+import com.titp.server.utils.ISOResponseCode;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Collects requests for the same processor that arrive close together and hands them to
+ * {@link MTIProcessor#processBatch} at once, so processors that consult a backend pay one round trip per
+ * batch rather than per request.
+ * <p>
+ * A batch is handed over when it reaches the maximum size or when its first request has waited the maximum
+ * time, whichever comes first. Batches are processed one at a time on the shard's batcher thread. Each
+ * result goes back to its request's connection through the request's callback, run on one of the batcher's
+ * writer threads, so a slow socket write never holds up the next batch.
+ */
+public class RequestBatcher implements RequestBatcherMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(RequestBatcher.class);
+    private static final int MTI_SLOTS = 0x10000;
+    private static final long HIGHEST_WAIT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 1.0};
+
+    /**
+     * Receives the result of one batched request
+     */
+    public interface Callback {
+        /**
+         * @param enqueuedNanos System.nanoTime() at which the request was submitted
+         * @param batchStartNanos System.nanoTime() at which its batch was handed to the processor
+         */
+        void complete(MTIProcessor.ProcessingResult result, long enqueuedNanos, long batchStartNanos);
+    }
+
+    private final String name;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final int[] mtis;
+    private final int writerThreads;
+    private final boolean[] batched = new boolean[MTI_SLOTS];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<MTIProcessor, Batch> collecting = new IdentityHashMap<>();
+    private final Deque<Batch> full = new ArrayDeque<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedRequests = new LongAdder();
+    private final Recorder sizes;
+    private final Recorder waits = new Recorder(1, HIGHEST_WAIT_NANOS, 2);
+    private final Histogram cumulativeSizes;
+    private final Histogram cumulativeWaits = new Histogram(1, HIGHEST_WAIT_NANOS, 2);
+    private Thread flusher;
+    private ExecutorService writers;
+    private boolean stopped;
+
+    /**
+     * @param name Prefix of the batcher thread name
+     * @param maxWaitMicros Longest a request waits for more requests to join its batch
+     * @param mtis The MTIs whose requests are batched
+     * @param writerThreads Threads that run the callbacks, i.e. write the responses, of processed batches
+     */
+    public RequestBatcher(String name, int maxBatchSize, long maxWaitMicros, int[] mtis, int writerThreads) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatchSize);
+        }
+        this.name = name;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.mtis = mtis.clone();
+        this.writerThreads = Math.max(1, writerThreads);
+        for (int mti : mtis) {
+            batched[mti & (MTI_SLOTS - 1)] = true;
+        }
+        this.sizes = new Recorder(1, Math.max(2, maxBatchSize), 2);
+        this.cumulativeSizes = new Histogram(1, Math.max(2, maxBatchSize), 2);
+    }
+
+    /**
+     * Start the batcher thread and its writers
+     */
+    public void start() {
+        AtomicInteger writerCounter = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(writerThreads, task -> {
+            Thread writer = new Thread(task, name + "-batch-writer-" + writerCounter.incrementAndGet());
+            writer.setDaemon(true);
+            return writer;
+        });
+        flusher = new Thread(this::flushLoop, name + "-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+        logger.info("Batcher {} started: up to {} requests or {} us per batch, MTIs {}, {} writers",
+                name, maxBatchSize, TimeUnit.NANOSECONDS.toMicros(maxWaitNanos), getMtis(), writerThreads);
+    }
+
+    /**
+     * Hand over what has been collected and stop once it is processed and answered
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (flusher != null) {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            }
+            if (writers != null) {
+                writers.shutdown();
+                writers.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Batcher {} stopped after {} batches", name, getBatches());
+    }
+
+    /**
+     * Whether requests of an MTI are collected into batches
+     */
+    public boolean batches(int mti) {
+        return mti >= 0 && mti < MTI_SLOTS && batched[mti];
+    }
+
+    /**
+     * Add a request to the batch collecting for its processor
+     * @throws IllegalStateException Once the batcher has been stopped
+     */
+    public void submit(MTIProcessor processor, IsoMessage request, Callback callback) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (stopped) {
+                throw new IllegalStateException("Batcher " + name + " stopped");
+            }
+            Batch batch = collecting.computeIfAbsent(processor, key -> new Batch(key, maxBatchSize));
+            batch.add(request, callback, now);
+            pending.incrementAndGet();
+            // A full batch is due now, and the next request for the processor starts a new one
+            if (batch.size() >= maxBatchSize) {
+                collecting.remove(processor);
+                full.add(batch);
+                changed.signal();
+            } else if (batch.size() == 1) {
+                // A new deadline
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        try {
+            Batch batch;
+            while ((batch = nextBatch()) != null) {
+                process(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until a batch is full or its first request has waited long enough, and take it out
+     * @return The batch, or null once stopped with nothing left
+     */
+    private Batch nextBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Batch ready = full.poll();
+                if (ready != null) {
+                    pending.addAndGet(-ready.size());
+                    return ready;
+                }
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (Batch batch : collecting.values()) {
+                    long waited = now - batch.firstNanos;
+                    if (stopped || waited >= maxWaitNanos) {
+                        collecting.remove(batch.processor);
+                        pending.addAndGet(-batch.size());
+                        return batch;
+                    }
+                    wait = Math.min(wait, maxWaitNanos - waited);
+                }
+                if (stopped) {
+                    return null;
+                }
+                if (wait == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wait);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void process(Batch batch) {
+        long batchStart = System.nanoTime();
+        int size = batch.size();
+        sizes.recordValue(size);
+        for (int i = 0; i < size; i++) {
+            waits.recordValue(Math.max(1, Math.min(batchStart - batch.enqueuedNanos[i], HIGHEST_WAIT_NANOS)));
+        }
+        batches.increment();
+        batchedRequests.add(size);
+
+        List<MTIProcessor.ProcessingResult> results;
+        try {
+            results = batch.processor.processBatch(batch.requests);
+        } catch (RuntimeException e) {
+            logger.error("Batch of {} failed in {}", size, batch.processor.getClass().getSimpleName(), e);
+            results = Collections.nCopies(size, new MTIProcessor.ProcessingResult(false, ISOResponseCode.ERROR,
+                    "Processing error: " + e.getMessage()));
+        }
+        for (int i = 0; i < size; i++) {
+            Callback callback = batch.callbacks.get(i);
+            MTIProcessor.ProcessingResult result = results.get(i);
+            long enqueued = batch.enqueuedNanos[i];
+            try {
+                writers.execute(() -> complete(callback, result, enqueued, batchStart));
+            } catch (RejectedExecutionException e) {
+                // Still processing after the stop timeout, with the writers shut down
+                complete(callback, result, enqueued, batchStart);
+            }
+        }
+    }
+
+    private static void complete(Callback callback, MTIProcessor.ProcessingResult result, long enqueuedNanos,
+                                 long batchStartNanos) {
+        try {
+            callback.complete(result, enqueuedNanos, batchStartNanos);
+        } catch (RuntimeException e) {
+            logger.error("Completing batched request failed", e);
+        }
+    }
+
+    private synchronized Histogram sizeHistogram() {
+        cumulativeSizes.add(sizes.getIntervalHistogram());
+        return cumulativeSizes.copy();
+    }
+
+    private synchronized Histogram waitHistogram() {
+        cumulativeWaits.add(waits.getIntervalHistogram());
+        return cumulativeWaits.copy();
+    }
+
+    @Override
+    public int getMaxBatchSize() { return maxBatchSize; }
+
+    @Override
+    public long getMaxWaitMicros() { return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos); }
+
+    @Override
+    public String getMtis() {
+        return Arrays.stream(mtis).mapToObj(mti -> String.format("%04X", mti)).collect(Collectors.joining(","));
+    }
+
+    @Override
+    public int getWriterThreads() { return writerThreads; }
+
+    @Override
+    public int getPending() { return pending.get(); }
+
+    @Override
+    public long getBatches() { return batches.sum(); }
+
+    @Override
+    public long getBatchedRequests() { return batchedRequests.sum(); }
+
+    @Override
+    public double getMeanBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) batchedRequests.sum() / count;
+    }
+
+    @Override
+    public double getWaitP99Micros() { return waitHistogram().getValueAtPercentile(99) / 1000.0; }
+
+    /**
+     * Prometheus export of the batch sizes and batch waits of several shards' batchers
+     */
+    public static PrometheusExporter exporter(List<RequestBatcher> batchers) {
+        return out -> {
+            Histogram sizes = null;
+            Histogram waits = null;
+            for (RequestBatcher batcher : batchers) {
+                Histogram batcherSizes = batcher.sizeHistogram();
+                Histogram batcherWaits = batcher.waitHistogram();
+                if (sizes == null) {
+                    sizes = batcherSizes;
+                    waits = batcherWaits;
+                } else {
+                    sizes.add(batcherSizes);
+                    waits.add(batcherWaits);
+                }
+            }
+            if (sizes == null) {
+                return;
+            }
+            writeSummary(out, "titp_batch_size", "Requests per batch handed to a processor", sizes, 1);
+            writeSummary(out, "titp_batch_wait_seconds", "Time requests waited for their batch", waits, 1e9);
+        };
+    }
+
+    private static void writeSummary(StringBuilder out, String metric, String help, Histogram histogram, double unit) {
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            out.append(metric).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100) / unit).append('\n');
+        }
+        out.append(metric).append("_sum ").append(histogram.getMean() * histogram.getTotalCount() / unit).append('\n');
+        out.append(metric).append("_count ").append(histogram.getTotalCount()).append('\n');
+    }
+
+    /**
+     * Requests collected for one processor
+     */
+    private static final class Batch {
+        final MTIProcessor processor;
+        final List<IsoMessage> requests;
+        final List<Callback> callbacks;
+        final long[] enqueuedNanos;
+        long firstNanos;
+
+        Batch(MTIProcessor processor, int maxBatchSize) {
+            this.processor = processor;
+            this.requests = new ArrayList<>(maxBatchSize);
+            this.callbacks = new ArrayList<>(maxBatchSize);
+            this.enqueuedNanos = new long[maxBatchSize];
+        }
+
+        void add(IsoMessage request, Callback callback, long nowNanos) {
+            if (requests.isEmpty()) {
+                firstNanos = nowNanos;
+            }
+            enqueuedNanos[requests.size()] = nowNanos;
+            requests.add(request);
+            callbacks.add(callback);
+        }
+
+        int size() {
+            return requests.size();
+        }
+    }
+}
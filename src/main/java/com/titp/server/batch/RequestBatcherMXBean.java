@@ -0,0 +1,36 @@
+package com.titp.server.batch;
+
+/**
+ * Batching settings and the batch sizes and added latency seen on one shard
+ */
+public interface RequestBatcherMXBean {
+    int getMaxBatchSize();
+
+    long getMaxWaitMicros();
+
+    /**
+     * MTIs collected into batches
+     */
+    String getMtis();
+
+    /**
+     * Threads writing the responses of processed batches
+     */
+    int getWriterThreads();
+
+    /**
+     * Requests waiting for their batch to be handed over
+     */
+    int getPending();
+
+    long getBatches();
+
+    long getBatchedRequests();
+
+    double getMeanBatchSize();
+
+    /**
+     * 99th percentile of the time requests waited for their batch since start
+     */
+    double getWaitP99Micros();
+}
@@ -0,0 +1,75 @@
+package com.titp.server.capture;
+
+import com.titp.server.trace.Direction;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Wire capture file format.
+ * <pre>
+ * file   := magic "TITPCAP" version(1 byte) record*
+ * record := timestampNanos(8) connectionId(8) direction(1) length(4) bytes(length)
+ * </pre>
+ * Timestamps are nanoseconds since the epoch, monotonic within one capture. The bytes are exactly
+ * the frame payload after the 2-byte length prefix, as read or written by the server.
+ */
+public final class CaptureFormat {
+    static final byte[] MAGIC = {'T', 'I', 'T', 'P', 'C', 'A', 'P'};
+    static final byte VERSION = 1;
+
+    private CaptureFormat() {
+    }
+
+    static void writeFileHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    static void writeRecord(DataOutputStream out, CaptureRecord record) throws IOException {
+        out.writeLong(record.timestampNanos);
+        out.writeLong(record.connectionId);
+        out.writeByte(record.direction.ordinal());
+        out.writeInt(record.length);
+        out.write(record.bytes, record.offset, record.length);
+    }
+
+    /**
+     * Check the file header
+     * @throws IOException if the stream is not a capture of a supported version
+     */
+    public static void readFileHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a TITP capture file");
+            }
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported capture version " + version);
+        }
+    }
+
+    /**
+     * Read the next record
+     * @return The record, or null at end of file
+     */
+    public static CaptureRecord readRecord(DataInputStream in) throws IOException {
+        long timestampNanos;
+        try {
+            timestampNanos = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        long connectionId = in.readLong();
+        Direction direction = Direction.values()[in.readUnsignedByte()];
+        int length = in.readInt();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new CaptureRecord(timestampNanos, connectionId, direction, bytes, 0, length);
+    }
+}
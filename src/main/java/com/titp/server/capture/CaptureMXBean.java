@@ -0,0 +1,23 @@
+package com.titp.server.capture;
+
+import java.io.IOException;
+
+/**
+ * Runtime control of wire capture
+ */
+public interface CaptureMXBean {
+    /**
+     * Start capturing to a new file, stopping any capture in progress
+     */
+    void startCapture(String path) throws IOException;
+
+    void stopCapture();
+
+    boolean isCapturing();
+
+    String getCapturePath();
+
+    long getCapturedCount();
+
+    long getDroppedCount();
+}
@@ -0,0 +1,37 @@
+package com.titp.server.capture;
+
+import com.titp.server.trace.Direction;
+
+/**
+ * One captured frame
+ */
+public class CaptureRecord {
+    final long timestampNanos;
+    final long connectionId;
+    final Direction direction;
+    final byte[] bytes;
+    final int offset;
+    final int length;
+
+    CaptureRecord(long timestampNanos, long connectionId, Direction direction, byte[] bytes, int offset, int length) {
+        this.timestampNanos = timestampNanos;
+        this.connectionId = connectionId;
+        this.direction = direction;
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getTimestampNanos() { return timestampNanos; }
+    public long getConnectionId() { return connectionId; }
+    public Direction getDirection() { return direction; }
+
+    /**
+     * Copy of the frame payload
+     */
+    public byte[] getPayload() {
+        byte[] payload = new byte[length];
+        System.arraycopy(bytes, offset, payload, 0, length);
+        return payload;
+    }
+}
@@ -0,0 +1,252 @@
+package com.titp.server.capture;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import com.titp.server.config.MessageFactoryManager;
+import com.titp.server.config.ServerConfig;
+import com.titp.server.trace.Direction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+/**
+ * Replays a wire capture against a running server and compares the responses with the recorded ones.
+ * <p>
+ * Every recorded connection is replayed on its own socket, preserving its request order. Requests are
+ * sent open-loop on the recorded schedule divided by the speed factor, or back to back with speed 0.
+ * Responses are matched to the recorded responses of the same connection in order and compared field
+ * by field, ignoring fields that legitimately differ between runs (dates, RRN, authorization ID).
+ * <pre>
+ * java -cp jpos-server.jar com.titp.server.capture.CaptureReplay capture.bin localhost:8080 [speed] [ignoreFields]
+ * </pre>
+ */
+public class CaptureReplay {
+    private static final Logger logger = LoggerFactory.getLogger(CaptureReplay.class);
+    private static final Set<Integer> DEFAULT_IGNORED_FIELDS = Set.of(7, 12, 13, 37, 38);
+
+    private final MessageFactory<IsoMessage> messageFactory;
+    private final String host;
+    private final int port;
+    private final double speed;
+    private final Set<Integer> ignoredFields;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+    private final Map<Integer, LongAdder> fieldMismatches = new ConcurrentHashMap<>();
+
+    public CaptureReplay(MessageFactory<IsoMessage> messageFactory, String host, int port, double speed,
+                         Set<Integer> ignoredFields) {
+        this.messageFactory = messageFactory;
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+        this.ignoredFields = ignoredFields;
+    }
+
+    /**
+     * Replay a capture file and log a comparison summary
+     * @return true if every response matched its recorded counterpart
+     */
+    public boolean replay(String capturePath) throws IOException, InterruptedException {
+        Map<Long, ConnectionScript> scripts = load(capturePath);
+        if (scripts.isEmpty()) {
+            logger.warn("Capture {} contains no requests", capturePath);
+            return true;
+        }
+
+        long firstTimestamp = scripts.values().stream()
+                .mapToLong(script -> script.requests.get(0).timestampNanos).min().orElse(0);
+        long startNanos = System.nanoTime() + 100_000_000L; // common start shortly after all connections are open
+
+        List<Thread> threads = new ArrayList<>();
+        for (ConnectionScript script : scripts.values()) {
+            Socket socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            Thread reader = new Thread(() -> readResponses(socket, script), "replay-read-" + script.connectionId);
+            Thread writer = new Thread(() -> sendRequests(socket, script, firstTimestamp, startNanos),
+                    "replay-send-" + script.connectionId);
+            threads.add(reader);
+            threads.add(writer);
+            reader.start();
+            writer.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        logSummary(scripts.size(), elapsedNanos);
+        return mismatched.sum() == 0 && received.sum() == sent.sum();
+    }
+
+    /**
+     * Group the capture into per-connection request lists and expected response queues
+     */
+    private Map<Long, ConnectionScript> load(String capturePath) throws IOException {
+        Map<Long, ConnectionScript> scripts = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(capturePath)))) {
+            CaptureFormat.readFileHeader(in);
+            CaptureRecord record;
+            while ((record = CaptureFormat.readRecord(in)) != null) {
+                ConnectionScript script = scripts.computeIfAbsent(record.connectionId, ConnectionScript::new);
+                if (record.direction == Direction.IN) {
+                    script.requests.add(record);
+                } else {
+                    script.expectedResponses.add(record);
+                }
+            }
+        }
+        scripts.values().removeIf(script -> script.requests.isEmpty());
+        logger.info("Loaded {} connections, {} requests from {}", scripts.size(),
+                scripts.values().stream().mapToInt(script -> script.requests.size()).sum(), capturePath);
+        return scripts;
+    }
+
+    private void sendRequests(Socket socket, ConnectionScript script, long firstTimestamp, long startNanos) {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            for (CaptureRecord request : script.requests) {
+                if (speed > 0) {
+                    long due = startNanos + (long) ((request.timestampNanos - firstTimestamp) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                out.writeShort(request.length);
+                out.write(request.bytes, request.offset, request.length);
+                out.flush();
+                sent.increment();
+            }
+        } catch (IOException e) {
+            logger.error("Replay connection {} failed while sending", script.connectionId, e);
+        }
+    }
+
+    private void readResponses(Socket socket, ConnectionScript script) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout(30_000);
+            int expected = script.requests.size();
+            for (int i = 0; i < expected; i++) {
+                byte[] response = new byte[in.readUnsignedShort()];
+                in.readFully(response);
+                received.increment();
+                compare(script.expectedResponses.poll(), response);
+            }
+        } catch (IOException e) {
+            logger.error("Replay connection {} failed while reading", script.connectionId, e);
+        }
+    }
+
+    private void compare(CaptureRecord expected, byte[] actual) {
+        if (expected == null) {
+            mismatched.increment();
+            return;
+        }
+        byte[] expectedBytes = expected.getPayload();
+        if (Arrays.equals(expectedBytes, actual)) {
+            matched.increment();
+            return;
+        }
+
+        try {
+            IsoMessage expectedMessage = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(expectedBytes), 0);
+            IsoMessage actualMessage = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(actual), 0);
+            boolean equal = expectedMessage.getType() == actualMessage.getType();
+            for (int field = 2; field <= 128; field++) {
+                if (ignoredFields.contains(field)) {
+                    continue;
+                }
+                if (!Objects.equals(valueOf(expectedMessage, field), valueOf(actualMessage, field))) {
+                    fieldMismatches.computeIfAbsent(field, f -> new LongAdder()).increment();
+                    equal = false;
+                }
+            }
+            (equal ? matched : mismatched).increment();
+        } catch (Exception e) {
+            logger.warn("Could not parse response for comparison: {}", e.getMessage());
+            mismatched.increment();
+        }
+    }
+
+    private static Object valueOf(IsoMessage message, int field) {
+        if (!message.hasField(field)) {
+            return null;
+        }
+        Object value = message.getField(field).getValue();
+        return value instanceof byte[] ? Arrays.toString((byte[]) value) : String.valueOf(value);
+    }
+
+    private void logSummary(int connections, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        logger.info("Replay finished: {} connections, {} sent, {} received in {} s ({} msg/s)",
+                connections, sent.sum(), received.sum(), String.format("%.3f", seconds),
+                String.format("%.0f", received.sum() / Math.max(seconds, 1e-9)));
+        logger.info("Responses matching capture: {}, differing: {}", matched.sum(), mismatched.sum());
+        if (!fieldMismatches.isEmpty()) {
+            logger.info("Differing fields: {}", new TreeMap<>(fieldMismatches).entrySet().stream()
+                    .map(entry -> "F" + entry.getKey() + "=" + entry.getValue().sum())
+                    .collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * Requests and expected responses of one recorded connection
+     */
+    private static class ConnectionScript {
+        final long connectionId;
+        final List<CaptureRecord> requests = new ArrayList<>();
+        final ArrayDeque<CaptureRecord> expectedResponses = new ArrayDeque<>();
+
+        ConnectionScript(long connectionId) {
+            this.connectionId = connectionId;
+        }
+    }
+
+    /**
+     * Entry point: capture file, host:port, optional speed (1 = original pacing, N = N times faster,
+     * 0 = as fast as possible) and optional comma separated fields to ignore in comparisons
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: CaptureReplay <capture-file> <host:port> [speed] [ignoreFields]");
+            System.exit(2);
+        }
+        int separator = args[1].lastIndexOf(':');
+        String host = args[1].substring(0, separator);
+        int port = Integer.parseInt(args[1].substring(separator + 1));
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        Set<Integer> ignoredFields = args.length > 3
+                ? Arrays.stream(args[3].split(",")).map(String::trim).map(Integer::valueOf).collect(Collectors.toSet())
+                : DEFAULT_IGNORED_FIELDS;
+
+        MessageFactory<IsoMessage> messageFactory =
+                new MessageFactoryManager(ServerConfig.getDefault()).createMessageFactory();
+        boolean identical = new CaptureReplay(messageFactory, host, port, speed, ignoredFields).replay(args[0]);
+        System.exit(identical ? 0 : 1);
+    }
+}
@@ -0,0 +1,151 @@
+package com.titp.server.capture;
+
+import com.titp.server.trace.Direction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures framed bytes exactly as received and sent, switchable at runtime.
+ * <p>
+ * When no capture is running, {@link #capture} costs one volatile read. While capturing, handler threads
+ * enqueue a reference to the frame (frames are never mutated after read/encode, so nothing is copied)
+ * on a bounded lock-free queue; a background thread writes the records to the capture file.
+ */
+public class CaptureWriter implements CaptureMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(CaptureWriter.class);
+    private static final int MAX_QUEUED_RECORDS = 65536;
+    private static final int FILE_BUFFER_SIZE = 1 << 20;
+
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile CaptureSession session;
+
+    /**
+     * Capture a frame payload (without the 2-byte length prefix)
+     */
+    public void capture(long connectionId, Direction direction, byte[] frame, int offset, int length) {
+        CaptureSession current = session;
+        if (current != null) {
+            current.offer(connectionId, direction, frame, offset, length);
+        }
+    }
+
+    @Override
+    public synchronized void startCapture(String path) throws IOException {
+        stopCapture();
+        CaptureSession newSession = new CaptureSession(path);
+        newSession.start();
+        session = newSession;
+        logger.info("Wire capture started: {}", path);
+    }
+
+    @Override
+    public synchronized void stopCapture() {
+        CaptureSession current = session;
+        if (current != null) {
+            session = null;
+            current.close();
+            logger.info("Wire capture stopped: {} ({} records, {} dropped)",
+                    current.path, captured.sum(), dropped.sum());
+        }
+    }
+
+    @Override
+    public boolean isCapturing() {
+        return session != null;
+    }
+
+    @Override
+    public String getCapturePath() {
+        CaptureSession current = session;
+        return current != null ? current.path : null;
+    }
+
+    @Override
+    public long getCapturedCount() {
+        return captured.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * One open capture file and its writer thread
+     */
+    private class CaptureSession {
+        final String path;
+        final DataOutputStream out;
+        final ConcurrentLinkedQueue<CaptureRecord> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final long baseEpochNanos = System.currentTimeMillis() * 1_000_000L;
+        final long baseNanoTime = System.nanoTime();
+        volatile boolean open = true;
+        Thread writer;
+
+        CaptureSession(String path) throws IOException {
+            this.path = path;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), FILE_BUFFER_SIZE));
+            CaptureFormat.writeFileHeader(out);
+        }
+
+        void start() {
+            writer = new Thread(this::writeLoop, "capture-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void offer(long connectionId, Direction direction, byte[] frame, int offset, int length) {
+            if (queued.incrementAndGet() > MAX_QUEUED_RECORDS) {
+                queued.decrementAndGet();
+                dropped.increment();
+                return;
+            }
+            long timestamp = baseEpochNanos + (System.nanoTime() - baseNanoTime);
+            queue.offer(new CaptureRecord(timestamp, connectionId, direction, frame, offset, length));
+        }
+
+        void writeLoop() {
+            try {
+                while (open || !queue.isEmpty()) {
+                    CaptureRecord record = queue.poll();
+                    if (record == null) {
+                        out.flush();
+                        LockSupport.parkNanos(1_000_000);
+                        continue;
+                    }
+                    queued.decrementAndGet();
+                    CaptureFormat.writeRecord(out, record);
+                    captured.increment();
+                }
+            } catch (IOException e) {
+                logger.error("Wire capture to {} failed", path, e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    logger.error("Error closing capture file {}", path, e);
+                }
+            }
+        }
+
+        void close() {
+            open = false;
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
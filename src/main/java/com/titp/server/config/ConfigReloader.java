@@ -0,0 +1,187 @@
+package com.titp.server.config;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Watches the ISO 8583 configuration file and, when it changes, builds and validates a new message factory
+ * on its own thread and hands it to the server to swap in. Connections are never touched: messages already
+ * being processed finish on the factory they started with and the next message uses the new one. A
+ * configuration that fails to load or validate is logged and the current factory stays in use.
+ */
+public class ConfigReloader implements ConfigReloaderMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigReloader.class);
+
+    private final MessageFactoryManager factoryManager;
+    private final Supplier<int[]> requestMtis;
+    private final Consumer<MessageFactory<IsoMessage>> applier;
+    private final Path configPath;
+    private final long quietMillis;
+    private byte[] loadedContent;
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile long reloadCount;
+    private volatile long failedReloadCount;
+    private volatile Instant lastReloadTime;
+    private volatile String lastError = "";
+
+    /**
+     * @param requestMtis The request MTIs the server processes, each of which the new factory must round-trip
+     * @param applier Swaps the new factory into the server
+     * @param quietMillis How long the file must stay unchanged before it is loaded, so a save in progress is
+     *                    not picked up half written
+     */
+    public ConfigReloader(MessageFactoryManager factoryManager, Supplier<int[]> requestMtis,
+                          Consumer<MessageFactory<IsoMessage>> applier, long quietMillis) {
+        this.factoryManager = factoryManager;
+        this.requestMtis = requestMtis;
+        this.applier = applier;
+        this.configPath = factoryManager.resolveConfigPath();
+        this.quietMillis = quietMillis;
+        this.loadedContent = readContent();
+    }
+
+    /**
+     * Start watching the configuration file; without a file on disk only manual reloads are possible
+     */
+    public void start() throws IOException {
+        if (configPath == null) {
+            logger.warn("Configuration is not a file on disk, reload on change disabled");
+            return;
+        }
+        watchService = configPath.getFileSystem().newWatchService();
+        configPath.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        watcher = new Thread(this::watchLoop, "config-reloader");
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("Watching {} for configuration changes", configPath);
+    }
+
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Error closing configuration watch: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = pollChanges(key);
+                // Editors often write a file in several steps; wait until it has been quiet for a while
+                while ((key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= pollChanges(key);
+                }
+                if (changed) {
+                    reloadIfChanged();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Server stopping
+        }
+    }
+
+    private boolean pollChanges(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            changed |= context instanceof Path && configPath.getFileName().equals(context);
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reloadIfChanged() {
+        byte[] content = readContent();
+        if (content != null && Arrays.equals(content, loadedContent)) {
+            logger.debug("Configuration file touched without changes, not reloading");
+            return;
+        }
+        reload();
+    }
+
+    @Override
+    public synchronized boolean reload() {
+        long start = System.nanoTime();
+        byte[] content = readContent();
+        try {
+            MessageFactory<IsoMessage> messageFactory = factoryManager.createMessageFactory();
+            factoryManager.validateMtis(messageFactory, requestMtis.get());
+            applier.accept(messageFactory);
+            loadedContent = content;
+            reloadCount++;
+            lastReloadTime = Instant.now();
+            lastError = "";
+            logger.info("Message configuration reloaded in {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return true;
+        } catch (Exception e) {
+            failedReloadCount++;
+            lastError = e.getMessage();
+            logger.error("Message configuration reload rejected, keeping the current configuration: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private byte[] readContent() {
+        try {
+            return configPath != null ? Files.readAllBytes(configPath) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getConfigPath() {
+        return configPath != null ? configPath.toString() : "";
+    }
+
+    @Override
+    public boolean isWatching() {
+        return watcher != null && watcher.isAlive();
+    }
+
+    @Override
+    public long getReloadCount() {
+        return reloadCount;
+    }
+
+    @Override
+    public long getFailedReloadCount() {
+        return failedReloadCount;
+    }
+
+    @Override
+    public String getLastReloadTime() {
+        Instant time = lastReloadTime;
+        return time != null ? time.toString() : "";
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+}
@@ -0,0 +1,33 @@
+package com.titp.server.config;
+
+/**
+ * Status and manual trigger of the message configuration reload
+ */
+public interface ConfigReloaderMXBean {
+    /**
+     * The watched configuration file, or empty when it is packaged in a jar
+     */
+    String getConfigPath();
+
+    boolean isWatching();
+
+    long getReloadCount();
+
+    long getFailedReloadCount();
+
+    /**
+     * Time of the last successful reload, or empty if there was none
+     */
+    String getLastReloadTime();
+
+    /**
+     * Why the last reload attempt failed, or empty if it succeeded
+     */
+    String getLastError();
+
+    /**
+     * Build, validate and swap in a new message factory now
+     * @return true if the new configuration was applied
+     */
+    boolean reload();
+}
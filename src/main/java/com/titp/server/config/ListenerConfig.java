@@ -0,0 +1,53 @@
+package com.titp.server.config;
+
+import com.titp.server.listener.Framing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An additional listener: its port, framing and message configuration file (the field dictionary)
+ */
+public class ListenerConfig {
+    private final String name;
+    private final int port;
+    private final Framing framing;
+    private final String configFile;
+
+    public ListenerConfig(String name, int port, Framing framing, String configFile) {
+        this.name = name;
+        this.port = port;
+        this.framing = framing;
+        this.configFile = configFile;
+    }
+
+    public String getName() { return name; }
+    public int getPort() { return port; }
+    public Framing getFraming() { return framing; }
+    public String getConfigFile() { return configFile; }
+
+    /**
+     * Parse "name:port:framing[:configFile],..." such as "host:9001:ascii4:config_host.xml"; without a config
+     * file the listener uses the default one
+     */
+    public static List<ListenerConfig> parseList(String listeners, String defaultConfigFile) {
+        List<ListenerConfig> result = new ArrayList<>();
+        for (String entry : listeners.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.trim().split(":", 4);
+            if (parts.length < 3) {
+                throw new IllegalArgumentException("Expected name:port:framing[:configFile], got " + entry);
+            }
+            result.add(new ListenerConfig(parts[0], Integer.parseInt(parts[1]), Framing.parse(parts[2]),
+                    parts.length > 3 ? parts[3] : defaultConfigFile));
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s on port %d (%s framing, %s)", name, port, framing.name().toLowerCase(), configFile);
+    }
+}
@@ -3,10 +3,18 @@ package com.titp.server.config;
 import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.MessageFactory;
 import com.solab.iso8583.parse.ConfigParser;
+import com.titp.server.HeaderStripper;
+import com.titp.server.warmup.WarmUpTraffic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * Manages ISO 8583 message factory initialization and configuration
@@ -15,16 +23,25 @@ public class MessageFactoryManager {
     private static final Logger logger = LoggerFactory.getLogger(MessageFactoryManager.class);
 
     private final ServerConfig serverConfig;
+    private final String configFile;
 
     public MessageFactoryManager(ServerConfig serverConfig) {
+        this(serverConfig, serverConfig.getConfigFile());
+    }
+
+    /**
+     * Manager for another field dictionary, e.g. of an additional listener, with the server's encoding settings
+     */
+    public MessageFactoryManager(ServerConfig serverConfig, String configFile) {
         this.serverConfig = serverConfig;
+        this.configFile = configFile;
     }
 
     /**
      * Initialize and configure the message factory
      */
     public MessageFactory<IsoMessage> createMessageFactory() throws IOException {
-        logger.info("Initializing message factory with config: {}", serverConfig.getConfigFile());
+        logger.info("Initializing message factory with config: {}", configFile);
         
         MessageFactory<IsoMessage> messageFactory = loadConfiguration();
         configureMessageFactory(messageFactory);
@@ -34,13 +51,18 @@ public class MessageFactoryManager {
     }
 
     /**
-     * Load message factory configuration from classpath
+     * Load message factory configuration from the file system when the config file names an existing file,
+     * otherwise from the classpath
      */
     private MessageFactory<IsoMessage> loadConfiguration() throws IOException {
         try {
-            return ConfigParser.createFromClasspathConfig(serverConfig.getConfigFile());
+            Path path = Paths.get(configFile);
+            if (Files.isRegularFile(path)) {
+                return ConfigParser.createFromUrl(path.toUri().toURL());
+            }
+            return ConfigParser.createFromClasspathConfig(configFile);
         } catch (IOException e) {
-            logger.error("Failed to load configuration file: {}", serverConfig.getConfigFile(), e);
+            logger.error("Failed to load configuration file: {}", configFile, e);
             throw new IOException("Failed to load ISO 8583 configuration", e);
         }
     }
@@ -64,6 +86,66 @@ public class MessageFactoryManager {
         logger.debug("  Assign Date: {}", serverConfig.isAssignDate());
     }
 
+    /**
+     * The file the configuration is loaded from, or null when it is packaged in a jar and cannot change
+     */
+    public Path resolveConfigPath() {
+        Path path = Paths.get(configFile);
+        if (Files.isRegularFile(path)) {
+            return path.toAbsolutePath();
+        }
+        URL resource = Thread.currentThread().getContextClassLoader().getResource(configFile);
+        if (resource == null || !"file".equals(resource.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(resource.toURI());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check that the factory can encode and parse every given request MTI and its response: an empty message
+     * of each type is written and parsed back, which fails when a parse guide is missing, then a message of
+     * each type populated like the warm-up traffic must read back with every field value intact
+     * @throws IOException naming the first MTI that does not round-trip
+     */
+    public void validateMtis(MessageFactory<IsoMessage> messageFactory, int[] requestMtis) throws IOException {
+        for (int requestMti : requestMtis) {
+            roundTrip(messageFactory, requestMti);
+            roundTrip(messageFactory, requestMti + 0x10);
+        }
+        WarmUpTraffic.validate(messageFactory, requestMtis);
+    }
+
+    /**
+     * The request MTIs among the candidates that round-trip, with their responses, on this factory
+     */
+    public int[] roundTripMtis(MessageFactory<IsoMessage> messageFactory, int[] candidates) {
+        return Arrays.stream(candidates).filter(requestMti -> {
+            try {
+                roundTrip(messageFactory, requestMti);
+                roundTrip(messageFactory, requestMti + 0x10);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }).toArray();
+    }
+
+    private static void roundTrip(MessageFactory<IsoMessage> messageFactory, int mti) throws IOException {
+        try {
+            byte[] data = messageFactory.newMessage(mti).writeData();
+            IsoMessage parsed = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(data), 0);
+            if (parsed == null || parsed.getType() != mti) {
+                throw new IOException("parsed back as " + (parsed == null ? "nothing" : String.format("%04X", parsed.getType())));
+            }
+        } catch (Exception e) {
+            throw new IOException(String.format("MTI %04X does not round-trip: %s", mti, e.getMessage()), e);
+        }
+    }
+
     /**
      * Validate message factory configuration
      */
@@ -1,8 +1,16 @@
 package com.titp.server.config;
 
+import com.titp.server.lane.Lane;
+import com.titp.server.pipeline.WaitStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
 /**
  * Centralized server configuration management
  */
@@ -14,6 +22,39 @@ public class ServerConfig {
     public static final String DEFAULT_CONFIG_FILE = "config_titp.xml";
     public static final int DEFAULT_THREAD_POOL_SIZE = 50;
     public static final int DEFAULT_SOCKET_TIMEOUT = 30000; // 30 seconds
+    public static final String DEFAULT_ADVICE_QUEUE_DIRECTORY = "data/advice";
+    public static final int DEFAULT_ADVICE_BATCH_SIZE = 100;
+    public static final boolean DEFAULT_TRACE_ENABLED = false;
+    public static final int DEFAULT_TRACE_SAMPLE_EVERY = 1;
+    public static final int DEFAULT_TRACE_BUFFER_SLOTS = 4096;
+    public static final int DEFAULT_TRACE_SLOT_SIZE = 2048;
+    public static final int DEFAULT_UPSTREAM_CONNECTIONS = 2;
+    public static final int DEFAULT_UPSTREAM_MAX_IN_FLIGHT = 256;
+    public static final int DEFAULT_UPSTREAM_TIMEOUT = 5000; // 5 seconds
+    public static final int DEFAULT_METRICS_INTERVAL = 10; // seconds
+    public static final int DEFAULT_STATS_TERMINALS = 1024;
+    public static final int DEFAULT_STATS_LOG_INTERVAL = 60; // seconds
+    public static final int DEFAULT_CONFIG_WATCH_DELAY = 500; // milliseconds
+    public static final int DEFAULT_WARM_UP_BATCH = 500; // messages per request variant per round
+    public static final int DEFAULT_WARM_UP_MAX_MILLIS = 60000;
+    public static final int DEFAULT_DRAIN_TIMEOUT = 30000; // milliseconds
+    public static final int DEFAULT_PIPELINE_RING_SIZE = 1024; // slots per shard, a power of two
+    public static final int DEFAULT_PIPELINE_PROCESS_WORKERS = 2;
+    public static final int DEFAULT_LANE_CAPACITY = 4096; // requests per lane per shard
+    public static final int DEFAULT_LANE_WORKERS = 4; // per shard
+    public static final int DEFAULT_RESPONSE_QUEUE_CAPACITY = 1024; // responses per connection
+    public static final int DEFAULT_KEYED_WORKERS = 4; // per shard
+    public static final int DEFAULT_RATE_LIMIT_MAX_KEYS = 100000; // per limiter
+    public static final int DEFAULT_BATCH_MAX_SIZE = 32;
+    public static final int DEFAULT_BATCH_MAX_WAIT_MICROS = 200;
+    public static final int DEFAULT_BATCH_WRITER_THREADS = 2;
+    public static final int DEFAULT_REGISTRY_CHECK_INTERVAL = 10; // seconds
+    public static final int DEFAULT_LEDGER_STRIPES = 64;
+    public static final int DEFAULT_LEDGER_EXPECTED_ACCOUNTS = 1000000;
+    public static final long DEFAULT_LEDGER_OPENING_BALANCE = 1000000; // minor units
+    public static final int DEFAULT_LEDGER_SNAPSHOT_INTERVAL = 60; // seconds
+    public static final int DEFAULT_LEDGER_REVERSAL_WINDOW = 100000;
+    public static final int DEFAULT_MAC_CACHE_SIZE = 1024; // terminals per thread
 
     // Configuration properties
     private final int port;
@@ -24,6 +65,72 @@ public class ServerConfig {
     private final boolean useBinaryBitmap;
     private final boolean binaryFields;
     private final boolean assignDate;
+    private final String adviceQueueDirectory;
+    private final int adviceBatchSize;
+    private final boolean adviceSyncWrites;
+    private final String upstreamHost;
+    private final int upstreamPort;
+    private final int upstreamConnections;
+    private final int upstreamMaxInFlight;
+    private final int upstreamTimeout;
+    private final int[] proxyMtis;
+    private final boolean echoFastPath;
+    private final boolean traceEnabled;
+    private final int traceSampleEvery;
+    private final String traceMtis;
+    private final int traceBufferSlots;
+    private final int traceSlotSize;
+    private final String captureFile;
+    private final int metricsPort;
+    private final int metricsInterval;
+    private final int statsTerminals;
+    private final int statsLogInterval;
+    private final boolean configWatch;
+    private final int configWatchDelay;
+    private final List<ListenerConfig> listeners;
+    private final boolean warmUp;
+    private final int warmUpBatch;
+    private final int warmUpMaxMillis;
+    private final boolean warmUpExit;
+    private final int drainTimeout;
+    private final int shards;
+    private final boolean pipeline;
+    private final int pipelineRingSize;
+    private final int pipelineParseWorkers;
+    private final int pipelineProcessWorkers;
+    private final int pipelineWriteWorkers;
+    private final WaitStrategy pipelineWaitStrategy;
+    private final boolean lanes;
+    private final int[] laneWeights;
+    private final int laneCapacity;
+    private final int laneWorkers;
+    private final boolean keyed;
+    private final int keyedWorkers;
+    private final int ipRateLimit;
+    private final int ipRateBurst;
+    private final int terminalRateLimit;
+    private final int terminalRateBurst;
+    private final int[] terminalRateMtis;
+    private final int rateLimitMaxKeys;
+    private final boolean batch;
+    private final int batchMaxSize;
+    private final int batchMaxWaitMicros;
+    private final int[] batchMtis;
+    private final int batchWriterThreads;
+    private final String registryFile;
+    private final int registryCheckInterval;
+    private final boolean ledger;
+    private final int ledgerStripes;
+    private final int ledgerExpectedAccounts;
+    private final long ledgerOpeningBalance;
+    private final String ledgerSnapshotFile;
+    private final int ledgerSnapshotInterval;
+    private final int ledgerReversalWindow;
+    private final String macAlgorithm;
+    private final String macKek;
+    private final boolean macRequired;
+    private final int macCacheSize;
+    private final int responseQueueCapacity;
 
     private ServerConfig(Builder builder) {
         this.port = builder.port;
@@ -34,6 +141,72 @@ public class ServerConfig {
         this.useBinaryBitmap = builder.useBinaryBitmap;
         this.binaryFields = builder.binaryFields;
         this.assignDate = builder.assignDate;
+        this.adviceQueueDirectory = builder.adviceQueueDirectory;
+        this.adviceBatchSize = builder.adviceBatchSize;
+        this.adviceSyncWrites = builder.adviceSyncWrites;
+        this.upstreamHost = builder.upstreamHost;
+        this.upstreamPort = builder.upstreamPort;
+        this.upstreamConnections = builder.upstreamConnections;
+        this.upstreamMaxInFlight = builder.upstreamMaxInFlight;
+        this.upstreamTimeout = builder.upstreamTimeout;
+        this.proxyMtis = builder.proxyMtis;
+        this.echoFastPath = builder.echoFastPath;
+        this.traceEnabled = builder.traceEnabled;
+        this.traceSampleEvery = builder.traceSampleEvery;
+        this.traceMtis = builder.traceMtis;
+        this.traceBufferSlots = builder.traceBufferSlots;
+        this.traceSlotSize = builder.traceSlotSize;
+        this.captureFile = builder.captureFile;
+        this.metricsPort = builder.metricsPort;
+        this.metricsInterval = builder.metricsInterval;
+        this.statsTerminals = builder.statsTerminals;
+        this.statsLogInterval = builder.statsLogInterval;
+        this.configWatch = builder.configWatch;
+        this.configWatchDelay = builder.configWatchDelay;
+        this.warmUp = builder.warmUp;
+        this.warmUpBatch = builder.warmUpBatch;
+        this.warmUpMaxMillis = builder.warmUpMaxMillis;
+        this.warmUpExit = builder.warmUpExit;
+        this.drainTimeout = builder.drainTimeout;
+        this.shards = builder.shards;
+        this.pipeline = builder.pipeline;
+        this.pipelineRingSize = builder.pipelineRingSize;
+        this.pipelineParseWorkers = builder.pipelineParseWorkers;
+        this.pipelineProcessWorkers = builder.pipelineProcessWorkers;
+        this.pipelineWriteWorkers = builder.pipelineWriteWorkers;
+        this.pipelineWaitStrategy = builder.pipelineWaitStrategy;
+        this.lanes = builder.lanes;
+        this.laneWeights = builder.laneWeights;
+        this.laneCapacity = builder.laneCapacity;
+        this.laneWorkers = builder.laneWorkers;
+        this.keyed = builder.keyed;
+        this.keyedWorkers = builder.keyedWorkers;
+        this.ipRateLimit = builder.ipRateLimit;
+        this.ipRateBurst = builder.ipRateBurst;
+        this.terminalRateLimit = builder.terminalRateLimit;
+        this.terminalRateBurst = builder.terminalRateBurst;
+        this.terminalRateMtis = builder.terminalRateMtis;
+        this.rateLimitMaxKeys = builder.rateLimitMaxKeys;
+        this.batch = builder.batch;
+        this.batchMaxSize = builder.batchMaxSize;
+        this.batchMaxWaitMicros = builder.batchMaxWaitMicros;
+        this.batchMtis = builder.batchMtis;
+        this.batchWriterThreads = builder.batchWriterThreads;
+        this.registryFile = builder.registryFile;
+        this.registryCheckInterval = builder.registryCheckInterval;
+        this.ledger = builder.ledger;
+        this.ledgerStripes = builder.ledgerStripes;
+        this.ledgerExpectedAccounts = builder.ledgerExpectedAccounts;
+        this.ledgerOpeningBalance = builder.ledgerOpeningBalance;
+        this.ledgerSnapshotFile = builder.ledgerSnapshotFile;
+        this.ledgerSnapshotInterval = builder.ledgerSnapshotInterval;
+        this.ledgerReversalWindow = builder.ledgerReversalWindow;
+        this.macAlgorithm = builder.macAlgorithm;
+        this.macKek = builder.macKek;
+        this.macRequired = builder.macRequired;
+        this.macCacheSize = builder.macCacheSize;
+        this.responseQueueCapacity = builder.responseQueueCapacity;
+        this.listeners = Collections.unmodifiableList(new ArrayList<>(builder.listeners));
     }
 
     // Getters
@@ -45,6 +218,73 @@ public class ServerConfig {
     public boolean isUseBinaryBitmap() { return useBinaryBitmap; }
     public boolean isBinaryFields() { return binaryFields; }
     public boolean isAssignDate() { return assignDate; }
+    public String getAdviceQueueDirectory() { return adviceQueueDirectory; }
+    public int getAdviceBatchSize() { return adviceBatchSize; }
+    public boolean isAdviceSyncWrites() { return adviceSyncWrites; }
+    public String getUpstreamHost() { return upstreamHost; }
+    public int getUpstreamPort() { return upstreamPort; }
+    public int getUpstreamConnections() { return upstreamConnections; }
+    public int getUpstreamMaxInFlight() { return upstreamMaxInFlight; }
+    public int getUpstreamTimeout() { return upstreamTimeout; }
+    public int[] getProxyMtis() { return proxyMtis.clone(); }
+    public boolean isEchoFastPath() { return echoFastPath; }
+    public boolean isTraceEnabled() { return traceEnabled; }
+    public int getTraceSampleEvery() { return traceSampleEvery; }
+    public String getTraceMtis() { return traceMtis; }
+    public int getTraceBufferSlots() { return traceBufferSlots; }
+    public int getTraceSlotSize() { return traceSlotSize; }
+    public String getCaptureFile() { return captureFile; }
+    public int getMetricsPort() { return metricsPort; }
+    public int getMetricsInterval() { return metricsInterval; }
+    public int getStatsTerminals() { return statsTerminals; }
+    public int getStatsLogInterval() { return statsLogInterval; }
+    public boolean isConfigWatch() { return configWatch; }
+    public int getConfigWatchDelay() { return configWatchDelay; }
+    public List<ListenerConfig> getListeners() { return listeners; }
+    public boolean isWarmUp() { return warmUp; }
+    public int getWarmUpBatch() { return warmUpBatch; }
+    public int getWarmUpMaxMillis() { return warmUpMaxMillis; }
+    public boolean isWarmUpExit() { return warmUpExit; }
+    public int getDrainTimeout() { return drainTimeout; }
+    public int getShards() { return shards; }
+    public boolean isPipeline() { return pipeline; }
+    public int getPipelineRingSize() { return pipelineRingSize; }
+    public int getPipelineParseWorkers() { return pipelineParseWorkers; }
+    public int getPipelineProcessWorkers() { return pipelineProcessWorkers; }
+    public int getPipelineWriteWorkers() { return pipelineWriteWorkers; }
+    public WaitStrategy getPipelineWaitStrategy() { return pipelineWaitStrategy; }
+    public boolean isLanes() { return lanes; }
+    public int[] getLaneWeights() { return laneWeights.clone(); }
+    public int getLaneCapacity() { return laneCapacity; }
+    public int getLaneWorkers() { return laneWorkers; }
+    public boolean isKeyed() { return keyed; }
+    public int getKeyedWorkers() { return keyedWorkers; }
+    public int getIpRateLimit() { return ipRateLimit; }
+    public int getIpRateBurst() { return ipRateBurst; }
+    public int getTerminalRateLimit() { return terminalRateLimit; }
+    public int getTerminalRateBurst() { return terminalRateBurst; }
+    public int[] getTerminalRateMtis() { return terminalRateMtis.clone(); }
+    public int getRateLimitMaxKeys() { return rateLimitMaxKeys; }
+    public boolean isBatch() { return batch; }
+    public int getBatchMaxSize() { return batchMaxSize; }
+    public int getBatchMaxWaitMicros() { return batchMaxWaitMicros; }
+    public int[] getBatchMtis() { return batchMtis.clone(); }
+    public int getBatchWriterThreads() { return batchWriterThreads; }
+    public String getRegistryFile() { return registryFile; }
+    public int getRegistryCheckInterval() { return registryCheckInterval; }
+    public boolean isLedger() { return ledger; }
+    public int getLedgerStripes() { return ledgerStripes; }
+    public int getLedgerExpectedAccounts() { return ledgerExpectedAccounts; }
+    public long getLedgerOpeningBalance() { return ledgerOpeningBalance; }
+    public String getLedgerSnapshotFile() { return ledgerSnapshotFile; }
+    public int getLedgerSnapshotInterval() { return ledgerSnapshotInterval; }
+    public int getLedgerReversalWindow() { return ledgerReversalWindow; }
+    public String getMacAlgorithm() { return macAlgorithm; }
+    public String getMacKek() { return macKek; }
+    public boolean isMacRequired() { return macRequired; }
+    public int getMacCacheSize() { return macCacheSize; }
+    public int getResponseQueueCapacity() { return responseQueueCapacity; }
+    public boolean isProxyEnabled() { return upstreamHost != null && proxyMtis.length > 0; }
 
     /**
      * Log the current configuration
@@ -52,13 +292,81 @@ public class ServerConfig {
     public void logConfiguration() {
         logger.info("Server Configuration:");
         logger.info("  Port: {}", port);
-        logger.info("  Config File: {}", configFile);
-        logger.info("  Thread Pool Size: {}", threadPoolSize);
+        logger.info("  Config File: {} (reload on change: {})", configFile, configWatch);
+        for (ListenerConfig listener : listeners) {
+            logger.info("  Listener: {}", listener);
+        }
+        logger.info("  Thread Pool Size: {}, Shards: {}", threadPoolSize,
+                shards > 0 ? shards : "one per core (" + Runtime.getRuntime().availableProcessors() + ")");
+        if (pipeline) {
+            logger.info("  Pipeline: ring of {} slots, {} parse, {} process, {} write workers per shard, {} wait",
+                    pipelineRingSize, pipelineParseWorkers, pipelineProcessWorkers, pipelineWriteWorkers,
+                    pipelineWaitStrategy);
+        }
+        if (lanes) {
+            logger.info("  Priority Lanes: {} workers per shard, weights {}, {} requests per lane{}",
+                    laneWorkers, Arrays.toString(laneWeights), laneCapacity,
+                    pipeline ? " (unused: the pipeline takes precedence)" : "");
+        }
+        if (keyed) {
+            logger.info("  Terminal-ordered Processing: {} workers per shard{}", keyedWorkers,
+                    pipeline || lanes ? " (unused: the pipeline or lanes take precedence)" : "");
+        }
+        if (batch) {
+            logger.info("  Request Batching: up to {} requests or {} us per batch, MTIs {}, {} writers per shard{}",
+                    batchMaxSize, batchMaxWaitMicros, formatMtis(batchMtis), batchWriterThreads,
+                    pipeline || lanes || keyed ? " (unused: the pipeline, lanes or keyed processing take precedence)" : "");
+        }
+        if (pipeline || lanes || keyed || batch) {
+            logger.info("  Response Queues: up to {} responses waiting per connection", responseQueueCapacity);
+        }
+        if (registryFile != null) {
+            logger.info("  Terminal Registry: {} (checked for updates every {}s)", registryFile, registryCheckInterval);
+        }
+        if (ledger) {
+            logger.info("  Account Ledger: {} stripes, opening balance {}, snapshots {}, {} postings kept for reversals",
+                    ledgerStripes, ledgerOpeningBalance >= 0 ? ledgerOpeningBalance : "none (unknown accounts declined)",
+                    ledgerSnapshotFile != null ? ledgerSnapshotFile + " every " + ledgerSnapshotInterval + "s" : "off",
+                    ledgerReversalWindow);
+        }
+        if (macAlgorithm != null) {
+            logger.info("  Message Authentication: {} MAC, {}, keys of {} terminals cached per thread", macAlgorithm,
+                    macRequired ? "required on all but network management messages" : "verified when present",
+                    macCacheSize);
+        }
+        if (ipRateLimit > 0 || terminalRateLimit > 0) {
+            logger.info("  Rate Limits: {} connections/s per IP (burst {}), {} messages/s per terminal (burst {}) of MTIs {}, up to {} keys",
+                    ipRateLimit > 0 ? ipRateLimit : "no limit", ipRateBurst > 0 ? ipRateBurst : ipRateLimit,
+                    terminalRateLimit > 0 ? terminalRateLimit : "no limit",
+                    terminalRateBurst > 0 ? terminalRateBurst : terminalRateLimit, formatMtis(terminalRateMtis),
+                    rateLimitMaxKeys);
+        }
         logger.info("  Socket Timeout: {}ms", socketTimeout);
+        logger.info("  Drain Timeout: {}ms", drainTimeout);
         logger.info("  Binary Header: {}", binaryHeader);
         logger.info("  Binary Bitmap: {}", useBinaryBitmap);
         logger.info("  Binary Fields: {}", binaryFields);
         logger.info("  Assign Date: {}", assignDate);
+        logger.info("  Echo Fast Path: {}", echoFastPath);
+        if (warmUp) {
+            logger.info("  JIT Warm-up: {} messages per variant per round, at most {}ms{}",
+                    warmUpBatch, warmUpMaxMillis, warmUpExit ? ", then exit" : "");
+        }
+        logger.info("  Message Trace: {} (1 in {}, MTIs: {})",
+                traceEnabled, traceSampleEvery, traceMtis.isEmpty() ? "all" : traceMtis);
+        if (captureFile != null) {
+            logger.info("  Wire Capture: {}", captureFile);
+        }
+        logger.info("  Latency Metrics: {}s interval, endpoint {}",
+                metricsInterval, metricsPort > 0 ? "127.0.0.1:" + metricsPort + "/metrics" : "disabled");
+        logger.info("  Traffic Stats: top {} terminals, summary every {}s", statsTerminals, statsLogInterval);
+        logger.info("  Advice Queue: {} (batch size {}, sync writes {})",
+                adviceQueueDirectory, adviceBatchSize, adviceSyncWrites);
+        if (isProxyEnabled()) {
+            logger.info("  Upstream: {}:{} ({} connections, {} in-flight each, {}ms timeout)",
+                    upstreamHost, upstreamPort, upstreamConnections, upstreamMaxInFlight, upstreamTimeout);
+            logger.info("  Proxied MTIs: {}", formatMtis(proxyMtis));
+        }
     }
 
     /**
@@ -73,6 +381,72 @@ public class ServerConfig {
         private boolean useBinaryBitmap = true;
         private boolean binaryFields = true;
         private boolean assignDate = true;
+        private String adviceQueueDirectory = DEFAULT_ADVICE_QUEUE_DIRECTORY;
+        private int adviceBatchSize = DEFAULT_ADVICE_BATCH_SIZE;
+        private boolean adviceSyncWrites = true;
+        private String upstreamHost;
+        private int upstreamPort;
+        private int upstreamConnections = DEFAULT_UPSTREAM_CONNECTIONS;
+        private int upstreamMaxInFlight = DEFAULT_UPSTREAM_MAX_IN_FLIGHT;
+        private int upstreamTimeout = DEFAULT_UPSTREAM_TIMEOUT;
+        private int[] proxyMtis = new int[0];
+        private boolean echoFastPath = true;
+        private boolean traceEnabled = DEFAULT_TRACE_ENABLED;
+        private int traceSampleEvery = DEFAULT_TRACE_SAMPLE_EVERY;
+        private String traceMtis = "";
+        private int traceBufferSlots = DEFAULT_TRACE_BUFFER_SLOTS;
+        private int traceSlotSize = DEFAULT_TRACE_SLOT_SIZE;
+        private String captureFile;
+        private int metricsPort;
+        private int metricsInterval = DEFAULT_METRICS_INTERVAL;
+        private int statsTerminals = DEFAULT_STATS_TERMINALS;
+        private int statsLogInterval = DEFAULT_STATS_LOG_INTERVAL;
+        private boolean configWatch = false;
+        private int configWatchDelay = DEFAULT_CONFIG_WATCH_DELAY;
+        private boolean warmUp = false;
+        private int warmUpBatch = DEFAULT_WARM_UP_BATCH;
+        private int warmUpMaxMillis = DEFAULT_WARM_UP_MAX_MILLIS;
+        private boolean warmUpExit = false;
+        private int drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+        private int shards = 0;
+        private boolean pipeline = false;
+        private int pipelineRingSize = DEFAULT_PIPELINE_RING_SIZE;
+        private int pipelineParseWorkers = 1;
+        private int pipelineProcessWorkers = DEFAULT_PIPELINE_PROCESS_WORKERS;
+        private int pipelineWriteWorkers = 1;
+        private WaitStrategy pipelineWaitStrategy = WaitStrategy.PARK;
+        private boolean lanes = false;
+        private int[] laneWeights = Lane.parseWeights(null);
+        private int laneCapacity = DEFAULT_LANE_CAPACITY;
+        private int laneWorkers = DEFAULT_LANE_WORKERS;
+        private boolean keyed = false;
+        private int keyedWorkers = DEFAULT_KEYED_WORKERS;
+        private int ipRateLimit = 0;
+        private int ipRateBurst = 0;
+        private int terminalRateLimit = 0;
+        private int terminalRateBurst = 0;
+        private int[] terminalRateMtis = {0x100, 0x200};
+        private int rateLimitMaxKeys = DEFAULT_RATE_LIMIT_MAX_KEYS;
+        private boolean batch = false;
+        private int batchMaxSize = DEFAULT_BATCH_MAX_SIZE;
+        private int batchMaxWaitMicros = DEFAULT_BATCH_MAX_WAIT_MICROS;
+        private int[] batchMtis = {0x100, 0x200};
+        private int batchWriterThreads = DEFAULT_BATCH_WRITER_THREADS;
+        private String registryFile;
+        private int registryCheckInterval = DEFAULT_REGISTRY_CHECK_INTERVAL;
+        private boolean ledger = false;
+        private int ledgerStripes = DEFAULT_LEDGER_STRIPES;
+        private int ledgerExpectedAccounts = DEFAULT_LEDGER_EXPECTED_ACCOUNTS;
+        private long ledgerOpeningBalance = DEFAULT_LEDGER_OPENING_BALANCE;
+        private String ledgerSnapshotFile;
+        private int ledgerSnapshotInterval = DEFAULT_LEDGER_SNAPSHOT_INTERVAL;
+        private int ledgerReversalWindow = DEFAULT_LEDGER_REVERSAL_WINDOW;
+        private String macAlgorithm;
+        private String macKek;
+        private boolean macRequired = false;
+        private int macCacheSize = DEFAULT_MAC_CACHE_SIZE;
+        private int responseQueueCapacity = DEFAULT_RESPONSE_QUEUE_CAPACITY;
+        private List<ListenerConfig> listeners = Collections.emptyList();
 
         public Builder port(int port) {
             this.port = port;
@@ -114,6 +488,332 @@ public class ServerConfig {
             return this;
         }
 
+        public Builder adviceQueueDirectory(String adviceQueueDirectory) {
+            this.adviceQueueDirectory = adviceQueueDirectory;
+            return this;
+        }
+
+        public Builder adviceBatchSize(int adviceBatchSize) {
+            this.adviceBatchSize = adviceBatchSize;
+            return this;
+        }
+
+        public Builder adviceSyncWrites(boolean adviceSyncWrites) {
+            this.adviceSyncWrites = adviceSyncWrites;
+            return this;
+        }
+
+        public Builder upstream(String upstreamHost, int upstreamPort) {
+            this.upstreamHost = upstreamHost;
+            this.upstreamPort = upstreamPort;
+            return this;
+        }
+
+        public Builder upstreamConnections(int upstreamConnections) {
+            this.upstreamConnections = upstreamConnections;
+            return this;
+        }
+
+        public Builder upstreamMaxInFlight(int upstreamMaxInFlight) {
+            this.upstreamMaxInFlight = upstreamMaxInFlight;
+            return this;
+        }
+
+        public Builder upstreamTimeout(int upstreamTimeout) {
+            this.upstreamTimeout = upstreamTimeout;
+            return this;
+        }
+
+        public Builder proxyMtis(int... proxyMtis) {
+            this.proxyMtis = proxyMtis.clone();
+            return this;
+        }
+
+        public Builder echoFastPath(boolean echoFastPath) {
+            this.echoFastPath = echoFastPath;
+            return this;
+        }
+
+        public Builder traceEnabled(boolean traceEnabled) {
+            this.traceEnabled = traceEnabled;
+            return this;
+        }
+
+        public Builder traceSampleEvery(int traceSampleEvery) {
+            this.traceSampleEvery = traceSampleEvery;
+            return this;
+        }
+
+        public Builder traceMtis(String traceMtis) {
+            this.traceMtis = traceMtis;
+            return this;
+        }
+
+        public Builder traceBufferSlots(int traceBufferSlots) {
+            this.traceBufferSlots = traceBufferSlots;
+            return this;
+        }
+
+        public Builder traceSlotSize(int traceSlotSize) {
+            this.traceSlotSize = traceSlotSize;
+            return this;
+        }
+
+        public Builder captureFile(String captureFile) {
+            this.captureFile = captureFile;
+            return this;
+        }
+
+        public Builder metricsPort(int metricsPort) {
+            this.metricsPort = metricsPort;
+            return this;
+        }
+
+        public Builder metricsInterval(int metricsInterval) {
+            this.metricsInterval = metricsInterval;
+            return this;
+        }
+
+        public Builder statsTerminals(int statsTerminals) {
+            this.statsTerminals = statsTerminals;
+            return this;
+        }
+
+        public Builder statsLogInterval(int statsLogInterval) {
+            this.statsLogInterval = statsLogInterval;
+            return this;
+        }
+
+        public Builder configWatch(boolean configWatch) {
+            this.configWatch = configWatch;
+            return this;
+        }
+
+        public Builder configWatchDelay(int configWatchDelay) {
+            this.configWatchDelay = configWatchDelay;
+            return this;
+        }
+
+        public Builder listeners(List<ListenerConfig> listeners) {
+            this.listeners = listeners;
+            return this;
+        }
+
+        public Builder warmUp(boolean warmUp) {
+            this.warmUp = warmUp;
+            return this;
+        }
+
+        public Builder warmUpBatch(int warmUpBatch) {
+            this.warmUpBatch = warmUpBatch;
+            return this;
+        }
+
+        public Builder warmUpMaxMillis(int warmUpMaxMillis) {
+            this.warmUpMaxMillis = warmUpMaxMillis;
+            return this;
+        }
+
+        public Builder warmUpExit(boolean warmUpExit) {
+            this.warmUpExit = warmUpExit;
+            return this;
+        }
+
+        public Builder drainTimeout(int drainTimeout) {
+            this.drainTimeout = drainTimeout;
+            return this;
+        }
+
+        public Builder shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        public Builder pipeline(boolean pipeline) {
+            this.pipeline = pipeline;
+            return this;
+        }
+
+        public Builder pipelineRingSize(int pipelineRingSize) {
+            this.pipelineRingSize = pipelineRingSize;
+            return this;
+        }
+
+        public Builder pipelineParseWorkers(int pipelineParseWorkers) {
+            this.pipelineParseWorkers = pipelineParseWorkers;
+            return this;
+        }
+
+        public Builder pipelineProcessWorkers(int pipelineProcessWorkers) {
+            this.pipelineProcessWorkers = pipelineProcessWorkers;
+            return this;
+        }
+
+        public Builder pipelineWriteWorkers(int pipelineWriteWorkers) {
+            this.pipelineWriteWorkers = pipelineWriteWorkers;
+            return this;
+        }
+
+        public Builder pipelineWaitStrategy(WaitStrategy pipelineWaitStrategy) {
+            this.pipelineWaitStrategy = pipelineWaitStrategy;
+            return this;
+        }
+
+        public Builder lanes(boolean lanes) {
+            this.lanes = lanes;
+            return this;
+        }
+
+        public Builder laneWeights(int... laneWeights) {
+            this.laneWeights = laneWeights.clone();
+            return this;
+        }
+
+        public Builder laneCapacity(int laneCapacity) {
+            this.laneCapacity = laneCapacity;
+            return this;
+        }
+
+        public Builder laneWorkers(int laneWorkers) {
+            this.laneWorkers = laneWorkers;
+            return this;
+        }
+
+        public Builder keyed(boolean keyed) {
+            this.keyed = keyed;
+            return this;
+        }
+
+        public Builder keyedWorkers(int keyedWorkers) {
+            this.keyedWorkers = keyedWorkers;
+            return this;
+        }
+
+        public Builder ipRateLimit(int ipRateLimit) {
+            this.ipRateLimit = ipRateLimit;
+            return this;
+        }
+
+        public Builder ipRateBurst(int ipRateBurst) {
+            this.ipRateBurst = ipRateBurst;
+            return this;
+        }
+
+        public Builder terminalRateLimit(int terminalRateLimit) {
+            this.terminalRateLimit = terminalRateLimit;
+            return this;
+        }
+
+        public Builder terminalRateBurst(int terminalRateBurst) {
+            this.terminalRateBurst = terminalRateBurst;
+            return this;
+        }
+
+        public Builder terminalRateMtis(int... terminalRateMtis) {
+            this.terminalRateMtis = terminalRateMtis.clone();
+            return this;
+        }
+
+        public Builder rateLimitMaxKeys(int rateLimitMaxKeys) {
+            this.rateLimitMaxKeys = rateLimitMaxKeys;
+            return this;
+        }
+
+        public Builder batch(boolean batch) {
+            this.batch = batch;
+            return this;
+        }
+
+        public Builder batchMaxSize(int batchMaxSize) {
+            this.batchMaxSize = batchMaxSize;
+            return this;
+        }
+
+        public Builder batchMaxWaitMicros(int batchMaxWaitMicros) {
+            this.batchMaxWaitMicros = batchMaxWaitMicros;
+            return this;
+        }
+
+        public Builder batchMtis(int... batchMtis) {
+            this.batchMtis = batchMtis.clone();
+            return this;
+        }
+
+        public Builder batchWriterThreads(int batchWriterThreads) {
+            this.batchWriterThreads = batchWriterThreads;
+            return this;
+        }
+
+        public Builder registryFile(String registryFile) {
+            this.registryFile = registryFile;
+            return this;
+        }
+
+        public Builder registryCheckInterval(int registryCheckInterval) {
+            this.registryCheckInterval = registryCheckInterval;
+            return this;
+        }
+
+        public Builder ledger(boolean ledger) {
+            this.ledger = ledger;
+            return this;
+        }
+
+        public Builder ledgerStripes(int ledgerStripes) {
+            this.ledgerStripes = ledgerStripes;
+            return this;
+        }
+
+        public Builder ledgerExpectedAccounts(int ledgerExpectedAccounts) {
+            this.ledgerExpectedAccounts = ledgerExpectedAccounts;
+            return this;
+        }
+
+        public Builder ledgerOpeningBalance(long ledgerOpeningBalance) {
+            this.ledgerOpeningBalance = ledgerOpeningBalance;
+            return this;
+        }
+
+        public Builder ledgerSnapshotFile(String ledgerSnapshotFile) {
+            this.ledgerSnapshotFile = ledgerSnapshotFile;
+            return this;
+        }
+
+        public Builder ledgerSnapshotInterval(int ledgerSnapshotInterval) {
+            this.ledgerSnapshotInterval = ledgerSnapshotInterval;
+            return this;
+        }
+
+        public Builder ledgerReversalWindow(int ledgerReversalWindow) {
+            this.ledgerReversalWindow = ledgerReversalWindow;
+            return this;
+        }
+
+        public Builder macAlgorithm(String macAlgorithm) {
+            this.macAlgorithm = macAlgorithm;
+            return this;
+        }
+
+        public Builder macKek(String macKek) {
+            this.macKek = macKek;
+            return this;
+        }
+
+        public Builder macRequired(boolean macRequired) {
+            this.macRequired = macRequired;
+            return this;
+        }
+
+        public Builder macCacheSize(int macCacheSize) {
+            this.macCacheSize = macCacheSize;
+            return this;
+        }
+
+        public Builder responseQueueCapacity(int responseQueueCapacity) {
+            this.responseQueueCapacity = responseQueueCapacity;
+            return this;
+        }
+
         public ServerConfig build() {
             return new ServerConfig(this);
         }
@@ -127,7 +827,7 @@ public class ServerConfig {
     }
 
     /**
-     * Create configuration from command line arguments
+     * Create configuration from command line arguments and titp.* system properties
      */
     public static ServerConfig fromArgs(String[] args) {
         Builder builder = new Builder();
@@ -140,6 +840,143 @@ public class ServerConfig {
             }
         }
 
+        applySystemProperties(builder);
         return builder.build();
     }
+
+    /**
+     * Apply optional settings given as -Dtitp.* system properties
+     */
+    private static void applySystemProperties(Builder builder) {
+        String upstream = System.getProperty("titp.upstream");
+        if (upstream != null) {
+            int separator = upstream.lastIndexOf(':');
+            int port = separator > 0 ? parsePort(upstream.substring(separator + 1)) : -1;
+            if (port > 0) {
+                builder.upstream(upstream.substring(0, separator), port);
+            } else {
+                logger.error("Invalid titp.upstream: {}, expected host:port, proxy mode disabled", upstream);
+            }
+        }
+        builder.upstreamConnections(Integer.getInteger("titp.upstream.connections", DEFAULT_UPSTREAM_CONNECTIONS));
+        builder.upstreamMaxInFlight(Integer.getInteger("titp.upstream.maxInFlight", DEFAULT_UPSTREAM_MAX_IN_FLIGHT));
+        builder.upstreamTimeout(Integer.getInteger("titp.upstream.timeout", DEFAULT_UPSTREAM_TIMEOUT));
+
+        builder.configFile(System.getProperty("titp.config", DEFAULT_CONFIG_FILE));
+        builder.configWatch(Boolean.getBoolean("titp.config.watch"));
+        builder.configWatchDelay(Integer.getInteger("titp.config.watchDelay", DEFAULT_CONFIG_WATCH_DELAY));
+        String listeners = System.getProperty("titp.listeners");
+        if (listeners != null) {
+            builder.listeners(ListenerConfig.parseList(listeners, System.getProperty("titp.config", DEFAULT_CONFIG_FILE)));
+        }
+
+        builder.echoFastPath(Boolean.parseBoolean(System.getProperty("titp.echoFastPath", "true")));
+        builder.shards(Integer.getInteger("titp.shards", 0));
+        builder.drainTimeout(Integer.getInteger("titp.drain.timeout", DEFAULT_DRAIN_TIMEOUT));
+        builder.pipeline(Boolean.getBoolean("titp.pipeline"));
+        builder.pipelineRingSize(Integer.getInteger("titp.pipeline.ringSize", DEFAULT_PIPELINE_RING_SIZE));
+        builder.pipelineParseWorkers(Integer.getInteger("titp.pipeline.parseWorkers", 1));
+        builder.pipelineProcessWorkers(Integer.getInteger("titp.pipeline.processWorkers", DEFAULT_PIPELINE_PROCESS_WORKERS));
+        builder.pipelineWriteWorkers(Integer.getInteger("titp.pipeline.writeWorkers", 1));
+        builder.lanes(Boolean.getBoolean("titp.lanes"));
+        builder.laneWeights(Lane.parseWeights(System.getProperty("titp.lanes.weights")));
+        builder.laneCapacity(Integer.getInteger("titp.lanes.capacity", DEFAULT_LANE_CAPACITY));
+        builder.laneWorkers(Integer.getInteger("titp.lanes.workers", DEFAULT_LANE_WORKERS));
+        builder.responseQueueCapacity(Integer.getInteger("titp.responseQueue.capacity", DEFAULT_RESPONSE_QUEUE_CAPACITY));
+        builder.keyed(Boolean.getBoolean("titp.keyed"));
+        builder.keyedWorkers(Integer.getInteger("titp.keyed.workers", DEFAULT_KEYED_WORKERS));
+        builder.batch(Boolean.getBoolean("titp.batch"));
+        builder.batchMaxSize(Integer.getInteger("titp.batch.maxSize", DEFAULT_BATCH_MAX_SIZE));
+        builder.batchMaxWaitMicros(Integer.getInteger("titp.batch.maxWaitMicros", DEFAULT_BATCH_MAX_WAIT_MICROS));
+        builder.batchWriterThreads(Integer.getInteger("titp.batch.writerThreads", DEFAULT_BATCH_WRITER_THREADS));
+        builder.registryFile(System.getProperty("titp.registry"));
+        builder.registryCheckInterval(Integer.getInteger("titp.registry.checkInterval", DEFAULT_REGISTRY_CHECK_INTERVAL));
+        builder.ledger(Boolean.getBoolean("titp.ledger"));
+        builder.ledgerStripes(Integer.getInteger("titp.ledger.stripes", DEFAULT_LEDGER_STRIPES));
+        builder.ledgerExpectedAccounts(Integer.getInteger("titp.ledger.expectedAccounts", DEFAULT_LEDGER_EXPECTED_ACCOUNTS));
+        builder.ledgerOpeningBalance(Long.getLong("titp.ledger.openingBalance", DEFAULT_LEDGER_OPENING_BALANCE));
+        builder.ledgerSnapshotFile(System.getProperty("titp.ledger.snapshot"));
+        builder.ledgerSnapshotInterval(Integer.getInteger("titp.ledger.snapshotInterval", DEFAULT_LEDGER_SNAPSHOT_INTERVAL));
+        builder.ledgerReversalWindow(Integer.getInteger("titp.ledger.reversalWindow", DEFAULT_LEDGER_REVERSAL_WINDOW));
+        builder.macAlgorithm(System.getProperty("titp.mac"));
+        builder.macKek(System.getProperty("titp.mac.kek"));
+        builder.macRequired(Boolean.getBoolean("titp.mac.required"));
+        builder.macCacheSize(Integer.getInteger("titp.mac.cacheSize", DEFAULT_MAC_CACHE_SIZE));
+        builder.ipRateLimit(Integer.getInteger("titp.ratelimit.ip", 0));
+        builder.ipRateBurst(Integer.getInteger("titp.ratelimit.ip.burst", 0));
+        builder.terminalRateLimit(Integer.getInteger("titp.ratelimit.terminal", 0));
+        builder.terminalRateBurst(Integer.getInteger("titp.ratelimit.terminal.burst", 0));
+        String terminalRateMtis = System.getProperty("titp.ratelimit.terminal.mtis");
+        if (terminalRateMtis != null) {
+            try {
+                builder.terminalRateMtis(parseMtis(terminalRateMtis));
+            } catch (NumberFormatException e) {
+                logger.error("Invalid titp.ratelimit.terminal.mtis: {}, expected hex MTIs such as 0100,0200, using the default",
+                        terminalRateMtis);
+            }
+        }
+        builder.rateLimitMaxKeys(Integer.getInteger("titp.ratelimit.maxKeys", DEFAULT_RATE_LIMIT_MAX_KEYS));
+        builder.pipelineWaitStrategy(WaitStrategy.parse(System.getProperty("titp.pipeline.wait", "park")));
+        builder.warmUp(Boolean.getBoolean("titp.warmup"));
+        builder.warmUpBatch(Integer.getInteger("titp.warmup.batch", DEFAULT_WARM_UP_BATCH));
+        builder.warmUpMaxMillis(Integer.getInteger("titp.warmup.maxMillis", DEFAULT_WARM_UP_MAX_MILLIS));
+        builder.warmUpExit(Boolean.getBoolean("titp.warmup.exit"));
+        builder.traceEnabled(Boolean.parseBoolean(System.getProperty("titp.trace.enabled",
+                String.valueOf(DEFAULT_TRACE_ENABLED))));
+        builder.traceSampleEvery(Integer.getInteger("titp.trace.sampleEvery", DEFAULT_TRACE_SAMPLE_EVERY));
+        builder.traceMtis(System.getProperty("titp.trace.mtis", ""));
+        builder.traceBufferSlots(Integer.getInteger("titp.trace.bufferSlots", DEFAULT_TRACE_BUFFER_SLOTS));
+        builder.captureFile(System.getProperty("titp.capture"));
+        builder.metricsPort(Integer.getInteger("titp.metrics.port", 0));
+        builder.metricsInterval(Integer.getInteger("titp.metrics.interval", DEFAULT_METRICS_INTERVAL));
+        builder.statsTerminals(Integer.getInteger("titp.stats.terminals", DEFAULT_STATS_TERMINALS));
+        builder.statsLogInterval(Integer.getInteger("titp.stats.logInterval", DEFAULT_STATS_LOG_INTERVAL));
+
+        String batchMtis = System.getProperty("titp.batch.mtis");
+        if (batchMtis != null) {
+            try {
+                builder.batchMtis(parseMtis(batchMtis));
+            } catch (NumberFormatException e) {
+                logger.error("Invalid titp.batch.mtis: {}, expected hex MTIs such as 0100,0200, using the default",
+                        batchMtis);
+            }
+        }
+
+        String proxyMtis = System.getProperty("titp.proxy.mtis");
+        if (proxyMtis != null) {
+            try {
+                builder.proxyMtis(parseMtis(proxyMtis));
+            } catch (NumberFormatException e) {
+                logger.error("Invalid titp.proxy.mtis: {}, expected hex MTIs such as 0100,0200, proxy mode disabled",
+                        proxyMtis);
+            }
+        }
+    }
+
+    /**
+     * @return The port, or -1 when the value is not a port number
+     */
+    private static int parsePort(String value) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            return port > 0 && port <= 0xFFFF ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse a comma separated MTI list such as "0100,0200"
+     */
+    public static int[] parseMtis(String mtis) {
+        return Arrays.stream(mtis.split(","))
+                .map(String::trim)
+                .filter(mti -> !mti.isEmpty())
+                .mapToInt(mti -> Integer.parseInt(mti, 16))
+                .toArray();
+    }
+
+    private static String formatMtis(int[] mtis) {
+        return Arrays.stream(mtis).mapToObj(mti -> String.format("%04X", mti)).collect(Collectors.joining(","));
+    }
 }
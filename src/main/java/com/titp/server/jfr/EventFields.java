@@ -0,0 +1,37 @@
+package com.titp.server.jfr;
+
+import com.solab.iso8583.IsoMessage;
+
+/**
+ * Formatting of message fields for event attributes; only called once an event is known to be committed
+ */
+final class EventFields {
+    private EventFields() {
+    }
+
+    static String mti(int mti) {
+        return String.format("%04X", mti);
+    }
+
+    /**
+     * Processing code (field 3) as six digits, whether it was parsed as NUMERIC or ALPHA
+     */
+    static String processingCode(IsoMessage message) {
+        if (message == null || !message.hasField(3)) {
+            return null;
+        }
+        Object value = message.getObjectValue(3);
+        return value instanceof Number ? String.format("%06d", ((Number) value).longValue()) : String.valueOf(value);
+    }
+
+    /**
+     * Text of a field as parsed, or null when absent
+     */
+    static String field(IsoMessage message, int field) {
+        if (message == null || !message.hasField(field)) {
+            return null;
+        }
+        Object value = message.getObjectValue(field);
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,63 @@
+package com.titp.server.jfr;
+
+import com.solab.iso8583.IsoMessage;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One message answered by ClientHandler, whichever thread processed it. The event spans the response
+ * write; the latency covers the whole message from its read.
+ */
+@Name("com.titp.MessageProcessed")
+@Label("Message Processed")
+@Description("Request parsed, processed and its response written")
+@Category({"TITP", "Messages"})
+@Enabled(false)
+@StackTrace(false)
+public class MessageProcessedEvent extends Event {
+    @Label("Connection ID")
+    public long connectionId;
+
+    @Label("Message ID")
+    @Description("Sequence number of the message on its connection")
+    public long messageId;
+
+    @Label("MTI")
+    public String mti;
+
+    @Label("Processing Code")
+    public String processingCode;
+
+    @Label("Response Code")
+    public String responseCode;
+
+    @Label("Request Size")
+    @DataAmount
+    public int requestBytes;
+
+    @Label("Success")
+    public boolean success;
+
+    @Label("Latency")
+    @Description("From the request frame read to the response written, including any wait for a worker")
+    @Timespan(Timespan.NANOSECONDS)
+    public long latency;
+
+    public void setRequest(IsoMessage request) {
+        if (request != null) {
+            mti = EventFields.mti(request.getType());
+            processingCode = EventFields.processingCode(request);
+        }
+    }
+
+    public void setResponse(IsoMessage response) {
+        responseCode = EventFields.field(response, 39);
+    }
+}
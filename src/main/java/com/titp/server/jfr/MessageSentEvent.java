@@ -0,0 +1,45 @@
+package com.titp.server.jfr;
+
+import com.solab.iso8583.IsoMessage;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One response through MessageSender.sendMessage: encoding and the socket write
+ */
+@Name("com.titp.MessageSent")
+@Label("Message Sent")
+@Description("Response encoded and written to the client socket")
+@Category({"TITP", "Messages"})
+@Enabled(false)
+@StackTrace(false)
+public class MessageSentEvent extends Event {
+    @Label("Connection ID")
+    public long connectionId;
+
+    @Label("MTI")
+    public String mti;
+
+    @Label("Processing Code")
+    public String processingCode;
+
+    @Label("Response Code")
+    public String responseCode;
+
+    @Label("Frame Size")
+    @Description("Bytes written including the length prefix")
+    @DataAmount
+    public int bytes;
+
+    public void setResponse(IsoMessage response) {
+        mti = EventFields.mti(response.getType());
+        processingCode = EventFields.processingCode(response);
+        responseCode = EventFields.field(response, 39);
+    }
+}
@@ -0,0 +1,46 @@
+package com.titp.server.jfr;
+
+import com.solab.iso8583.IsoMessage;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Validation and business logic of a single request: one call of MTIProcessor.process, or one request of a
+ * batch handed to MTIProcessor.processBatch, timed over the whole batch
+ */
+@Name("com.titp.MtiProcess")
+@Label("MTI Processor")
+@Description("Validation and business logic of one request by its MTI processor")
+@Category({"TITP", "Messages"})
+@Enabled(false)
+@StackTrace(false)
+public class MtiProcessEvent extends Event {
+    @Label("Processor")
+    public String processor;
+
+    @Label("MTI")
+    public String mti;
+
+    @Label("Processing Code")
+    public String processingCode;
+
+    @Label("Response Code")
+    public String responseCode;
+
+    @Label("Success")
+    public boolean success;
+
+    @Label("Batch Size")
+    @Description("Requests processed together with this one, 1 outside batching")
+    public int batchSize;
+
+    public void setRequest(IsoMessage request) {
+        mti = EventFields.mti(request.getType());
+        processingCode = EventFields.processingCode(request);
+    }
+}
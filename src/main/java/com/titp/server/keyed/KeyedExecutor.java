@@ -0,0 +1,190 @@
+package com.titp.server.keyed;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs tasks in submission order per key and tasks of different keys in parallel, e.g. keyed by terminal so a
+ * sale and its reversal never run out of order while other terminals proceed on other cores.
+ * <p>
+ * A key with work has a lock-free queue and a count of tasks not yet finished. The submitter that raises the
+ * count from zero schedules a drain on the pool; the drain runs the key's tasks one at a time and, after a
+ * batch, hands the pool back and reschedules itself so one busy key cannot hold a worker. The drain that
+ * finishes the last task retires the queue in the same atomic step and removes it, so an idle key holds no
+ * queue, thread or lock. A submitter that finds a retired queue starts a new one.
+ */
+public class KeyedExecutor implements KeyedExecutorMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(KeyedExecutor.class);
+    private static final int DRAIN_BATCH = 64;
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    private final int workers;
+    private final ForkJoinPool pool;
+    private final ConcurrentHashMap<Object, KeyQueue> queues = new ConcurrentHashMap<>();
+    private final LongAdder pending = new LongAdder();
+    private final LongAdder executed = new LongAdder();
+
+    /**
+     * @param name Prefix of the worker thread names
+     */
+    public KeyedExecutor(String name, int workers) {
+        this.name = name;
+        this.workers = workers;
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.pool = new ForkJoinPool(workers, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName(name + "-keyed-worker-" + threadCounter.incrementAndGet());
+            return thread;
+        }, (thread, e) -> logger.error("Keyed worker {} failed", thread.getName(), e), true);
+        logger.info("Keyed executor {} started with {} workers", name, workers);
+    }
+
+    /**
+     * Run a task after every task submitted earlier with an equal key
+     */
+    public void execute(Object key, Runnable task) {
+        pending.increment();
+        while (true) {
+            KeyQueue queue = queues.computeIfAbsent(key, KeyQueue::new);
+            int count = queue.count.get();
+            if (count < 0) {
+                // Retired by its last drain; help remove it and start a new one
+                queues.remove(key, queue);
+                continue;
+            }
+            if (queue.count.compareAndSet(count, count + 1)) {
+                queue.tasks.offer(task);
+                if (count == 0) {
+                    schedule(queue);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start the drain of a key that had no work. Once stopped, the pool takes no more drains, and the key's
+     * count already holds this task and any submitted since, so they are drained here in order rather than
+     * left queued behind a drain that never comes.
+     */
+    private void schedule(KeyQueue queue) {
+        try {
+            pool.execute(queue);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Keyed executor {} is stopped, running the tasks of key {} on the caller", name, queue.key);
+            queue.run();
+        }
+    }
+
+    /**
+     * Stop once the queued tasks have run; tasks submitted afterwards run on the submitting thread
+     */
+    public void stop() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Keyed executor {} still has {} tasks after {} ms", name, getPendingTasks(),
+                        STOP_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int getWorkers() { return workers; }
+
+    @Override
+    public int getActiveKeys() { return queues.size(); }
+
+    @Override
+    public long getPendingTasks() { return pending.sum(); }
+
+    @Override
+    public long getExecutedTasks() { return executed.sum(); }
+
+    /**
+     * The tasks of one key and its drain. The count is the number of tasks submitted and not finished, or -1
+     * once retired.
+     */
+    private final class KeyQueue implements Runnable {
+        private static final int RETIRED = -1;
+
+        final Object key;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (!drainBatch()) {
+                try {
+                    // Let other keys run before continuing with this one
+                    pool.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Stopping: finish the key's tasks on this worker
+                }
+            }
+        }
+
+        /**
+         * Run up to a batch of the key's tasks
+         * @return true if the queue ran dry and was retired
+         */
+        private boolean drainBatch() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                Runnable task = tasks.poll();
+                while (task == null) {
+                    // The count is raised before the offer, so the task is about to appear
+                    Thread.onSpinWait();
+                    task = tasks.poll();
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Task for key {} failed", key, e);
+                } finally {
+                    pending.decrement();
+                    executed.increment();
+                }
+                if (finished()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Count a task as finished, retiring the queue if it was the last one
+         * @return true if the queue was retired
+         */
+        private boolean finished() {
+            while (true) {
+                int current = count.get();
+                if (current == 1) {
+                    if (count.compareAndSet(1, RETIRED)) {
+                        queues.remove(key, this);
+                        return true;
+                    }
+                } else if (count.compareAndSet(current, current - 1)) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.titp.server.keyed;
+
+/**
+ * Keys with work queued or running on one shard's keyed executor, and its throughput
+ */
+public interface KeyedExecutorMXBean {
+    int getWorkers();
+
+    /**
+     * Keys with at least one task queued or running; idle keys hold no state
+     */
+    int getActiveKeys();
+
+    /**
+     * Tasks submitted and not yet finished
+     */
+    long getPendingTasks();
+
+    long getExecutedTasks();
+}
@@ -0,0 +1,121 @@
+package com.titp.server.lane;
+
+import com.titp.server.HeaderStripper;
+
+/**
+ * Priority lanes by MTI class, highest priority first
+ */
+public enum Lane {
+    /** 08xx: sign-on, echo, key exchange; the link drops if these time out */
+    NETWORK("network", 16),
+    /** 04xx: reversals and reversal advices, which release funds held by an earlier request */
+    REVERSAL("reversal", 8),
+    /** 01xx requests */
+    AUTHORIZATION("authorization", 4),
+    /** 02xx requests */
+    FINANCIAL("financial", 2),
+    /** x120/x220 advices and repeats, and everything else, e.g. 05xx reconciliation */
+    ADVICE("advice", 1);
+
+    private static final Lane[] LANES = values();
+    private static final int MTI_DIGITS = 4;
+
+    private final String label;
+    private final int defaultWeight;
+
+    Lane(String label, int defaultWeight) {
+        this.label = label;
+        this.defaultWeight = defaultWeight;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * Classify a raw request frame by its MTI, read as BCD or ASCII after the optional header, without parsing
+     * the message
+     */
+    public static Lane of(byte[] frame) {
+        int offset = HeaderStripper.headerLength(frame);
+        int mtiClass;
+        int function;
+        if (isAsciiMti(frame, offset)) {
+            mtiClass = frame[offset + 1] - '0';
+            function = frame[offset + 2] - '0';
+        } else if (frame.length >= offset + 2) {
+            mtiClass = frame[offset] & 0x0F;
+            function = (frame[offset + 1] >> 4) & 0x0F;
+        } else {
+            return ADVICE;
+        }
+        return of(mtiClass, function);
+    }
+
+    /**
+     * @param mtiClass Second MTI digit, e.g. 2 for 0200
+     * @param function Third MTI digit, e.g. 2 for an 0220 advice
+     */
+    static Lane of(int mtiClass, int function) {
+        switch (mtiClass) {
+            case 8:
+                return NETWORK;
+            case 4:
+                return REVERSAL;
+            default:
+                break;
+        }
+        if (function == 2 || function == 3) {
+            return ADVICE;
+        }
+        switch (mtiClass) {
+            case 1:
+                return AUTHORIZATION;
+            case 2:
+                return FINANCIAL;
+            default:
+                return ADVICE;
+        }
+    }
+
+    private static boolean isAsciiMti(byte[] frame, int offset) {
+        if (frame.length < offset + MTI_DIGITS) {
+            return false;
+        }
+        for (int i = offset; i < offset + MTI_DIGITS; i++) {
+            if (frame[i] < '0' || frame[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lane weights from a comma-separated list in priority order, e.g. "16,8,4,2,1"; an empty value gives the
+     * defaults
+     */
+    public static int[] parseWeights(String weights) {
+        int[] parsed = new int[LANES.length];
+        if (weights == null || weights.trim().isEmpty()) {
+            for (Lane lane : LANES) {
+                parsed[lane.ordinal()] = lane.defaultWeight;
+            }
+            return parsed;
+        }
+        String[] values = weights.split(",");
+        if (values.length != LANES.length) {
+            throw new IllegalArgumentException("Expected " + LANES.length + " lane weights but got " + weights);
+        }
+        for (int i = 0; i < values.length; i++) {
+            parsed[i] = Integer.parseInt(values[i].trim());
+            if (parsed[i] < 1) {
+                throw new IllegalArgumentException("Lane weights must be at least 1: " + weights);
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,68 @@
+package com.titp.server.lane;
+
+import com.titp.server.metrics.PrometheusExporter;
+import org.HdrHistogram.Histogram;
+
+import java.util.List;
+
+/**
+ * Prometheus export of the lanes of all shards: per lane queue depth, requests dispatched and wait time
+ */
+public class LaneMetrics implements PrometheusExporter {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+    private final List<LaneScheduler> schedulers;
+
+    public LaneMetrics(List<LaneScheduler> schedulers) {
+        this.schedulers = schedulers;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        out.append("# HELP titp_lane_queue_depth Requests waiting in each priority lane\n");
+        out.append("# TYPE titp_lane_queue_depth gauge\n");
+        for (Lane lane : Lane.values()) {
+            int depth = 0;
+            for (LaneScheduler scheduler : schedulers) {
+                depth += scheduler.getQueueDepth(lane);
+            }
+            out.append("titp_lane_queue_depth{lane=\"").append(lane.getLabel()).append("\"} ")
+                    .append(depth).append('\n');
+        }
+        out.append("# HELP titp_lane_dispatched_total Requests handed from each priority lane to a worker\n");
+        out.append("# TYPE titp_lane_dispatched_total counter\n");
+        for (Lane lane : Lane.values()) {
+            long dispatched = 0;
+            for (LaneScheduler scheduler : schedulers) {
+                dispatched += scheduler.getDispatched(lane);
+            }
+            out.append("titp_lane_dispatched_total{lane=\"").append(lane.getLabel()).append("\"} ")
+                    .append(dispatched).append('\n');
+        }
+        out.append("# HELP titp_lane_wait_seconds Time requests waited in each priority lane\n");
+        out.append("# TYPE titp_lane_wait_seconds summary\n");
+        for (Lane lane : Lane.values()) {
+            Histogram waits = null;
+            for (LaneScheduler scheduler : schedulers) {
+                Histogram histogram = scheduler.waitHistogram(lane);
+                if (waits == null) {
+                    waits = histogram;
+                } else {
+                    waits.add(histogram);
+                }
+            }
+            if (waits == null) {
+                continue;
+            }
+            String label = "lane=\"" + lane.getLabel() + "\"";
+            for (double quantile : QUANTILES) {
+                out.append("titp_lane_wait_seconds{").append(label).append(",quantile=\"").append(quantile)
+                        .append("\"} ").append(waits.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            out.append("titp_lane_wait_seconds_sum{").append(label).append("} ")
+                    .append(waits.getMean() * waits.getTotalCount() / 1e9).append('\n');
+            out.append("titp_lane_wait_seconds_count{").append(label).append("} ")
+                    .append(waits.getTotalCount()).append('\n');
+        }
+    }
+}
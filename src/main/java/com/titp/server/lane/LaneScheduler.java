@@ -0,0 +1,320 @@
+package com.titp.server.lane;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Priority-aware processing for one shard. Connection threads queue each request in the lane of its MTI
+ * class, and a fixed set of workers takes them out by smooth weighted round robin: on every pick, each
+ * non-empty lane earns its weight in credit, the lane with the most credit is served, ties going to the
+ * higher-priority lane, and pays back the weights of all non-empty lanes. Under load every busy lane gets a
+ * share proportional to its weight, so advices still progress behind a burst of sales, while a request
+ * arriving in a higher lane is normally picked next.
+ * <p>
+ * Requests queued with the same ordering key, such as a terminal's, are processed one after the other in the
+ * order queued, whatever their lanes: a request whose key has an earlier request waiting or running is parked
+ * behind it and enters its lane when that request is done. A terminal's reversal thus never overtakes the
+ * transaction it reverses, while other terminals' reversals still go first.
+ * <p>
+ * Each lane holds a bounded number of requests, parked ones included; when a lane is full, the connection
+ * thread that wants to queue in it waits, which stops it reading and pushes back on the terminal.
+ */
+public class LaneScheduler implements LaneSchedulerMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(LaneScheduler.class);
+    private static final Lane[] LANES = Lane.values();
+    private static final long HIGHEST_WAIT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    private final int[] weights;
+    private final int capacity;
+    private final int workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final List<ArrayDeque<Entry>> queues = new ArrayList<>(LANES.length);
+    // Last request queued per ordering key, until it has been processed
+    private final Map<Object, Entry> lastByKey = new HashMap<>();
+    private final long[] credit = new long[LANES.length];
+    private final AtomicInteger[] depths = new AtomicInteger[LANES.length];
+    private final LongAdder[] dispatched = new LongAdder[LANES.length];
+    private final Recorder[] waits = new Recorder[LANES.length];
+    private final Histogram[] cumulativeWaits = new Histogram[LANES.length];
+    private final List<Thread> threads = new ArrayList<>();
+    private int queued;
+    private int parked;
+    private boolean stopped;
+
+    /**
+     * @param name Prefix of the worker thread names
+     * @param weights Lane weights in priority order
+     * @param capacity Requests each lane can hold
+     */
+    public LaneScheduler(String name, int[] weights, int capacity, int workers) {
+        if (weights.length != LANES.length) {
+            throw new IllegalArgumentException("Expected " + LANES.length + " lane weights");
+        }
+        if (capacity < 1 || workers < 1) {
+            throw new IllegalArgumentException("Lanes need a capacity and at least one worker");
+        }
+        this.name = name;
+        this.weights = weights.clone();
+        this.capacity = capacity;
+        this.workers = workers;
+        for (Lane lane : LANES) {
+            queues.add(new ArrayDeque<>(Math.min(capacity, 1024)));
+            depths[lane.ordinal()] = new AtomicInteger();
+            dispatched[lane.ordinal()] = new LongAdder();
+            waits[lane.ordinal()] = new Recorder(1, HIGHEST_WAIT_NANOS, 2);
+            cumulativeWaits[lane.ordinal()] = new Histogram(1, HIGHEST_WAIT_NANOS, 2);
+        }
+    }
+
+    /**
+     * Start the workers
+     */
+    public void start() {
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(this::work, name + "-lane-worker-" + (i + 1));
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        logger.info("Lanes {} started: {} workers, weights {}, {} requests per lane",
+                name, workers, getWeights(), capacity);
+    }
+
+    /**
+     * Queue a request in its lane, waiting while the lane is full
+     */
+    public void submit(Lane lane, LaneTask task) throws InterruptedException {
+        submit(lane, null, task);
+    }
+
+    /**
+     * Queue a request in its lane behind the earlier requests of its ordering key, waiting while the lane is full
+     * @param key Requests with equal keys are processed in the order queued, or null for no ordering
+     */
+    public void submit(Lane lane, Object key, LaneTask task) throws InterruptedException {
+        Entry entry = new Entry(lane.ordinal(), key, task, System.nanoTime());
+        AtomicInteger depth = depths[lane.ordinal()];
+        lock.lock();
+        try {
+            while (depth.get() >= capacity) {
+                if (stopped) {
+                    throw new IllegalStateException("Lanes " + name + " stopped");
+                }
+                notFull.await();
+            }
+            depth.incrementAndGet();
+            Entry previous = key != null ? lastByKey.put(key, entry) : null;
+            if (previous != null) {
+                previous.next = entry;
+                parked++;
+            } else {
+                enqueue(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        queues.get(entry.lane).addLast(entry);
+        queued++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Let the request parked behind a processed one into its lane, or forget the key if none is
+     */
+    private void release(Entry entry) {
+        if (entry.key == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (entry.next != null) {
+                parked--;
+                enqueue(entry.next);
+            } else {
+                lastByKey.remove(entry.key, entry);
+                if (stopped && queued == 0 && parked == 0) {
+                    notEmpty.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the workers once the lanes are empty
+     */
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+        try {
+            for (Thread thread : threads) {
+                thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Lanes {} stopped", name);
+    }
+
+    private void work() {
+        try {
+            Entry entry;
+            while ((entry = take()) != null) {
+                try {
+                    entry.task.run(entry.enqueuedNanos);
+                } catch (RuntimeException e) {
+                    logger.error("Lane worker of {} failed", name, e);
+                } finally {
+                    release(entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take the next request by smooth weighted round robin over the non-empty lanes
+     * @return The request, or null once stopped and empty, with no request parked behind one being processed
+     */
+    private Entry take() throws InterruptedException {
+        Entry entry;
+        int chosen;
+        lock.lock();
+        try {
+            while (queued == 0) {
+                if (stopped && parked == 0) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            chosen = -1;
+            long activeWeight = 0;
+            for (int i = 0; i < LANES.length; i++) {
+                if (queues.get(i).isEmpty()) {
+                    credit[i] = 0;
+                    continue;
+                }
+                credit[i] += weights[i];
+                activeWeight += weights[i];
+                if (chosen < 0 || credit[i] > credit[chosen]) {
+                    chosen = i;
+                }
+            }
+            credit[chosen] -= activeWeight;
+            entry = queues.get(chosen).pollFirst();
+            queued--;
+            depths[chosen].decrementAndGet();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long wait = System.nanoTime() - entry.enqueuedNanos;
+        waits[chosen].recordValue(Math.max(1, Math.min(wait, HIGHEST_WAIT_NANOS)));
+        dispatched[chosen].increment();
+        return entry;
+    }
+
+    /**
+     * Requests waiting in a lane
+     */
+    public int getQueueDepth(Lane lane) {
+        return depths[lane.ordinal()].get();
+    }
+
+    public long getDispatched(Lane lane) {
+        return dispatched[lane.ordinal()].sum();
+    }
+
+    /**
+     * Everything a lane's requests waited since start, including the waits recorded since the last call
+     */
+    public synchronized Histogram waitHistogram(Lane lane) {
+        Histogram cumulative = cumulativeWaits[lane.ordinal()];
+        cumulative.add(waits[lane.ordinal()].getIntervalHistogram());
+        return cumulative.copy();
+    }
+
+    @Override
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public String getWeights() {
+        return Arrays.toString(weights);
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Lane lane : LANES) {
+            result.put(lane.getLabel(), getQueueDepth(lane));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getDispatched() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Lane lane : LANES) {
+            result.put(lane.getLabel(), getDispatched(lane));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getWaitP99Micros() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Lane lane : LANES) {
+            result.put(lane.getLabel(), waitHistogram(lane).getValueAtPercentile(99) / 1000.0);
+        }
+        return result;
+    }
+
+    private static final class Entry {
+        final int lane;
+        final Object key;
+        final LaneTask task;
+        final long enqueuedNanos;
+        // The request of the same key queued next, parked until this one has been processed
+        Entry next;
+
+        Entry(int lane, Object key, LaneTask task, long enqueuedNanos) {
+            this.lane = lane;
+            this.key = key;
+            this.task = task;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
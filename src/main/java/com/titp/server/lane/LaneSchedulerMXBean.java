@@ -0,0 +1,30 @@
+package com.titp.server.lane;
+
+import java.util.Map;
+
+/**
+ * Lanes of one shard: their depth, throughput and time spent waiting
+ */
+public interface LaneSchedulerMXBean {
+    int getWorkers();
+
+    /**
+     * Lane weights in priority order
+     */
+    String getWeights();
+
+    /**
+     * Requests waiting per lane
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Requests handed to a worker per lane since start
+     */
+    Map<String, Long> getDispatched();
+
+    /**
+     * 99th percentile of the time requests waited in each lane since start
+     */
+    Map<String, Double> getWaitP99Micros();
+}
@@ -0,0 +1,12 @@
+package com.titp.server.lane;
+
+/**
+ * A request waiting in a lane for a processing worker
+ */
+public interface LaneTask {
+    /**
+     * Process and answer the request on a lane worker
+     * @param enqueuedNanos System.nanoTime() at which the request entered its lane
+     */
+    void run(long enqueuedNanos);
+}
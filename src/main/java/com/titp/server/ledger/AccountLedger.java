@@ -0,0 +1,711 @@
+package com.titp.server.ledger;
+
+import com.solab.iso8583.IsoMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory account ledger keyed by PAN, so the server can act as an issuer with real balances in
+ * end-to-end tests.
+ * <p>
+ * A PAN is stored as the unsigned number its digits spell. Accounts are spread over stripes, each an
+ * open-addressed table of two primitive arrays under its own lock, so postings to different stripes never
+ * contend and the ledger holds no object per account. Accounts not yet in the ledger are opened with the
+ * opening balance on first use, or refused when the opening balance is negative.
+ * <p>
+ * The most recent approved postings are remembered by terminal and STAN, so a reversal undoes the posting of
+ * its original transaction, once. A reversal that comes before its original, e.g. after the terminal timed
+ * out on a queued sale, is remembered in the original's place, and the original is undone as soon as it is
+ * posted and declined.
+ * <p>
+ * A snapshot holds the balances and the remembered postings. It briefly stops all postings while it copies
+ * them, so a transaction's posting and its entry for reversals are either both in the snapshot or neither,
+ * then streams the copy to a temporary file, which replaces the snapshot file in one atomic move. The
+ * snapshot is loaded back at start.
+ */
+public class AccountLedger implements AccountLedgerMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(AccountLedger.class);
+    private static final long MAGIC = 0x544954504c444731L; // "TITPLDG1", balances only
+    private static final long MAGIC_WITH_ORIGINALS = 0x544954504c444732L; // "TITPLDG2"
+    private static final int HEADER_BYTES = 24;
+    private static final byte REVERSED = 1;
+    private static final byte PENDING = 2;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    private final LedgerStripe[] stripes;
+    private final int stripeMask;
+    private final long openingBalance;
+    private final Path snapshotFile;
+    private final int snapshotIntervalSeconds;
+    private final LongAdder debits = new LongAdder();
+    private final LongAdder credits = new LongAdder();
+    private final LongAdder insufficientFunds = new LongAdder();
+    private final LongAdder unknownAccounts = new LongAdder();
+    private final OriginalPostings originals;
+    private final LongAdder reversals = new LongAdder();
+    private final LongAdder unmatchedReversals = new LongAdder();
+    private final LongAdder duplicateReversals = new LongAdder();
+    private final LongAdder pendingReversals = new LongAdder();
+    private final LongAdder lateOriginals = new LongAdder();
+    // Postings share it, a snapshot's copy holds it exclusively
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private volatile long lastSnapshotMillis;
+    private volatile long lastSnapshotAccounts;
+    private volatile long lastSnapshotDurationMillis;
+    private ScheduledExecutorService snapshotter;
+
+    /**
+     * @param stripes Number of stripes, rounded up to a power of two
+     * @param expectedAccounts Accounts to size the stripes for; they grow beyond it as needed
+     * @param openingBalance Balance of accounts opened on first use, or negative to refuse unknown accounts
+     * @param snapshotFile Snapshot to load at start and write periodically, or null for none
+     * @param snapshotIntervalSeconds Seconds between snapshots, or 0 to write one only when stopped
+     * @param reversalWindow Approved postings, and reversals that came before their original, remembered
+     */
+    public AccountLedger(int stripes, int expectedAccounts, long openingBalance, Path snapshotFile,
+                         int snapshotIntervalSeconds, int reversalWindow) throws IOException {
+        int count = Integer.highestOneBit(Math.max(1, stripes * 2 - 1));
+        this.stripes = new LedgerStripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new LedgerStripe(expectedAccounts / count);
+        }
+        this.stripeMask = count - 1;
+        this.openingBalance = openingBalance;
+        this.snapshotFile = snapshotFile;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+        this.originals = new OriginalPostings(count, reversalWindow);
+        if (snapshotFile != null && Files.exists(snapshotFile)) {
+            load(snapshotFile);
+        }
+    }
+
+    public void start() {
+        if (snapshotFile == null || snapshotIntervalSeconds <= 0) {
+            return;
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ledger-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshot, snapshotIntervalSeconds, snapshotIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic snapshots and write a last one
+     */
+    public void stop() {
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+            try {
+                snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (snapshotFile != null) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Debit an account if its balance covers the amount
+     * @param account The account number, from {@link #accountOf}
+     * @param amount Amount in minor units
+     */
+    public Posting debit(long account, long amount) {
+        snapshotLock.readLock().lock();
+        try {
+            return apply(account, amount);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Credit an account, e.g. for a refund or the reversal of a debit
+     */
+    public Posting credit(long account, long amount) {
+        snapshotLock.readLock().lock();
+        try {
+            return apply(account, -amount);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Debit an account whatever its balance, e.g. for the reversal of a refund that was already paid out
+     */
+    public Posting forceDebit(long account, long amount) {
+        snapshotLock.readLock().lock();
+        try {
+            return post(account, -amount, debits);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Post an approved transaction and remember it for its reversal, as one step for snapshots
+     * @param request The transaction, for its terminal (field 41) and STAN (field 11)
+     * @param rrn The retrieval reference number the transaction is answered with, or null
+     * @param amount The amount to debit if the balance covers it or, when negative, to credit
+     * @return The outcome; {@link Posting#ALREADY_REVERSED} when the transaction's reversal came first
+     */
+    public Posting post(IsoMessage request, String rrn, long account, long amount) {
+        return post(text(request, 41), stan(text(request, 11)), rrn, account, amount);
+    }
+
+    /**
+     * Post an approved transaction and remember it by terminal and STAN for its reversal
+     * @see #post(IsoMessage, String, long, long)
+     */
+    public Posting post(String terminalId, String stan, String rrn, long account, long amount) {
+        snapshotLock.readLock().lock();
+        try {
+            Posting posting = apply(account, amount);
+            return posting == Posting.APPLIED ? remember(terminalId, stan, rrn, account, amount) : posting;
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Post a batch of approved transactions taking each stripe's lock once rather than once per posting, and
+     * remember each for its reversal. The outcome is that of posting them one by one in order: postings to
+     * the same account keep their order.
+     * @param requests The transactions, for their terminal (field 41) and STAN (field 11)
+     * @param rrns The retrieval reference numbers they are answered with, or nulls
+     * @param accounts The account numbers, from {@link #accountOf}
+     * @param amounts Per account, the amount to debit if the balance covers it or, when negative, to credit
+     * @return The outcome of each posting
+     */
+    public Posting[] postAll(IsoMessage[] requests, String[] rrns, long[] accounts, long[] amounts) {
+        String[] terminalIds = new String[requests.length];
+        String[] stans = new String[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            terminalIds[i] = text(requests[i], 41);
+            stans[i] = stan(text(requests[i], 11));
+        }
+        return postAll(terminalIds, stans, rrns, accounts, amounts);
+    }
+
+    /**
+     * Post a batch of approved transactions remembered by terminal and STAN
+     * @see #postAll(IsoMessage[], String[], long[], long[])
+     */
+    public Posting[] postAll(String[] terminalIds, String[] stans, String[] rrns, long[] accounts, long[] amounts) {
+        int count = accounts.length;
+        Posting[] postings = new Posting[count];
+        long[] mixed = new long[count];
+        // Stable counting sort of the postings by stripe
+        int[] starts = new int[stripes.length + 1];
+        for (int i = 0; i < count; i++) {
+            if (accounts[i] == 0) {
+                unknownAccounts.increment();
+                postings[i] = Posting.UNKNOWN_ACCOUNT;
+            } else {
+                mixed[i] = mix(accounts[i]);
+                starts[stripeIndex(mixed[i]) + 1]++;
+            }
+        }
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            starts[stripe + 1] += starts[stripe];
+        }
+        int[] order = new int[starts[stripes.length]];
+        int[] next = Arrays.copyOf(starts, stripes.length);
+        for (int i = 0; i < count; i++) {
+            if (postings[i] == null) {
+                order[next[stripeIndex(mixed[i])]++] = i;
+            }
+        }
+        snapshotLock.readLock().lock();
+        try {
+            for (int stripe = 0; stripe < stripes.length; stripe++) {
+                if (starts[stripe] < starts[stripe + 1]) {
+                    stripes[stripe].postAll(accounts, mixed, amounts, order, starts[stripe], starts[stripe + 1],
+                            openingBalance, postings);
+                }
+            }
+            for (int i : order) {
+                count(postings[i], amounts[i] >= 0 ? debits : credits);
+            }
+            for (int i = 0; i < count; i++) {
+                if (postings[i] == Posting.APPLIED) {
+                    postings[i] = remember(terminalIds[i], stans[i], rrns[i], accounts[i], amounts[i]);
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        return postings;
+    }
+
+    /**
+     * Debit if the balance covers the amount or, when negative, credit; under the snapshot lock
+     */
+    private Posting apply(long account, long amount) {
+        if (amount < 0) {
+            return post(account, -amount, credits);
+        }
+        if (account == 0) {
+            unknownAccounts.increment();
+            return Posting.UNKNOWN_ACCOUNT;
+        }
+        long mixed = mix(account);
+        Posting posting = stripeOf(mixed).debit(account, (int) mixed, amount, openingBalance);
+        count(posting, debits);
+        return posting;
+    }
+
+    /**
+     * Add a signed amount whatever the balance; under the snapshot lock
+     */
+    private Posting post(long account, long amount, LongAdder counter) {
+        if (account == 0) {
+            unknownAccounts.increment();
+            return Posting.UNKNOWN_ACCOUNT;
+        }
+        long mixed = mix(account);
+        Posting posting = stripeOf(mixed).post(account, (int) mixed, amount, openingBalance);
+        count(posting, counter);
+        return posting;
+    }
+
+    /**
+     * Remember an applied posting for its reversal, undoing it when the reversal came first; under the
+     * snapshot lock
+     */
+    private Posting remember(String terminalId, String stan, String rrn, long account, long amount) {
+        if (stan == null) {
+            return Posting.APPLIED;
+        }
+        if (originals.record(originalKey(terminalId, stan), new OriginalPostings.Original(account, amount, rrn),
+                this::undo)) {
+            lateOriginals.increment();
+            logger.info("Transaction of terminal {} STAN {} was reversed before it was posted; undone and declined",
+                    terminalId, stan);
+            return Posting.ALREADY_REVERSED;
+        }
+        return Posting.APPLIED;
+    }
+
+    /**
+     * Post the opposite of an original posting: a debit is credited back and a credit debited back whatever
+     * the balance
+     */
+    private Posting undo(long account, long signed) {
+        return signed > 0 ? post(account, signed, credits) : post(account, signed, debits);
+    }
+
+    /**
+     * Undo the posting of the transaction a reversal (0400) or reversal advice (0420) refers to: the original
+     * STAN of field 90 or, without it, the reversal's own STAN, with its terminal, PAN, amount and RRN
+     */
+    public Reversal reverse(IsoMessage reversal, long amount) {
+        String originalData = text(reversal, 90);
+        String stan = stan(originalData != null && originalData.length() >= 10
+                ? originalData.substring(4, 10) : text(reversal, 11));
+        long account = reversal.hasField(2) ? accountOf(reversal.getField(2).getValue()) : 0;
+        return reverse(text(reversal, 41), stan, text(reversal, 37), account, amount);
+    }
+
+    /**
+     * Undo the posting of a reversed transaction: a debit is credited back and a credit debited back. The
+     * original is found by terminal and STAN and must be for the same account and amount, and for the same
+     * RRN when the reversal carries one. A reversal with no original yet is remembered in its place, so the
+     * original is undone when it is posted.
+     * @param rrn The reversal's retrieval reference number, or null when it carries none
+     */
+    public Reversal reverse(String terminalId, String stan, String rrn, long account, long amount) {
+        Reversal reversal;
+        snapshotLock.readLock().lock();
+        try {
+            reversal = stan == null ? Reversal.UNMATCHED
+                    : originals.reverse(originalKey(terminalId, stan), rrn, account, amount, this::undo);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        switch (reversal) {
+            case REVERSED:
+                reversals.increment();
+                break;
+            case PENDING:
+                pendingReversals.increment();
+                break;
+            case UNMATCHED:
+                unmatchedReversals.increment();
+                break;
+            case ALREADY_REVERSED:
+                duplicateReversals.increment();
+                break;
+            default:
+                // Counted as an unknown account by the posting
+        }
+        return reversal;
+    }
+
+    private static String originalKey(String terminalId, String stan) {
+        return terminalId + '/' + stan;
+    }
+
+    private static String text(IsoMessage message, int field) {
+        if (!message.hasField(field)) {
+            return null;
+        }
+        String value = String.valueOf(message.getField(field).getValue()).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * A STAN without its zero padding, so it matches however the field was typed
+     */
+    private static String stan(String value) {
+        if (value == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < value.length() - 1 && value.charAt(start) == '0') {
+            start++;
+        }
+        return value.substring(start);
+    }
+
+    private void count(Posting posting, LongAdder applied) {
+        switch (posting) {
+            case APPLIED:
+                applied.increment();
+                break;
+            case INSUFFICIENT_FUNDS:
+                insufficientFunds.increment();
+                break;
+            default:
+                unknownAccounts.increment();
+        }
+    }
+
+    /**
+     * The account number of a PAN as parsed from field 2, without allocating: BCD bytes, whose 0xF padding
+     * nibble is skipped, or digits
+     * @return The account number, or 0 when the value holds no digits or more than 19
+     */
+    public static long accountOf(Object pan) {
+        long account = 0;
+        int digits = 0;
+        if (pan instanceof byte[]) {
+            for (byte b : (byte[]) pan) {
+                int high = (b >> 4) & 0xF;
+                int low = b & 0xF;
+                if (high <= 9) {
+                    account = account * 10 + high;
+                    digits++;
+                }
+                if (low <= 9) {
+                    account = account * 10 + low;
+                    digits++;
+                }
+            }
+        } else if (pan instanceof CharSequence) {
+            CharSequence text = (CharSequence) pan;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    account = account * 10 + (c - '0');
+                    digits++;
+                }
+            }
+        }
+        // 19 digits always fit in an unsigned long
+        return digits <= 19 ? account : 0;
+    }
+
+    @Override
+    public synchronized void snapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<long[]> balances = new ArrayList<>(stripes.length);
+        Map<String, OriginalPostings.Original> remembered;
+        snapshotLock.writeLock().lock();
+        try {
+            for (LedgerStripe stripe : stripes) {
+                balances.add(stripe.copy());
+            }
+            remembered = originals.copy();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        long accounts = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            buffer.putLong(MAGIC_WITH_ORIGINALS).putLong(0).putLong(System.currentTimeMillis());
+            for (long[] pairs : balances) {
+                for (long value : pairs) {
+                    if (!buffer.hasRemaining()) {
+                        writeFully(channel, buffer);
+                    }
+                    buffer.putLong(value);
+                }
+                accounts += pairs.length / 2;
+            }
+            writeFully(channel, buffer);
+            buffer.putInt(remembered.size());
+            for (Map.Entry<String, OriginalPostings.Original> entry : remembered.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                OriginalPostings.Original original = entry.getValue();
+                byte[] rrn = original.rrn != null ? original.rrn.getBytes(StandardCharsets.UTF_8) : null;
+                if (buffer.remaining() < 2 * Short.BYTES + key.length + (rrn != null ? rrn.length : 0)
+                        + 2 * Long.BYTES + 1) {
+                    writeFully(channel, buffer);
+                }
+                buffer.putShort((short) key.length).put(key).putLong(original.account).putLong(original.amount);
+                buffer.putShort((short) (rrn != null ? rrn.length : -1));
+                if (rrn != null) {
+                    buffer.put(rrn);
+                }
+                buffer.put((byte) ((original.reversed ? REVERSED : 0) | (original.pending ? PENDING : 0)));
+            }
+            writeFully(channel, buffer);
+            buffer.putLong(accounts).flip();
+            channel.write(buffer, Long.BYTES);
+            channel.force(true);
+        } catch (IOException e) {
+            logger.error("Failed to write ledger snapshot {}", temporary, e);
+            return;
+        }
+        try {
+            Files.move(temporary, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Failed to replace ledger snapshot {}", snapshotFile, e);
+            return;
+        }
+        lastSnapshotMillis = System.currentTimeMillis();
+        lastSnapshotAccounts = accounts;
+        lastSnapshotDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info("Ledger snapshot of {} accounts and {} remembered postings written to {} in {} ms", accounts,
+                remembered.size(), snapshotFile, lastSnapshotDurationMillis);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+            readFully(channel, buffer, HEADER_BYTES);
+            long magic = buffer.getLong();
+            if (magic != MAGIC && magic != MAGIC_WITH_ORIGINALS) {
+                throw new IOException("Not a ledger snapshot: " + file);
+            }
+            long accounts = buffer.getLong();
+            long written = buffer.getLong();
+            long balancesEnd = HEADER_BYTES + accounts * 2 * Long.BYTES;
+            if (magic == MAGIC ? channel.size() != balancesEnd : channel.size() < balancesEnd + Integer.BYTES) {
+                throw new IOException("Ledger snapshot truncated, " + accounts + " accounts in " + channel.size()
+                        + " bytes: " + file);
+            }
+            for (long remaining = accounts; remaining > 0; ) {
+                int batch = (int) Math.min(remaining, WRITE_BUFFER_BYTES / (2 * Long.BYTES));
+                readFully(channel, buffer, batch * 2 * Long.BYTES);
+                for (int i = 0; i < batch; i++) {
+                    long account = buffer.getLong();
+                    long mixed = mix(account);
+                    stripeOf(mixed).set(account, (int) mixed, buffer.getLong());
+                }
+                remaining -= batch;
+            }
+            int remembered = magic == MAGIC_WITH_ORIGINALS ? loadOriginals(channel, file) : 0;
+            logger.info("Loaded {} accounts and {} remembered postings from ledger snapshot {} written {}", accounts,
+                    remembered, file, Instant.ofEpochMilli(written));
+        }
+    }
+
+    /**
+     * Read the remembered postings that follow the balances
+     */
+    private int loadOriginals(FileChannel channel, Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - channel.position()));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of ledger snapshot");
+            }
+        }
+        buffer.flip();
+        try {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[buffer.getShort()];
+                buffer.get(key);
+                long account = buffer.getLong();
+                long amount = buffer.getLong();
+                int rrnLength = buffer.getShort();
+                String rrn = null;
+                if (rrnLength >= 0) {
+                    byte[] bytes = new byte[rrnLength];
+                    buffer.get(bytes);
+                    rrn = new String(bytes, StandardCharsets.UTF_8);
+                }
+                byte flags = buffer.get();
+                originals.restore(new String(key, StandardCharsets.UTF_8), new OriginalPostings.Original(account,
+                        amount, rrn, (flags & REVERSED) != 0, (flags & PENDING) != 0));
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Ledger snapshot has " + buffer.remaining() + " trailing bytes: " + file);
+            }
+            return count;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Ledger snapshot truncated in its remembered postings: " + file, e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        buffer.clear().limit(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of ledger snapshot");
+            }
+        }
+        buffer.flip();
+    }
+
+    private LedgerStripe stripeOf(long mixed) {
+        return stripes[stripeIndex(mixed)];
+    }
+
+    private int stripeIndex(long mixed) {
+        return (int) (mixed >>> 32) & stripeMask;
+    }
+
+    /**
+     * Slot hash of an account within its stripe
+     */
+    static int slotHash(long account) {
+        return (int) mix(account);
+    }
+
+    /**
+     * murmur3 finalizer: the high half picks the stripe, the low half the slot
+     */
+    private static long mix(long account) {
+        long h = account;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public long getAccounts() {
+        long accounts = 0;
+        for (LedgerStripe stripe : stripes) {
+            accounts += stripe.size();
+        }
+        return accounts;
+    }
+
+    @Override
+    public int getStripes() { return stripes.length; }
+
+    @Override
+    public long getOpeningBalance() { return openingBalance; }
+
+    @Override
+    public long getDebits() { return debits.sum(); }
+
+    @Override
+    public long getCredits() { return credits.sum(); }
+
+    @Override
+    public long getInsufficientFunds() { return insufficientFunds.sum(); }
+
+    @Override
+    public long getUnknownAccounts() { return unknownAccounts.sum(); }
+
+    @Override
+    public long getReversals() { return reversals.sum(); }
+
+    @Override
+    public long getUnmatchedReversals() { return unmatchedReversals.sum(); }
+
+    @Override
+    public long getDuplicateReversals() { return duplicateReversals.sum(); }
+
+    @Override
+    public long getPendingReversals() { return pendingReversals.sum(); }
+
+    @Override
+    public long getLateOriginals() { return lateOriginals.sum(); }
+
+    @Override
+    public int getReversibleTransactions() { return originals.size(); }
+
+    @Override
+    public String getSnapshotFile() { return snapshotFile != null ? snapshotFile.toString() : null; }
+
+    @Override
+    public long getLastSnapshotMillis() { return lastSnapshotMillis; }
+
+    @Override
+    public long getLastSnapshotAccounts() { return lastSnapshotAccounts; }
+
+    @Override
+    public long getLastSnapshotDurationMillis() { return lastSnapshotDurationMillis; }
+
+    @Override
+    public Long getBalance(String pan) {
+        long account = accountOf(pan);
+        if (account == 0) {
+            return null;
+        }
+        long mixed = mix(account);
+        return stripeOf(mixed).balance(account, (int) mixed);
+    }
+
+    @Override
+    public void setBalance(String pan, long balance) {
+        long account = accountOf(pan);
+        if (account == 0) {
+            throw new IllegalArgumentException("Not a PAN: " + pan);
+        }
+        long mixed = mix(account);
+        snapshotLock.readLock().lock();
+        try {
+            stripeOf(mixed).set(account, (int) mixed, balance);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.titp.server.ledger;
+
+/**
+ * Accounts, postings and snapshots of the in-memory ledger, and operations to inspect and fund accounts
+ */
+public interface AccountLedgerMXBean {
+    long getAccounts();
+
+    int getStripes();
+
+    long getOpeningBalance();
+
+    long getDebits();
+
+    long getCredits();
+
+    long getInsufficientFunds();
+
+    long getUnknownAccounts();
+
+    /**
+     * Reversals that undid the posting of their original transaction
+     */
+    long getReversals();
+
+    /**
+     * Reversals that conflict with the posting remembered under their original's terminal and STAN, or carry
+     * no STAN or PAN, answered without posting
+     */
+    long getUnmatchedReversals();
+
+    /**
+     * Reversals that came before their original, remembered so the original is undone when it is posted
+     */
+    long getPendingReversals();
+
+    /**
+     * Originals posted after their reversal, undone at once and declined
+     */
+    long getLateOriginals();
+
+    /**
+     * Reversals of a transaction already reversed, answered without posting again
+     */
+    long getDuplicateReversals();
+
+    /**
+     * Approved postings, and reversals that came before their original, remembered for matching
+     */
+    int getReversibleTransactions();
+
+    String getSnapshotFile();
+
+    /**
+     * When the last snapshot was written, in milliseconds since the epoch, or 0 before the first
+     */
+    long getLastSnapshotMillis();
+
+    long getLastSnapshotAccounts();
+
+    long getLastSnapshotDurationMillis();
+
+    /**
+     * @return The balance in minor units, or null when the account is not in the ledger
+     */
+    Long getBalance(String pan);
+
+    /**
+     * Set a balance in minor units, opening the account if needed
+     */
+    void setBalance(String pan, long balance);
+
+    /**
+     * Write a snapshot now
+     */
+    void snapshot();
+}
@@ -0,0 +1,165 @@
+package com.titp.server.ledger;
+
+/**
+ * One stripe of the ledger: an open-addressed table of account numbers and balances in two primitive arrays,
+ * guarded by the stripe's monitor. Account 0 marks an empty slot.
+ */
+final class LedgerStripe {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] accounts;
+    private long[] balances;
+    private int size;
+    private int resizeAt;
+
+    LedgerStripe(int expectedAccounts) {
+        allocate(capacityFor(expectedAccounts));
+    }
+
+    /**
+     * Debit an account if its balance covers the amount; an unknown account is opened with the opening
+     * balance, or refused when the opening balance is negative
+     */
+    synchronized Posting debit(long account, int hash, long amount, long openingBalance) {
+        int slot = find(account, hash);
+        if (slot < 0) {
+            if (openingBalance < 0) {
+                return Posting.UNKNOWN_ACCOUNT;
+            }
+            slot = insert(account, hash, openingBalance);
+        }
+        if (balances[slot] < amount) {
+            return Posting.INSUFFICIENT_FUNDS;
+        }
+        balances[slot] -= amount;
+        return Posting.APPLIED;
+    }
+
+    /**
+     * Add a signed amount to an account without checking its balance
+     */
+    synchronized Posting post(long account, int hash, long amount, long openingBalance) {
+        int slot = find(account, hash);
+        if (slot < 0) {
+            if (openingBalance < 0) {
+                return Posting.UNKNOWN_ACCOUNT;
+            }
+            slot = insert(account, hash, openingBalance);
+        }
+        balances[slot] += amount;
+        return Posting.APPLIED;
+    }
+
+    /**
+     * Post several amounts to accounts of this stripe under one lock: an amount is debited if the balance
+     * covers it or, when negative, credited
+     * @param order Indexes into the other arrays of the postings to apply, in order, from {@code from} to
+     * {@code to}
+     */
+    synchronized void postAll(long[] accounts, long[] hashes, long[] amounts, int[] order, int from, int to,
+                              long openingBalance, Posting[] postings) {
+        for (int n = from; n < to; n++) {
+            int i = order[n];
+            postings[i] = amounts[i] >= 0
+                    ? debit(accounts[i], (int) hashes[i], amounts[i], openingBalance)
+                    : post(accounts[i], (int) hashes[i], -amounts[i], openingBalance);
+        }
+    }
+
+    synchronized void set(long account, int hash, long balance) {
+        int slot = find(account, hash);
+        if (slot < 0) {
+            insert(account, hash, balance);
+        } else {
+            balances[slot] = balance;
+        }
+    }
+
+    /**
+     * @return The balance, or null when the account is not in the ledger
+     */
+    synchronized Long balance(long account, int hash) {
+        int slot = find(account, hash);
+        return slot >= 0 ? balances[slot] : null;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Copy the stripe's accounts and balances as of one instant, packed as account, balance pairs
+     */
+    synchronized long[] copy() {
+        long[] pairs = new long[size * 2];
+        int next = 0;
+        for (int slot = 0; slot < accounts.length; slot++) {
+            if (accounts[slot] != 0) {
+                pairs[next++] = accounts[slot];
+                pairs[next++] = balances[slot];
+            }
+        }
+        return pairs;
+    }
+
+    private int find(long account, int hash) {
+        int mask = accounts.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long key = accounts[slot];
+            if (key == account) {
+                return slot;
+            }
+            if (key == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private int insert(long account, int hash, long balance) {
+        if (size >= resizeAt) {
+            rehash();
+        }
+        int mask = accounts.length - 1;
+        int slot = hash & mask;
+        while (accounts[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        accounts[slot] = account;
+        balances[slot] = balance;
+        size++;
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldAccounts = accounts;
+        long[] oldBalances = balances;
+        allocate(oldAccounts.length * 2);
+        int mask = accounts.length - 1;
+        for (int i = 0; i < oldAccounts.length; i++) {
+            long account = oldAccounts[i];
+            if (account != 0) {
+                int slot = AccountLedger.slotHash(account) & mask;
+                while (accounts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                accounts[slot] = account;
+                balances[slot] = oldBalances[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        accounts = new long[capacity];
+        balances = new long[capacity];
+        // Up to 3/4 full
+        resizeAt = capacity - (capacity >>> 2);
+    }
+
+    private static int capacityFor(int expectedAccounts) {
+        int capacity = MIN_CAPACITY;
+        while (capacity - (capacity >>> 2) <= expectedAccounts) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,179 @@
+package com.titp.server.ledger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent approved postings by terminal and STAN, so a reversal undoes the posting it refers to and
+ * only once. A reversal that comes before its original leaves a pending entry in the original's place, so
+ * the original is undone as soon as it is posted. Entries are spread over stripes, each a map in arrival
+ * order under its own lock, and the oldest entry of a full stripe is forgotten.
+ */
+final class OriginalPostings {
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final int maxPerStripe;
+
+    OriginalPostings(int stripes, int capacity) {
+        int count = Integer.highestOneBit(Math.max(1, stripes * 2 - 1));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.stripeMask = count - 1;
+        this.maxPerStripe = Math.max(1, capacity / count);
+    }
+
+    /**
+     * Remember an approved posting. When its reversal came first, the posting is undone at once through the
+     * given action and remembered as reversed.
+     * @return Whether the posting was undone because its reversal came first
+     */
+    boolean record(String key, Original original, Undo undo) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Original pending = stripe.postings.get(key);
+            if (pending != null && pending.pending && matches(original, pending.rrn, pending.account, pending.amount)) {
+                undo.post(original.account, original.amount);
+                original.reversed = true;
+                stripe.put(key, original, maxPerStripe);
+                return true;
+            }
+            stripe.put(key, original, maxPerStripe);
+            return false;
+        }
+    }
+
+    /**
+     * Undo the posting under the key through the given action, marking it reversed when it succeeds. The
+     * stripe stays locked meanwhile, so a repeated reversal racing with the first cannot post twice. With no
+     * entry under the key, the reversal is remembered as pending for its original.
+     */
+    Reversal reverse(String key, String rrn, long account, long amount, Undo undo) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Original original = stripe.postings.get(key);
+            if (original == null) {
+                if (account == 0) {
+                    return Reversal.UNMATCHED;
+                }
+                stripe.put(key, Original.pending(account, amount, rrn), maxPerStripe);
+                return Reversal.PENDING;
+            }
+            if (!matches(original, rrn, account, amount)) {
+                return Reversal.UNMATCHED;
+            }
+            if (original.reversed) {
+                return Reversal.ALREADY_REVERSED;
+            }
+            if (undo.post(original.account, original.amount) != Posting.APPLIED) {
+                return Reversal.UNKNOWN_ACCOUNT;
+            }
+            original.reversed = true;
+            return Reversal.REVERSED;
+        }
+    }
+
+    /**
+     * Whether a reversal for the account and unsigned amount, carrying the given RRN or none, is for the
+     * original
+     */
+    private static boolean matches(Original original, String rrn, long account, long amount) {
+        return original.account == account && Math.abs(original.amount) == Math.abs(amount)
+                && (rrn == null || rrn.equals(original.rrn));
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.postings.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copy every entry, each stripe's oldest first
+     */
+    Map<String, Original> copy() {
+        Map<String, Original> copy = new LinkedHashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, Original> entry : stripe.postings.entrySet()) {
+                    copy.put(entry.getKey(), entry.getValue().copy());
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Put back an entry read from a snapshot
+     */
+    void restore(String key, Original original) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            stripe.put(key, original, maxPerStripe);
+        }
+    }
+
+    private Stripe stripeOf(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & stripeMask];
+    }
+
+    /**
+     * Posts the opposite of an original posting
+     */
+    interface Undo {
+        /**
+         * @param amount The original's signed amount, positive for a debit
+         */
+        Posting post(long account, long amount);
+    }
+
+    static final class Original {
+        final long account;
+        // Positive for a debit, negative for a credit; unsigned for a pending reversal
+        final long amount;
+        final String rrn;
+        boolean reversed;
+        // A reversal whose original has not been posted yet; its RRN is the reversal's
+        final boolean pending;
+
+        Original(long account, long amount, String rrn) {
+            this(account, amount, rrn, false, false);
+        }
+
+        Original(long account, long amount, String rrn, boolean reversed, boolean pending) {
+            this.account = account;
+            this.amount = amount;
+            this.rrn = rrn;
+            this.reversed = reversed;
+            this.pending = pending;
+        }
+
+        static Original pending(long account, long amount, String rrn) {
+            return new Original(account, amount, rrn, true, true);
+        }
+
+        Original copy() {
+            return new Original(account, amount, rrn, reversed, pending);
+        }
+    }
+
+    private static final class Stripe {
+        final Map<String, Original> postings = new LinkedHashMap<>();
+
+        void put(String key, Original original, int maxSize) {
+            postings.put(key, original);
+            if (postings.size() > maxSize) {
+                Iterator<Original> oldest = postings.values().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+}
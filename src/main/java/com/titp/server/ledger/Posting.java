@@ -0,0 +1,24 @@
+package com.titp.server.ledger;
+
+import com.titp.server.utils.ISOResponseCode;
+
+/**
+ * Outcome of posting a debit or credit to the ledger
+ */
+public enum Posting {
+    APPLIED(ISOResponseCode.SUCCESS),
+    INSUFFICIENT_FUNDS(ISOResponseCode.INSUFFICIENT_FUNDS),
+    UNKNOWN_ACCOUNT(ISOResponseCode.INVALID_CARD_NUMBER),
+    /** The transaction's reversal came first, so its posting was undone as soon as it was made */
+    ALREADY_REVERSED(ISOResponseCode.INVALID_TRANSACTION);
+
+    private final ISOResponseCode responseCode;
+
+    Posting(ISOResponseCode responseCode) {
+        this.responseCode = responseCode;
+    }
+
+    public ISOResponseCode getResponseCode() {
+        return responseCode;
+    }
+}
@@ -0,0 +1,19 @@
+package com.titp.server.ledger;
+
+/**
+ * Outcome of reversing a transaction in the ledger
+ */
+public enum Reversal {
+    /** The original posting was found and undone */
+    REVERSED,
+    /** No posting is remembered for the original yet; the reversal is, and undoes the original if it comes */
+    PENDING,
+    /** The remembered posting under the original's terminal and STAN is for another PAN, amount or RRN, or
+     * the reversal carries no STAN or PAN, so nothing was posted */
+    UNMATCHED,
+    /** The original posting was already reversed, or its reversal is already pending, so nothing was posted
+     * again */
+    ALREADY_REVERSED,
+    /** The original's account could not be posted to */
+    UNKNOWN_ACCOUNT
+}
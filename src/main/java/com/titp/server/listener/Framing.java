@@ -0,0 +1,95 @@
+package com.titp.server.listener;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Length prefix in front of each ISO 8583 message on a listener's connections
+ */
+public enum Framing {
+    /** 2-byte big-endian binary length (TITP) */
+    BINARY2(2, 0xFFFF) {
+        @Override
+        public int readLength(DataInputStream in) throws IOException {
+            return in.readUnsignedShort();
+        }
+
+        @Override
+        public void writeLength(byte[] frame, int length) {
+            checkLength(length);
+            frame[0] = (byte) (length >> 8);
+            frame[1] = (byte) length;
+        }
+    },
+
+    /** 4 ASCII decimal digits, e.g. "0123" */
+    ASCII4(4, 9999) {
+        @Override
+        public int readLength(DataInputStream in) throws IOException {
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = in.readUnsignedByte() - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IOException("Invalid ASCII length prefix");
+                }
+                length = length * 10 + digit;
+            }
+            return length;
+        }
+
+        @Override
+        public void writeLength(byte[] frame, int length) {
+            checkLength(length);
+            for (int i = 3; i >= 0; i--) {
+                frame[i] = (byte) ('0' + length % 10);
+                length /= 10;
+            }
+        }
+    };
+
+    private final int prefixLength;
+    private final int maxLength;
+
+    Framing(int prefixLength, int maxLength) {
+        this.prefixLength = prefixLength;
+        this.maxLength = maxLength;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * Longest message the prefix can carry
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Read the length prefix of the next message
+     * @throws java.io.EOFException When the stream ends before the prefix is complete
+     */
+    public abstract int readLength(DataInputStream in) throws IOException;
+
+    /**
+     * Write the length prefix into the first {@link #getPrefixLength()} bytes of the frame
+     * @throws IllegalArgumentException When the length does not fit the prefix; a truncated prefix would
+     * desynchronize the connection
+     */
+    public abstract void writeLength(byte[] frame, int length);
+
+    void checkLength(int length) {
+        if (length < 0 || length > maxLength) {
+            throw new IllegalArgumentException("Message length " + length + " does not fit " + name()
+                    + " framing (at most " + maxLength + ")");
+        }
+    }
+
+    /**
+     * Parse a framing name such as "binary2" or "ascii4"
+     */
+    public static Framing parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,148 @@
+package com.titp.server.listener;
+
+import com.titp.server.EchoFastPath;
+import com.titp.server.processor.ProcessorSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.function.Supplier;
+
+/**
+ * One server port with its framing, message factory profile and processors. All listeners hand their
+ * connections to the server's shared handler pool.
+ */
+public class Listener implements ListenerMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(Listener.class);
+
+    private final String name;
+    private final int configuredPort;
+    private final Framing framing;
+    private final String configFile;
+    private final Supplier<ProcessorSet> processors;
+    private final EchoFastPath echoFastPath;
+    private final ListenerStats stats = new ListenerStats();
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * @param processors The message factory and processors current for each new message
+     * @param echoFastPath Echo shortcut, or null; it only fits 2-byte binary framing and the TITP dictionary
+     */
+    public Listener(String name, int port, Framing framing, String configFile,
+                    Supplier<ProcessorSet> processors, EchoFastPath echoFastPath) {
+        this.name = name;
+        this.configuredPort = port;
+        this.framing = framing;
+        this.configFile = configFile;
+        this.processors = processors;
+        this.echoFastPath = echoFastPath;
+    }
+
+    public void bind() throws IOException {
+        serverSocket = new ServerSocket(configuredPort);
+        logger.info("Listener {} accepting on port {} ({} framing, {})",
+                name, serverSocket.getLocalPort(), framing.name().toLowerCase(), configFile);
+    }
+
+    public Socket accept() throws IOException {
+        return serverSocket.accept();
+    }
+
+    public void close() {
+        ServerSocket socket = serverSocket;
+        if (socket != null && !socket.isClosed()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error("Error closing listener {}", name, e);
+            }
+        }
+    }
+
+    public Framing getFramingCodec() {
+        return framing;
+    }
+
+    public Supplier<ProcessorSet> getProcessors() {
+        return processors;
+    }
+
+    public EchoFastPath getEchoFastPath() {
+        return echoFastPath;
+    }
+
+    public ListenerStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The bound port once started, which differs from the configured one when that is 0
+     */
+    @Override
+    public int getPort() {
+        ServerSocket socket = serverSocket;
+        return socket != null ? socket.getLocalPort() : configuredPort;
+    }
+
+    @Override
+    public String getFraming() {
+        return framing.name().toLowerCase();
+    }
+
+    @Override
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return stats.getOpenConnections();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return stats.getConnectionsOpened();
+    }
+
+    @Override
+    public long getMessages() {
+        return stats.getMessages();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return stats.getBytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return stats.getBytesOut();
+    }
+
+    @Override
+    public long getErrors() {
+        return stats.getErrors();
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return stats.latencySnapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return stats.latencySnapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return stats.latencySnapshot().getMaxValue() / 1000.0;
+    }
+}
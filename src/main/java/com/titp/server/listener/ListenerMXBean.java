@@ -0,0 +1,35 @@
+package com.titp.server.listener;
+
+/**
+ * Configuration and traffic of one listener
+ */
+public interface ListenerMXBean {
+    String getName();
+
+    int getPort();
+
+    String getFraming();
+
+    String getConfigFile();
+
+    int getOpenConnections();
+
+    long getConnectionsOpened();
+
+    long getMessages();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getErrors();
+
+    /**
+     * Request latency percentiles since start, in microseconds
+     */
+    double getLatencyP50Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyMaxMicros();
+}
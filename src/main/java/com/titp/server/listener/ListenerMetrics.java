@@ -0,0 +1,64 @@
+package com.titp.server.listener;
+
+import com.titp.server.metrics.PrometheusExporter;
+import org.HdrHistogram.Histogram;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.function.ToLongFunction;
+
+/**
+ * Prometheus families of all listeners, labelled by listener name
+ */
+public class ListenerMetrics implements PrometheusExporter {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+    private final List<Listener> listeners;
+
+    public ListenerMetrics(List<Listener> listeners) {
+        this.listeners = listeners;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        writeFamily(out, "titp_listener_connections_open", "gauge", "Open connections per listener",
+                listener -> listener.getStats().getOpenConnections());
+        writeFamily(out, "titp_listener_connections_total", "counter", "Connections accepted per listener",
+                listener -> listener.getStats().getConnectionsOpened());
+        writeFamily(out, "titp_listener_messages_total", "counter", "Request frames received per listener",
+                listener -> listener.getStats().getMessages());
+        writeFamily(out, "titp_listener_received_bytes_total", "counter", "Bytes received per listener including length prefixes",
+                listener -> listener.getStats().getBytesIn());
+        writeFamily(out, "titp_listener_sent_bytes_total", "counter", "Bytes sent per listener including length prefixes",
+                listener -> listener.getStats().getBytesOut());
+        writeFamily(out, "titp_listener_errors_total", "counter", "Messages that failed processing per listener",
+                listener -> listener.getStats().getErrors());
+
+        String family = "titp_listener_request_latency_seconds";
+        out.append("# HELP ").append(family).append(" Request latency per listener since start\n");
+        out.append("# TYPE ").append(family).append(" summary\n");
+        for (Listener listener : listeners) {
+            Histogram histogram = listener.getStats().latencySnapshot();
+            for (double quantile : QUANTILES) {
+                out.append(family).append("{listener=\"").append(PrometheusExporter.escapeLabel(listener.getName()))
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append(family).append("_count{listener=\"").append(PrometheusExporter.escapeLabel(listener.getName())).append("\"} ")
+                    .append(histogram.getTotalCount()).append('\n');
+        }
+    }
+
+    private void writeFamily(StringBuilder out, String name, String type, String help, ToLongFunction<Listener> value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Listener listener : listeners) {
+            out.append(name).append("{listener=\"").append(PrometheusExporter.escapeLabel(listener.getName())).append("\"} ")
+                    .append(value.applyAsLong(listener)).append('\n');
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
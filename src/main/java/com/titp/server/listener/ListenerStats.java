@@ -0,0 +1,67 @@
+package com.titp.server.listener;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters and request latency of one listener
+ */
+public class ListenerStats {
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Recorder latency = new Recorder(1, HIGHEST_TRACKABLE_NANOS, 2);
+    private final Histogram cumulative = new Histogram(1, HIGHEST_TRACKABLE_NANOS, 2);
+    private Histogram interval = latency.getIntervalHistogram();
+
+    public void connectionOpened() {
+        openConnections.incrementAndGet();
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    public void messageReceived(int frameBytes) {
+        messages.increment();
+        bytesIn.add(frameBytes);
+    }
+
+    /**
+     * @param latencyNanos From the arrival of the request's length prefix to the response written
+     */
+    public void responseSent(int frameBytes, long latencyNanos) {
+        bytesOut.add(frameBytes);
+        latency.recordValue(Math.max(1, Math.min(latencyNanos, HIGHEST_TRACKABLE_NANOS)));
+    }
+
+    public void errorOccurred() {
+        errors.increment();
+    }
+
+    public int getOpenConnections() { return openConnections.get(); }
+    public long getConnectionsOpened() { return connectionsOpened.sum(); }
+    public long getMessages() { return messages.sum(); }
+    public long getBytesIn() { return bytesIn.sum(); }
+    public long getBytesOut() { return bytesOut.sum(); }
+    public long getErrors() { return errors.sum(); }
+
+    /**
+     * Request latency since start
+     */
+    public synchronized Histogram latencySnapshot() {
+        interval = latency.getIntervalHistogram(interval);
+        cumulative.add(interval);
+        return cumulative.copy();
+    }
+}
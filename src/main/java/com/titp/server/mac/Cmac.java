@@ -0,0 +1,71 @@
+package com.titp.server.mac;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * AES-CMAC as in RFC 4493, over single-block ECB operations since the JDK ships no CMAC. The subkeys are
+ * derived once per session key.
+ */
+final class Cmac extends MacEngine {
+    private static final int BLOCK = 16;
+    private static final int RB = 0x87;
+
+    private final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+    private final byte[] subkey1 = new byte[BLOCK];
+    private final byte[] subkey2 = new byte[BLOCK];
+    // The cipher copies its input when it overlaps its output, so blocks go back and forth between two buffers
+    private final byte[] chain = new byte[BLOCK];
+    private final byte[] block = new byte[BLOCK];
+
+    Cmac() throws GeneralSecurityException {
+    }
+
+    @Override
+    void initKey(byte[] key) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, BLOCK, "AES"));
+        Arrays.fill(block, (byte) 0);
+        cipher.doFinal(block, 0, BLOCK, chain, 0);
+        doubleBlock(chain, subkey1);
+        doubleBlock(subkey1, subkey2);
+    }
+
+    @Override
+    void compute(byte[] data, int offset, int length, byte[] mac) throws GeneralSecurityException {
+        Arrays.fill(chain, (byte) 0);
+        int lastStart = length == 0 ? offset : offset + (length - 1) / BLOCK * BLOCK;
+        for (int position = offset; position < lastStart; position += BLOCK) {
+            for (int i = 0; i < BLOCK; i++) {
+                block[i] = (byte) (chain[i] ^ data[position + i]);
+            }
+            cipher.update(block, 0, BLOCK, chain, 0);
+        }
+        int lastLength = offset + length - lastStart;
+        // A complete last block is masked with the first subkey; a partial or empty one is padded with
+        // 0x80 and zeros and masked with the second
+        byte[] subkey = lastLength == BLOCK ? subkey1 : subkey2;
+        for (int i = 0; i < BLOCK; i++) {
+            int padded = i < lastLength ? data[lastStart + i] : i == lastLength ? 0x80 : 0;
+            block[i] = (byte) (chain[i] ^ padded ^ subkey[i]);
+        }
+        cipher.doFinal(block, 0, BLOCK, chain, 0);
+        System.arraycopy(chain, 0, mac, 0, MacAlgorithm.MAC_LENGTH);
+    }
+
+    /**
+     * Multiply by x in GF(2^128): shift left one bit and reduce
+     */
+    private static void doubleBlock(byte[] in, byte[] out) {
+        int carry = 0;
+        for (int i = BLOCK - 1; i >= 0; i--) {
+            int b = in[i] & 0xff;
+            out[i] = (byte) ((b << 1) | carry);
+            carry = b >>> 7;
+        }
+        if ((in[0] & 0x80) != 0) {
+            out[BLOCK - 1] ^= RB;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.titp.server.mac;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * MAC algorithms over 16-byte session keys, each producing an 8-byte MAC
+ */
+public enum MacAlgorithm {
+    /**
+     * ISO 9797-1 MAC algorithm 3 (ANSI X9.19 retail MAC) with padding method 1: single DES CBC-MAC under the
+     * key's left half, the last block decrypted under its right half and encrypted again under its left half.
+     * The session key is delivered under a double-length 3DES key encryption key.
+     */
+    RETAIL {
+        @Override
+        byte[] newKey(SecureRandom random) {
+            byte[] key = super.newKey(random);
+            // DES keys carry odd parity in the low bit of each byte, which terminals and HSMs may check
+            for (int i = 0; i < key.length; i++) {
+                int b = key[i] & 0xfe;
+                key[i] = (byte) (Integer.bitCount(b) % 2 == 0 ? b | 1 : b);
+            }
+            return key;
+        }
+
+        @Override
+        MacEngine newEngine() throws GeneralSecurityException {
+            return new RetailMac();
+        }
+
+        @Override
+        byte[] encryptKey(byte[] kek, byte[] key) throws GeneralSecurityException {
+            byte[] tripleLength = new byte[24];
+            System.arraycopy(kek, 0, tripleLength, 0, 16);
+            System.arraycopy(kek, 0, tripleLength, 16, 8);
+            Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(tripleLength, "DESede"));
+            return cipher.doFinal(key);
+        }
+    },
+    /**
+     * CMAC (NIST SP 800-38B, RFC 4493) over AES-128, truncated to its leftmost 8 bytes. The session key is
+     * delivered under an AES-128 key encryption key.
+     */
+    CMAC {
+        @Override
+        MacEngine newEngine() throws GeneralSecurityException {
+            return new Cmac();
+        }
+
+        @Override
+        byte[] encryptKey(byte[] kek, byte[] key) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kek, "AES"));
+            return cipher.doFinal(key);
+        }
+    };
+
+    public static final int KEY_LENGTH = 16;
+    public static final int MAC_LENGTH = 8;
+
+    /**
+     * A fresh random session key of {@link #KEY_LENGTH} bytes
+     */
+    byte[] newKey(SecureRandom random) {
+        byte[] key = new byte[KEY_LENGTH];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * An engine with its ciphers created but no key; initialize it with {@link MacEngine#init} before use
+     */
+    abstract MacEngine newEngine() throws GeneralSecurityException;
+
+    /**
+     * Encrypt a session key under the key encryption key for delivery to the terminal
+     */
+    abstract byte[] encryptKey(byte[] kek, byte[] key) throws GeneralSecurityException;
+
+    /**
+     * @param name retail or cmac, in any case
+     */
+    public static MacAlgorithm parse(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "retail":
+            case "x919":
+                return RETAIL;
+            case "cmac":
+                return CMAC;
+            default:
+                throw new IllegalArgumentException("Unknown MAC algorithm: " + name + " (expected retail or cmac)");
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.titp.server.mac;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * One thread's MAC computation for one terminal: its ciphers, initialized with the terminal's session key,
+ * and the derived key material, so computing a MAC neither allocates nor re-initializes anything.
+ * <p>
+ * Not thread-safe; each thread keeps its own engines.
+ */
+abstract class MacEngine {
+    private Object keyIdentity;
+
+    /**
+     * Key the ciphers with a 16-byte session key
+     * @param identity Object that stands for the key, compared by identity to tell whether a re-init is due
+     */
+    final void init(byte[] key, Object identity) throws GeneralSecurityException {
+        initKey(key);
+        this.keyIdentity = identity;
+    }
+
+    final boolean isKeyedWith(Object identity) {
+        return keyIdentity == identity;
+    }
+
+    abstract void initKey(byte[] key) throws GeneralSecurityException;
+
+    /**
+     * Compute the MAC of a range of bytes
+     * @param mac Receives the {@link MacAlgorithm#MAC_LENGTH} MAC bytes
+     */
+    abstract void compute(byte[] data, int offset, int length, byte[] mac) throws GeneralSecurityException;
+}
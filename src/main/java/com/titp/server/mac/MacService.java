@@ -0,0 +1,328 @@
+package com.titp.server.mac;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Message authentication with per-terminal session keys: issues a key to each terminal on a working key
+ * download, verifies the MAC of inbound requests and generates the MAC of their responses.
+ * <p>
+ * The MAC is carried in field 64, or in field 128 when the message has a secondary bitmap, and must be the
+ * message's last field. It covers the message as encoded on the wire, without the ISO header and without the
+ * MAC field itself. A BINARY MAC field holds the 8 MAC bytes, as raw bytes or hex digits depending on the
+ * message's field encoding; an ALPHA one holds them as 16 hex digits.
+ * <p>
+ * Each thread keeps its own engines, an access-ordered map from terminal to ciphers already keyed with that
+ * terminal's session key, so a MAC is computed without creating or re-initializing a cipher. An engine is
+ * re-keyed when its terminal downloads a new key, and the engine of the least recently seen terminal is
+ * recycled when a thread's map is full.
+ */
+public class MacService implements MacServiceMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(MacService.class);
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final MacAlgorithm algorithm;
+    private final byte[] kek;
+    private final boolean required;
+    private final SecureRandom random = new SecureRandom();
+    // Terminal id to session key; a replaced key is a new array, which is what tells engines to re-key
+    private final Map<String, byte[]> keys = new ConcurrentHashMap<>();
+    private final ThreadLocal<EngineCache> engines;
+    private final LongAdder keysIssued = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder verifyFailures = new LongAdder();
+    private final LongAdder missingMacs = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder unsigned = new LongAdder();
+
+    /**
+     * @param kek Key encryption key the session keys are delivered under, {@link MacAlgorithm#KEY_LENGTH} bytes
+     * @param required Whether to decline requests without a MAC, network management messages excepted
+     * @param cacheSize Terminals whose keyed engines each thread keeps
+     */
+    public MacService(MacAlgorithm algorithm, byte[] kek, boolean required, int cacheSize) {
+        if (kek == null || kek.length != MacAlgorithm.KEY_LENGTH) {
+            throw new IllegalArgumentException("The MAC key encryption key must be " + MacAlgorithm.KEY_LENGTH + " bytes");
+        }
+        this.algorithm = algorithm;
+        this.kek = kek.clone();
+        this.required = required;
+        int maxEngines = Math.max(1, cacheSize);
+        this.engines = ThreadLocal.withInitial(() -> new EngineCache(maxEngines));
+    }
+
+    /**
+     * Issue a new session key to a terminal, replacing its previous one
+     * @return The session key encrypted under the key encryption key
+     */
+    public byte[] issueKey(String terminalId) throws GeneralSecurityException {
+        byte[] key = algorithm.newKey(random);
+        byte[] encrypted = algorithm.encryptKey(kek, key);
+        keys.put(terminalId, key);
+        keysIssued.increment();
+        logger.info("Issued {} session key to terminal {}", algorithm, terminalId);
+        return encrypted;
+    }
+
+    /**
+     * Verify the MAC of a parsed request
+     * @param data The request as received, without its ISO header
+     * @throws MacVerificationException When the MAC does not match, cannot be checked, or is missing while
+     * required
+     */
+    public void verify(IsoMessage request, byte[] data) throws MacVerificationException {
+        int field = macField(request);
+        if (field == 0) {
+            if (required && (request.getType() & 0xff00) != 0x0800) {
+                missingMacs.increment();
+                throw new MacVerificationException(request, "MAC required but missing");
+            }
+            return;
+        }
+        if (field < 0) {
+            throw failure(request, "MAC field is not the last field");
+        }
+        int tail = encodedLength(request, field);
+        if (tail < 0 || tail > data.length) {
+            throw failure(request, "unsupported MAC field type " + request.getField(field).getType());
+        }
+        String terminalId = terminalOf(request);
+        byte[] key = terminalId != null ? keys.get(terminalId) : null;
+        if (key == null) {
+            throw failure(request, "no session key for terminal " + terminalId);
+        }
+        int macStart = data.length - tail;
+        byte[] mac;
+        try {
+            mac = compute(terminalId, key, data, 0, macStart);
+        } catch (GeneralSecurityException e) {
+            logger.error("MAC computation failed for terminal {}", terminalId, e);
+            throw failure(request, "MAC computation failed");
+        }
+        if (!matches(mac, data, macStart, isHex(request, field))) {
+            throw failure(request, "MAC mismatch for terminal " + terminalId);
+        }
+        verified.increment();
+    }
+
+    /**
+     * Write the MAC of an encoded response into its MAC field, both in the encoded bytes and in the message.
+     * Responses without a MAC field, i.e. to requests without one, are left as they are. A response whose MAC
+     * cannot be generated loses its MAC fields and is encoded again, so it never carries the MAC copied from
+     * its request.
+     * @param encoded The response as encoded by {@link IsoMessage#writeData()}, header included
+     * @return The bytes to send: {@code encoded}, signed in place, or the response encoded without a MAC
+     */
+    public byte[] sign(IsoMessage response, byte[] encoded) {
+        int field = macField(response);
+        if (field == 0) {
+            return encoded;
+        }
+        int tail = field > 0 ? encodedLength(response, field) : -1;
+        String terminalId = terminalOf(response);
+        byte[] key = terminalId != null ? keys.get(terminalId) : null;
+        if (tail < 0 || key == null) {
+            logger.warn("Cannot MAC response MTI {} of terminal {}: {}; sending it without a MAC",
+                    String.format("%04X", response.getType()), terminalId,
+                    key == null ? "no session key" : "unsupported MAC field");
+            return withoutMac(response);
+        }
+        int macStart = encoded.length - tail;
+        int start = headerLength(response);
+        byte[] mac;
+        try {
+            mac = compute(terminalId, key, encoded, start, macStart - start);
+        } catch (GeneralSecurityException e) {
+            logger.error("MAC computation failed for terminal {}; sending the response without a MAC", terminalId, e);
+            return withoutMac(response);
+        }
+        if (isHex(response, field)) {
+            for (int i = 0; i < MacAlgorithm.MAC_LENGTH; i++) {
+                encoded[macStart + 2 * i] = HEX_DIGITS[(mac[i] >> 4) & 0xf];
+                encoded[macStart + 2 * i + 1] = HEX_DIGITS[mac[i] & 0xf];
+            }
+        } else {
+            System.arraycopy(mac, 0, encoded, macStart, MacAlgorithm.MAC_LENGTH);
+        }
+        IsoValue<?> value = response.getField(field);
+        if (value.getType() == IsoType.ALPHA) {
+            response.setField(field, new IsoValue<>(IsoType.ALPHA,
+                    new String(encoded, macStart, tail, StandardCharsets.US_ASCII), value.getLength()));
+        } else {
+            response.setField(field, new IsoValue<>(IsoType.BINARY, mac.clone(), value.getLength()));
+        }
+        generated.increment();
+        return encoded;
+    }
+
+    private byte[] withoutMac(IsoMessage response) {
+        response.removeFields(64, 128);
+        unsigned.increment();
+        return response.writeData();
+    }
+
+    private byte[] compute(String terminalId, byte[] key, byte[] data, int offset, int length)
+            throws GeneralSecurityException {
+        EngineCache cache = engines.get();
+        MacEngine engine = cache.get(terminalId);
+        if (engine == null) {
+            engine = cache.spare != null ? cache.spare : algorithm.newEngine();
+            cache.spare = null;
+            cache.put(terminalId, engine);
+        }
+        if (!engine.isKeyedWith(key)) {
+            engine.init(key, key);
+        }
+        engine.compute(data, offset, length, cache.mac);
+        return cache.mac;
+    }
+
+    private MacVerificationException failure(IsoMessage request, String reason) {
+        verifyFailures.increment();
+        return new MacVerificationException(request, reason);
+    }
+
+    /**
+     * @return 64 or 128 when that field carries the MAC, 0 when the message has no MAC field, -1 when field 64
+     * is present but followed by secondary bitmap fields
+     */
+    private static int macField(IsoMessage message) {
+        if (message.hasField(128)) {
+            return 128;
+        }
+        if (!message.hasField(64)) {
+            return 0;
+        }
+        for (int i = 65; i < 128; i++) {
+            if (message.hasField(i)) {
+                return -1;
+            }
+        }
+        return 64;
+    }
+
+    /**
+     * Length of the MAC field as encoded, or -1 when its type cannot carry the MAC
+     */
+    private static int encodedLength(IsoMessage message, int field) {
+        IsoValue<?> value = message.getField(field);
+        if (value.getType() == IsoType.BINARY && value.getLength() == MacAlgorithm.MAC_LENGTH) {
+            return message.isBinaryFields() ? MacAlgorithm.MAC_LENGTH : 2 * MacAlgorithm.MAC_LENGTH;
+        }
+        if (value.getType() == IsoType.ALPHA && value.getLength() >= 2 * MacAlgorithm.MAC_LENGTH) {
+            return value.getLength();
+        }
+        return -1;
+    }
+
+    private static boolean isHex(IsoMessage message, int field) {
+        return message.getField(field).getType() == IsoType.ALPHA || !message.isBinaryFields();
+    }
+
+    private static int headerLength(IsoMessage message) {
+        if (message.getIsoHeader() != null) {
+            return message.getIsoHeader().length();
+        }
+        return message.getBinaryIsoHeader() != null ? message.getBinaryIsoHeader().length : 0;
+    }
+
+    private static String terminalOf(IsoMessage message) {
+        return message.hasField(41) ? message.getObjectValue(41).toString() : null;
+    }
+
+    /**
+     * Compare a computed MAC with the one received, in time independent of where they differ
+     */
+    private static boolean matches(byte[] mac, byte[] data, int macStart, boolean hex) {
+        int difference = 0;
+        for (int i = 0; i < MacAlgorithm.MAC_LENGTH; i++) {
+            if (hex) {
+                difference |= HEX_DIGITS[(mac[i] >> 4) & 0xf] ^ upperCase(data[macStart + 2 * i]);
+                difference |= HEX_DIGITS[mac[i] & 0xf] ^ upperCase(data[macStart + 2 * i + 1]);
+            } else {
+                difference |= mac[i] ^ data[macStart + i];
+            }
+        }
+        return difference == 0;
+    }
+
+    private static int upperCase(byte b) {
+        return b >= 'a' && b <= 'f' ? b - ('a' - 'A') : b;
+    }
+
+    @Override
+    public String getAlgorithm() { return algorithm.name(); }
+
+    @Override
+    public boolean isRequired() { return required; }
+
+    @Override
+    public int getSessionKeys() { return keys.size(); }
+
+    @Override
+    public long getKeysIssued() { return keysIssued.sum(); }
+
+    @Override
+    public long getVerified() { return verified.sum(); }
+
+    @Override
+    public long getVerifyFailures() { return verifyFailures.sum(); }
+
+    @Override
+    public long getMissingMacs() { return missingMacs.sum(); }
+
+    @Override
+    public long getGenerated() { return generated.sum(); }
+
+    @Override
+    public long getUnsigned() { return unsigned.sum(); }
+
+    @Override
+    public boolean revokeKey(String terminalId) {
+        boolean revoked = keys.remove(terminalId) != null;
+        if (revoked) {
+            logger.info("Revoked the session key of terminal {}", terminalId);
+        }
+        return revoked;
+    }
+
+    /**
+     * One thread's engines by terminal, least recently used first, and its MAC output buffer
+     */
+    private static final class EngineCache {
+        final byte[] mac = new byte[MacAlgorithm.MAC_LENGTH];
+        private final Map<String, MacEngine> engines = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+        // Engine of the terminal evicted last, reused for the next terminal instead of creating ciphers
+        MacEngine spare;
+
+        EngineCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        MacEngine get(String terminalId) {
+            return engines.get(terminalId);
+        }
+
+        void put(String terminalId, MacEngine engine) {
+            engines.put(terminalId, engine);
+            if (engines.size() > maxSize) {
+                Iterator<MacEngine> eldest = engines.values().iterator();
+                spare = eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
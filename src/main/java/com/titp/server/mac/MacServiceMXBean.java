@@ -0,0 +1,49 @@
+package com.titp.server.mac;
+
+/**
+ * Session keys issued and MACs verified and generated, and an operation to revoke a terminal's key
+ */
+public interface MacServiceMXBean {
+    /**
+     * RETAIL or CMAC
+     */
+    String getAlgorithm();
+
+    /**
+     * Whether requests other than network management messages without a MAC are declined
+     */
+    boolean isRequired();
+
+    /**
+     * Terminals holding a session key
+     */
+    int getSessionKeys();
+
+    long getKeysIssued();
+
+    long getVerified();
+
+    /**
+     * Requests declined because their MAC did not match, or their terminal has no session key
+     */
+    long getVerifyFailures();
+
+    /**
+     * Requests declined because they carried no MAC while one is required
+     */
+    long getMissingMacs();
+
+    long getGenerated();
+
+    /**
+     * Responses to MAC'd requests sent without a MAC because it could not be generated, e.g. as their
+     * terminal has no session key
+     */
+    long getUnsigned();
+
+    /**
+     * Forget a terminal's session key; its MAC'd requests are declined until it downloads a new one
+     * @return Whether the terminal had a key
+     */
+    boolean revokeKey(String terminalId);
+}
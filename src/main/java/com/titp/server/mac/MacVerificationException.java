@@ -0,0 +1,24 @@
+package com.titp.server.mac;
+
+import com.solab.iso8583.IsoMessage;
+
+/**
+ * A parsed request whose MAC is missing, misplaced or wrong; it is declined, not processed
+ */
+public class MacVerificationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final transient IsoMessage request;
+
+    public MacVerificationException(IsoMessage request, String message) {
+        super(message);
+        this.request = request;
+    }
+
+    /**
+     * The request as parsed, to build the decline from
+     */
+    public IsoMessage getRequest() {
+        return request;
+    }
+}
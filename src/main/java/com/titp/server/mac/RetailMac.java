@@ -0,0 +1,47 @@
+package com.titp.server.mac;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * ISO 9797-1 MAC algorithm 3 with padding method 1. The CBC chaining is done here over single-block ECB
+ * operations, so the final block can be processed under the other key half without a second pass.
+ */
+final class RetailMac extends MacEngine {
+    private static final int BLOCK = 8;
+
+    private final Cipher left = Cipher.getInstance("DES/ECB/NoPadding");
+    private final Cipher rightDecrypt = Cipher.getInstance("DES/ECB/NoPadding");
+    // The cipher copies its input when it overlaps its output, so blocks go back and forth between two buffers
+    private final byte[] chain = new byte[BLOCK];
+    private final byte[] block = new byte[BLOCK];
+
+    RetailMac() throws GeneralSecurityException {
+    }
+
+    @Override
+    void initKey(byte[] key) throws GeneralSecurityException {
+        left.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, BLOCK, "DES"));
+        rightDecrypt.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, BLOCK, BLOCK, "DES"));
+    }
+
+    @Override
+    void compute(byte[] data, int offset, int length, byte[] mac) throws GeneralSecurityException {
+        Arrays.fill(chain, (byte) 0);
+        int end = offset + length;
+        int position = offset;
+        // Padding method 1: zeros up to the block boundary, and one zero block for empty data
+        do {
+            int blockLength = Math.min(BLOCK, end - position);
+            for (int i = 0; i < BLOCK; i++) {
+                block[i] = i < blockLength ? (byte) (chain[i] ^ data[position + i]) : chain[i];
+            }
+            left.update(block, 0, BLOCK, chain, 0);
+            position += blockLength;
+        } while (position < end);
+        rightDecrypt.doFinal(chain, 0, BLOCK, block, 0);
+        left.doFinal(block, 0, BLOCK, mac, 0);
+    }
+}
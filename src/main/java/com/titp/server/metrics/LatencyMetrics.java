@@ -0,0 +1,250 @@
+package com.titp.server.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms per stage and MTI, plus end to end latency per MTI and response code.
+ * <p>
+ * Series are created the first time an MTI or response code is seen and looked up by array index
+ * afterwards, so recording a message takes no locks and allocates nothing. A background task closes
+ * an interval every few seconds; percentiles are reported for the last interval and since start.
+ */
+public class LatencyMetrics implements LatencyMetricsMXBean, PrometheusExporter {
+    private static final Logger logger = LoggerFactory.getLogger(LatencyMetrics.class);
+    private static final Stage[] STAGES = Stage.values();
+    private static final int MTI_SLOTS = 0x10000;
+    private static final int RESPONSE_CODE_SLOTS = 101; // "00".."99" plus one for anything else
+    private static final int OTHER_RESPONSE_CODE = 100;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999, 1.0};
+    private static final String STAGE_FAMILY = "titp_stage_latency";
+    private static final String REQUEST_FAMILY = "titp_request_latency";
+
+    private final int intervalSeconds;
+    private final AtomicReferenceArray<MtiSeries> byMti = new AtomicReferenceArray<>(MTI_SLOTS);
+    private final Map<String, LatencySeries> seriesByName = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService intervalRoller;
+
+    public LatencyMetrics(int intervalSeconds) {
+        this.intervalSeconds = Math.max(1, intervalSeconds);
+    }
+
+    /**
+     * Start closing intervals in the background
+     */
+    public void start() {
+        intervalRoller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "latency-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        intervalRoller.scheduleAtFixedRate(this::rollInterval, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Latency metrics started ({}s interval)", intervalSeconds);
+    }
+
+    public void stop() {
+        if (intervalRoller != null) {
+            intervalRoller.shutdownNow();
+        }
+    }
+
+    /**
+     * Record the stages timed for one message and its end to end latency up to now
+     * @param mti Request MTI, e.g. 0x200
+     * @param responseCode Field 39 of the response, or null when there is none
+     */
+    public void record(int mti, String responseCode, StageTimings timings) {
+        if (mti < 0 || mti >= MTI_SLOTS) {
+            return;
+        }
+        long total = System.nanoTime() - timings.getStartNanos();
+        MtiSeries series = seriesFor(mti);
+        for (Stage stage : STAGES) {
+            if (timings.isTimed(stage)) {
+                series.stages[stage.ordinal()].record(timings.getDuration(stage));
+            }
+        }
+        series.requestSeries(responseCodeIndex(responseCode)).record(total);
+    }
+
+    /**
+     * Close the current interval of every series
+     */
+    void rollInterval() {
+        for (LatencySeries series : seriesByName.values()) {
+            series.rollInterval();
+        }
+    }
+
+    private MtiSeries seriesFor(int mti) {
+        MtiSeries series = byMti.get(mti);
+        if (series == null) {
+            byMti.compareAndSet(mti, null, new MtiSeries(mti));
+            series = byMti.get(mti);
+            series.register();
+        }
+        return series;
+    }
+
+    private static int responseCodeIndex(String responseCode) {
+        if (responseCode == null || responseCode.length() != 2) {
+            return OTHER_RESPONSE_CODE;
+        }
+        int high = responseCode.charAt(0) - '0';
+        int low = responseCode.charAt(1) - '0';
+        if (high < 0 || high > 9 || low < 0 || low > 9) {
+            return OTHER_RESPONSE_CODE;
+        }
+        return high * 10 + low;
+    }
+
+    private static String formatMti(int mti) {
+        return String.format("%04X", mti);
+    }
+
+    @Override
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    @Override
+    public String[] getSeries() {
+        return seriesByName.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getCount(String series) {
+        LatencySeries latencySeries = seriesByName.get(series);
+        return latencySeries == null ? 0 : latencySeries.cumulativeCopy().getTotalCount();
+    }
+
+    @Override
+    public double getPercentileMicros(String series, double percentile) {
+        LatencySeries latencySeries = seriesByName.get(series);
+        return latencySeries == null ? 0 : latencySeries.cumulativeCopy().getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public double getIntervalPercentileMicros(String series, double percentile) {
+        LatencySeries latencySeries = seriesByName.get(series);
+        return latencySeries == null ? 0 : latencySeries.intervalCopy().getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("%-20s %10s %10s %10s %10s %10s %10s%n",
+                "series", "count", "p50(us)", "p99(us)", "p99.9(us)", "p99.99(us)", "max(us)"));
+        for (LatencySeries series : seriesByName.values()) {
+            Histogram histogram = series.cumulativeCopy();
+            summary.append(String.format(Locale.ROOT, "%-20s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    series.getName(),
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getValueAtPercentile(99.99) / 1000.0,
+                    histogram.getMaxValue() / 1000.0));
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencySeries series : seriesByName.values()) {
+            series.reset();
+        }
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        writeFamily(out, STAGE_FAMILY, "Latency of each message processing stage", false);
+        writeFamily(out, STAGE_FAMILY, "Latency of each message processing stage over the last interval", true);
+        writeFamily(out, REQUEST_FAMILY, "End to end request latency", false);
+        writeFamily(out, REQUEST_FAMILY, "End to end request latency over the last interval", true);
+    }
+
+    private void writeFamily(StringBuilder out, String family, String help, boolean interval) {
+        String metric = family + (interval ? "_interval_seconds" : "_seconds");
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(" summary\n");
+        for (LatencySeries series : seriesByName.values()) {
+            if (!series.getFamily().equals(family)) {
+                continue;
+            }
+            Histogram histogram = interval ? series.intervalCopy() : series.cumulativeCopy();
+            String labels = formatLabels(series);
+            for (double quantile : QUANTILES) {
+                out.append(metric).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            out.append(metric).append("_sum{").append(labels).append("} ")
+                    .append(histogram.getMean() * histogram.getTotalCount() / 1e9).append('\n');
+            out.append(metric).append("_count{").append(labels).append("} ")
+                    .append(histogram.getTotalCount()).append('\n');
+        }
+    }
+
+    private static String formatLabels(LatencySeries series) {
+        StringBuilder labels = new StringBuilder();
+        String[] names = series.getLabelNames();
+        String[] values = series.getLabelValues();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(names[i]).append("=\"").append(values[i]).append('"');
+        }
+        return labels.toString();
+    }
+
+    /**
+     * All series of one MTI
+     */
+    private final class MtiSeries {
+        private final String mti;
+        private final LatencySeries[] stages = new LatencySeries[STAGES.length];
+        private final AtomicReferenceArray<LatencySeries> byResponseCode = new AtomicReferenceArray<>(RESPONSE_CODE_SLOTS);
+
+        MtiSeries(int mti) {
+            this.mti = formatMti(mti);
+            for (Stage stage : STAGES) {
+                stages[stage.ordinal()] = new LatencySeries(STAGE_FAMILY, stage.getLabel() + "/" + this.mti,
+                        new String[]{"stage", "mti"}, new String[]{stage.getLabel(), this.mti});
+            }
+        }
+
+        /**
+         * Make the stage series visible to readers; only called by the thread that installed this instance
+         */
+        void register() {
+            for (LatencySeries series : stages) {
+                seriesByName.putIfAbsent(series.getName(), series);
+            }
+        }
+
+        LatencySeries requestSeries(int responseCodeIndex) {
+            LatencySeries series = byResponseCode.get(responseCodeIndex);
+            if (series == null) {
+                String code = responseCodeIndex == OTHER_RESPONSE_CODE
+                        ? "other" : String.format("%02d", responseCodeIndex);
+                LatencySeries created = new LatencySeries(REQUEST_FAMILY, "request/" + mti + "/" + code,
+                        new String[]{"mti", "response_code"}, new String[]{mti, code});
+                if (byResponseCode.compareAndSet(responseCodeIndex, null, created)) {
+                    seriesByName.put(created.getName(), created);
+                }
+                series = byResponseCode.get(responseCodeIndex);
+            }
+            return series;
+        }
+    }
+}
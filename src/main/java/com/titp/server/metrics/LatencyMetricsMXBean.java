@@ -0,0 +1,33 @@
+package com.titp.server.metrics;
+
+/**
+ * Latency percentiles per stage and MTI, and end to end per MTI and response code.
+ * Series are named "stage/MTI" (e.g. "parse/0200") and "request/MTI/response code" (e.g. "request/0200/00").
+ */
+public interface LatencyMetricsMXBean {
+    int getIntervalSeconds();
+
+    String[] getSeries();
+
+    /**
+     * Messages recorded in a series since start
+     */
+    long getCount(String series);
+
+    /**
+     * Percentile (e.g. 99.99) in microseconds over everything recorded since start
+     */
+    double getPercentileMicros(String series, double percentile);
+
+    /**
+     * Percentile (e.g. 99.99) in microseconds over the last completed interval
+     */
+    double getIntervalPercentileMicros(String series, double percentile);
+
+    /**
+     * One line per series with count and p50/p99/p99.9/p99.99/max since start
+     */
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,84 @@
+package com.titp.server.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * One latency distribution, e.g. parse time of 0200 messages.
+ * <p>
+ * Handler threads record into a {@link Recorder}, which is wait-free and allocation-free. The interval
+ * roll-over swaps the recorder's active histogram out, keeps it as the last interval and adds it to
+ * the cumulative histogram. Readers see the last completed interval and everything since start.
+ */
+class LatencySeries {
+    static final long LOWEST_NANOS = 1;
+    static final long HIGHEST_NANOS = 60_000_000_000L;
+    static final int SIGNIFICANT_DIGITS = 2;
+
+    private final String family;
+    private final String name;
+    private final String[] labelNames;
+    private final String[] labelValues;
+    private final Recorder recorder = new Recorder(LOWEST_NANOS, HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    private final Histogram cumulative = new Histogram(LOWEST_NANOS, HIGHEST_NANOS, SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    LatencySeries(String family, String name, String[] labelNames, String[] labelValues) {
+        this.family = family;
+        this.name = name;
+        this.labelNames = labelNames;
+        this.labelValues = labelValues;
+        this.interval = recorder.getIntervalHistogram();
+    }
+
+    void record(long nanos) {
+        recorder.recordValue(Math.max(LOWEST_NANOS, Math.min(nanos, HIGHEST_NANOS)));
+    }
+
+    /**
+     * Close the current interval; the histogram of the previous interval is recycled
+     */
+    synchronized void rollInterval() {
+        interval = recorder.getIntervalHistogram(interval);
+        cumulative.add(interval);
+    }
+
+    synchronized void reset() {
+        recorder.reset();
+        interval.reset();
+        cumulative.reset();
+    }
+
+    /**
+     * Copy of the last completed interval
+     */
+    synchronized Histogram intervalCopy() {
+        return interval.copy();
+    }
+
+    /**
+     * Copy of everything recorded up to the last completed interval
+     */
+    synchronized Histogram cumulativeCopy() {
+        return cumulative.copy();
+    }
+
+    /**
+     * Prometheus metric family, e.g. titp_stage_latency
+     */
+    String getFamily() {
+        return family;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String[] getLabelNames() {
+        return labelNames;
+    }
+
+    String[] getLabelValues() {
+        return labelValues;
+    }
+}
@@ -0,0 +1,15 @@
+package com.titp.server.metrics;
+
+/**
+ * Source of metrics for the /metrics endpoint, written in the Prometheus text exposition format
+ */
+public interface PrometheusExporter {
+    void writePrometheus(StringBuilder out);
+
+    /**
+     * Escape a label value: backslash, double quote and line feed must not appear unescaped
+     */
+    static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,31 @@
+package com.titp.server.metrics;
+
+/**
+ * Stages of the message path that are timed individually
+ */
+public enum Stage {
+    /** Reading the frame body after its length prefix arrived */
+    READ("read"),
+    /** Waiting in a priority lane or behind the terminal's earlier requests for a processing worker */
+    QUEUE("queue"),
+    /** HeaderStripper removing the ASCII header */
+    STRIP("strip"),
+    /** MessageFactory parsing the ISO fields */
+    PARSE("parse"),
+    /** MTIProcessor.process, including upstream round trips in proxy mode */
+    PROCESS("process"),
+    /** Building the response message */
+    BUILD("build"),
+    /** MessageSender encoding and writing the response */
+    WRITE("write");
+
+    private final String label;
+
+    Stage(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
@@ -0,0 +1,65 @@
+package com.titp.server.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Stage durations of the message currently on a connection.
+ * <p>
+ * One instance per connection, reused for every message, so timing a message allocates nothing.
+ */
+public class StageTimings {
+    private static final long NOT_TIMED = -1;
+
+    private final long[] durations = new long[Stage.values().length];
+    private long startNanos;
+
+    public StageTimings() {
+        reset(System.nanoTime());
+    }
+
+    /**
+     * Start timing a new message
+     * @param startNanos System.nanoTime() at which the message started arriving
+     */
+    public void reset(long startNanos) {
+        this.startNanos = startNanos;
+        Arrays.fill(durations, NOT_TIMED);
+    }
+
+    /**
+     * Take over another instance's start and stage durations, e.g. when a message is handed to another thread
+     */
+    public void copyFrom(StageTimings other) {
+        this.startNanos = other.startNanos;
+        System.arraycopy(other.durations, 0, durations, 0, durations.length);
+    }
+
+    /**
+     * Record a stage that started at the given System.nanoTime() and ended now
+     * @return The current System.nanoTime(), usable as the start of the next stage
+     */
+    public long stop(Stage stage, long stageStartNanos) {
+        long now = System.nanoTime();
+        durations[stage.ordinal()] = now - stageStartNanos;
+        return now;
+    }
+
+    /**
+     * Record a stage whose duration was measured elsewhere, e.g. for a request processed as part of a batch
+     */
+    public void record(Stage stage, long durationNanos) {
+        durations[stage.ordinal()] = durationNanos;
+    }
+
+    public boolean isTimed(Stage stage) {
+        return durations[stage.ordinal()] != NOT_TIMED;
+    }
+
+    public long getDuration(Stage stage) {
+        return durations[stage.ordinal()];
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+}
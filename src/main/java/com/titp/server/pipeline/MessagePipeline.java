@@ -0,0 +1,365 @@
+package com.titp.server.pipeline;
+
+import com.titp.server.MessageProcessor;
+import com.titp.server.metrics.StageTimings;
+import com.titp.server.processor.ProcessorSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Staged processing for one shard: connection threads only read frames and publish them into a ring of
+ * preallocated slots, and dedicated threads parse, process, and encode and queue the responses in turn.
+ * <p>
+ * Every stage has a fixed number of workers, each publishing the last sequence it finished in its own padded
+ * counter. That counter has exactly one writer, so each hand-off between stages is a single-producer release
+ * store and a slot never changes hands through a lock or a queue node. Entry into the ring is the only point
+ * with several producers, the connection threads, which claim sequences with one atomic increment. A full
+ * ring makes the connection thread wait, which stops it reading and so pushes back on the terminal.
+ * <p>
+ * Parsing has no ordering constraint: worker {@code k} of {@code n} parse workers handles the sequences
+ * {@code s} with {@code s % n == k}. Processing and writing are partitioned by connection instead, one
+ * partition per process worker: a connection's messages are processed in order by its partition's process
+ * worker and written in order by the write worker owning that partition, which keeps each connection's
+ * responses in request order. The write stage follows each partition separately, so a message held up in
+ * processing, such as one waiting on the upstream, only holds up the connections of its partition until the
+ * ring has gone round once.
+ */
+public class MessagePipeline implements MessagePipelineMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(MessagePipeline.class);
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    private final int mask;
+    private final PipelineSlot[] slots;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new Sequence(-1);
+    private final LongAdder ringFullWaits = new LongAdder();
+    private final WaitStrategy waitStrategy;
+    private final StageWorkers parse;
+    private final StageWorkers process;
+    private final StageWorkers write;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param name Prefix of the stage thread names
+     * @param ringSize Slots in the ring, a power of two
+     */
+    public MessagePipeline(String name, int ringSize, int parseWorkers, int processWorkers, int writeWorkers,
+                           WaitStrategy waitStrategy) {
+        if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Pipeline ring size must be a power of two: " + ringSize);
+        }
+        this.name = name;
+        this.mask = ringSize - 1;
+        this.slots = new PipelineSlot[ringSize];
+        this.published = new AtomicLongArray(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            slots[i] = new PipelineSlot();
+            published.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+        if (processWorkers >= 1 && writeWorkers > processWorkers) {
+            logger.warn("Pipeline {} has {} write workers for {} connection partitions; using {}",
+                    name, writeWorkers, processWorkers, processWorkers);
+            writeWorkers = processWorkers;
+        }
+        this.parse = new StageWorkers("parse", parseWorkers, 0, null, MessagePipeline::parse);
+        this.process = new StageWorkers("process", processWorkers, processWorkers, parse, MessagePipeline::process);
+        this.write = new StageWorkers("write", writeWorkers, processWorkers, process, MessagePipeline::write);
+    }
+
+    /**
+     * Start the stage threads
+     */
+    public void start() {
+        for (StageWorkers stage : new StageWorkers[]{parse, process, write}) {
+            for (int k = 0; k < stage.sequences.length; k++) {
+                Runnable worker = stage.partitions == 0 ? new Worker(stage, k) : new PartitionWorker(stage, k);
+                Thread thread = new Thread(worker, name + "-" + stage.name + "-" + (k + 1));
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        logger.info("Pipeline {} started: ring of {} slots, {} parse, {} process and {} write workers, {} wait",
+                name, slots.length, parse.sequences.length, process.sequences.length, write.sequences.length,
+                waitStrategy);
+    }
+
+    /**
+     * Hand a frame read by a connection thread to the stages; waits while the ring is full
+     * @param readTimings The connection's timings with the read stage recorded; copied into the slot
+     */
+    public void publish(PipelineConnection connection, byte[] frame, long messageId, boolean traced,
+                        ProcessorSet processors, StageTimings readTimings) {
+        long sequence = claimed.incrementAndGet();
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint >= 0 && !isReleased(wrapPoint)) {
+            ringFullWaits.increment();
+            int idleCount = 0;
+            while (!isReleased(wrapPoint)) {
+                if (!running) {
+                    throw new IllegalStateException("Pipeline " + name + " stopped");
+                }
+                idleCount = waitStrategy.idle(idleCount);
+            }
+        }
+        int index = (int) sequence & mask;
+        int partition = (int) Math.floorMod(connection.getConnectionId(), (long) process.partitions);
+        slots[index].set(connection, partition, frame, messageId, traced, processors, readTimings);
+        published.set(index, sequence);
+    }
+
+    /**
+     * Stop the stage threads once every published message has been written
+     */
+    public void stop() {
+        running = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+        try {
+            for (Thread thread : threads) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                thread.join(Math.max(1, remaining));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Pipeline {} stopped after {} messages", name, getPublished());
+    }
+
+    private static void parse(PipelineSlot slot) {
+        try {
+            slot.request = slot.connection.getMessageProcessor()
+                    .parse(slot.processors, slot.frame, slot.messageId, slot.timings);
+        } catch (Exception e) {
+            slot.error = e;
+        }
+    }
+
+    private static void process(PipelineSlot slot) {
+        MessageProcessor processor = slot.connection.getMessageProcessor();
+        slot.result = slot.error == null
+                ? processor.process(slot.processors, slot.request, slot.messageId, slot.timings)
+                : processor.failed(slot.processors, slot.messageId, slot.error);
+    }
+
+    private static void write(PipelineSlot slot) {
+        try {
+            slot.connection.completeStaged(slot);
+        } finally {
+            slot.clear();
+        }
+    }
+
+    /**
+     * Whether the sequence has entered the ring
+     */
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == sequence;
+    }
+
+    /**
+     * Whether every worker of every stage is past the sequence, so that its slot can be reused; workers of
+     * the partitioned stages look at every slot, if only to skip it
+     */
+    private boolean isReleased(long sequence) {
+        return write.hasPassed(sequence) && process.hasPassed(sequence) && parse.hasPassed(sequence);
+    }
+
+    @Override
+    public int getRingSize() { return slots.length; }
+
+    @Override
+    public int getParseWorkers() { return parse.sequences.length; }
+
+    @Override
+    public int getProcessWorkers() { return process.sequences.length; }
+
+    @Override
+    public int getWriteWorkers() { return write.sequences.length; }
+
+    @Override
+    public String getWaitStrategy() { return waitStrategy.name(); }
+
+    @Override
+    public long getPublished() { return claimed.get() + 1; }
+
+    @Override
+    public long getBacklog() {
+        long oldest = Long.MAX_VALUE;
+        for (Sequence sequence : write.sequences) {
+            oldest = Math.min(oldest, sequence.get());
+        }
+        return Math.max(0, claimed.get() - oldest);
+    }
+
+    @Override
+    public long getRingFullWaits() { return ringFullWaits.sum(); }
+
+    private interface SlotHandler {
+        void handle(PipelineSlot slot);
+    }
+
+    /**
+     * The workers of one stage and the last sequence each has finished
+     */
+    private static final class StageWorkers {
+        final String name;
+        final Sequence[] sequences;
+        // Connection partitions shared out between the workers, or 0 when they share out the sequences
+        final int partitions;
+        final StageWorkers upstream;
+        final SlotHandler handler;
+
+        StageWorkers(String name, int workers, int partitions, StageWorkers upstream, SlotHandler handler) {
+            if (workers < 1) {
+                throw new IllegalArgumentException("Pipeline " + name + " stage needs at least one worker");
+            }
+            this.name = name;
+            this.sequences = new Sequence[workers];
+            for (int k = 0; k < workers; k++) {
+                // Worker k's first sequence is k when striding, so "finished" starts one lap of the workers
+                // before it; a partition worker starts at 0
+                sequences[k] = new Sequence(partitions == 0 ? k - workers : -1);
+            }
+            this.partitions = partitions;
+            this.upstream = upstream;
+            this.handler = handler;
+        }
+
+        /**
+         * Whether the stage is done with a message; the slot tells the partition of a partitioned stage
+         */
+        boolean hasCompleted(long sequence, PipelineSlot slot) {
+            int worker = partitions == 0 ? (int) (sequence % sequences.length) : slot.partition % sequences.length;
+            return sequences[worker].get() >= sequence;
+        }
+
+        /**
+         * Whether no worker of the stage will look at the sequence's slot again
+         */
+        boolean hasPassed(long sequence) {
+            int stride = partitions == 0 ? sequences.length : 1;
+            for (Sequence finished : sequences) {
+                if (finished.get() + stride <= sequence) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final StageWorkers stage;
+        private final int index;
+
+        Worker(StageWorkers stage, int index) {
+            this.stage = stage;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            Sequence finished = stage.sequences[index];
+            int stride = stage.sequences.length;
+            long next = index;
+            int idleCount = 0;
+            while (true) {
+                boolean ready = isPublished(next)
+                        && (stage.upstream == null || stage.upstream.hasCompleted(next, slots[(int) next & mask]));
+                if (ready) {
+                    PipelineSlot slot = slots[(int) next & mask];
+                    try {
+                        stage.handler.handle(slot);
+                    } catch (RuntimeException e) {
+                        logger.error("Pipeline {} {} stage failed on message #{}", name, stage.name,
+                                slot.messageId, e);
+                    }
+                    finished.lazySet(next);
+                    next += stride;
+                    idleCount = 0;
+                } else if (!running && next > claimed.get()) {
+                    // Stopped, and nothing is left for this worker
+                    return;
+                } else {
+                    idleCount = waitStrategy.idle(idleCount);
+                }
+            }
+        }
+    }
+
+    /**
+     * A worker of a partitioned stage. It follows each of its partitions with a cursor of its own and handles
+     * the partition's messages in order, skipping the slots of other partitions, so a message its upstream
+     * has not finished only stops the cursor of its own partition. The worker's counter is the last sequence
+     * all its cursors are past.
+     */
+    private final class PartitionWorker implements Runnable {
+        private final StageWorkers stage;
+        private final int index;
+
+        PartitionWorker(StageWorkers stage, int index) {
+            this.stage = stage;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            Sequence finished = stage.sequences[index];
+            int workers = stage.sequences.length;
+            int[] partitions = new int[(stage.partitions - index + workers - 1) / workers];
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i] = index + i * workers;
+            }
+            long[] cursors = new long[partitions.length];
+            int idleCount = 0;
+            while (true) {
+                boolean progressed = false;
+                long passed = Long.MAX_VALUE;
+                for (int i = 0; i < partitions.length; i++) {
+                    long next = cursors[i];
+                    while (isPublished(next)) {
+                        PipelineSlot slot = slots[(int) next & mask];
+                        if (slot.partition == partitions[i]) {
+                            if (!stage.upstream.hasCompleted(next, slot)) {
+                                break;
+                            }
+                            handle(slot);
+                        }
+                        next++;
+                        progressed = true;
+                    }
+                    cursors[i] = next;
+                    passed = Math.min(passed, next - 1);
+                }
+                if (passed != finished.get()) {
+                    finished.lazySet(passed);
+                }
+                if (progressed) {
+                    idleCount = 0;
+                } else if (!running && passed >= claimed.get()) {
+                    // Stopped, and nothing is left for this worker
+                    return;
+                } else {
+                    idleCount = waitStrategy.idle(idleCount);
+                }
+            }
+        }
+
+        private void handle(PipelineSlot slot) {
+            try {
+                stage.handler.handle(slot);
+            } catch (RuntimeException e) {
+                logger.error("Pipeline {} {} stage failed on message #{}", name, stage.name, slot.messageId, e);
+            }
+        }
+    }
+}
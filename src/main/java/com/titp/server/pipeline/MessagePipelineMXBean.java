@@ -0,0 +1,31 @@
+package com.titp.server.pipeline;
+
+/**
+ * Shape and occupancy of one shard's message pipeline
+ */
+public interface MessagePipelineMXBean {
+    int getRingSize();
+
+    int getParseWorkers();
+
+    int getProcessWorkers();
+
+    int getWriteWorkers();
+
+    String getWaitStrategy();
+
+    /**
+     * Messages published into the ring since start
+     */
+    long getPublished();
+
+    /**
+     * Messages published but not yet written
+     */
+    long getBacklog();
+
+    /**
+     * Times a connection thread found the ring full and had to wait for the write stage
+     */
+    long getRingFullWaits();
+}
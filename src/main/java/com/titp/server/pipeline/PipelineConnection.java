@@ -0,0 +1,23 @@
+package com.titp.server.pipeline;
+
+import com.titp.server.MessageProcessor;
+
+/**
+ * The connection a pipelined message came from, called back by the stage threads
+ */
+public interface PipelineConnection {
+    /**
+     * The connection's processor, used by the parse and process stages with the slot's own timings
+     */
+    MessageProcessor getMessageProcessor();
+
+    /**
+     * The connection's id, which picks the partition processing and writing its messages in order
+     */
+    long getConnectionId();
+
+    /**
+     * Write stage: send the slot's response and finish the request; must not throw
+     */
+    void completeStaged(PipelineSlot slot);
+}
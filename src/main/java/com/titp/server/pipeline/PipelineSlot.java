@@ -0,0 +1,76 @@
+package com.titp.server.pipeline;
+
+import com.solab.iso8583.IsoMessage;
+import com.titp.server.MessageProcessor;
+import com.titp.server.metrics.StageTimings;
+import com.titp.server.processor.ProcessorSet;
+
+/**
+ * One preallocated entry of a pipeline's ring. A message travels through the stages in the same slot; each
+ * stage fills in its output and the write stage clears the slot for reuse, so a hand-off allocates nothing.
+ * <p>
+ * Fields are plain: each stage writes them before publishing its sequence and the next stage reads them
+ * after seeing it, which orders the accesses.
+ */
+public final class PipelineSlot {
+    PipelineConnection connection;
+    // Connection partition of the process and write stages; kept when cleared, as other workers skip by it
+    int partition;
+    byte[] frame;
+    long messageId;
+    boolean traced;
+    ProcessorSet processors;
+    IsoMessage request;
+    Exception error;
+    MessageProcessor.MessageResult result;
+    final StageTimings timings = new StageTimings();
+
+    void set(PipelineConnection connection, int partition, byte[] frame, long messageId, boolean traced,
+             ProcessorSet processors, StageTimings readTimings) {
+        this.connection = connection;
+        this.partition = partition;
+        this.frame = frame;
+        this.messageId = messageId;
+        this.traced = traced;
+        this.processors = processors;
+        this.timings.copyFrom(readTimings);
+    }
+
+    /**
+     * Drop the references to the message, so a finished request is not kept alive by the ring
+     */
+    void clear() {
+        connection = null;
+        frame = null;
+        processors = null;
+        request = null;
+        error = null;
+        result = null;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public boolean isTraced() {
+        return traced;
+    }
+
+    /**
+     * Size of the request frame without its length prefix
+     */
+    public int getFrameLength() {
+        return frame != null ? frame.length : 0;
+    }
+
+    public MessageProcessor.MessageResult getResult() {
+        return result;
+    }
+
+    /**
+     * The message's stage durations, from the read on the connection thread to the write on the write stage
+     */
+    public StageTimings getTimings() {
+        return timings;
+    }
+}
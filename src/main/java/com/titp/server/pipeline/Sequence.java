@@ -0,0 +1,19 @@
+package com.titp.server.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sequence counter padded to its own cache line, so threads advancing neighbouring counters do not slow
+ * each other down through false sharing
+ */
+class Sequence extends AtomicLong {
+    private static final long serialVersionUID = 1L;
+
+    // Padding after the value, so the next object on the heap starts on another cache line
+    @SuppressWarnings("unused")
+    private long p1, p2, p3, p4, p5, p6, p7;
+
+    Sequence(long initialValue) {
+        super(initialValue);
+    }
+}
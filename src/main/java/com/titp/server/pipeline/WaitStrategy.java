@@ -0,0 +1,82 @@
+package com.titp.server.pipeline;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a pipeline thread waits for the next slot: the trade between hand-off latency and CPU burnt while idle
+ */
+public enum WaitStrategy {
+    /**
+     * Spin on the CPU; lowest latency, but every worker thread keeps a core busy at all times
+     */
+    BUSY_SPIN {
+        @Override
+        int idle(int idleCount) {
+            Thread.onSpinWait();
+            return idleCount + 1;
+        }
+    },
+    /**
+     * Spin briefly, then yield the core to other runnable threads between checks
+     */
+    YIELD {
+        @Override
+        int idle(int idleCount) {
+            if (idleCount < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            return idleCount + 1;
+        }
+    },
+    /**
+     * Spin, then yield, then park for short intervals; close to no CPU when idle, at the cost of the park
+     * granularity on the first message after a quiet period
+     */
+    PARK {
+        @Override
+        int idle(int idleCount) {
+            if (idleCount < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (idleCount < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            return idleCount + 1;
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Wait once; call again, with the returned count, for as long as nothing is ready
+     * @param idleCount Checks without progress so far, 0 after the last slot was handled
+     * @return The count for the next call
+     */
+    abstract int idle(int idleCount);
+
+    /**
+     * @param name busySpin, yield or park, in any case, with or without separators
+     */
+    public static WaitStrategy parse(String name) {
+        String normalized = name.trim().replace("-", "").replace("_", "").toLowerCase(Locale.ROOT);
+        switch (normalized) {
+            case "busyspin":
+            case "spin":
+                return BUSY_SPIN;
+            case "yield":
+                return YIELD;
+            case "park":
+                return PARK;
+            default:
+                throw new IllegalArgumentException("Unknown wait strategy: " + name
+                        + " (expected busySpin, yield or park)");
+        }
+    }
+}
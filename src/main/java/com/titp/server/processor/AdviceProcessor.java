@@ -0,0 +1,54 @@
+package com.titp.server.processor;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.advice.AdviceQueue;
+import com.titp.server.utils.ISOResponseCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Processor for advice messages (MTI 0220 and 0420).
+ * Advices are stored in the {@link AdviceQueue} and acknowledged immediately;
+ * their business effect is applied later by the queue's background drainer.
+ */
+public class AdviceProcessor extends MTIProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(AdviceProcessor.class);
+    private final AdviceQueue adviceQueue;
+    private final int mti;
+
+    public AdviceProcessor(MessageFactory<?> messageFactory, AdviceQueue adviceQueue, int mti) {
+        super(messageFactory);
+        this.adviceQueue = adviceQueue;
+        this.mti = mti;
+    }
+
+    @Override
+    protected ProcessingResult processBusinessLogic(IsoMessage request) {
+        try {
+            adviceQueue.append(request);
+            logger.debug("Advice MTI {} stored, {} pending", Integer.toString(mti, 16), adviceQueue.getPendingCount());
+            return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Advice stored", createAcknowledgement(request));
+        } catch (IOException e) {
+            // Not acknowledged, so the terminal keeps the advice and sends it again
+            logger.error("Failed to store advice MTI {}", Integer.toString(mti, 16), e);
+            return new ProcessingResult(false, ISOResponseCode.ERROR, "Advice storage failed");
+        }
+    }
+
+    @Override
+    public int getMTI() {
+        return mti;
+    }
+
+    @SuppressWarnings("unchecked")
+    private IsoMessage createAcknowledgement(IsoMessage request) {
+        IsoMessage response = ((MessageFactory<IsoMessage>) messageFactory).createResponse(request);
+        response.setField(39, new IsoValue<>(IsoType.ALPHA, ISOResponseCode.SUCCESS.getCode(), 2));
+        return response;
+    }
+}
@@ -5,6 +5,7 @@ import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.registry.TerminalRegistry;
 import com.titp.server.utils.ISOResponseCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,9 +15,18 @@ import org.slf4j.LoggerFactory;
  */
 public class AuthorizationProcessor extends MTIProcessor {
     private static final Logger logger = LoggerFactory.getLogger(AuthorizationProcessor.class);
+    private final TerminalRegistry registry;
 
     public AuthorizationProcessor(MessageFactory<?> messageFactory) {
+        this(messageFactory, null);
+    }
+
+    /**
+     * @param registry Terminals and merchants accepted, or null to accept all
+     */
+    public AuthorizationProcessor(MessageFactory<?> messageFactory, TerminalRegistry registry) {
         super(messageFactory);
+        this.registry = registry;
     }
 
     @Override
@@ -46,30 +56,33 @@ public class AuthorizationProcessor extends MTIProcessor {
         return true;
     }
 
+    @Override
+    protected ProcessingResult screenRequest(IsoMessage request) {
+        return screenWithRegistry(registry, request);
+    }
+
     @Override
     protected ProcessingResult processBusinessLogic(IsoMessage request) {
         try {
-            logger.info("Processing authorization request");
-
             // Extract key fields
             String pan = ByteArrayUtil.toHexString((byte[]) request.getField(2).getValue());
             String processingCode = String.valueOf(request.getField(3).getValue());
             String amount = request.hasField(4) ? String.valueOf(request.getField(4).getValue()) : "0";
 
-            logger.info("Authorization - PAN: {}, Processing Code: {}, Amount: {}",
-                maskPAN(pan), processingCode, amount);
+            // The PAN is left to the message tracer, which masks it
+            logger.debug("Authorization - Processing Code: {}, Amount: {}", processingCode, amount);
 
             // Simulate authorization logic
             // In a real implementation, this would check with the card issuer
             boolean isAuthorized = simulateAuthorization(pan, processingCode, amount);
 
             if (isAuthorized) {
-                logger.info("Authorization approved");
+                logger.debug("Authorization approved");
                 // Create custom response with additional fields
                 IsoMessage customResponse = createCustomResponse(request, ISOResponseCode.SUCCESS);
                 return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Authorization approved", customResponse);
             } else {
-                logger.info("Authorization declined");
+                logger.debug("Authorization declined");
                 return new ProcessingResult(false, ISOResponseCode.ERROR, "Authorization declined");
             }
 
@@ -135,14 +148,4 @@ public class AuthorizationProcessor extends MTIProcessor {
 
         return response;
     }
-
-    /**
-     * Mask PAN for logging (show only first 6 and last 4 digits)
-     */
-    private String maskPAN(String pan) {
-        if (pan == null || pan.length() < 10) {
-            return "****";
-        }
-        return pan.substring(0, 6) + "****" + pan.substring(pan.length() - 4);
-    }
 }
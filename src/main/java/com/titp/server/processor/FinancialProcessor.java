@@ -5,19 +5,47 @@ import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.ledger.AccountLedger;
+import com.titp.server.ledger.Posting;
+import com.titp.server.registry.TerminalRegistry;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.settlement.TransactionClass;
 import com.titp.server.utils.ISOResponseCode;
 import com.titp.server.utils.RandomUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Processor for Financial Transaction messages (MTI 0200)
  */
 public class FinancialProcessor extends MTIProcessor {
     private static final Logger logger = LoggerFactory.getLogger(FinancialProcessor.class);
+    private final SettlementTotals settlementTotals;
+    private final RandomUtils random;
+    private final TerminalRegistry registry;
+    private final AccountLedger ledger;
+
+    /**
+     * @param random Source of retrieval reference numbers and authorization codes
+     */
+    public FinancialProcessor(MessageFactory<?> messageFactory, SettlementTotals settlementTotals, RandomUtils random) {
+        this(messageFactory, settlementTotals, random, null, null);
+    }
 
-    public FinancialProcessor(MessageFactory<?> messageFactory) {
+    /**
+     * @param registry Terminals and merchants accepted, or null to accept all
+     * @param ledger Account balances to debit and credit, or null to approve on the static limits alone
+     */
+    public FinancialProcessor(MessageFactory<?> messageFactory, SettlementTotals settlementTotals, RandomUtils random,
+                              TerminalRegistry registry, AccountLedger ledger) {
         super(messageFactory);
+        this.settlementTotals = settlementTotals;
+        this.random = random;
+        this.registry = registry;
+        this.ledger = ledger;
     }
 
     @Override
@@ -54,43 +82,140 @@ public class FinancialProcessor extends MTIProcessor {
         return true;
     }
 
+    @Override
+    protected ProcessingResult screenRequest(IsoMessage request) {
+        return screenWithRegistry(registry, request);
+    }
+
     @Override
     protected ProcessingResult processBusinessLogic(IsoMessage request) {
         try {
-            logger.info("Processing financial transaction");
-
-            // Extract key fields
-            String pan = ByteArrayUtil.toHexString((byte[]) request.getField(2).getValue());
-            int processingCode = Integer.parseInt(String.valueOf(request.getField(3).getValue()));
-            String amount = String.valueOf(request.getField(4).getValue());
-            String merchantId = request.hasField(42) ? String.valueOf(request.getField(42).getValue()) : "UNKNOWN";
-
-            logger.info("Financial Transaction - PAN: {}, Processing Code: {}, Amount: {}, Merchant: {}",
-                maskPAN(pan), processingCode, amount, merchantId);
-
-            // Simulate financial transaction processing
-            boolean isProcessed = simulateFinancialTransaction(pan, processingCode, amount, merchantId);
-
-            if (isProcessed) {
-                logger.info("Financial transaction processed successfully");
-                IsoMessage customResponse = createSuccessResponse(request);
-                return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Transaction approved", customResponse);
-            } else {
-                logger.info("Financial transaction failed");
-                return new ProcessingResult(false, ISOResponseCode.ERROR, "Transaction processing failed");
-            }
-
+            Transaction transaction = prepare(request);
+            Posting posting = transaction.approved ? postToLedger(request, transaction) : Posting.APPLIED;
+            return complete(request, transaction, posting);
         } catch (Exception e) {
             logger.error("Error processing financial transaction", e);
             return new ProcessingResult(false, ISOResponseCode.ERROR, "Financial transaction processing error");
         }
     }
 
+    /**
+     * Process a batch with one pass over the ledger: all the batch's debits and credits are posted together,
+     * each ledger stripe locked once for its share of them
+     */
+    @Override
+    protected List<ProcessingResult> processBusinessLogicBatch(List<IsoMessage> requests) {
+        if (ledger == null) {
+            return super.processBusinessLogicBatch(requests);
+        }
+        int size = requests.size();
+        Transaction[] transactions = new Transaction[size];
+        ProcessingResult[] results = new ProcessingResult[size];
+        // The postings, and the request each belongs to
+        IsoMessage[] postedRequests = new IsoMessage[size];
+        String[] rrns = new String[size];
+        long[] accounts = new long[size];
+        long[] amounts = new long[size];
+        int[] posted = new int[size];
+        int postings = 0;
+        for (int i = 0; i < size; i++) {
+            IsoMessage request = requests.get(i);
+            try {
+                transactions[i] = prepare(request);
+                if (transactions[i].approved && postsToLedger(transactions[i].processingCode)) {
+                    postedRequests[postings] = request;
+                    rrns[postings] = transactions[i].rrn;
+                    accounts[postings] = AccountLedger.accountOf(request.getField(2).getValue());
+                    amounts[postings] = ledgerAmount(transactions[i]);
+                    posted[postings++] = i;
+                }
+            } catch (Exception e) {
+                logger.error("Error processing financial transaction", e);
+                results[i] = new ProcessingResult(false, ISOResponseCode.ERROR, "Financial transaction processing error");
+            }
+        }
+
+        Posting[] outcomes = new Posting[size];
+        Arrays.fill(outcomes, Posting.APPLIED);
+        Posting[] batchOutcomes = ledger.postAll(Arrays.copyOf(postedRequests, postings),
+                Arrays.copyOf(rrns, postings), Arrays.copyOf(accounts, postings), Arrays.copyOf(amounts, postings));
+        for (int n = 0; n < postings; n++) {
+            outcomes[posted[n]] = batchOutcomes[n];
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            try {
+                results[i] = complete(requests.get(i), transactions[i], outcomes[i]);
+            } catch (Exception e) {
+                logger.error("Error processing financial transaction", e);
+                results[i] = new ProcessingResult(false, ISOResponseCode.ERROR, "Financial transaction processing error");
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Read a transaction's key fields and check it against the static limits
+     */
+    private Transaction prepare(IsoMessage request) {
+        // Extract key fields
+        String pan = ByteArrayUtil.toHexString((byte[]) request.getField(2).getValue());
+        int processingCode = Integer.parseInt(String.valueOf(request.getField(3).getValue()));
+        String amount = String.valueOf(request.getField(4).getValue());
+        String merchantId = merchantOf(request);
+
+        // The PAN is left to the message tracer, which masks it
+        logger.debug("Financial transaction - Processing Code: {}, Amount: {}, Merchant: {}",
+            processingCode, amount, merchantId);
+
+        // Simulate financial transaction processing
+        boolean isProcessed = simulateFinancialTransaction(pan, processingCode, amount, merchantId);
+        // Chosen before posting, as the ledger remembers the posting by it for reversals
+        String rrn = request.hasField(37) ? String.valueOf(request.getField(37).getValue()).trim()
+                : isProcessed ? random.getRandomString(12) : null;
+        return new Transaction(processingCode, amount, isProcessed, rrn);
+    }
+
+    /**
+     * Answer a transaction once its ledger posting, if any, is done
+     */
+    private ProcessingResult complete(IsoMessage request, Transaction transaction, Posting posting) {
+        if (posting != Posting.APPLIED) {
+            logger.debug("Financial transaction declined by the ledger: {}", posting);
+            return new ProcessingResult(false, posting.getResponseCode(), "Declined: " + posting);
+        }
+
+        if (transaction.approved) {
+            logger.debug("Financial transaction processed successfully");
+            recordSettlement(request, transaction.processingCode, transaction.amount);
+            IsoMessage customResponse = createSuccessResponse(request, transaction.rrn);
+            return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Transaction approved", customResponse);
+        } else {
+            logger.debug("Financial transaction failed");
+            return new ProcessingResult(false, ISOResponseCode.ERROR, "Transaction processing failed");
+        }
+    }
+
     @Override
     public int getMTI() {
         return 0x200; // 0200 in hex
     }
 
+    /**
+     * The merchant of field 42 or, without it, the merchant the registry has for the terminal
+     */
+    private String merchantOf(IsoMessage request) {
+        if (request.hasField(42)) {
+            return String.valueOf(request.getField(42).getValue());
+        }
+        String merchantId = registry != null && request.hasField(41)
+                ? registry.merchantOf(String.valueOf(request.getField(41).getValue())) : null;
+        return merchantId != null ? merchantId : "UNKNOWN";
+    }
+
     /**
      * Simulate financial transaction processing
      */
@@ -98,21 +223,21 @@ public class FinancialProcessor extends MTIProcessor {
         try {
             long amountValue = Long.parseLong(amount);
 
-            // Simulate different transaction types based on processing code
-            switch (processingCode) {
+            // Simulate different transaction types based on the transaction type digits of the processing code
+            switch (processingCode / 10000) {
                 case 0: // Purchase
-                    logger.info("Processing purchase transaction");
+                    logger.debug("Processing purchase transaction");
                     return amountValue <= 50000; // Limit purchase to 50000
 
                 case 20: // Refund
-                    logger.info("Processing refund transaction");
+                    logger.debug("Processing refund transaction");
                     return amountValue <= 10000; // Limit refund to 10000
 
                 case 31: // Cash withdrawal
-                    logger.info("Processing cash withdrawal");
+                    logger.debug("Processing cash withdrawal");
                     return amountValue <= 20000; // Limit withdrawal to 20000
                 case 10: //reversal
-                    logger.info("Processing reversal");
+                    logger.debug("Processing reversal");
                     return true;
                 default:
                     logger.warn("Unknown transaction type: {}", processingCode);
@@ -125,29 +250,81 @@ public class FinancialProcessor extends MTIProcessor {
         }
     }
 
+    /**
+     * Debit the card's account for a purchase or cash withdrawal and credit it for a refund, remembering the
+     * posting for its reversal; other transaction types leave the ledger alone
+     */
+    private Posting postToLedger(IsoMessage request, Transaction transaction) {
+        if (ledger == null || !postsToLedger(transaction.processingCode)) {
+            return Posting.APPLIED;
+        }
+        return ledger.post(request, transaction.rrn, AccountLedger.accountOf(request.getField(2).getValue()),
+                ledgerAmount(transaction));
+    }
+
+    /**
+     * Whether a transaction type debits or credits the card's account
+     */
+    private static boolean postsToLedger(int processingCode) {
+        switch (processingCode / 10000) {
+            case 0:
+            case 31:
+            case 20:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The amount a transaction posts, in the sign convention of {@link AccountLedger#postAll}: a debit as is,
+     * a credit negated
+     */
+    private static long ledgerAmount(Transaction transaction) {
+        long amount = Long.parseLong(transaction.amount);
+        return transaction.processingCode / 10000 == 20 ? -amount : amount;
+    }
+
+    /**
+     * Add the approved transaction to the running settlement totals
+     */
+    private void recordSettlement(IsoMessage request, int processingCode, String amount) {
+        String terminalId = request.hasField(41) ? String.valueOf(request.getField(41).getValue()) : null;
+        settlementTotals.record(TransactionClass.fromProcessingCode(processingCode), terminalId, Long.parseLong(amount));
+    }
+
     @SuppressWarnings("unchecked")
-    private IsoMessage createSuccessResponse(IsoMessage request) {
+    private IsoMessage createSuccessResponse(IsoMessage request, String rrn) {
         IsoMessage response = ((MessageFactory<IsoMessage>) messageFactory).createResponse(request);
 
         // Set response code
         response.setField(39, new IsoValue<>(IsoType.ALPHA, ISOResponseCode.SUCCESS.getCode(), 2));
 
-        // Add retrieval reference number (Field 37)
-        response.setField(37, new IsoValue<>(IsoType.ALPHA, RandomUtils.getRandomString(12), 12));
+        // Add retrieval reference number (Field 37) unless the acquirer already assigned one
+        if (!request.hasField(37)) {
+            response.setField(37, new IsoValue<>(IsoType.ALPHA, rrn, 12));
+        }
 
         // Add authorization ID (Field 38)
-        response.setField(38, new IsoValue<>(IsoType.ALPHA, RandomUtils.getRandomString(6), 6));
+        response.setField(38, new IsoValue<>(IsoType.ALPHA, random.getRandomString(6), 6));
 
         return response;
     }
 
     /**
-     * Mask PAN for logging (show only first 6 and last 4 digits)
+     * A transaction's fields as read, whether it is within the static limits, and the RRN it is answered with
      */
-    private String maskPAN(String pan) {
-        if (pan == null || pan.length() < 10) {
-            return "****";
+    private static final class Transaction {
+        final int processingCode;
+        final String amount;
+        final boolean approved;
+        final String rrn;
+
+        Transaction(int processingCode, String amount, boolean approved, String rrn) {
+            this.processingCode = processingCode;
+            this.amount = amount;
+            this.approved = approved;
+            this.rrn = rrn;
         }
-        return pan.substring(0, 6) + "****" + pan.substring(pan.length() - 4);
     }
 }
@@ -4,10 +4,17 @@ import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.jfr.MtiProcessEvent;
+import com.titp.server.registry.TerminalRegistry;
+import com.titp.server.registry.Verdict;
 import com.titp.server.utils.ISOResponseCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Abstract base class for MTI processors using the Template Pattern.
  * Defines the processing flow for all ISO 8583 message types.
@@ -25,6 +32,25 @@ public abstract class MTIProcessor {
      * This method cannot be overridden by subclasses.
      */
     public final ProcessingResult process(IsoMessage request) {
+        MtiProcessEvent event = new MtiProcessEvent();
+        event.begin();
+        ProcessingResult result = validateAndProcess(request);
+        commit(event, request, result, 1);
+        return result;
+    }
+
+    private void commit(MtiProcessEvent event, IsoMessage request, ProcessingResult result, int batchSize) {
+        if (event.shouldCommit()) {
+            event.processor = getClass().getSimpleName();
+            event.setRequest(request);
+            event.responseCode = result.getResponseCode().getCode();
+            event.success = result.isSuccess();
+            event.batchSize = batchSize;
+            event.commit();
+        }
+    }
+
+    private ProcessingResult validateAndProcess(IsoMessage request) {
         try {
             logger.debug("Processing MTI: {}", Integer.toString(request.getType(), 16));
 
@@ -34,10 +60,17 @@ public abstract class MTIProcessor {
                 return new ProcessingResult(false, ISOResponseCode.ERROR, "Request validation failed");
             }
 
-            // Step 2: Process the business logic
+            // Step 2: Decline unknown or blocked terminals and merchants before any business logic
+            ProcessingResult declined = screenRequest(request);
+            if (declined != null) {
+                logProcessingResult(request, declined);
+                return declined;
+            }
+
+            // Step 3: Process the business logic
             ProcessingResult result = processBusinessLogic(request);
 
-            // Step 3: Log the processing result
+            // Step 4: Log the processing result
             logProcessingResult(request, result);
 
             return result;
@@ -48,6 +81,131 @@ public abstract class MTIProcessor {
         }
     }
 
+    /**
+     * Template method for several requests of this MTI processed together, e.g. to consult a backend once for
+     * all of them. Requests that fail validation or screening are not passed to the business logic.
+     * @return One result per request, in request order
+     */
+    public final List<ProcessingResult> processBatch(List<IsoMessage> requests) {
+        // Each request's event spans the whole batch, so all of them begin before it is processed
+        MtiProcessEvent[] events = null;
+        MtiProcessEvent first = new MtiProcessEvent();
+        if (first.isEnabled()) {
+            events = new MtiProcessEvent[requests.size()];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = i == 0 ? first : new MtiProcessEvent();
+                events[i].begin();
+            }
+        }
+        List<ProcessingResult> results = validateAndProcessBatch(requests);
+        if (events != null) {
+            for (int i = 0; i < events.length; i++) {
+                commit(events[i], requests.get(i), results.get(i), events.length);
+            }
+        }
+        return results;
+    }
+
+    private List<ProcessingResult> validateAndProcessBatch(List<IsoMessage> requests) {
+        ProcessingResult[] results = new ProcessingResult[requests.size()];
+        List<IsoMessage> valid = new ArrayList<>(requests.size());
+        int[] validIndexes = new int[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            IsoMessage request = requests.get(i);
+            try {
+                ProcessingResult declined;
+                if (!validateRequest(request)) {
+                    logger.warn("Request validation failed for MTI: {}", Integer.toString(request.getType(), 16));
+                    results[i] = new ProcessingResult(false, ISOResponseCode.ERROR, "Request validation failed");
+                } else if ((declined = screenRequest(request)) != null) {
+                    logProcessingResult(request, declined);
+                    results[i] = declined;
+                } else {
+                    validIndexes[valid.size()] = i;
+                    valid.add(request);
+                }
+            } catch (Exception e) {
+                logger.error("Error processing MTI: {}", Integer.toString(request.getType(), 16), e);
+                results[i] = new ProcessingResult(false, ISOResponseCode.ERROR, "Processing error: " + e.getMessage());
+            }
+        }
+        if (valid.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        List<ProcessingResult> processed;
+        try {
+            processed = processBusinessLogicBatch(valid);
+            if (processed.size() != valid.size()) {
+                throw new IllegalStateException("Batch of " + valid.size() + " returned " + processed.size() + " results");
+            }
+        } catch (Exception e) {
+            logger.error("Error processing batch of {} for MTI: {}", valid.size(), Integer.toString(getMTI(), 16), e);
+            ProcessingResult error = new ProcessingResult(false, ISOResponseCode.ERROR, "Processing error: " + e.getMessage());
+            processed = new ArrayList<>(valid.size());
+            for (int i = 0; i < valid.size(); i++) {
+                processed.add(error);
+            }
+        }
+        for (int i = 0; i < valid.size(); i++) {
+            results[validIndexes[i]] = processed.get(i);
+            logProcessingResult(valid.get(i), processed.get(i));
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Check a validated request against reference data before its business logic runs. Subclasses can
+     * override this method.
+     * @return The decline, or null to process the request
+     */
+    protected ProcessingResult screenRequest(IsoMessage request) {
+        return null;
+    }
+
+    /**
+     * Decline a request whose terminal, merchant or amount the registry does not accept
+     * @param registry The registry, or null to accept every request
+     * @return The decline, or null when the registry accepts the request
+     */
+    protected static ProcessingResult screenWithRegistry(TerminalRegistry registry, IsoMessage request) {
+        if (registry == null) {
+            return null;
+        }
+        Verdict verdict = registry.check(request);
+        if (verdict == Verdict.ACCEPTED) {
+            return null;
+        }
+        logger.info("Declined by registry: {} (terminal {}, merchant {})", verdict.getDescription(),
+                request.getObjectValue(41), request.getObjectValue(42));
+        return new ProcessingResult(false, verdict.getResponseCode(), verdict.getDescription());
+    }
+
+    /**
+     * Whether requests may be collected into batches for this processor. Subclasses can override this method.
+     */
+    public boolean isBatchable() {
+        return true;
+    }
+
+    /**
+     * Business logic for a batch of validated requests. The default processes them one by one; processors
+     * that consult a ledger or risk store override this to do one round trip for the whole batch.
+     * @return One result per request, in request order
+     */
+    protected List<ProcessingResult> processBusinessLogicBatch(List<IsoMessage> requests) {
+        List<ProcessingResult> results = new ArrayList<>(requests.size());
+        for (IsoMessage request : requests) {
+            try {
+                results.add(processBusinessLogic(request));
+            } catch (Exception e) {
+                logger.error("Error processing MTI: {}", Integer.toString(request.getType(), 16), e);
+                results.add(new ProcessingResult(false, ISOResponseCode.ERROR, "Processing error: " + e.getMessage()));
+            }
+        }
+        return results;
+    }
+
     /**
      * Validate the incoming request. Subclasses can override this method.
      * @param request The ISO message to validate
@@ -72,8 +230,10 @@ public abstract class MTIProcessor {
      */
     protected void logProcessingResult(IsoMessage request, ProcessingResult result) {
         if (result.isSuccess()) {
-            logger.info("Successfully processed MTI: {} with response code: {}",
-                    Integer.toString(request.getType(), 16), result.getResponseCode().getCode());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Successfully processed MTI: {} with response code: {}",
+                        Integer.toString(request.getType(), 16), result.getResponseCode().getCode());
+            }
         } else {
             logger.warn("Failed to process MTI: {} with response code: {}",
                     Integer.toString(request.getType(), 16), result.getResponseCode().getCode());
@@ -5,13 +5,14 @@ import com.solab.iso8583.IsoMessage;
 import com.solab.iso8583.IsoType;
 import com.solab.iso8583.IsoValue;
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.mac.MacService;
 import com.titp.server.utils.ISOResponseCode;
 import com.titp.server.utils.IsoMessageUtils;
-import com.titp.server.utils.RandomUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 
 /**
  * Processor for Network Management messages (MTI 0800)
@@ -19,11 +20,21 @@ import java.nio.ByteBuffer;
 public class NetworkManagementProcessor extends MTIProcessor {
     private static final Logger logger = LoggerFactory.getLogger(NetworkManagementProcessor.class);
     private final IsoMessageUtils isoMessageUtils;
+    private final MacService macService;
 
 
     public NetworkManagementProcessor(MessageFactory<?> messageFactory) {
+        this(messageFactory, null);
+    }
+
+    /**
+     * @param macService Issues the session keys handed out by working key downloads, or null to hand out a
+     * zero key
+     */
+    public NetworkManagementProcessor(MessageFactory<?> messageFactory, MacService macService) {
         super(messageFactory);
         this.isoMessageUtils = new IsoMessageUtils((MessageFactory<IsoMessage>) messageFactory);
+        this.macService = macService;
     }
 
     @Override
@@ -41,17 +52,17 @@ public class NetworkManagementProcessor extends MTIProcessor {
     @Override
     protected ProcessingResult processBusinessLogic(IsoMessage request) {
         try {
-            logger.info("Processing network management message");
+            logger.debug("Processing network management message");
 
             // Process different network management functions
             var response = processNetworkManagement(request);
             var isSuccess =  response.getField(39).getValue().toString().equals("00");
 
             if (isSuccess) {
-                logger.info("Network management message processed successfully");
+                logger.debug("Network management message processed successfully");
                 return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Network management processed successfully", response);
             } else {
-                logger.info("Network management message failed");
+                logger.debug("Network management message failed");
                 return new ProcessingResult(false, ISOResponseCode.ERROR, "Network management processing failed", response);
             }
 
@@ -69,12 +80,12 @@ public class NetworkManagementProcessor extends MTIProcessor {
     /**
      * Process different network management functions
      */
-    private IsoMessage processNetworkManagement(IsoMessage request) {
+    private IsoMessage processNetworkManagement(IsoMessage request) throws GeneralSecurityException {
         var processingCode = request.getField(3).getValue().toString();
         var transmissionDate = request.getField(11).getValue().toString();
         var transactionType = Integer.parseInt(processingCode.substring(0, 2));
 
-        logger.info("Processing code: {}, transactionType: {}, transmissionDate: {}", processingCode, transactionType, transmissionDate);
+        logger.debug("Processing code: {}, transactionType: {}, transmissionDate: {}", processingCode, transactionType, transmissionDate);
 
 
         switch (transactionType) {
@@ -87,10 +98,21 @@ public class NetworkManagementProcessor extends MTIProcessor {
     }
 
 
-    private IsoMessage processWorkingKeyDownload(IsoMessage request) {
+    /**
+     * Hand out the terminal's new session key in field 62, encrypted under the key encryption key, as a
+     * 2-byte length followed by the key
+     */
+    private IsoMessage processWorkingKeyDownload(IsoMessage request) throws GeneralSecurityException {
+        byte[] key;
+        if (macService == null) {
+            key = ByteArrayUtil.hexStringToByteArray("00000000000000000000000000000000");
+        } else if (request.hasField(41)) {
+            key = macService.issueKey(request.getObjectValue(41).toString());
+        } else {
+            logger.warn("Working key download without field 41 Terminal ID");
+            return isoMessageUtils.createSuccessResponse(request, ISOResponseCode.ERROR);
+        }
         var response = isoMessageUtils.createSuccessResponse(request, ISOResponseCode.SUCCESS);
-
-        var key = ByteArrayUtil.hexStringToByteArray("00000000000000000000000000000000");
         var buffer = ByteBuffer.allocate(2 + 16);
         buffer.putShort((short) key.length);
         buffer.put(key);
@@ -1,6 +1,13 @@
 package com.titp.server.processor;
 
 import com.solab.iso8583.MessageFactory;
+import com.titp.server.advice.AdviceQueue;
+import com.titp.server.ledger.AccountLedger;
+import com.titp.server.mac.MacService;
+import com.titp.server.proxy.UpstreamConnectionPool;
+import com.titp.server.registry.TerminalRegistry;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.utils.RandomUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,31 +21,162 @@ import java.util.Map;
 public class ProcessorFactory {
     private static final Logger logger = LoggerFactory.getLogger(ProcessorFactory.class);
     
-    private static final Map<Integer, MTIProcessor> processors = new HashMap<>();
-    private static MessageFactory<?> messageFactory;
+    // Random source of the shared sets; shards build their own sets on their own source
+    private static final RandomUtils sharedRandom = new RandomUtils();
+
+    private static volatile ProcessorSet current = ProcessorSet.EMPTY;
+    private static SettlementTotals settlementTotals;
+    private static AdviceQueue adviceQueue;
+    private static UpstreamConnectionPool upstreamPool;
+    private static TerminalRegistry registry;
+    private static AccountLedger ledger;
+    private static MacService macService;
+    private static int[] proxyMtis = new int[0];
+    private static long proxyTimeoutMs;
     
     /**
      * Initialize the processor factory with a message factory
      * @param factory The message factory to use for creating responses
+     * @param totals The running totals updated by approved transactions
+     * @param queue The store-and-forward queue for advice messages
      */
-    public static void initialize(MessageFactory<?> factory) {
-        messageFactory = factory;
-        
-        // Initialize all processors
-        processors.put(0x100, new AuthorizationProcessor(messageFactory));      // 0100
-        processors.put(0x200, new FinancialProcessor(messageFactory));          // 0200
-        processors.put(0x800, new NetworkManagementProcessor(messageFactory));  // 0800
-        
-        logger.info("Initialized {} MTI processors", processors.size());
+    public static synchronized void initialize(MessageFactory<?> factory, SettlementTotals totals,
+                                               AdviceQueue queue) {
+        settlementTotals = totals;
+        adviceQueue = queue;
+        upstreamPool = null;
+        registry = null;
+        ledger = null;
+        macService = null;
+        proxyMtis = new int[0];
+        current = build(factory);
+        logger.info("Initialized {} MTI processors", current.getProcessors().size());
     }
     
+    /**
+     * Route the given MTIs to the upstream host. The processors registered so far
+     * become stand-in processors used when the upstream does not answer.
+     * @param pool The upstream connection pool
+     * @param mtis The MTIs to forward
+     * @param timeoutMs Per-request upstream timeout
+     */
+    public static synchronized void registerProxy(UpstreamConnectionPool pool, int[] mtis, long timeoutMs) {
+        for (int mti : mtis) {
+            MTIProcessor standIn = current.getProcessor(mti);
+            logger.info("MTI {} routed upstream (stand-in: {})", String.format("%04X", mti),
+                    standIn != null ? standIn.getClass().getSimpleName() : "decline 91");
+        }
+        upstreamPool = pool;
+        proxyMtis = mtis.clone();
+        proxyTimeoutMs = timeoutMs;
+        current = build(current.getMessageFactory());
+    }
+
+    /**
+     * Decline authorizations and financial transactions of terminals and merchants the registry does not
+     * accept. The registry follows its file's updates itself, so it is registered once.
+     */
+    public static synchronized void registerRegistry(TerminalRegistry terminalRegistry) {
+        registry = terminalRegistry;
+        current = build(current.getMessageFactory());
+        logger.info("MTIs 0100 and 0200 checked against the terminal registry");
+    }
+
+    /**
+     * Debit and credit financial transactions and reversals to the ledger, declining debits the balance does
+     * not cover
+     */
+    public static synchronized void registerLedger(AccountLedger accountLedger) {
+        ledger = accountLedger;
+        current = build(current.getMessageFactory());
+        logger.info("MTIs 0200 and 0400 posted to the account ledger, 0420 through the advice queue");
+    }
+
+    /**
+     * Issue per-terminal MAC session keys on working key downloads instead of a zero key
+     */
+    public static synchronized void registerMac(MacService service) {
+        macService = service;
+        current = build(current.getMessageFactory());
+        logger.info("Working key downloads issue {} session keys", service.getAlgorithm());
+    }
+
+    /**
+     * Rebuild every processor on a new message factory and swap them in as one set. Messages already being
+     * processed finish on the set they started with.
+     * @param factory The validated replacement message factory
+     */
+    public static synchronized void reload(MessageFactory<?> factory) {
+        current = build(factory);
+        logger.info("Swapped in {} MTI processors on the reloaded message factory", current.getProcessors().size());
+    }
+
+    /**
+     * Build a processor set on another message factory, e.g. for a listener with its own field dictionary.
+     * It shares the settlement totals, advice queue, registry, ledger, MAC keys and upstream routing of the
+     * current set.
+     */
+    public static synchronized ProcessorSet build(MessageFactory<?> messageFactory) {
+        return build(messageFactory, sharedRandom);
+    }
+
+    /**
+     * Build a processor set with its own processor instances and random source, e.g. for one shard. Only the
+     * explicitly shared services are shared: settlement totals, the advice queue, the registry, the ledger, the
+     * MAC keys and the upstream pool.
+     */
+    public static synchronized ProcessorSet build(MessageFactory<?> messageFactory, RandomUtils random) {
+        Map<Integer, MTIProcessor> processors =
+                buildLocal(messageFactory, settlementTotals, adviceQueue, registry, ledger, macService, random);
+        for (int mti : proxyMtis) {
+            processors.put(mti, new ProxyProcessor(messageFactory, upstreamPool, processors.get(mti), proxyTimeoutMs, mti));
+        }
+        return new ProcessorSet(messageFactory, processors);
+    }
+
+    /**
+     * Build a processor set that shares no state with the live one, e.g. to warm up the JIT with synthetic
+     * traffic. Proxied MTIs are served by their stand-in processors, so nothing is sent upstream, no
+     * registry is consulted, so the synthetic terminals reach the business logic, no balance changes and no
+     * session key is issued.
+     * @param totals Totals that absorb the synthetic transactions
+     * @param queue Queue that stores the synthetic advices; it need not be started
+     */
+    public static ProcessorSet buildDetached(MessageFactory<?> messageFactory, SettlementTotals totals,
+                                             AdviceQueue queue) {
+        return new ProcessorSet(messageFactory, buildLocal(messageFactory, totals, queue, null, null, null,
+                new RandomUtils()));
+    }
+
+    private static Map<Integer, MTIProcessor> buildLocal(MessageFactory<?> messageFactory, SettlementTotals totals,
+                                                         AdviceQueue queue, TerminalRegistry terminalRegistry,
+                                                         AccountLedger accountLedger, MacService mac,
+                                                         RandomUtils random) {
+        Map<Integer, MTIProcessor> processors = new HashMap<>();
+        processors.put(0x100, new AuthorizationProcessor(messageFactory, terminalRegistry));                             // 0100
+        processors.put(0x200, new FinancialProcessor(messageFactory, totals, random, terminalRegistry, accountLedger));  // 0200
+        processors.put(0x220, new AdviceProcessor(messageFactory, queue, 0x220));                                        // 0220
+        processors.put(0x400, new ReversalProcessor(messageFactory, totals, accountLedger));                             // 0400
+        processors.put(0x420, new AdviceProcessor(messageFactory, queue, 0x420));                                        // 0420
+        processors.put(0x500, new ReconciliationProcessor(messageFactory, totals));                                      // 0500
+        processors.put(0x800, new NetworkManagementProcessor(messageFactory, mac));                                      // 0800
+        return processors;
+    }
+
+    /**
+     * The current message factory and processors; take it once per message and use it throughout
+     */
+    public static ProcessorSet current() {
+        return current;
+    }
+
     /**
      * Get the appropriate processor for the given MTI.
      * @param mti The Message Type Indicator
      * @return The processor for the MTI, or null if not supported
      */
     public static MTIProcessor getProcessor(int mti) {
-        MTIProcessor processor = processors.get(mti);
+        MTIProcessor processor = current.getProcessor(mti);
         if (processor == null) {
             logger.warn("No processor found for MTI: {}", String.format("%04X", mti));
         }
@@ -51,7 +189,7 @@ public class ProcessorFactory {
      * @return true if a processor exists, false otherwise
      */
     public static boolean hasProcessor(int mti) {
-        return processors.containsKey(mti);
+        return current.getProcessor(mti) != null;
     }
     
     /**
@@ -59,7 +197,7 @@ public class ProcessorFactory {
      * @return Array of supported MTI values
      */
     public static int[] getSupportedMTIs() {
-        return processors.keySet().stream().mapToInt(Integer::intValue).toArray();
+        return current.getProcessors().keySet().stream().mapToInt(Integer::intValue).toArray();
     }
     
     /**
@@ -67,6 +205,6 @@ public class ProcessorFactory {
      * @return The number of processors
      */
     public static int getProcessorCount() {
-        return processors.size();
+        return current.getProcessors().size();
     }
 }
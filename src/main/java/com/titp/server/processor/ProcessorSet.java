@@ -0,0 +1,38 @@
+package com.titp.server.processor;
+
+import com.solab.iso8583.MessageFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable pairing of a message factory with the processors built on it. A message is parsed, processed and
+ * answered with one set, so a configuration reload never mixes the old and new field definitions.
+ */
+public final class ProcessorSet {
+    static final ProcessorSet EMPTY = new ProcessorSet(null, Collections.emptyMap());
+
+    private final MessageFactory<?> messageFactory;
+    private final Map<Integer, MTIProcessor> processors;
+
+    ProcessorSet(MessageFactory<?> messageFactory, Map<Integer, MTIProcessor> processors) {
+        this.messageFactory = messageFactory;
+        this.processors = Collections.unmodifiableMap(new HashMap<>(processors));
+    }
+
+    public MessageFactory<?> getMessageFactory() {
+        return messageFactory;
+    }
+
+    /**
+     * @return The processor for the MTI, or null if not supported
+     */
+    public MTIProcessor getProcessor(int mti) {
+        return processors.get(mti);
+    }
+
+    Map<Integer, MTIProcessor> getProcessors() {
+        return processors;
+    }
+}
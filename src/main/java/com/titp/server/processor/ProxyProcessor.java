@@ -0,0 +1,99 @@
+package com.titp.server.processor;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.proxy.UpstreamConnectionPool;
+import com.titp.server.utils.ISOResponseCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processor that forwards requests to the upstream host (routing/proxy mode).
+ * When the upstream does not answer in time or is unreachable, the local processor
+ * for the MTI stands in; without one the request is declined with 91.
+ */
+public class ProxyProcessor extends MTIProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(ProxyProcessor.class);
+    private static final AtomicLong rrnSequence = new AtomicLong(System.currentTimeMillis() % 1_000_000_000_000L);
+
+    private final UpstreamConnectionPool upstreamPool;
+    private final MTIProcessor standInProcessor;
+    private final long timeoutMs;
+    private final int mti;
+
+    public ProxyProcessor(MessageFactory<?> messageFactory, UpstreamConnectionPool upstreamPool,
+                          MTIProcessor standInProcessor, long timeoutMs, int mti) {
+        super(messageFactory);
+        this.upstreamPool = upstreamPool;
+        this.standInProcessor = standInProcessor;
+        this.timeoutMs = timeoutMs;
+        this.mti = mti;
+    }
+
+    @Override
+    protected boolean validateRequest(IsoMessage request) {
+        if (!request.hasField(11)) {
+            logger.warn("Proxied request missing required field 11 STAN");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected ProcessingResult processBusinessLogic(IsoMessage request) {
+        // The RRN makes the correlation key unique across terminals reusing the same STAN
+        if (!request.hasField(37)) {
+            request.setField(37, new IsoValue<>(IsoType.ALPHA, nextRetrievalReferenceNumber(), 12));
+        }
+
+        try {
+            IsoMessage response = upstreamPool.exchange(request, timeoutMs);
+            response.setIsoHeader(messageFactory.getIsoHeader(response.getType()));
+
+            boolean approved = response.hasField(39)
+                    && ISOResponseCode.SUCCESS.getCode().equals(String.valueOf(response.getField(39).getValue()));
+            return new ProcessingResult(approved, approved ? ISOResponseCode.SUCCESS : ISOResponseCode.ERROR,
+                    "Upstream response", response);
+
+        } catch (TimeoutException e) {
+            logger.warn("Upstream timeout after {}ms for MTI {}, standing in", timeoutMs, Integer.toString(mti, 16));
+            return standIn(request);
+        } catch (IOException e) {
+            logger.warn("Upstream unavailable for MTI {}, standing in: {}", Integer.toString(mti, 16), e.getMessage());
+            return standIn(request);
+        }
+    }
+
+    /**
+     * Upstream exchanges are synchronous, so a batch would only queue its requests behind each other's round trip
+     */
+    @Override
+    public boolean isBatchable() {
+        return false;
+    }
+
+    @Override
+    public int getMTI() {
+        return mti;
+    }
+
+    /**
+     * Answer locally when the upstream cannot
+     */
+    private ProcessingResult standIn(IsoMessage request) {
+        if (standInProcessor != null) {
+            return standInProcessor.process(request);
+        }
+        return new ProcessingResult(false, ISOResponseCode.ISSUER_UNAVAILABLE, "Upstream unavailable");
+    }
+
+    private static String nextRetrievalReferenceNumber() {
+        return String.format("%012d", rrnSequence.incrementAndGet() % 1_000_000_000_000L);
+    }
+}
@@ -0,0 +1,121 @@
+package com.titp.server.processor;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.settlement.TotalsSnapshot;
+import com.titp.server.utils.ISOResponseCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processor for Reconciliation Request messages (MTI 0500).
+ * Answers from the running settlement totals of the terminal, so the cost does not grow with volume.
+ */
+public class ReconciliationProcessor extends MTIProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(ReconciliationProcessor.class);
+
+    // ISO 8583:1987 reconciliation fields
+    private static final int CREDITS_COUNT = 74;
+    private static final int CREDITS_REVERSAL_COUNT = 75;
+    private static final int DEBITS_COUNT = 76;
+    private static final int DEBITS_REVERSAL_COUNT = 77;
+    private static final int CREDITS_AMOUNT = 86;
+    private static final int CREDITS_REVERSAL_AMOUNT = 87;
+    private static final int DEBITS_AMOUNT = 88;
+    private static final int DEBITS_REVERSAL_AMOUNT = 89;
+    private static final int NET_SETTLEMENT_AMOUNT = 97;
+
+    private final SettlementTotals settlementTotals;
+
+    public ReconciliationProcessor(MessageFactory<?> messageFactory, SettlementTotals settlementTotals) {
+        super(messageFactory);
+        this.settlementTotals = settlementTotals;
+    }
+
+    @Override
+    protected boolean validateRequest(IsoMessage request) {
+        if (!request.hasField(41)) {
+            logger.warn("Reconciliation request missing required field 41 Terminal ID");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected ProcessingResult processBusinessLogic(IsoMessage request) {
+        String terminalId = String.valueOf(request.getField(41).getValue());
+        TotalsSnapshot totals = settlementTotals.getTerminalTotals(terminalId);
+
+        logger.debug("Reconciliation - Terminal: {}, Batch: {}, Host totals: {}",
+                terminalId, settlementTotals.getCurrentBatchNumber(), totals);
+
+        ISOResponseCode responseCode = matchesTerminalTotals(request, totals)
+                ? ISOResponseCode.SUCCESS
+                : ISOResponseCode.RECONCILIATION_ERROR;
+
+        IsoMessage response = createReconciliationResponse(request, totals, responseCode);
+        return new ProcessingResult(responseCode == ISOResponseCode.SUCCESS, responseCode,
+                "Reconciliation " + (responseCode == ISOResponseCode.SUCCESS ? "in balance" : "out of balance"),
+                response);
+    }
+
+    @Override
+    public int getMTI() {
+        return 0x500; // 0500 in hex
+    }
+
+    /**
+     * Compare the totals the terminal sent (if any) with the host totals
+     */
+    private boolean matchesTerminalTotals(IsoMessage request, TotalsSnapshot totals) {
+        return matches(request, CREDITS_COUNT, totals.getCreditCount())
+                && matches(request, CREDITS_REVERSAL_COUNT, totals.getCreditReversalCount())
+                && matches(request, DEBITS_COUNT, totals.getDebitCount())
+                && matches(request, DEBITS_REVERSAL_COUNT, totals.getDebitReversalCount())
+                && matches(request, CREDITS_AMOUNT, totals.getCreditAmount())
+                && matches(request, CREDITS_REVERSAL_AMOUNT, totals.getCreditReversalAmount())
+                && matches(request, DEBITS_AMOUNT, totals.getDebitAmount())
+                && matches(request, DEBITS_REVERSAL_AMOUNT, totals.getDebitReversalAmount());
+    }
+
+    private boolean matches(IsoMessage request, int field, long expected) {
+        if (!request.hasField(field)) {
+            return true;
+        }
+        try {
+            return Long.parseLong(String.valueOf(request.getField(field).getValue())) == expected;
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid reconciliation field {}: {}", field, request.getField(field).getValue());
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private IsoMessage createReconciliationResponse(IsoMessage request, TotalsSnapshot totals,
+                                                    ISOResponseCode responseCode) {
+        IsoMessage response = ((MessageFactory<IsoMessage>) messageFactory).createResponse(request);
+        response.setField(39, new IsoValue<>(IsoType.ALPHA, responseCode.getCode(), 2));
+
+        response.setField(CREDITS_COUNT, new IsoValue<>(IsoType.NUMERIC, totals.getCreditCount(), 10));
+        response.setField(CREDITS_REVERSAL_COUNT,
+                new IsoValue<>(IsoType.NUMERIC, totals.getCreditReversalCount(), 10));
+        response.setField(DEBITS_COUNT, new IsoValue<>(IsoType.NUMERIC, totals.getDebitCount(), 10));
+        response.setField(DEBITS_REVERSAL_COUNT,
+                new IsoValue<>(IsoType.NUMERIC, totals.getDebitReversalCount(), 10));
+        response.setField(CREDITS_AMOUNT, new IsoValue<>(IsoType.NUMERIC, totals.getCreditAmount(), 16));
+        response.setField(CREDITS_REVERSAL_AMOUNT,
+                new IsoValue<>(IsoType.NUMERIC, totals.getCreditReversalAmount(), 16));
+        response.setField(DEBITS_AMOUNT, new IsoValue<>(IsoType.NUMERIC, totals.getDebitAmount(), 16));
+        response.setField(DEBITS_REVERSAL_AMOUNT,
+                new IsoValue<>(IsoType.NUMERIC, totals.getDebitReversalAmount(), 16));
+
+        long net = totals.getNetAmount();
+        String netAmount = (net >= 0 ? "D" : "C") + String.format("%016d", Math.abs(net));
+        response.setField(NET_SETTLEMENT_AMOUNT, new IsoValue<>(IsoType.ALPHA, netAmount, 17));
+
+        return response;
+    }
+}
@@ -0,0 +1,95 @@
+package com.titp.server.processor;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.ledger.AccountLedger;
+import com.titp.server.ledger.Reversal;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.settlement.TransactionClass;
+import com.titp.server.utils.ISOResponseCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processor for Reversal Request messages (MTI 0400)
+ */
+public class ReversalProcessor extends MTIProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(ReversalProcessor.class);
+    private final SettlementTotals settlementTotals;
+    private final AccountLedger ledger;
+
+    public ReversalProcessor(MessageFactory<?> messageFactory, SettlementTotals settlementTotals) {
+        this(messageFactory, settlementTotals, null);
+    }
+
+    /**
+     * @param ledger Account balances to restore, or null to record every reversal in the totals only
+     */
+    public ReversalProcessor(MessageFactory<?> messageFactory, SettlementTotals settlementTotals, AccountLedger ledger) {
+        super(messageFactory);
+        this.settlementTotals = settlementTotals;
+        this.ledger = ledger;
+    }
+
+    @Override
+    protected boolean validateRequest(IsoMessage request) {
+        if (!request.hasField(4)) {
+            logger.warn("Reversal request missing required field 4 Amount");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected ProcessingResult processBusinessLogic(IsoMessage request) {
+        try {
+            long amount = Long.parseLong(String.valueOf(request.getField(4).getValue()));
+            String terminalId = request.hasField(41) ? String.valueOf(request.getField(41).getValue()) : null;
+            // The reversal repeats its original's processing code, which tells a reversed debit from a
+            // reversed credit; without one it reverses a purchase
+            TransactionClass transactionClass = TransactionClass.reversalOf(request.hasField(3)
+                    ? Long.parseLong(String.valueOf(request.getField(3).getValue())) : 0);
+
+            logger.debug("Reversal - Terminal: {}, Amount: {}", terminalId, amount);
+
+            Reversal reversal = ledger != null ? ledger.reverse(request, amount) : Reversal.REVERSED;
+            switch (reversal) {
+                case REVERSED:
+                    settlementTotals.record(transactionClass, terminalId, amount);
+                    return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Reversal approved",
+                            createSuccessResponse(request));
+                case PENDING:
+                    // Its original is undone and declined if it is still to come, so nothing is totalled
+                    logger.info("Reversal came before its original; remembered for it");
+                    return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Reversal acknowledged",
+                            createSuccessResponse(request));
+                case UNKNOWN_ACCOUNT:
+                    logger.warn("Reversal declined, the original's account could not be posted to");
+                    return new ProcessingResult(false, ISOResponseCode.INVALID_CARD_NUMBER, "Reversal declined");
+                default:
+                    // Acknowledged so the terminal stops repeating it, but nothing is posted or totalled
+                    logger.info("Reversal acknowledged without posting: {}", reversal);
+                    return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Reversal acknowledged",
+                            createSuccessResponse(request));
+            }
+
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid reversal amount or processing code: {}", e.getMessage());
+            return new ProcessingResult(false, ISOResponseCode.ERROR, "Invalid reversal amount or processing code");
+        }
+    }
+
+    @Override
+    public int getMTI() {
+        return 0x400; // 0400 in hex
+    }
+
+    @SuppressWarnings("unchecked")
+    private IsoMessage createSuccessResponse(IsoMessage request) {
+        IsoMessage response = ((MessageFactory<IsoMessage>) messageFactory).createResponse(request);
+        response.setField(39, new IsoValue<>(IsoType.ALPHA, ISOResponseCode.SUCCESS.getCode(), 2));
+        return response;
+    }
+}
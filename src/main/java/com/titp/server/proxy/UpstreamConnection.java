@@ -0,0 +1,203 @@
+package com.titp.server.proxy;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One persistent, multiplexed connection to the upstream host.
+ * Any number of requests may be outstanding; a dedicated reader thread matches
+ * responses back to their requests by correlation key (STAN + RRN).
+ */
+class UpstreamConnection {
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamConnection.class);
+    private static final long MAX_RECONNECT_DELAY_MS = 10_000;
+
+    private final int id;
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private volatile MessageFactory<IsoMessage> messageFactory;
+    private final ConcurrentHashMap<String, CompletableFuture<IsoMessage>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile Socket socket;
+    private volatile DataOutputStream outputStream;
+    private volatile boolean running;
+    private Thread reader;
+
+    UpstreamConnection(int id, String host, int port, int connectTimeout, MessageFactory<IsoMessage> messageFactory) {
+        this.id = id;
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.messageFactory = messageFactory;
+    }
+
+    void start() {
+        running = true;
+        reader = new Thread(this::readLoop, "upstream-" + id);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    void setMessageFactory(MessageFactory<IsoMessage> messageFactory) {
+        this.messageFactory = messageFactory;
+    }
+
+    boolean isConnected() {
+        Socket current = socket;
+        return current != null && current.isConnected() && !current.isClosed();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Write a request and register its response future under the correlation key
+     */
+    CompletableFuture<IsoMessage> send(String key, IsoMessage request) throws IOException {
+        DataOutputStream out = outputStream;
+        if (out == null || !isConnected()) {
+            throw new IOException("Upstream connection " + id + " is not connected");
+        }
+
+        CompletableFuture<IsoMessage> future = new CompletableFuture<>();
+        if (pending.putIfAbsent(key, future) != null) {
+            throw new IOException("Duplicate in-flight upstream request " + key);
+        }
+        inFlight.incrementAndGet();
+
+        byte[] messageBytes = request.writeData();
+        try {
+            synchronized (out) {
+                out.writeShort(messageBytes.length);
+                out.write(messageBytes);
+                out.flush();
+            }
+        } catch (IOException e) {
+            release(key, future);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Forget a request that completed, timed out or failed; only its own future is removed, never that of
+     * another request registered under the same key
+     */
+    void release(String key, CompletableFuture<IsoMessage> future) {
+        if (pending.remove(key, future)) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    void close() {
+        running = false;
+        closeSocket();
+        if (reader != null) {
+            reader.interrupt();
+        }
+    }
+
+    /**
+     * Connect, read responses until the connection drops, then reconnect with backoff
+     */
+    private void readLoop() {
+        long reconnectDelay = 100;
+        while (running) {
+            try {
+                connect();
+                reconnectDelay = 100;
+                DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (running) {
+                    int length = inputStream.readUnsignedShort();
+                    byte[] messageBytes = new byte[length];
+                    inputStream.readFully(messageBytes);
+                    dispatch(messageBytes);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("Upstream connection {} to {}:{} lost: {}", id, host, port, e.getMessage());
+                }
+            }
+
+            closeSocket();
+            failPending(new IOException("Upstream connection " + id + " closed"));
+
+            if (running) {
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        Socket newSocket = new Socket();
+        newSocket.setTcpNoDelay(true);
+        newSocket.connect(new InetSocketAddress(host, port), connectTimeout);
+        socket = newSocket;
+        outputStream = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+        logger.info("Upstream connection {} established to {}:{}", id, host, port);
+    }
+
+    private void dispatch(byte[] messageBytes) {
+        IsoMessage response;
+        try {
+            response = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(messageBytes), 0);
+        } catch (Exception e) {
+            logger.error("Unparseable upstream response on connection {}", id, e);
+            return;
+        }
+
+        String key = UpstreamConnectionPool.correlationKey(response);
+        CompletableFuture<IsoMessage> future = pending.remove(key);
+        if (future == null) {
+            logger.warn("Late or unmatched upstream response {} on connection {}", key, id);
+            return;
+        }
+        inFlight.decrementAndGet();
+        future.complete(response);
+    }
+
+    private void failPending(IOException cause) {
+        for (String key : pending.keySet()) {
+            CompletableFuture<IsoMessage> future = pending.remove(key);
+            if (future != null) {
+                inFlight.decrementAndGet();
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private void closeSocket() {
+        Socket current = socket;
+        socket = null;
+        outputStream = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                logger.debug("Error closing upstream socket {}", id, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.titp.server.proxy;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small pool of persistent upstream connections shared by all client handlers.
+ * Requests are spread round-robin over connected links, each carrying up to
+ * maxInFlight outstanding requests.
+ */
+public class UpstreamConnectionPool implements UpstreamPoolMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamConnectionPool.class);
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+
+    private final UpstreamConnection[] connections;
+    private final int maxInFlight;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private final LongAdder latencyTotalNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public UpstreamConnectionPool(String host, int port, int connectionCount, int maxInFlight,
+                                  MessageFactory<IsoMessage> messageFactory) {
+        this.maxInFlight = maxInFlight;
+        this.connections = new UpstreamConnection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new UpstreamConnection(i, host, port, CONNECT_TIMEOUT_MS, messageFactory);
+        }
+    }
+
+    /**
+     * Open all connections; each reconnects on its own when dropped
+     */
+    public void start() {
+        for (UpstreamConnection connection : connections) {
+            connection.start();
+        }
+        logger.info("Upstream pool started with {} connections", connections.length);
+    }
+
+    public void close() {
+        for (UpstreamConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Parse upstream responses with a reloaded message factory
+     */
+    public void setMessageFactory(MessageFactory<IsoMessage> messageFactory) {
+        for (UpstreamConnection connection : connections) {
+            connection.setMessageFactory(messageFactory);
+        }
+    }
+
+    /**
+     * Forward a request and wait for the matching upstream response
+     * @param request The request, which must carry fields 11 (STAN) and 37 (RRN)
+     * @param timeoutMs Maximum time to wait for the response
+     * @return The upstream response
+     * @throws IOException if no connection could take the request or the connection dropped
+     * @throws TimeoutException if the upstream did not answer in time
+     */
+    public IsoMessage exchange(IsoMessage request, long timeoutMs) throws IOException, TimeoutException {
+        String key = correlationKey(request);
+        UpstreamConnection connection = selectConnection();
+        long start = System.nanoTime();
+        requestCount.increment();
+
+        // Registered only once send has succeeded; a rejected duplicate must not release the original
+        CompletableFuture<IsoMessage> future = null;
+        try {
+            future = connection.send(key, request);
+            IsoMessage response = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            recordLatency(System.nanoTime() - start);
+            return response;
+        } catch (TimeoutException e) {
+            timeoutCount.increment();
+            throw e;
+        } catch (ExecutionException e) {
+            failureCount.increment();
+            throw new IOException("Upstream request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failureCount.increment();
+            throw new IOException("Interrupted waiting for upstream response", e);
+        } catch (IOException e) {
+            failureCount.increment();
+            throw e;
+        } finally {
+            if (future != null) {
+                connection.release(key, future);
+            }
+        }
+    }
+
+    /**
+     * Correlation key shared by a request and its response; fields are taken as encoded, so a STAN held as a
+     * number and one held as a string give the same key
+     */
+    static String correlationKey(IsoMessage message) {
+        String stan = message.hasField(11) ? message.getField(11).toString() : "";
+        String rrn = message.hasField(37) ? message.getField(37).toString() : "";
+        return stan + '/' + rrn;
+    }
+
+    /**
+     * Pick the next connected link with spare in-flight capacity
+     */
+    private UpstreamConnection selectConnection() throws IOException {
+        int start = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+        for (int i = 0; i < connections.length; i++) {
+            UpstreamConnection connection = connections[(start + i) % connections.length];
+            if (connection.isConnected() && connection.getInFlight() < maxInFlight) {
+                return connection;
+            }
+        }
+        failureCount.increment();
+        throw new IOException("No upstream connection available");
+    }
+
+    private void recordLatency(long nanos) {
+        latencyCount.increment();
+        latencyTotalNanos.add(nanos);
+        maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return connections.length;
+    }
+
+    @Override
+    public int getConnectedCount() {
+        int connected = 0;
+        for (UpstreamConnection connection : connections) {
+            if (connection.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    @Override
+    public int getInFlight() {
+        int inFlight = 0;
+        for (UpstreamConnection connection : connections) {
+            inFlight += connection.getInFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMicros() {
+        long count = latencyCount.sum();
+        return count == 0 ? 0 : latencyTotalNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public long getMaxLatencyMicros() {
+        return maxLatencyNanos.get() / 1000;
+    }
+}
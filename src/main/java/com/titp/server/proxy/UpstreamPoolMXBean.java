@@ -0,0 +1,15 @@
+package com.titp.server.proxy;
+
+/**
+ * JMX view of the upstream connection pool
+ */
+public interface UpstreamPoolMXBean {
+    int getConnectionCount();
+    int getConnectedCount();
+    int getInFlight();
+    long getRequestCount();
+    long getTimeoutCount();
+    long getFailureCount();
+    double getMeanLatencyMicros();
+    long getMaxLatencyMicros();
+}
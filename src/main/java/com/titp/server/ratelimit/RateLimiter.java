@@ -0,0 +1,212 @@
+package com.titp.server.ratelimit;
+
+import com.titp.server.metrics.PrometheusExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets per key, e.g. per source IP or per terminal. Each key may go {@code ratePerSecond} on average
+ * and {@code burst} at once.
+ * <p>
+ * The table is bounded: buckets that have refilled completely are evicted every few seconds, and when the
+ * table is still full, also before a new key is added. Evicting a full bucket loses nothing, since a new
+ * bucket starts full too; a key that is being limited keeps its bucket. When every slot holds a key still
+ * being limited, a new key is let through untracked rather than penalised for others' traffic.
+ */
+public class RateLimiter implements RateLimiterMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
+    private static final long EVICTION_INTERVAL_SECONDS = 5;
+    // A full table is swept again for a new key at most this often, so a flood of new keys cannot make
+    // every request scan the table
+    private static final long FULL_TABLE_SWEEP_MILLIS = 100;
+
+    private final String name;
+    private final long ratePerSecond;
+    private final long burst;
+    private final long capacityMilliTokens;
+    private final int maxKeys;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder untracked = new LongAdder();
+    // MTIs whose requests take a token, or null when every request does
+    private volatile int[] mtis;
+    private volatile long lastSweepMillis;
+    private ScheduledExecutorService evictor;
+
+    /**
+     * @param name What is limited, e.g. "ip" or "terminal"; used in metric labels
+     * @param burst Tokens a bucket holds, or 0 for one second's worth
+     * @param maxKeys Most keys tracked at once
+     */
+    public RateLimiter(String name, long ratePerSecond, long burst, int maxKeys) {
+        if (ratePerSecond < 1) {
+            throw new IllegalArgumentException("Rate limit for " + name + " must be at least 1 per second");
+        }
+        this.name = name;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst > 0 ? burst : ratePerSecond;
+        this.capacityMilliTokens = this.burst * TokenBucket.MILLI;
+        if (capacityMilliTokens > TokenBucket.MAX_CAPACITY_MILLI_TOKENS) {
+            throw new IllegalArgumentException("Rate limit burst for " + name + " must be at most "
+                    + TokenBucket.MAX_CAPACITY_MILLI_TOKENS / TokenBucket.MILLI);
+        }
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Start evicting idle buckets in the background
+     */
+    public void start() {
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate-limit-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+        logger.info("Rate limit per {}: {}/s, burst {}, up to {} keys", name, ratePerSecond, burst, maxKeys);
+    }
+
+    public void stop() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+    }
+
+    /**
+     * Limit only requests of the given MTIs; requests of other MTIs pass without taking a token
+     */
+    public void setMtis(int... mtis) {
+        this.mtis = mtis.clone();
+    }
+
+    /**
+     * Whether requests of the MTI take a token
+     */
+    public boolean limits(int mti) {
+        int[] limited = mtis;
+        if (limited == null) {
+            return true;
+        }
+        for (int candidate : limited) {
+            if (candidate == mti) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take a token from the key's bucket
+     * @return false if the key is over its limit
+     */
+    public boolean tryAcquire(String key) {
+        long now = nowMillis();
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = newBucket(key, now);
+            if (bucket == null) {
+                untracked.increment();
+                return true;
+            }
+        }
+        if (bucket.tryAcquire(ratePerSecond, capacityMilliTokens, now)) {
+            allowed.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Add a bucket for a key seen for the first time, or since its bucket was evicted
+     * @return The key's bucket, or null when the table is full of keys still being limited
+     */
+    private TokenBucket newBucket(String key, long now) {
+        if (buckets.size() >= maxKeys) {
+            if (now - lastSweepMillis >= FULL_TABLE_SWEEP_MILLIS) {
+                evictIdle();
+            }
+            if (buckets.size() >= maxKeys) {
+                return null;
+            }
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(capacityMilliTokens, now));
+    }
+
+    /**
+     * Drop the buckets that have refilled completely
+     */
+    void evictIdle() {
+        long now = nowMillis();
+        lastSweepMillis = now;
+        buckets.values().removeIf(bucket -> {
+            boolean full = bucket.isFull(ratePerSecond, capacityMilliTokens, now);
+            if (full) {
+                evicted.increment();
+            }
+            return full;
+        });
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public String getName() { return name; }
+
+    @Override
+    public long getRatePerSecond() { return ratePerSecond; }
+
+    @Override
+    public long getBurst() { return burst; }
+
+    @Override
+    public int getMaxKeys() { return maxKeys; }
+
+    @Override
+    public int getTrackedKeys() { return buckets.size(); }
+
+    @Override
+    public long getAllowed() { return allowed.sum(); }
+
+    @Override
+    public long getRejected() { return rejected.sum(); }
+
+    @Override
+    public long getEvicted() { return evicted.sum(); }
+
+    @Override
+    public long getUntracked() { return untracked.sum(); }
+
+    /**
+     * Prometheus export of several limiters, labelled by name
+     */
+    public static PrometheusExporter exporter(List<RateLimiter> limiters) {
+        return out -> {
+            out.append("# HELP titp_ratelimit_rejected_total Requests or connections refused over the rate limit\n");
+            out.append("# TYPE titp_ratelimit_rejected_total counter\n");
+            for (RateLimiter limiter : limiters) {
+                out.append("titp_ratelimit_rejected_total{limiter=\"").append(limiter.name).append("\"} ")
+                        .append(limiter.getRejected()).append('\n');
+            }
+            out.append("# HELP titp_ratelimit_tracked_keys Keys with a token bucket that is not full\n");
+            out.append("# TYPE titp_ratelimit_tracked_keys gauge\n");
+            for (RateLimiter limiter : limiters) {
+                out.append("titp_ratelimit_tracked_keys{limiter=\"").append(limiter.name).append("\"} ")
+                        .append(limiter.getTrackedKeys()).append('\n');
+            }
+        };
+    }
+}
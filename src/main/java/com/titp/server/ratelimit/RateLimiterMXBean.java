@@ -0,0 +1,31 @@
+package com.titp.server.ratelimit;
+
+/**
+ * Configuration and counters of one rate limiter
+ */
+public interface RateLimiterMXBean {
+    long getRatePerSecond();
+
+    long getBurst();
+
+    int getMaxKeys();
+
+    /**
+     * Keys with a bucket that is not full
+     */
+    int getTrackedKeys();
+
+    long getAllowed();
+
+    long getRejected();
+
+    /**
+     * Idle buckets dropped once full again
+     */
+    long getEvicted();
+
+    /**
+     * Requests let through unlimited because the table was full of keys still being limited
+     */
+    long getUntracked();
+}
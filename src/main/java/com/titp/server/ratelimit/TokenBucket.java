@@ -0,0 +1,63 @@
+package com.titp.server.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket whose whole state is one long, updated by compare-and-set: the tokens left, in thousandths,
+ * in the high bits and the time of the last refill, in milliseconds since the limiter started, in the low
+ * {@value #TIME_BITS} bits. Refilling is lazy, on the next acquire, so a bucket needs no timer.
+ * <p>
+ * Milli-tokens refilled per millisecond equal tokens per second, so the refill is one multiplication. A denied
+ * acquire writes nothing, so a flood of rejected requests does not contend on the bucket.
+ */
+final class TokenBucket {
+    static final int MILLI = 1000;
+    private static final int TIME_BITS = 40;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    // Milli-tokens must fit the 23 bits above the time without reaching the sign bit
+    static final long MAX_CAPACITY_MILLI_TOKENS = (1L << (63 - TIME_BITS)) - 1;
+
+    private final AtomicLong state;
+
+    /**
+     * A full bucket
+     */
+    TokenBucket(long capacityMilliTokens, long nowMillis) {
+        this.state = new AtomicLong(pack(capacityMilliTokens, nowMillis));
+    }
+
+    /**
+     * Take one token if there is one
+     * @param ratePerSecond Tokens added per second
+     * @param capacityMilliTokens Bucket size in milli-tokens
+     */
+    boolean tryAcquire(long ratePerSecond, long capacityMilliTokens, long nowMillis) {
+        while (true) {
+            long current = state.get();
+            long lastMillis = current & TIME_MASK;
+            long elapsed = Math.max(0, nowMillis - lastMillis);
+            long tokens = Math.min(capacityMilliTokens, (current >>> TIME_BITS) + elapsed * ratePerSecond);
+            if (tokens < MILLI) {
+                return false;
+            }
+            long next = pack(tokens - MILLI, Math.max(lastMillis, nowMillis));
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Whether the bucket would be full by now; a full bucket behaves exactly like a new one, so it can be
+     * dropped without losing anything
+     */
+    boolean isFull(long ratePerSecond, long capacityMilliTokens, long nowMillis) {
+        long current = state.get();
+        long elapsed = Math.max(0, nowMillis - (current & TIME_MASK));
+        return (current >>> TIME_BITS) + elapsed * ratePerSecond >= capacityMilliTokens;
+    }
+
+    private static long pack(long milliTokens, long millis) {
+        return (milliTokens << TIME_BITS) | (millis & TIME_MASK);
+    }
+}
@@ -0,0 +1,229 @@
+package com.titp.server.registry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * One registry file mapped read-only: an open-addressed hash table of fixed-size slots with linear probing.
+ * <p>
+ * Layout, big-endian: a 64-byte header (magic, version, slot count, terminal and merchant counts, creation
+ * time) followed by the slots. Each 32-byte slot holds the entry kind (0 for an empty slot), the status,
+ * the key length and up to 15 ASCII key bytes, then the merchant category code, the slot of a terminal's
+ * merchant and a merchant's per-transaction limit in minor units. A key is hashed together with its kind,
+ * so terminals and merchants share one table.
+ */
+final class RegistryFile {
+    static final long MAGIC = 0x5449545052454731L; // "TITPREG1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    static final int SLOT_BYTES = 32;
+    static final int KEY_BYTES = 15;
+    // Keeps the whole table addressable by one mapped buffer
+    static final int MAX_SLOTS = 1 << 25;
+
+    static final byte EMPTY = 0;
+    static final byte TERMINAL = 1;
+    static final byte MERCHANT = 2;
+
+    static final byte ACTIVE = 0;
+    static final byte BLOCKED = 1;
+
+    // Header offsets
+    static final int SLOT_COUNT = 12;
+    static final int TERMINAL_COUNT = 16;
+    static final int MERCHANT_COUNT = 20;
+    static final int CREATED_MILLIS = 24;
+
+    // Slot offsets
+    static final int KIND = 0;
+    static final int STATUS = 1;
+    static final int KEY_LENGTH = 2;
+    static final int KEY = 3;
+    static final int CATEGORY = 18;
+    static final int MERCHANT_SLOT = 20;
+    static final int AMOUNT_LIMIT = 24;
+
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private final int terminals;
+    private final int merchants;
+    private final long createdMillis;
+    private final Object fileKey;
+    private final FileTime lastModified;
+
+    private RegistryFile(MappedByteBuffer buffer, BasicFileAttributes attributes) {
+        this.buffer = buffer;
+        this.mask = buffer.getInt(SLOT_COUNT) - 1;
+        this.terminals = buffer.getInt(TERMINAL_COUNT);
+        this.merchants = buffer.getInt(MERCHANT_COUNT);
+        this.createdMillis = buffer.getLong(CREATED_MILLIS);
+        this.fileKey = attributes.fileKey();
+        this.lastModified = attributes.lastModifiedTime();
+    }
+
+    /**
+     * Map a registry file and check its header
+     */
+    static RegistryFile open(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > HEADER_BYTES + (long) MAX_SLOTS * SLOT_BYTES) {
+                throw new IOException("Not a registry file, size " + size + ": " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " registry file: " + path);
+        }
+        int slots = buffer.getInt(SLOT_COUNT);
+        if (slots <= 0 || Integer.bitCount(slots) != 1 || buffer.capacity() != HEADER_BYTES + slots * SLOT_BYTES) {
+            throw new IOException("Registry file truncated or corrupt, " + slots + " slots in "
+                    + buffer.capacity() + " bytes: " + path);
+        }
+        return new RegistryFile(buffer, attributes);
+    }
+
+    /**
+     * Whether the file at the path is no longer the one mapped, e.g. because a new file was moved over it
+     */
+    boolean isReplacedBy(BasicFileAttributes attributes) {
+        return !Objects.equals(fileKey, attributes.fileKey()) || !lastModified.equals(attributes.lastModifiedTime());
+    }
+
+    /**
+     * Find the slot of a key without allocating; trailing spaces of the key are ignored
+     * @return The slot, or -1 when the key is not registered
+     */
+    int find(byte kind, CharSequence key) {
+        int length = keyLength(key);
+        if (length == 0 || length > KEY_BYTES) {
+            return -1;
+        }
+        int slot = hash(kind, key, length) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int offset = offset(slot);
+            byte slotKind = buffer.get(offset + KIND);
+            if (slotKind == EMPTY) {
+                return -1;
+            }
+            if (slotKind == kind && matches(offset, key, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int offset, CharSequence key, int length) {
+        if (buffer.get(offset + KEY_LENGTH) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + KEY + i) != (byte) key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isBlocked(int slot) {
+        return buffer.get(offset(slot) + STATUS) == BLOCKED;
+    }
+
+    int category(int slot) {
+        return buffer.getShort(offset(slot) + CATEGORY);
+    }
+
+    int merchantSlot(int slot) {
+        return buffer.getInt(offset(slot) + MERCHANT_SLOT);
+    }
+
+    long amountLimit(int slot) {
+        return buffer.getLong(offset(slot) + AMOUNT_LIMIT);
+    }
+
+    String key(int slot) {
+        int offset = offset(slot);
+        byte[] key = new byte[buffer.get(offset + KEY_LENGTH)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = buffer.get(offset + KEY + i);
+        }
+        return new String(key, StandardCharsets.US_ASCII);
+    }
+
+    int getSlots() {
+        return mask + 1;
+    }
+
+    int getTerminals() {
+        return terminals;
+    }
+
+    int getMerchants() {
+        return merchants;
+    }
+
+    long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    /**
+     * Length of a key without its trailing spaces, as fixed-length alphanumeric fields are padded
+     */
+    static int keyLength(CharSequence key) {
+        int length = key.length();
+        while (length > 0 && key.charAt(length - 1) == ' ') {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * FNV-1a over the kind and the key's bytes, finished with the murmur3 mix so linear probing sees
+     * well-spread slots
+     */
+    static int hash(byte kind, CharSequence key, int length) {
+        int hash = (0x811c9dc5 ^ kind) * 0x01000193;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (key.charAt(i) & 0xFF)) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Write one slot, for the registry writer
+     */
+    static void writeSlot(ByteBuffer table, int slot, byte kind, byte status, String key, int category,
+                          int merchantSlot, long amountLimit) {
+        int offset = offset(slot);
+        table.put(offset + KIND, kind);
+        table.put(offset + STATUS, status);
+        table.put(offset + KEY_LENGTH, (byte) key.length());
+        for (int i = 0; i < key.length(); i++) {
+            table.put(offset + KEY + i, (byte) key.charAt(i));
+        }
+        table.putShort(offset + CATEGORY, (short) category);
+        table.putInt(offset + MERCHANT_SLOT, merchantSlot);
+        table.putLong(offset + AMOUNT_LIMIT, amountLimit);
+    }
+}
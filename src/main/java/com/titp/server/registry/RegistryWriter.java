@@ -0,0 +1,196 @@
+package com.titp.server.registry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a registry file for {@link TerminalRegistry} and moves it over the target in one atomic rename,
+ * so a running server never maps a half-written file.
+ * <pre>
+ * java -cp jpos-server.jar com.titp.server.registry.RegistryWriter registry.csv registry.dat
+ * </pre>
+ * Input lines are {@code merchant,<id>,<mcc>,<limit>[,blocked]} and {@code terminal,<id>,<merchant id>[,blocked]},
+ * with limits in minor units and 0 for no limit; blank lines and lines starting with # are skipped.
+ */
+public class RegistryWriter {
+    private final Map<String, Merchant> merchants = new HashMap<>();
+    private final Map<String, Terminal> terminals = new HashMap<>();
+
+    public RegistryWriter addMerchant(String merchantId, int category, long amountLimit, boolean blocked) {
+        checkKey(merchantId);
+        if (category < 0 || category > 9999) {
+            throw new IllegalArgumentException("Merchant category code out of range: " + category);
+        }
+        if (merchants.putIfAbsent(merchantId, new Merchant(category, amountLimit, blocked)) != null) {
+            throw new IllegalArgumentException("Duplicate merchant " + merchantId);
+        }
+        return this;
+    }
+
+    public RegistryWriter addTerminal(String terminalId, String merchantId, boolean blocked) {
+        checkKey(terminalId);
+        if (terminals.putIfAbsent(terminalId, new Terminal(merchantId, blocked)) != null) {
+            throw new IllegalArgumentException("Duplicate terminal " + terminalId);
+        }
+        return this;
+    }
+
+    /**
+     * Write the registry next to the target, flush it to disk and move it over the target
+     */
+    public void write(Path target) throws IOException {
+        int entries = merchants.size() + terminals.size();
+        int slots = Math.max(16, Integer.highestOneBit(Math.max(1, entries * 2 - 1)) << 1);
+        if (slots > RegistryFile.MAX_SLOTS || slots < 0) {
+            throw new IllegalArgumentException(entries + " entries exceed the registry's " + RegistryFile.MAX_SLOTS / 2);
+        }
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    RegistryFile.HEADER_BYTES + (long) slots * RegistryFile.SLOT_BYTES);
+            table.putLong(0, RegistryFile.MAGIC);
+            table.putInt(8, RegistryFile.VERSION);
+            table.putInt(RegistryFile.SLOT_COUNT, slots);
+            table.putInt(RegistryFile.TERMINAL_COUNT, terminals.size());
+            table.putInt(RegistryFile.MERCHANT_COUNT, merchants.size());
+            table.putLong(RegistryFile.CREATED_MILLIS, System.currentTimeMillis());
+
+            boolean[] used = new boolean[slots];
+            Map<String, Integer> merchantSlots = new HashMap<>(merchants.size() * 2);
+            for (Map.Entry<String, Merchant> entry : merchants.entrySet()) {
+                Merchant merchant = entry.getValue();
+                int slot = place(used, RegistryFile.MERCHANT, entry.getKey());
+                merchantSlots.put(entry.getKey(), slot);
+                RegistryFile.writeSlot(table, slot, RegistryFile.MERCHANT, status(merchant.blocked), entry.getKey(),
+                        merchant.category, -1, merchant.amountLimit);
+            }
+            for (Map.Entry<String, Terminal> entry : terminals.entrySet()) {
+                Terminal terminal = entry.getValue();
+                Integer merchantSlot = merchantSlots.get(terminal.merchantId);
+                if (merchantSlot == null) {
+                    throw new IllegalArgumentException("Terminal " + entry.getKey() + " refers to unknown merchant "
+                            + terminal.merchantId);
+                }
+                int slot = place(used, RegistryFile.TERMINAL, entry.getKey());
+                RegistryFile.writeSlot(table, slot, RegistryFile.TERMINAL, status(terminal.blocked), entry.getKey(),
+                        0, merchantSlot, 0);
+            }
+            table.force();
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read the CSV input described in the class comment
+     */
+    public static RegistryWriter read(Path csv) throws IOException {
+        RegistryWriter writer = new RegistryWriter();
+        List<String[]> terminalLines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.US_ASCII)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(",", -1);
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = columns[i].trim();
+                }
+                try {
+                    if (columns[0].equals("merchant") && (columns.length == 4 || columns.length == 5)) {
+                        writer.addMerchant(columns[1], Integer.parseInt(columns[2]), Long.parseLong(columns[3]),
+                                isBlocked(columns, 4));
+                    } else if (columns[0].equals("terminal") && (columns.length == 3 || columns.length == 4)) {
+                        terminalLines.add(columns);
+                    } else {
+                        throw new IllegalArgumentException("Expected a merchant or terminal line");
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(csv + " line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        for (String[] columns : terminalLines) {
+            writer.addTerminal(columns[1], columns[2], isBlocked(columns, 3));
+        }
+        return writer;
+    }
+
+    private static boolean isBlocked(String[] columns, int index) {
+        return columns.length > index && columns[index].equalsIgnoreCase("blocked");
+    }
+
+    private static int place(boolean[] used, byte kind, String key) {
+        int mask = used.length - 1;
+        int slot = RegistryFile.hash(kind, key, key.length()) & mask;
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        return slot;
+    }
+
+    private static byte status(boolean blocked) {
+        return blocked ? RegistryFile.BLOCKED : RegistryFile.ACTIVE;
+    }
+
+    private static void checkKey(String key) {
+        if (key.isEmpty() || key.length() > RegistryFile.KEY_BYTES || RegistryFile.keyLength(key) != key.length()
+                || !StandardCharsets.US_ASCII.newEncoder().canEncode(key)) {
+            throw new IllegalArgumentException("Key must be 1 to " + RegistryFile.KEY_BYTES
+                    + " ASCII characters without trailing spaces: '" + key + "'");
+        }
+    }
+
+    private static final class Merchant {
+        final int category;
+        final long amountLimit;
+        final boolean blocked;
+
+        Merchant(int category, long amountLimit, boolean blocked) {
+            this.category = category;
+            this.amountLimit = amountLimit;
+            this.blocked = blocked;
+        }
+    }
+
+    private static final class Terminal {
+        final String merchantId;
+        final boolean blocked;
+
+        Terminal(String merchantId, boolean blocked) {
+            this.merchantId = merchantId;
+            this.blocked = blocked;
+        }
+    }
+
+    /**
+     * Entry point: CSV input and registry file to replace
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: RegistryWriter <registry.csv> <registry-file>");
+            System.exit(2);
+        }
+        RegistryWriter writer = read(Paths.get(args[0]));
+        writer.write(Paths.get(args[1]));
+        System.out.println("Wrote " + writer.terminals.size() + " terminals and " + writer.merchants.size()
+                + " merchants to " + args[1]);
+    }
+}
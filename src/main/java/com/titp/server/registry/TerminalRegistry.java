@@ -0,0 +1,216 @@
+package com.titp.server.registry;
+
+import com.solab.iso8583.IsoMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the terminals (field 41) and merchants (field 42) the server accepts, with each terminal's
+ * merchant and each merchant's category code and per-transaction limit.
+ * <p>
+ * The registry is a hash table file written by {@link RegistryWriter} and mapped read-only, so lookups
+ * compare the field values against the mapped bytes without allocating and the heap stays the same size
+ * however many entries the file holds. Daily updates write a new file and move it over the old one; the
+ * registry notices the new file, maps it and swaps it in. Requests being checked finish on the file they
+ * started with, and an old mapping is released once no check uses it any more.
+ */
+public class TerminalRegistry implements TerminalRegistryMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(TerminalRegistry.class);
+
+    private final Path path;
+    private final int checkIntervalSeconds;
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder failedReloads = new LongAdder();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder declined = new LongAdder();
+    private volatile RegistryFile current;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * Map the registry file
+     * @param checkIntervalSeconds How often to look for a replaced file, or 0 to reload only on request
+     */
+    public TerminalRegistry(Path path, int checkIntervalSeconds) throws IOException {
+        this.path = path;
+        this.checkIntervalSeconds = checkIntervalSeconds;
+        this.current = RegistryFile.open(path);
+        logLoaded("Loaded", current);
+    }
+
+    /**
+     * Start looking for a replaced file
+     */
+    public void start() {
+        if (checkIntervalSeconds <= 0) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "registry-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::reload, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+
+    /**
+     * Check a request's terminal (field 41), merchant (field 42) and amount (field 4) without allocating.
+     * A request without field 42 is checked against its terminal's merchant.
+     */
+    public Verdict check(IsoMessage request) {
+        Object terminalId = request.hasField(41) ? request.getObjectValue(41) : null;
+        Object merchantId = request.hasField(42) ? request.getObjectValue(42) : null;
+        long amount = request.hasField(4) ? amountOf(request.getObjectValue(4)) : 0;
+        Verdict verdict = check(terminalId instanceof CharSequence ? (CharSequence) terminalId : null,
+                merchantId instanceof CharSequence ? (CharSequence) merchantId : null, amount);
+        checks.increment();
+        if (verdict != Verdict.ACCEPTED) {
+            declined.increment();
+        }
+        return verdict;
+    }
+
+    /**
+     * Check a terminal, its merchant and an amount without allocating
+     * @param merchantId The merchant, or null to take the terminal's
+     * @param amount Amount in minor units
+     */
+    public Verdict check(CharSequence terminalId, CharSequence merchantId, long amount) {
+        RegistryFile file = current;
+        int terminal = terminalId != null ? file.find(RegistryFile.TERMINAL, terminalId) : -1;
+        if (terminal < 0) {
+            return Verdict.UNKNOWN_TERMINAL;
+        }
+        if (file.isBlocked(terminal)) {
+            return Verdict.TERMINAL_BLOCKED;
+        }
+        int merchant = file.merchantSlot(terminal);
+        if (merchantId != null) {
+            int requested = file.find(RegistryFile.MERCHANT, merchantId);
+            if (requested < 0) {
+                return Verdict.UNKNOWN_MERCHANT;
+            }
+            if (requested != merchant) {
+                return Verdict.MERCHANT_MISMATCH;
+            }
+        } else if (merchant < 0) {
+            return Verdict.UNKNOWN_MERCHANT;
+        }
+        if (file.isBlocked(merchant)) {
+            return Verdict.MERCHANT_BLOCKED;
+        }
+        long limit = file.amountLimit(merchant);
+        return limit > 0 && amount > limit ? Verdict.OVER_MERCHANT_LIMIT : Verdict.ACCEPTED;
+    }
+
+    /**
+     * The merchant category code of a merchant, or -1 when it is not registered
+     */
+    public int merchantCategory(CharSequence merchantId) {
+        RegistryFile file = current;
+        int merchant = file.find(RegistryFile.MERCHANT, merchantId);
+        return merchant >= 0 ? file.category(merchant) : -1;
+    }
+
+    /**
+     * The merchant a terminal is registered to, or null when the terminal is not registered or has none.
+     * Allocates the returned string, so meant for requests that lack field 42 rather than for every request.
+     */
+    public String merchantOf(CharSequence terminalId) {
+        RegistryFile file = current;
+        int terminal = file.find(RegistryFile.TERMINAL, terminalId);
+        int merchant = terminal >= 0 ? file.merchantSlot(terminal) : -1;
+        return merchant >= 0 ? file.key(merchant) : null;
+    }
+
+    @Override
+    public synchronized boolean reload() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!current.isReplacedBy(attributes)) {
+                return false;
+            }
+            RegistryFile replacement = RegistryFile.open(path);
+            current = replacement;
+            reloads.increment();
+            logLoaded("Swapped in", replacement);
+            return true;
+        } catch (NoSuchFileException e) {
+            // Between the removal and the move of a non-atomic replacement; the next check picks it up
+            logger.warn("Registry file {} missing, keeping the one loaded", path);
+        } catch (IOException | RuntimeException e) {
+            failedReloads.increment();
+            logger.error("Failed to load registry file {}, keeping the one loaded", path, e);
+        }
+        return false;
+    }
+
+    private void logLoaded(String action, RegistryFile file) {
+        logger.info("{} registry {}: {} terminals, {} merchants in {} slots, written {}", action, path,
+                file.getTerminals(), file.getMerchants(), file.getSlots(), Instant.ofEpochMilli(file.getCreatedMillis()));
+    }
+
+    /**
+     * Field 4 as minor units: a number as parsed for NUMERIC fields, else its digits
+     */
+    private static long amountOf(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof CharSequence) {
+            CharSequence digits = (CharSequence) value;
+            long amount = 0;
+            for (int i = 0; i < digits.length(); i++) {
+                char digit = digits.charAt(i);
+                if (digit >= '0' && digit <= '9') {
+                    amount = amount * 10 + (digit - '0');
+                }
+            }
+            return amount;
+        }
+        return 0;
+    }
+
+    @Override
+    public String getFile() { return path.toString(); }
+
+    @Override
+    public int getTerminals() { return current.getTerminals(); }
+
+    @Override
+    public int getMerchants() { return current.getMerchants(); }
+
+    @Override
+    public int getSlots() { return current.getSlots(); }
+
+    @Override
+    public long getCreatedMillis() { return current.getCreatedMillis(); }
+
+    @Override
+    public long getReloads() { return reloads.sum(); }
+
+    @Override
+    public long getFailedReloads() { return failedReloads.sum(); }
+
+    @Override
+    public long getChecks() { return checks.sum(); }
+
+    @Override
+    public long getDeclined() { return declined.sum(); }
+}
@@ -0,0 +1,33 @@
+package com.titp.server.registry;
+
+/**
+ * The registry file currently mapped, its reloads and the requests it declined
+ */
+public interface TerminalRegistryMXBean {
+    String getFile();
+
+    int getTerminals();
+
+    int getMerchants();
+
+    int getSlots();
+
+    /**
+     * When the mapped file was written, in milliseconds since the epoch
+     */
+    long getCreatedMillis();
+
+    long getReloads();
+
+    long getFailedReloads();
+
+    long getChecks();
+
+    long getDeclined();
+
+    /**
+     * Map the file again if it was replaced since the last check
+     * @return true if a new file was swapped in
+     */
+    boolean reload();
+}
@@ -0,0 +1,32 @@
+package com.titp.server.registry;
+
+import com.titp.server.utils.ISOResponseCode;
+
+/**
+ * Outcome of checking a request's terminal, merchant and amount against the registry
+ */
+public enum Verdict {
+    ACCEPTED(ISOResponseCode.SUCCESS, "Terminal and merchant accepted"),
+    UNKNOWN_TERMINAL(ISOResponseCode.NOT_PERMITTED_TO_TERMINAL, "Terminal not registered"),
+    TERMINAL_BLOCKED(ISOResponseCode.NOT_PERMITTED_TO_TERMINAL, "Terminal blocked"),
+    UNKNOWN_MERCHANT(ISOResponseCode.INVALID_MERCHANT, "Merchant not registered"),
+    MERCHANT_MISMATCH(ISOResponseCode.INVALID_MERCHANT, "Terminal registered to another merchant"),
+    MERCHANT_BLOCKED(ISOResponseCode.INVALID_MERCHANT, "Merchant blocked"),
+    OVER_MERCHANT_LIMIT(ISOResponseCode.EXCEEDS_AMOUNT_LIMIT, "Amount over the merchant's limit");
+
+    private final ISOResponseCode responseCode;
+    private final String description;
+
+    Verdict(ISOResponseCode responseCode, String description) {
+        this.responseCode = responseCode;
+        this.description = description;
+    }
+
+    public ISOResponseCode getResponseCode() {
+        return responseCode;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,168 @@
+package com.titp.server.settlement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Incrementally maintained settlement totals per batch and per terminal.
+ * Every approved financial transaction or reversal is added as it happens, so a
+ * reconciliation request is answered from the counters without scanning history.
+ * The open batch is closed by {@link #cutover()}, which operators run through the MBean.
+ */
+public class SettlementTotals implements SettlementTotalsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(SettlementTotals.class);
+
+    private final AtomicReference<Batch> currentBatch = new AtomicReference<>(new Batch(1));
+    private volatile BatchSnapshot lastClosed;
+
+    /**
+     * Record an approved transaction against the open batch
+     * @param transactionClass Settlement classification of the transaction
+     * @param terminalId Field 41, or null when the request carried none
+     * @param amount Field 4 in minor units
+     */
+    public void record(TransactionClass transactionClass, String terminalId, long amount) {
+        if (transactionClass == TransactionClass.NONE) {
+            return;
+        }
+
+        while (true) {
+            Batch batch = currentBatch.get();
+            batch.activeWriters.increment();
+            try {
+                // A cutover may have happened between the read and the increment; retry on the new batch
+                if (currentBatch.get() != batch) {
+                    continue;
+                }
+                batch.totals.add(transactionClass, amount);
+                if (terminalId != null) {
+                    batch.terminalTotals.computeIfAbsent(terminalId, id -> new Totals()).add(transactionClass, amount);
+                }
+                return;
+            } finally {
+                batch.activeWriters.decrement();
+            }
+        }
+    }
+
+    /**
+     * Get the running totals of one terminal in the open batch
+     */
+    public TotalsSnapshot getTerminalTotals(String terminalId) {
+        Totals totals = terminalId != null ? currentBatch.get().terminalTotals.get(terminalId) : null;
+        return totals != null ? totals.snapshot() : TotalsSnapshot.EMPTY;
+    }
+
+    /**
+     * Get the running totals of the open batch
+     */
+    public TotalsSnapshot getBatchTotals() {
+        return currentBatch.get().totals.snapshot();
+    }
+
+    /**
+     * Get the number of the open batch
+     */
+    @Override
+    public long getCurrentBatchNumber() {
+        return currentBatch.get().number;
+    }
+
+    @Override
+    public Map<String, Long> getOpenBatch() {
+        return getBatchTotals().asMap();
+    }
+
+    @Override
+    public long getLastClosedBatchNumber() {
+        BatchSnapshot closed = lastClosed;
+        return closed != null ? closed.getBatchNumber() : 0;
+    }
+
+    @Override
+    public Map<String, Long> getLastClosedBatch() {
+        BatchSnapshot closed = lastClosed;
+        return closed != null ? closed.getTotals().asMap() : new LinkedHashMap<>();
+    }
+
+    @Override
+    public long closeBatch() {
+        return cutover().getBatchNumber();
+    }
+
+    /**
+     * The batch closed last, or null before the first cutover
+     */
+    public BatchSnapshot getLastClosed() {
+        return lastClosed;
+    }
+
+    /**
+     * Close the open batch and start the next one.
+     * Waits for writers still adding to the closed batch, so the returned snapshot is exact.
+     * @return Final totals of the closed batch
+     */
+    public BatchSnapshot cutover() {
+        Batch closed;
+        Batch next;
+        do {
+            closed = currentBatch.get();
+            next = new Batch(closed.number + 1);
+        } while (!currentBatch.compareAndSet(closed, next));
+
+        while (closed.activeWriters.sum() != 0) {
+            Thread.onSpinWait();
+        }
+
+        Map<String, TotalsSnapshot> terminals = new HashMap<>();
+        closed.terminalTotals.forEach((terminalId, totals) -> terminals.put(terminalId, totals.snapshot()));
+        BatchSnapshot snapshot = new BatchSnapshot(closed.number, closed.totals.snapshot(),
+                Collections.unmodifiableMap(terminals));
+        lastClosed = snapshot;
+
+        logger.info("Settlement cutover: batch {} closed with {} terminals, {}",
+                snapshot.getBatchNumber(), terminals.size(), snapshot.getTotals());
+        return snapshot;
+    }
+
+    /**
+     * Counters of one settlement batch
+     */
+    private static class Batch {
+        final long number;
+        final Totals totals = new Totals();
+        final ConcurrentHashMap<String, Totals> terminalTotals = new ConcurrentHashMap<>();
+        final LongAdder activeWriters = new LongAdder();
+
+        Batch(long number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * Final totals of a closed batch
+     */
+    public static class BatchSnapshot {
+        private final long batchNumber;
+        private final TotalsSnapshot totals;
+        private final Map<String, TotalsSnapshot> terminalTotals;
+
+        public BatchSnapshot(long batchNumber, TotalsSnapshot totals, Map<String, TotalsSnapshot> terminalTotals) {
+            this.batchNumber = batchNumber;
+            this.totals = totals;
+            this.terminalTotals = terminalTotals;
+        }
+
+        public long getBatchNumber() { return batchNumber; }
+        public TotalsSnapshot getTotals() { return totals; }
+        public Map<String, TotalsSnapshot> getTerminalTotals() { return terminalTotals; }
+    }
+}
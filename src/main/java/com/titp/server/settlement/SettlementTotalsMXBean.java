@@ -0,0 +1,31 @@
+package com.titp.server.settlement;
+
+import java.util.Map;
+
+/**
+ * The open settlement batch, the last one closed, and the operation closing the open batch
+ */
+public interface SettlementTotalsMXBean {
+    long getCurrentBatchNumber();
+
+    /**
+     * Counts and amounts of the open batch, over all terminals
+     */
+    Map<String, Long> getOpenBatch();
+
+    /**
+     * Number of the batch closed last, or 0 before the first cutover
+     */
+    long getLastClosedBatchNumber();
+
+    /**
+     * Final counts and amounts of the batch closed last, over all terminals; empty before the first cutover
+     */
+    Map<String, Long> getLastClosedBatch();
+
+    /**
+     * Close the open batch and start the next one, as {@link SettlementTotals#cutover()}
+     * @return The number of the batch closed
+     */
+    long closeBatch();
+}
@@ -0,0 +1,56 @@
+package com.titp.server.settlement;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped running counters for one settlement scope (a terminal or a whole batch).
+ * Updates never contend on a single cache line; reads sum the stripes.
+ */
+public class Totals {
+    private final LongAdder debitCount = new LongAdder();
+    private final LongAdder debitAmount = new LongAdder();
+    private final LongAdder creditCount = new LongAdder();
+    private final LongAdder creditAmount = new LongAdder();
+    private final LongAdder debitReversalCount = new LongAdder();
+    private final LongAdder debitReversalAmount = new LongAdder();
+    private final LongAdder creditReversalCount = new LongAdder();
+    private final LongAdder creditReversalAmount = new LongAdder();
+
+    /**
+     * Add one transaction of the given class
+     */
+    public void add(TransactionClass transactionClass, long amount) {
+        switch (transactionClass) {
+            case DEBIT:
+                debitCount.increment();
+                debitAmount.add(amount);
+                break;
+            case CREDIT:
+                creditCount.increment();
+                creditAmount.add(amount);
+                break;
+            case DEBIT_REVERSAL:
+                debitReversalCount.increment();
+                debitReversalAmount.add(amount);
+                break;
+            case CREDIT_REVERSAL:
+                creditReversalCount.increment();
+                creditReversalAmount.add(amount);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Take a point-in-time copy of the counters.
+     * Only exact when no writer is active, which {@link SettlementTotals#cutover()} guarantees.
+     */
+    public TotalsSnapshot snapshot() {
+        return new TotalsSnapshot(
+                debitCount.sum(), debitAmount.sum(),
+                creditCount.sum(), creditAmount.sum(),
+                debitReversalCount.sum(), debitReversalAmount.sum(),
+                creditReversalCount.sum(), creditReversalAmount.sum());
+    }
+}
@@ -0,0 +1,74 @@
+package com.titp.server.settlement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable copy of settlement counters
+ */
+public class TotalsSnapshot {
+    public static final TotalsSnapshot EMPTY = new TotalsSnapshot(0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final long debitCount;
+    private final long debitAmount;
+    private final long creditCount;
+    private final long creditAmount;
+    private final long debitReversalCount;
+    private final long debitReversalAmount;
+    private final long creditReversalCount;
+    private final long creditReversalAmount;
+
+    public TotalsSnapshot(long debitCount, long debitAmount, long creditCount, long creditAmount,
+                          long debitReversalCount, long debitReversalAmount,
+                          long creditReversalCount, long creditReversalAmount) {
+        this.debitCount = debitCount;
+        this.debitAmount = debitAmount;
+        this.creditCount = creditCount;
+        this.creditAmount = creditAmount;
+        this.debitReversalCount = debitReversalCount;
+        this.debitReversalAmount = debitReversalAmount;
+        this.creditReversalCount = creditReversalCount;
+        this.creditReversalAmount = creditReversalAmount;
+    }
+
+    public long getDebitCount() { return debitCount; }
+    public long getDebitAmount() { return debitAmount; }
+    public long getCreditCount() { return creditCount; }
+    public long getCreditAmount() { return creditAmount; }
+    public long getDebitReversalCount() { return debitReversalCount; }
+    public long getDebitReversalAmount() { return debitReversalAmount; }
+    public long getCreditReversalCount() { return creditReversalCount; }
+    public long getCreditReversalAmount() { return creditReversalAmount; }
+
+    /**
+     * Net settlement amount: debits less credits, with reversed debits taken off and reversed credits added
+     * back. Positive means owed by the acquirer.
+     */
+    public long getNetAmount() {
+        return debitAmount - creditAmount - debitReversalAmount + creditReversalAmount;
+    }
+
+    /**
+     * The counts and amounts by name, net amount last, e.g. for the MBean
+     */
+    public Map<String, Long> asMap() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("debitCount", debitCount);
+        map.put("debitAmount", debitAmount);
+        map.put("creditCount", creditCount);
+        map.put("creditAmount", creditAmount);
+        map.put("debitReversalCount", debitReversalCount);
+        map.put("debitReversalAmount", debitReversalAmount);
+        map.put("creditReversalCount", creditReversalCount);
+        map.put("creditReversalAmount", creditReversalAmount);
+        map.put("netAmount", getNetAmount());
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("debits=%d/%d credits=%d/%d debitReversals=%d/%d creditReversals=%d/%d net=%d",
+                debitCount, debitAmount, creditCount, creditAmount, debitReversalCount, debitReversalAmount,
+                creditReversalCount, creditReversalAmount, getNetAmount());
+    }
+}
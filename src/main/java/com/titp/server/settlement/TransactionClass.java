@@ -0,0 +1,42 @@
+package com.titp.server.settlement;
+
+/**
+ * Settlement classification of an approved transaction
+ */
+public enum TransactionClass {
+    DEBIT, CREDIT, DEBIT_REVERSAL, CREDIT_REVERSAL, NONE;
+
+    /**
+     * Classify a financial request by the transaction type (first two digits) of its processing code, the
+     * types {@code FinancialProcessor} approves
+     * @param processingCode Field 3 as parsed by j8583
+     * @return DEBIT for purchases and withdrawals, CREDIT for refunds, NONE otherwise
+     */
+    public static TransactionClass fromProcessingCode(long processingCode) {
+        switch ((int) (processingCode / 10000)) {
+            case 0:  // Purchase
+            case 31: // Cash withdrawal
+                return DEBIT;
+            case 20: // Refund
+                return CREDIT;
+            default:
+                return NONE;
+        }
+    }
+
+    /**
+     * Classify a reversal by the processing code it repeats from its original
+     * @return DEBIT_REVERSAL for a reversed purchase or withdrawal, CREDIT_REVERSAL for a reversed refund,
+     * NONE otherwise
+     */
+    public static TransactionClass reversalOf(long processingCode) {
+        switch (fromProcessingCode(processingCode)) {
+            case DEBIT:
+                return DEBIT_REVERSAL;
+            case CREDIT:
+                return CREDIT_REVERSAL;
+            default:
+                return NONE;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.titp.server.shard;
+
+import com.titp.server.batch.RequestBatcher;
+import com.titp.server.keyed.KeyedExecutor;
+import com.titp.server.lane.LaneScheduler;
+import com.titp.server.listener.Listener;
+import com.titp.server.pipeline.MessagePipeline;
+import com.titp.server.processor.ProcessorFactory;
+import com.titp.server.processor.ProcessorSet;
+import com.titp.server.utils.RandomUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * One execution shard: a fixed set of handler threads and everything those threads mutate on the hot path.
+ * A connection is assigned to a shard when it is accepted and stays there, so its processors, random
+ * source and counters are never touched by threads of another shard.
+ * <p>
+ * Processors are derived per shard from each listener's shared processor set and rebuilt when that set is
+ * replaced by a configuration reload. Message factories are immutable once configured and stay shared.
+ * <p>
+ * In pipeline mode the handler threads only read frames, and the shard's {@link MessagePipeline} parses,
+ * processes and answers them on its own stage threads. With priority lanes, the shard's {@link LaneScheduler}
+ * decides in which order its workers process the frames read. With terminal-ordered processing, the shard's
+ * {@link KeyedExecutor} processes each terminal's requests in order and different terminals in parallel. With
+ * request batching, the shard's {@link RequestBatcher} hands requests to their processors in batches.
+ * <p>
+ * Responses produced by any of those threads are queued per connection and written by the shard's response
+ * writers, so a client that stops reading holds up its own connection only.
+ */
+public class Shard implements ShardMXBean {
+    private final int index;
+    private final int handlerThreads;
+    private final ExecutorService executor;
+    private final MessagePipeline pipeline;
+    private final LaneScheduler lanes;
+    private final KeyedExecutor keyedExecutor;
+    private final RequestBatcher batcher;
+    private final ExecutorService responseWriters;
+    private final int responseQueueCapacity;
+    private final RandomUtils random = new RandomUtils();
+    private final Map<Listener, ShardProcessors> processors = new ConcurrentHashMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+
+    /**
+     * @param pipeline The shard's message pipeline, or null to process messages on the handler threads
+     * @param lanes The shard's priority lanes, or null to process messages on the handler threads
+     * @param keyedExecutor The shard's per-terminal executor, or null to process messages on the handler threads
+     * @param batcher The shard's request batcher, or null to process messages one at a time
+     * @param responseQueueCapacity Responses that may wait to be written per connection answered off the
+     * handler threads
+     */
+    Shard(int index, int handlerThreads, MessagePipeline pipeline, LaneScheduler lanes, KeyedExecutor keyedExecutor,
+          RequestBatcher batcher, int responseQueueCapacity) {
+        this.index = index;
+        this.handlerThreads = handlerThreads;
+        this.pipeline = pipeline;
+        this.lanes = lanes;
+        this.keyedExecutor = keyedExecutor;
+        this.batcher = batcher;
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(handlerThreads,
+                task -> new Thread(task, "shard-" + index + "-handler-" + threadCounter.incrementAndGet()));
+        this.responseQueueCapacity = responseQueueCapacity;
+        if (pipeline != null || lanes != null || keyedExecutor != null || batcher != null) {
+            AtomicInteger writerCounter = new AtomicInteger();
+            this.responseWriters = Executors.newCachedThreadPool(task -> {
+                Thread writer = new Thread(task, "shard-" + index + "-writer-" + writerCounter.incrementAndGet());
+                writer.setDaemon(true);
+                return writer;
+            });
+        } else {
+            this.responseWriters = null;
+        }
+    }
+
+    /**
+     * Run a connection's handler on one of this shard's threads
+     */
+    public void execute(Runnable handler) {
+        executor.execute(handler);
+    }
+
+    /**
+     * This shard's processors for a listener, following the listener's configuration reloads
+     */
+    public Supplier<ProcessorSet> processors(Listener listener) {
+        return processors.computeIfAbsent(listener, key -> new ShardProcessors(key.getProcessors(), random));
+    }
+
+    /**
+     * @return The shard's message pipeline, or null when messages are processed on the handler threads
+     */
+    public MessagePipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return The shard's priority lanes, or null when messages are processed in arrival order
+     */
+    public LaneScheduler getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return The shard's per-terminal executor, or null when messages are processed on the handler threads
+     */
+    public KeyedExecutor getKeyedExecutor() {
+        return keyedExecutor;
+    }
+
+    /**
+     * @return The shard's request batcher, or null when messages are processed one at a time
+     */
+    public RequestBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * @return The executor writing the queued responses of this shard's connections, or null when every
+     * response is written by the connection's handler thread
+     */
+    public ExecutorService getResponseWriters() {
+        return responseWriters;
+    }
+
+    /**
+     * @return Responses that may wait to be written per connection
+     */
+    public int getResponseQueueCapacity() {
+        return responseQueueCapacity;
+    }
+
+    public void connectionOpened() {
+        openConnections.incrementAndGet();
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    public void messageReceived() {
+        messages.increment();
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public int getIndex() { return index; }
+
+    @Override
+    public int getHandlerThreads() { return handlerThreads; }
+
+    @Override
+    public int getOpenConnections() { return openConnections.get(); }
+
+    @Override
+    public long getConnectionsOpened() { return connectionsOpened.sum(); }
+
+    @Override
+    public long getMessages() { return messages.sum(); }
+
+    /**
+     * A listener's processors as built for one shard, rebuilt when the listener's shared set changes
+     */
+    private static final class ShardProcessors implements Supplier<ProcessorSet> {
+        private final Supplier<ProcessorSet> shared;
+        private final RandomUtils random;
+        private volatile Built built = new Built(null, null);
+
+        ShardProcessors(Supplier<ProcessorSet> shared, RandomUtils random) {
+            this.shared = shared;
+            this.random = random;
+        }
+
+        @Override
+        public ProcessorSet get() {
+            ProcessorSet source = shared.get();
+            Built current = built;
+            return current.source == source ? current.processors : rebuild(source);
+        }
+
+        private synchronized ProcessorSet rebuild(ProcessorSet source) {
+            if (built.source != source) {
+                built = new Built(source, ProcessorFactory.build(source.getMessageFactory(), random));
+            }
+            return built.processors;
+        }
+    }
+
+    private static final class Built {
+        final ProcessorSet source;
+        final ProcessorSet processors;
+
+        Built(ProcessorSet source, ProcessorSet processors) {
+            this.source = source;
+            this.processors = processors;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.titp.server.shard;
+
+/**
+ * Load of one execution shard
+ */
+public interface ShardMXBean {
+    int getIndex();
+
+    int getHandlerThreads();
+
+    int getOpenConnections();
+
+    long getConnectionsOpened();
+
+    long getMessages();
+}
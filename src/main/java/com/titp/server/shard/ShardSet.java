@@ -0,0 +1,132 @@
+package com.titp.server.shard;
+
+import com.titp.server.batch.RequestBatcher;
+import com.titp.server.keyed.KeyedExecutor;
+import com.titp.server.lane.LaneScheduler;
+import com.titp.server.pipeline.MessagePipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * The server's execution shards, by default one per available core. The handler thread pool is split
+ * between them, the remainder going one thread each to the first shards, and each accepted connection goes
+ * to the shard with the most handler threads left free. A connection holds its handler thread for its
+ * lifetime, so this keeps every thread of the pool usable: no connection waits on a full shard while
+ * another shard has a thread free.
+ */
+public class ShardSet {
+    private static final Logger logger = LoggerFactory.getLogger(ShardSet.class);
+
+    private final List<Shard> shards;
+    private int nextShard;
+
+    /**
+     * @param shardCount Number of shards, or 0 for one per available core
+     * @param threadPoolSize Handler threads over all shards
+     * @param pipelines Creates the message pipeline of the shard with the given index, or null for none
+     * @param lanes Creates the priority lanes of the shard with the given index, or null for none
+     * @param keyedExecutors Creates the per-terminal executor of the shard with the given index, or null for none
+     * @param batchers Creates the request batcher of the shard with the given index, or null for none
+     * @param responseQueueCapacity Responses that may wait to be written per connection answered off the
+     * handler threads
+     */
+    public ShardSet(int shardCount, int threadPoolSize, IntFunction<MessagePipeline> pipelines,
+                    IntFunction<LaneScheduler> lanes, IntFunction<KeyedExecutor> keyedExecutors,
+                    IntFunction<RequestBatcher> batchers, int responseQueueCapacity) {
+        int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        int threadsPerShard = threadPoolSize / count;
+        int remainder = threadPoolSize % count;
+        int totalThreads = 0;
+        List<Shard> created = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            MessagePipeline pipeline = pipelines != null ? pipelines.apply(i) : null;
+            if (pipeline != null) {
+                pipeline.start();
+            }
+            LaneScheduler laneScheduler = lanes != null ? lanes.apply(i) : null;
+            if (laneScheduler != null) {
+                laneScheduler.start();
+            }
+            KeyedExecutor keyedExecutor = keyedExecutors != null ? keyedExecutors.apply(i) : null;
+            RequestBatcher batcher = batchers != null ? batchers.apply(i) : null;
+            if (batcher != null) {
+                batcher.start();
+            }
+            int handlerThreads = Math.max(1, threadsPerShard + (i < remainder ? 1 : 0));
+            totalThreads += handlerThreads;
+            created.add(new Shard(i, handlerThreads, pipeline, laneScheduler, keyedExecutor, batcher,
+                    responseQueueCapacity));
+        }
+        this.shards = Collections.unmodifiableList(created);
+        logger.info("Created {} shards with {} handler threads in total", count, totalThreads);
+    }
+
+    /**
+     * Pick the shard for a new connection: the one with the most handler threads free, taking turns between
+     * equally free shards. When every thread is taken the connection waits on the shard with the fewest
+     * waiting. Called from the accepting threads only.
+     */
+    public synchronized Shard assign() {
+        Shard chosen = null;
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get((nextShard + i) % shards.size());
+            if (chosen == null || freeThreads(shard) > freeThreads(chosen)) {
+                chosen = shard;
+            }
+        }
+        nextShard = (chosen.getIndex() + 1) % shards.size();
+        return chosen;
+    }
+
+    private static int freeThreads(Shard shard) {
+        return shard.getHandlerThreads() - shard.getOpenConnections();
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * Stop every shard's handler threads, waiting up to the timeout for running handlers to finish, then
+     * the pipelines, lanes, keyed executors and batchers once they have answered what the handlers passed on,
+     * and last the response writers once they have written those answers
+     * @return true if all handlers finished in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (Shard shard : shards) {
+            shard.getExecutor().shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean terminated = true;
+        for (Shard shard : shards) {
+            terminated &= shard.getExecutor().awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        for (Shard shard : shards) {
+            if (shard.getPipeline() != null) {
+                shard.getPipeline().stop();
+            }
+            if (shard.getLanes() != null) {
+                shard.getLanes().stop();
+            }
+            if (shard.getKeyedExecutor() != null) {
+                shard.getKeyedExecutor().stop();
+            }
+            if (shard.getBatcher() != null) {
+                shard.getBatcher().stop();
+            }
+        }
+        for (Shard shard : shards) {
+            if (shard.getResponseWriters() != null) {
+                shard.getResponseWriters().shutdown();
+                shard.getResponseWriters().awaitTermination(5, TimeUnit.SECONDS);
+            }
+        }
+        return terminated;
+    }
+}
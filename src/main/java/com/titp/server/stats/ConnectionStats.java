@@ -0,0 +1,83 @@
+package com.titp.server.stats;
+
+/**
+ * Counters of one client connection.
+ * <p>
+ * Only the connection's handler thread updates them; the fields are volatile so that snapshots and the
+ * summary log taken from other threads see recent values without the handler paying for atomics.
+ */
+public class ConnectionStats {
+    private final long connectionId;
+    private final String remoteAddress;
+    private final long connectedAtMillis;
+    private volatile long messages;
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long errors;
+    private volatile long lastActivityMillis;
+
+    ConnectionStats(long connectionId, String remoteAddress) {
+        this.connectionId = connectionId;
+        this.remoteAddress = remoteAddress;
+        this.connectedAtMillis = System.currentTimeMillis();
+        this.lastActivityMillis = connectedAtMillis;
+    }
+
+    /**
+     * A request frame of the given size (including its length prefix) was read
+     * @return The connection-local sequence number of the message
+     */
+    long messageReceived(int frameBytes) {
+        bytesIn += frameBytes;
+        lastActivityMillis = System.currentTimeMillis();
+        return ++messages;
+    }
+
+    void responseSent(int frameBytes) {
+        bytesOut += frameBytes;
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    void errorOccurred() {
+        errors++;
+    }
+
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public long getConnectedAtMillis() {
+        return connectedAtMillis;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("conn=%d %s messages=%d in=%dB out=%dB errors=%d idle=%dms",
+                connectionId, remoteAddress, messages, bytesIn, bytesOut, errors,
+                System.currentTimeMillis() - lastActivityMillis);
+    }
+}
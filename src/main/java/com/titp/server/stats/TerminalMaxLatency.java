@@ -0,0 +1,90 @@
+package com.titp.server.stats;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The terminals with the highest maximum latency, at most {@code capacity} of them.
+ * <p>
+ * When the table is full, a terminal not in it enters only with a latency above the lowest maximum kept,
+ * replacing that terminal. A terminal's maximum only grows, so one that was replaced and comes back with a
+ * higher latency has no higher latency it could have lost, and the table holds exactly the slowest
+ * terminals. Updating a tracked terminal is a map lookup and, when the latency is a new maximum, a
+ * compare-and-set; a latency below the lowest maximum kept costs a lookup and a read.
+ */
+class TerminalMaxLatency {
+    private final int capacity;
+    private final ConcurrentHashMap<String, AtomicLong> maxima;
+    private final Object replacementLock = new Object();
+    // Lowest maximum in the table once it is full, 0 before; raised under the lock only
+    private volatile long floor;
+
+    TerminalMaxLatency(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.maxima = new ConcurrentHashMap<>(this.capacity * 2);
+    }
+
+    void record(String terminalId, long latencyNanos) {
+        AtomicLong maximum = maxima.get(terminalId);
+        if (maximum != null) {
+            maximum.accumulateAndGet(latencyNanos, Math::max);
+        } else if (latencyNanos > floor) {
+            insert(terminalId, latencyNanos);
+        }
+    }
+
+    private void insert(String terminalId, long latencyNanos) {
+        synchronized (replacementLock) {
+            AtomicLong maximum = maxima.get(terminalId);
+            if (maximum != null) {
+                maximum.accumulateAndGet(latencyNanos, Math::max);
+                return;
+            }
+            if (maxima.size() >= capacity) {
+                String lowest = null;
+                long lowestNanos = Long.MAX_VALUE;
+                for (Map.Entry<String, AtomicLong> candidate : maxima.entrySet()) {
+                    if (candidate.getValue().get() < lowestNanos) {
+                        lowest = candidate.getKey();
+                        lowestNanos = candidate.getValue().get();
+                    }
+                }
+                if (latencyNanos <= lowestNanos) {
+                    floor = lowestNanos;
+                    return;
+                }
+                maxima.remove(lowest);
+            }
+            maxima.put(terminalId, new AtomicLong(latencyNanos));
+            if (maxima.size() >= capacity) {
+                long lowestNanos = Long.MAX_VALUE;
+                for (AtomicLong candidate : maxima.values()) {
+                    lowestNanos = Math.min(lowestNanos, candidate.get());
+                }
+                floor = lowestNanos;
+            }
+        }
+    }
+
+    /**
+     * The n terminals with the highest maximum latency, highest first
+     */
+    List<TrafficSnapshot.TerminalLatency> top(int n) {
+        List<TrafficSnapshot.TerminalLatency> terminals = new ArrayList<>(maxima.size());
+        maxima.forEach((terminalId, maximum) ->
+                terminals.add(new TrafficSnapshot.TerminalLatency(terminalId, maximum.get())));
+        terminals.sort(Comparator.comparingLong(TrafficSnapshot.TerminalLatency::getMaxLatencyNanos).reversed());
+        return terminals.size() > n ? new ArrayList<>(terminals.subList(0, n)) : terminals;
+    }
+
+    void clear() {
+        synchronized (replacementLock) {
+            maxima.clear();
+            floor = 0;
+        }
+    }
+}
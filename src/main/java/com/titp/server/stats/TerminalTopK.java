@@ -0,0 +1,103 @@
+package com.titp.server.stats;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded message counts per terminal ID using the space-saving algorithm.
+ * <p>
+ * At most {@code capacity} terminals are tracked. A terminal seen for the first time while the table is
+ * full replaces the terminal with the lowest count and inherits that count as its possible overestimate,
+ * so the heaviest terminals are always kept and each count is off by at most its reported error.
+ * Counting a tracked terminal is a map lookup and an atomic increment; only replacements take a lock. A
+ * count that lands on an entry being replaced is made again on the terminal's current entry, so it is not
+ * lost with the replaced one.
+ */
+class TerminalTopK {
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final Object replacementLock = new Object();
+
+    TerminalTopK(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.entries = new ConcurrentHashMap<>(this.capacity * 2);
+    }
+
+    void record(String terminalId) {
+        while (true) {
+            Entry entry = entries.get(terminalId);
+            if (entry == null) {
+                insert(terminalId);
+                return;
+            }
+            entry.count.incrementAndGet();
+            if (entries.get(terminalId) == entry) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add a terminal and count its message, both under the replacement lock
+     */
+    private void insert(String terminalId) {
+        synchronized (replacementLock) {
+            Entry entry = entries.get(terminalId);
+            if (entry != null) {
+                entry.count.incrementAndGet();
+                return;
+            }
+            long error = 0;
+            if (entries.size() >= capacity) {
+                Entry minimum = null;
+                for (Entry candidate : entries.values()) {
+                    if (minimum == null || candidate.count.get() < minimum.count.get()) {
+                        minimum = candidate;
+                    }
+                }
+                entries.remove(minimum.terminalId);
+                error = minimum.count.get();
+            }
+            entry = new Entry(terminalId, error);
+            entry.count.incrementAndGet();
+            entries.put(terminalId, entry);
+        }
+    }
+
+    /**
+     * The n terminals with the highest counts, highest first
+     */
+    List<TrafficSnapshot.Terminal> top(int n) {
+        List<TrafficSnapshot.Terminal> terminals = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            terminals.add(new TrafficSnapshot.Terminal(entry.terminalId, entry.count.get(), entry.error));
+        }
+        terminals.sort(Comparator.comparingLong(TrafficSnapshot.Terminal::getMessages).reversed());
+        return terminals.size() > n ? new ArrayList<>(terminals.subList(0, n)) : terminals;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        synchronized (replacementLock) {
+            entries.clear();
+        }
+    }
+
+    private static final class Entry {
+        final String terminalId;
+        final AtomicLong count;
+        final long error;
+
+        Entry(String terminalId, long error) {
+            this.terminalId = terminalId;
+            this.count = new AtomicLong(error);
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.titp.server.stats;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Point-in-time copy of server-wide, per-connection and top terminal counters, and of the slowest terminals
+ */
+public class TrafficSnapshot {
+    private final long timestampMillis;
+    private final long connectionsOpened;
+    private final long messages;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long errors;
+    private final List<Connection> connections;
+    private final List<Terminal> topTerminals;
+    private final List<TerminalLatency> slowestTerminals;
+
+    TrafficSnapshot(long timestampMillis, long connectionsOpened, long messages, long bytesIn, long bytesOut,
+                    long errors, List<Connection> connections, List<Terminal> topTerminals,
+                    List<TerminalLatency> slowestTerminals) {
+        this.timestampMillis = timestampMillis;
+        this.connectionsOpened = connectionsOpened;
+        this.messages = messages;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.errors = errors;
+        this.connections = Collections.unmodifiableList(connections);
+        this.topTerminals = Collections.unmodifiableList(topTerminals);
+        this.slowestTerminals = Collections.unmodifiableList(slowestTerminals);
+    }
+
+    public long getTimestampMillis() { return timestampMillis; }
+    public long getConnectionsOpened() { return connectionsOpened; }
+    public long getMessages() { return messages; }
+    public long getBytesIn() { return bytesIn; }
+    public long getBytesOut() { return bytesOut; }
+    public long getErrors() { return errors; }
+
+    /**
+     * Connections open at the time of the snapshot
+     */
+    public List<Connection> getConnections() { return connections; }
+
+    /**
+     * Busiest terminals (field 41), highest message count first
+     */
+    public List<Terminal> getTopTerminals() { return topTerminals; }
+
+    /**
+     * Terminals with the highest maximum latency, highest first
+     */
+    public List<TerminalLatency> getSlowestTerminals() { return slowestTerminals; }
+
+    /**
+     * Counters of one open connection
+     */
+    public static class Connection {
+        private final long connectionId;
+        private final String remoteAddress;
+        private final long connectedAtMillis;
+        private final long messages;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long errors;
+        private final long lastActivityMillis;
+
+        Connection(ConnectionStats stats) {
+            this.connectionId = stats.getConnectionId();
+            this.remoteAddress = stats.getRemoteAddress();
+            this.connectedAtMillis = stats.getConnectedAtMillis();
+            this.messages = stats.getMessages();
+            this.bytesIn = stats.getBytesIn();
+            this.bytesOut = stats.getBytesOut();
+            this.errors = stats.getErrors();
+            this.lastActivityMillis = stats.getLastActivityMillis();
+        }
+
+        public long getConnectionId() { return connectionId; }
+        public String getRemoteAddress() { return remoteAddress; }
+        public long getConnectedAtMillis() { return connectedAtMillis; }
+        public long getMessages() { return messages; }
+        public long getBytesIn() { return bytesIn; }
+        public long getBytesOut() { return bytesOut; }
+        public long getErrors() { return errors; }
+        public long getLastActivityMillis() { return lastActivityMillis; }
+    }
+
+    /**
+     * Message count of one terminal; the true count lies between messages - error and messages
+     */
+    public static class Terminal {
+        private final String terminalId;
+        private final long messages;
+        private final long error;
+
+        Terminal(String terminalId, long messages, long error) {
+            this.terminalId = terminalId;
+            this.messages = messages;
+            this.error = error;
+        }
+
+        public String getTerminalId() { return terminalId; }
+        public long getMessages() { return messages; }
+        public long getError() { return error; }
+    }
+
+    /**
+     * Highest latency of one terminal's messages, from receipt to response written
+     */
+    public static class TerminalLatency {
+        private final String terminalId;
+        private final long maxLatencyNanos;
+
+        TerminalLatency(String terminalId, long maxLatencyNanos) {
+            this.terminalId = terminalId;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public String getTerminalId() { return terminalId; }
+        public long getMaxLatencyNanos() { return maxLatencyNanos; }
+    }
+}
@@ -0,0 +1,225 @@
+package com.titp.server.stats;
+
+import com.titp.server.metrics.PrometheusExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters per connection, server-wide and per terminal (field 41).
+ * <p>
+ * Server-wide totals are striped {@link LongAdder}s so handler threads never contend on a shared
+ * counter; connection counters are written only by their own handler. Terminals are tracked in a
+ * bounded space-saving table, so an unbounded number of terminal IDs costs bounded memory, and so are the
+ * terminals with the highest maximum latency.
+ */
+public class TrafficStats implements TrafficStatsMXBean, PrometheusExporter {
+    private static final Logger logger = LoggerFactory.getLogger(TrafficStats.class);
+    private static final int TOP_TERMINALS_REPORTED = 20;
+
+    private final Map<Long, ConnectionStats> openConnections = new ConcurrentHashMap<>();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final TerminalTopK terminals;
+    private final TerminalMaxLatency slowTerminals;
+    private ScheduledExecutorService summaryLogger;
+
+    /**
+     * @param terminalCapacity Maximum number of terminals tracked
+     */
+    public TrafficStats(int terminalCapacity) {
+        this.terminals = new TerminalTopK(terminalCapacity);
+        this.slowTerminals = new TerminalMaxLatency(terminalCapacity);
+    }
+
+    /**
+     * Log a traffic summary every intervalSeconds; 0 disables the summary
+     */
+    public void start(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        summaryLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "traffic-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        summaryLogger.scheduleAtFixedRate(this::logSummary, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (summaryLogger != null) {
+            summaryLogger.shutdownNow();
+        }
+    }
+
+    public ConnectionStats connectionOpened(long connectionId, String remoteAddress) {
+        ConnectionStats stats = new ConnectionStats(connectionId, remoteAddress);
+        openConnections.put(connectionId, stats);
+        connectionsOpened.increment();
+        return stats;
+    }
+
+    public void connectionClosed(ConnectionStats stats) {
+        openConnections.remove(stats.getConnectionId());
+    }
+
+    /**
+     * Count a request frame read from a connection
+     * @param frameBytes Frame size including its length prefix
+     * @return The connection-local sequence number of the message
+     */
+    public long messageReceived(ConnectionStats stats, int frameBytes) {
+        messages.increment();
+        bytesIn.add(frameBytes);
+        return stats.messageReceived(frameBytes);
+    }
+
+    /**
+     * Count a response frame written to a connection, including its length prefix
+     */
+    public void responseSent(ConnectionStats stats, int frameBytes) {
+        bytesOut.add(frameBytes);
+        stats.responseSent(frameBytes);
+    }
+
+    public void errorOccurred(ConnectionStats stats) {
+        errors.increment();
+        stats.errorOccurred();
+    }
+
+    /**
+     * Count a message from a terminal (field 41) and its latency
+     * @param latencyNanos Time from receipt of the request to its response written
+     */
+    public void terminalMessage(String terminalId, long latencyNanos) {
+        terminals.record(terminalId);
+        slowTerminals.record(terminalId, latencyNanos);
+    }
+
+    public TrafficSnapshot snapshot() {
+        List<TrafficSnapshot.Connection> connections = new ArrayList<>(openConnections.size());
+        for (ConnectionStats stats : openConnections.values()) {
+            connections.add(new TrafficSnapshot.Connection(stats));
+        }
+        return new TrafficSnapshot(System.currentTimeMillis(), connectionsOpened.sum(), messages.sum(),
+                bytesIn.sum(), bytesOut.sum(), errors.sum(), connections, terminals.top(TOP_TERMINALS_REPORTED),
+                slowTerminals.top(TOP_TERMINALS_REPORTED));
+    }
+
+    private void logSummary() {
+        TrafficSnapshot snapshot = snapshot();
+        logger.info("Traffic: {} open connections, {} messages, {} bytes in, {} bytes out, {} errors",
+                snapshot.getConnections().size(), snapshot.getMessages(), snapshot.getBytesIn(),
+                snapshot.getBytesOut(), snapshot.getErrors());
+        if (!snapshot.getTopTerminals().isEmpty()) {
+            logger.info("Top terminals: {}", String.join(", ", formatTerminals(snapshot.getTopTerminals())));
+            logger.info("Slowest terminals: {}", String.join(", ", formatLatencies(snapshot.getSlowestTerminals())));
+        }
+    }
+
+    private static String[] formatTerminals(List<TrafficSnapshot.Terminal> terminals) {
+        return terminals.stream()
+                .map(t -> t.getError() == 0
+                        ? t.getTerminalId() + "=" + t.getMessages()
+                        : t.getTerminalId() + "=" + t.getMessages() + " (+/-" + t.getError() + ")")
+                .toArray(String[]::new);
+    }
+
+    private static String[] formatLatencies(List<TrafficSnapshot.TerminalLatency> terminals) {
+        return terminals.stream()
+                .map(t -> t.getTerminalId() + "=" + TimeUnit.NANOSECONDS.toMicros(t.getMaxLatencyNanos()) + "us")
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return openConnections.size();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public String[] getConnections() {
+        return openConnections.values().stream().map(ConnectionStats::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getTopTerminals() {
+        return formatTerminals(terminals.top(TOP_TERMINALS_REPORTED));
+    }
+
+    @Override
+    public String[] getSlowestTerminals() {
+        return formatLatencies(slowTerminals.top(TOP_TERMINALS_REPORTED));
+    }
+
+    @Override
+    public void resetTerminals() {
+        terminals.clear();
+        slowTerminals.clear();
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        TrafficSnapshot snapshot = snapshot();
+        writeMetric(out, "titp_connections_open", "gauge", "Open client connections", snapshot.getConnections().size());
+        writeMetric(out, "titp_connections_total", "counter", "Client connections accepted", snapshot.getConnectionsOpened());
+        writeMetric(out, "titp_messages_total", "counter", "Request frames received", snapshot.getMessages());
+        writeMetric(out, "titp_received_bytes_total", "counter", "Bytes received including length prefixes", snapshot.getBytesIn());
+        writeMetric(out, "titp_sent_bytes_total", "counter", "Bytes sent including length prefixes", snapshot.getBytesOut());
+        writeMetric(out, "titp_errors_total", "counter", "Messages that failed processing", snapshot.getErrors());
+        out.append("# HELP titp_terminal_messages_total Messages of the busiest terminals (field 41)\n");
+        out.append("# TYPE titp_terminal_messages_total counter\n");
+        for (TrafficSnapshot.Terminal terminal : snapshot.getTopTerminals()) {
+            out.append("titp_terminal_messages_total{terminal=\"").append(PrometheusExporter.escapeLabel(terminal.getTerminalId())).append("\"} ")
+                    .append(terminal.getMessages()).append('\n');
+        }
+        out.append("# HELP titp_terminal_latency_max_seconds Highest latency of the slowest terminals (field 41)\n");
+        out.append("# TYPE titp_terminal_latency_max_seconds gauge\n");
+        for (TrafficSnapshot.TerminalLatency terminal : snapshot.getSlowestTerminals()) {
+            out.append("titp_terminal_latency_max_seconds{terminal=\"").append(PrometheusExporter.escapeLabel(terminal.getTerminalId())).append("\"} ")
+                    .append(terminal.getMaxLatencyNanos() / 1e9).append('\n');
+        }
+    }
+
+    private static void writeMetric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,35 @@
+package com.titp.server.stats;
+
+/**
+ * Server-wide traffic counters, open connections, busiest and slowest terminals
+ */
+public interface TrafficStatsMXBean {
+    int getOpenConnections();
+
+    long getConnectionsOpened();
+
+    long getMessages();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getErrors();
+
+    /**
+     * One line per open connection with its counters and idle time
+     */
+    String[] getConnections();
+
+    /**
+     * Busiest terminals as "terminal=count (+/-error)", highest first
+     */
+    String[] getTopTerminals();
+
+    /**
+     * Slowest terminals as "terminal=max latency in microseconds", highest first
+     */
+    String[] getSlowestTerminals();
+
+    void resetTerminals();
+}
@@ -0,0 +1,8 @@
+package com.titp.server.trace;
+
+/**
+ * Direction of a traced frame relative to the server
+ */
+public enum Direction {
+    IN, OUT
+}
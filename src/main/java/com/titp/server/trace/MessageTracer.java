@@ -0,0 +1,209 @@
+package com.titp.server.trace;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import com.titp.server.MessageLogger;
+import com.titp.server.config.ServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous message tracing.
+ * <p>
+ * Handler threads only decide whether a message is sampled (MTI peeked from the raw bytes) and copy
+ * the raw frame into a {@link TraceRingBuffer}. A background thread parses, masks and formats the
+ * frames and writes them to the log, so field formatting never runs on the message path.
+ */
+public class MessageTracer implements MessageTracerMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(MessageTracer.class);
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final TraceRingBuffer ringBuffer;
+    private volatile MessageFactory<IsoMessage> messageFactory;
+    private final LongAdder traced = new LongAdder();
+
+    private volatile boolean enabled;
+    private volatile int sampleEvery;
+    private volatile boolean[] mtiFilter;
+    private volatile String mtiFilterText = "";
+    private volatile boolean running;
+    private Thread consumer;
+
+    public MessageTracer(MessageFactory<IsoMessage> messageFactory, int capacity, int slotSize,
+                         boolean enabled, int sampleEvery, String mtiFilter) {
+        this.messageFactory = messageFactory;
+        this.ringBuffer = new TraceRingBuffer(capacity, slotSize);
+        this.enabled = enabled;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        setMtiFilter(mtiFilter);
+    }
+
+    /**
+     * Start the background formatter
+     */
+    public void start() {
+        running = true;
+        consumer = new Thread(this::consumeLoop, "message-tracer");
+        consumer.setDaemon(true);
+        consumer.start();
+        logger.info("Message tracer started ({} slots, enabled: {}, 1 in {}, MTIs: {})",
+                ringBuffer.getCapacity(), enabled, sampleEvery, mtiFilterText.isEmpty() ? "all" : mtiFilterText);
+    }
+
+    /**
+     * Stop the background formatter after it has written what is already in the ring
+     */
+    public void stop() {
+        running = false;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+            try {
+                consumer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Decode later records with a reloaded message factory
+     */
+    public void setMessageFactory(MessageFactory<IsoMessage> messageFactory) {
+        this.messageFactory = messageFactory;
+    }
+
+    /**
+     * Decide whether an inbound frame is traced; the response to a sampled request should be traced too
+     * @param frame Raw frame without length prefix
+     */
+    public boolean sample(byte[] frame) {
+        if (!enabled) {
+            return false;
+        }
+        boolean[] filter = mtiFilter;
+        if (filter != null) {
+            int mti = peekMti(frame);
+            if (mti < 0 || mti >= filter.length || !filter[mti]) {
+                return false;
+            }
+        }
+        int every = sampleEvery;
+        return every == 1 || ThreadLocalRandom.current().nextInt(every) == 0;
+    }
+
+    /**
+     * Copy a frame (without its length prefix) into the trace ring. Never blocks; drops the frame if the ring is full.
+     */
+    public void record(Direction direction, long connectionId, byte[] frame, int offset, int length) {
+        if (ringBuffer.offer(direction, connectionId, frame, offset, length)) {
+            traced.increment();
+        }
+    }
+
+    private void consumeLoop() {
+        TraceRecord record = new TraceRecord();
+        while (running || ringBuffer.getPendingCount() > 0) {
+            if (ringBuffer.poll(record)) {
+                format(record);
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void format(TraceRecord record) {
+        try {
+            IsoMessage message = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(record.bytes), 0);
+            MessageLogger.logTracedMessage(message, record.direction, record.connectionId,
+                    record.timestampMillis, record.originalLength);
+        } catch (Exception e) {
+            logger.info("{} conn={} {} bytes (not parseable: {})",
+                    record.direction, record.connectionId, record.originalLength, e.getMessage());
+        }
+    }
+
+    /**
+     * Read the MTI from a raw frame without parsing it
+     * @return The MTI as the hex-coded integer j8583 uses (e.g. 0x200), or -1
+     */
+    static int peekMti(byte[] frame) {
+        int offset = HeaderStripper.headerLength(frame);
+        if (frame.length < offset + 2) {
+            return -1;
+        }
+        // ASCII MTI ("0200") or binary BCD MTI (0x02 0x00)
+        if (frame.length >= offset + 4 && isDigit(frame[offset]) && isDigit(frame[offset + 1])
+                && isDigit(frame[offset + 2]) && isDigit(frame[offset + 3])) {
+            return ((frame[offset] - '0') << 12) | ((frame[offset + 1] - '0') << 8)
+                    | ((frame[offset + 2] - '0') << 4) | (frame[offset + 3] - '0');
+        }
+        return ((frame[offset] & 0xFF) << 8) | (frame[offset + 1] & 0xFF);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        logger.info("Message tracing {}", enabled ? "enabled" : "disabled");
+    }
+
+    @Override
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    @Override
+    public void setSampleEvery(int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        logger.info("Message tracing samples 1 in {}", this.sampleEvery);
+    }
+
+    @Override
+    public String getMtiFilter() {
+        return mtiFilterText;
+    }
+
+    @Override
+    public void setMtiFilter(String mtiFilter) {
+        if (mtiFilter == null || mtiFilter.trim().isEmpty()) {
+            this.mtiFilter = null;
+            this.mtiFilterText = "";
+            return;
+        }
+        boolean[] filter = new boolean[0x10000];
+        for (int mti : ServerConfig.parseMtis(mtiFilter)) {
+            filter[mti & 0xFFFF] = true;
+        }
+        this.mtiFilter = filter;
+        this.mtiFilterText = mtiFilter.trim();
+        logger.info("Message tracing MTI filter: {}", this.mtiFilterText);
+    }
+
+    @Override
+    public long getTracedCount() {
+        return traced.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return ringBuffer.getDroppedCount();
+    }
+
+    @Override
+    public long getPendingCount() {
+        return ringBuffer.getPendingCount();
+    }
+}
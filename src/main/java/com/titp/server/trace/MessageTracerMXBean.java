@@ -0,0 +1,25 @@
+package com.titp.server.trace;
+
+/**
+ * Runtime controls and counters of the message tracer
+ */
+public interface MessageTracerMXBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+
+    /**
+     * Trace one in every N messages; 1 traces all
+     */
+    int getSampleEvery();
+    void setSampleEvery(int sampleEvery);
+
+    /**
+     * Comma separated MTIs to trace, e.g. "0100,0200"; empty traces all
+     */
+    String getMtiFilter();
+    void setMtiFilter(String mtiFilter);
+
+    long getTracedCount();
+    long getDroppedCount();
+    long getPendingCount();
+}
@@ -0,0 +1,12 @@
+package com.titp.server.trace;
+
+/**
+ * Mutable holder for one record taken off the trace ring (consumer thread only)
+ */
+class TraceRecord {
+    Direction direction;
+    long connectionId;
+    long timestampMillis;
+    int originalLength;
+    byte[] bytes;
+}
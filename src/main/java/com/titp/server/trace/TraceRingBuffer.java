@@ -0,0 +1,111 @@
+package com.titp.server.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Preallocated multi-producer, single-consumer ring of raw frame copies.
+ * <p>
+ * Producers claim a sequence with CAS, copy the frame into the slot's fixed region of one shared byte
+ * array and publish the slot by writing its sequence. When the consumer has fallen a full ring behind,
+ * producers drop the record instead of waiting, so tracing never blocks message handling.
+ */
+class TraceRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final int slotSize;
+    private final byte[] data;
+    private final int[] lengths;
+    private final int[] originalLengths;
+    private final long[] timestamps;
+    private final long[] connectionIds;
+    private final byte[] directions;
+    private final AtomicLongArray published;
+    private final AtomicLong claimSequence = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long consumerSequence;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     * @param slotSize Bytes kept per frame; longer frames are truncated
+     */
+    TraceRingBuffer(int capacity, int slotSize) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.slotSize = slotSize;
+        this.data = new byte[this.capacity * slotSize];
+        this.lengths = new int[this.capacity];
+        this.originalLengths = new int[this.capacity];
+        this.timestamps = new long[this.capacity];
+        this.connectionIds = new long[this.capacity];
+        this.directions = new byte[this.capacity];
+        this.published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Copy a frame into the ring
+     * @return false if the ring was full and the frame was dropped
+     */
+    boolean offer(Direction direction, long connectionId, byte[] frame, int offset, int length) {
+        long sequence;
+        do {
+            sequence = claimSequence.get();
+            if (sequence - consumerSequence >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimSequence.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        int copied = Math.min(length, slotSize);
+        System.arraycopy(frame, offset, data, slot * slotSize, copied);
+        lengths[slot] = copied;
+        originalLengths[slot] = length;
+        timestamps[slot] = System.currentTimeMillis();
+        connectionIds[slot] = connectionId;
+        directions[slot] = (byte) direction.ordinal();
+
+        // Publishing the sequence releases the slot contents to the consumer
+        published.lazySet(slot, sequence);
+        return true;
+    }
+
+    /**
+     * Move the next published record into the given holder (consumer thread only)
+     * @return false if nothing is ready
+     */
+    boolean poll(TraceRecord record) {
+        long sequence = consumerSequence;
+        int slot = (int) (sequence & mask);
+        if (published.get(slot) != sequence) {
+            return false;
+        }
+
+        record.direction = Direction.values()[directions[slot]];
+        record.connectionId = connectionIds[slot];
+        record.timestampMillis = timestamps[slot];
+        record.originalLength = originalLengths[slot];
+        record.bytes = new byte[lengths[slot]];
+        System.arraycopy(data, slot * slotSize, record.bytes, 0, lengths[slot]);
+
+        // Free the slot only after its contents have been copied out
+        consumerSequence = sequence + 1;
+        return true;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    long getPendingCount() {
+        return claimSequence.get() - consumerSequence;
+    }
+}
@@ -1,7 +1,9 @@
 package com.titp.server.utils;
 
 public enum ISOResponseCode {
-    SUCCESS("00"), ERROR("06");
+    SUCCESS("00"), INVALID_MERCHANT("03"), ERROR("06"), INVALID_TRANSACTION("12"), INVALID_CARD_NUMBER("14"), INSUFFICIENT_FUNDS("51"),
+    NOT_PERMITTED_TO_TERMINAL("58"), EXCEEDS_AMOUNT_LIMIT("61"), SECURITY_VIOLATION("63"),
+    EXCEEDS_FREQUENCY_LIMIT("65"), ISSUER_UNAVAILABLE("91"), RECONCILIATION_ERROR("95");
 
     private final String code;
 
@@ -5,15 +5,16 @@ import com.solab.iso8583.IsoMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Arrays;
-
 public class IsoLogger {
     private static final Logger logger = LoggerFactory.getLogger(IsoLogger.class);
 
     /**
-     * Logs detailed information about the response ISO 8583 message
+     * Logs detailed information about an ISO 8583 message, masking cardholder and key data
      */
     public static void logResponseMessage(IsoMessage message) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
         try {
             // Log all present fields with better formatting
             StringBuilder fieldsInfo = new StringBuilder();
@@ -30,18 +31,16 @@ public class IsoLogger {
                         if (value.getClass().isArray()) {
                             fieldValue = ByteArrayUtil.toHexString((byte[]) value).toUpperCase();
                         } else {
-                            fieldValue = String.valueOf(message.getField(i).getValue());
+                            fieldValue = String.valueOf(value);
                         }
 
-                        fieldsInfo.append(String.format("\nF%d=%s", i, fieldValue));
+                        fieldsInfo.append("\nF").append(i).append('=').append(mask(i, fieldValue));
                         hasFields = true;
                     }
                 }
             }
 
             if (hasFields) {
-                // Remove trailing comma and space
-                fieldsInfo.setLength(fieldsInfo.length() - 2);
                 logger.info(fieldsInfo.toString());
             }
 
@@ -49,4 +48,24 @@ public class IsoLogger {
             logger.warn("Error message details: {}", e.getMessage());
         }
     }
+
+    /**
+     * Mask sensitive fields: the PAN keeps its first 6 and last 4 digits; track data, PIN block and keys are hidden
+     */
+    static String mask(int field, String value) {
+        switch (field) {
+            case 2:
+                if (value.length() < 10) {
+                    return "****";
+                }
+                return value.substring(0, 6) + "****" + value.substring(value.length() - 4);
+            case 35: // Track 2
+            case 45: // Track 1
+            case 52: // PIN block
+            case 62: // Working key
+                return "****";
+            default:
+                return value;
+        }
+    }
 }
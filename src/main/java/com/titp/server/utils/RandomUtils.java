@@ -2,11 +2,16 @@ package com.titp.server.utils;
 
 import java.security.SecureRandom;
 
+/**
+ * Random digit strings for retrieval reference numbers and authorization codes. Each shard owns an
+ * instance, so handler threads on different shards never contend on one generator.
+ */
 public class RandomUtils {
-    private static final SecureRandom random = new SecureRandom();
     private static final String DIGITS = "0123456789";
 
-    public static String getRandomString(int length) {
+    private final SecureRandom random = new SecureRandom();
+
+    public String getRandomString(int length) {
         var sb = new StringBuilder(length);
         for (int i = 0; i < length; i++) {
             sb.append(DIGITS.charAt(random.nextInt(DIGITS.length())));
@@ -0,0 +1,230 @@
+package com.titp.server.warmup;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.EchoFastPath;
+import com.titp.server.MessageProcessor;
+import com.titp.server.advice.AdviceQueue;
+import com.titp.server.advice.SettlementAdviceHandler;
+import com.titp.server.metrics.StageTimings;
+import com.titp.server.processor.ProcessorFactory;
+import com.titp.server.processor.ProcessorSet;
+import com.titp.server.settlement.SettlementTotals;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Drives synthetic requests for every configured MTI through the full message path before the server opens
+ * its ports, so the first real transactions do not run in the interpreter.
+ * <p>
+ * Requests go round after round through {@link MessageProcessor} and the response encoder until the JIT
+ * compilers have been quiet for {@value #QUIET_ROUNDS} rounds or the time limit is reached. The processors
+ * are detached copies with their own throwaway totals and advice journal, so no synthetic transaction is
+ * ever settled and nothing is sent upstream. A last round measures the warmed-up latency profile.
+ */
+public class JitWarmUp implements JitWarmUpMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(JitWarmUp.class);
+
+    private static final long QUIET_COMPILATION_MILLIS = 10;
+    private static final int QUIET_ROUNDS = 2;
+    // Without compilation time monitoring, rounds are the only measure of progress
+    private static final int UNMONITORED_ROUNDS = 10;
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final boolean enabled;
+    private final int batch;
+    private final long maxMillis;
+    private final Histogram profile = new Histogram(1, HIGHEST_TRACKABLE_NANOS, 3);
+    private volatile long timeToReadyMillis = -1;
+    private volatile long warmUpMillis;
+    private volatile long messages;
+    private volatile int rounds;
+    private volatile long compilationMillis;
+    private volatile boolean settled;
+
+    /**
+     * @param batch How many times each request variant is processed per round
+     * @param maxMillis Time after which the warm-up stops even if compilation has not settled
+     */
+    public JitWarmUp(boolean enabled, int batch, long maxMillis) {
+        this.enabled = enabled;
+        this.batch = batch;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Warm up the message path of each message factory, one per distinct listener profile
+     * @param echoFastPath The default listener's echo fast path, or null when it is disabled
+     */
+    public void run(List<MessageFactory<IsoMessage>> messageFactories, EchoFastPath echoFastPath) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path journalDirectory = Files.createTempDirectory("titp-warmup");
+        try {
+            runRounds(messageFactories, echoFastPath, journalDirectory);
+        } finally {
+            deleteRecursively(journalDirectory);
+        }
+    }
+
+    private void runRounds(List<MessageFactory<IsoMessage>> messageFactories, EchoFastPath echoFastPath,
+                           Path journalDirectory) throws IOException {
+        SettlementTotals totals = new SettlementTotals();
+        try (AdviceQueue adviceQueue = new AdviceQueue(journalDirectory, messageFactories.get(0),
+                new SettlementAdviceHandler(totals), 1, false)) {
+            List<Target> targets = new ArrayList<>();
+            for (MessageFactory<IsoMessage> messageFactory : messageFactories) {
+                ProcessorSet processors = ProcessorFactory.buildDetached(messageFactory, totals, adviceQueue);
+                targets.add(new Target(new MessageProcessor(() -> processors, new StageTimings(), 0),
+                        WarmUpTraffic.build(messageFactory, ProcessorFactory.getSupportedMTIs())));
+            }
+            logger.info("JIT warm-up started: {} request variants, {} per round each",
+                    targets.stream().mapToInt(target -> target.requests.size()).sum(), batch);
+
+            CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+            boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+            long startNanos = System.nanoTime();
+            long startCompilation = monitored ? compiler.getTotalCompilationTime() : 0;
+            long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+            int quietRounds = 0;
+            while (!settled && System.nanoTime() - deadline < 0) {
+                long roundCompilation = monitored ? compiler.getTotalCompilationTime() : 0;
+                runRound(targets, echoFastPath, null);
+                rounds++;
+                if (monitored) {
+                    quietRounds = compiler.getTotalCompilationTime() - roundCompilation <= QUIET_COMPILATION_MILLIS
+                            ? quietRounds + 1 : 0;
+                    settled = quietRounds >= QUIET_ROUNDS;
+                } else {
+                    settled = rounds >= UNMONITORED_ROUNDS;
+                }
+            }
+            warmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            compilationMillis = monitored ? compiler.getTotalCompilationTime() - startCompilation : -1;
+
+            Map<Integer, Histogram> byMti = new TreeMap<>();
+            runRound(targets, echoFastPath, byMti);
+            report(byMti);
+        }
+    }
+
+    /**
+     * Process every request variant {@code batch} times; when given histograms, record each one's latency
+     */
+    private void runRound(List<Target> targets, EchoFastPath echoFastPath, Map<Integer, Histogram> byMti) {
+        for (int i = 0; i < batch; i++) {
+            for (Target target : targets) {
+                for (WarmUpTraffic.Request request : target.requests) {
+                    long start = System.nanoTime();
+                    MessageProcessor.MessageResult result = target.processor.processMessage(request.frame, i);
+                    if (result.getResponse() != null) {
+                        result.getResponse().writeData();
+                    }
+                    if (echoFastPath != null && request.mti == 0x800) {
+                        echoFastPath.tryRespond(request.frame);
+                    }
+                    if (byMti != null) {
+                        long latency = Math.max(1, Math.min(System.nanoTime() - start, HIGHEST_TRACKABLE_NANOS));
+                        byMti.computeIfAbsent(request.mti, mti -> new Histogram(1, HIGHEST_TRACKABLE_NANOS, 3))
+                                .recordValue(latency);
+                        profile.recordValue(latency);
+                    }
+                    messages++;
+                }
+            }
+        }
+    }
+
+    private void report(Map<Integer, Histogram> byMti) {
+        logger.info("JIT warm-up {} after {} ms: {} rounds, {} messages, {} ms of JIT compilation",
+                settled ? "settled" : "stopped at the time limit", warmUpMillis, rounds, messages,
+                compilationMillis >= 0 ? compilationMillis : "unknown");
+        for (Map.Entry<Integer, Histogram> entry : byMti.entrySet()) {
+            Histogram histogram = entry.getValue();
+            logger.info("  Warmed-up MTI {}: p50 {}us, p99 {}us, p99.9 {}us, max {}us",
+                    String.format("%04X", entry.getKey()),
+                    micros(histogram.getValueAtPercentile(50)),
+                    micros(histogram.getValueAtPercentile(99)),
+                    micros(histogram.getValueAtPercentile(99.9)),
+                    micros(histogram.getMaxValue()));
+        }
+    }
+
+    /**
+     * Record that the server accepts connections, measured from JVM start
+     */
+    public void markReady() {
+        timeToReadyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        logger.info("Ready to accept connections {} ms after JVM start", timeToReadyMillis);
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Could not delete warm-up journal {}: {}", directory, e.getMessage());
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    @Override
+    public long getTimeToReadyMillis() { return timeToReadyMillis; }
+
+    @Override
+    public boolean isWarmUpEnabled() { return enabled; }
+
+    @Override
+    public long getWarmUpMillis() { return warmUpMillis; }
+
+    @Override
+    public long getWarmUpMessages() { return messages; }
+
+    @Override
+    public int getWarmUpRounds() { return rounds; }
+
+    @Override
+    public long getWarmUpCompilationMillis() { return compilationMillis; }
+
+    @Override
+    public boolean isSettled() { return settled; }
+
+    @Override
+    public double getPostWarmUpP50Micros() { return profile.getValueAtPercentile(50) / 1000.0; }
+
+    @Override
+    public double getPostWarmUpP99Micros() { return profile.getValueAtPercentile(99) / 1000.0; }
+
+    @Override
+    public double getPostWarmUpMaxMicros() { return profile.getMaxValue() / 1000.0; }
+
+    /**
+     * The requests encoded for one message factory and the processor they go through
+     */
+    private static final class Target {
+        final MessageProcessor processor;
+        final List<WarmUpTraffic.Request> requests;
+
+        Target(MessageProcessor processor, List<WarmUpTraffic.Request> requests) {
+            this.processor = processor;
+            this.requests = requests;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.titp.server.warmup;
+
+/**
+ * Startup time and the outcome of the JIT warm-up
+ */
+public interface JitWarmUpMXBean {
+    /**
+     * JVM uptime when the server started accepting connections, or -1 while it is starting
+     */
+    long getTimeToReadyMillis();
+
+    boolean isWarmUpEnabled();
+
+    long getWarmUpMillis();
+
+    long getWarmUpMessages();
+
+    int getWarmUpRounds();
+
+    /**
+     * JIT compilation time spent during the warm-up, or -1 if the JVM does not report it
+     */
+    long getWarmUpCompilationMillis();
+
+    /**
+     * Whether compilation settled before the time limit ran out
+     */
+    boolean isSettled();
+
+    /**
+     * Processing latency of the synthetic requests once warmed up, all MTIs together
+     */
+    double getPostWarmUpP50Micros();
+
+    double getPostWarmUpP99Micros();
+
+    double getPostWarmUpMaxMicros();
+}
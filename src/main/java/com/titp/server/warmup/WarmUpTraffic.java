@@ -0,0 +1,162 @@
+package com.titp.server.warmup;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic requests for the JIT warm-up: a few variants per MTI so the processors' main branches, and not
+ * just one of them, are compiled. Requests are encoded once, with the configured header, exactly as they
+ * would arrive on the wire.
+ * <p>
+ * The dictionary's field types cannot be queried, so each request is first encoded with binary fields and,
+ * if that does not parse back, with text fields as the advice messages of the TITP dictionary use.
+ * <p>
+ * The same encoding validates a reloaded dictionary: each request MTI, and its response MTI with field 39,
+ * must round-trip a populated message with every field intact.
+ */
+public class WarmUpTraffic {
+    private static final Logger logger = LoggerFactory.getLogger(WarmUpTraffic.class);
+
+    private static final String TERMINAL_ID = "WARMUP01";
+    private static final String MERCHANT_ID = "WARMUPMERCHANT1";
+    private static final String TRANSMISSION_TIME = "0101000000";
+    // 16-digit test PAN with a valid Luhn check digit
+    private static final String PAN = "4111111111111111";
+    private static final byte[] PAN_BCD = {0x41, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11};
+
+    private WarmUpTraffic() {
+    }
+
+    /**
+     * Encode the request variants of every MTI the message factory can build; MTIs it cannot encode, e.g.
+     * because a listener's profile leaves them out, are skipped
+     */
+    static List<Request> build(MessageFactory<IsoMessage> messageFactory, int[] mtis) {
+        List<Request> requests = new ArrayList<>();
+        int stan = 1;
+        for (int mti : mtis) {
+            for (String processingCode : processingCodes(mti)) {
+                String stanValue = String.format("%06d", stan++);
+                byte[] frame = encode(messageFactory, mti, processingCode, stanValue, true);
+                if (frame == null) {
+                    frame = encode(messageFactory, mti, processingCode, stanValue, false);
+                }
+                if (frame != null) {
+                    requests.add(new Request(mti, frame));
+                } else {
+                    logger.debug("No warm-up request for MTI {} processing code {}",
+                            String.format("%04X", mti), processingCode);
+                }
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Check that the message factory round-trips a populated message of every given request MTI and of its
+     * response MTI, each field value reading back as it was set
+     * @throws IOException naming the first MTI that does not round-trip
+     */
+    public static void validate(MessageFactory<IsoMessage> messageFactory, int[] requestMtis) throws IOException {
+        for (int requestMti : requestMtis) {
+            for (int mti : new int[]{requestMti, requestMti + 0x10}) {
+                if (build(messageFactory, new int[]{mti}).isEmpty()) {
+                    throw new IOException(String.format("MTI %04X does not round-trip a populated message", mti));
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode one request, or return null if it does not parse back with the message factory's dictionary
+     * @param binary Whether to encode the PAN as BCD and numbers as NUMERIC rather than as text
+     */
+    private static byte[] encode(MessageFactory<IsoMessage> messageFactory, int mti, String processingCode,
+                                 String stan, boolean binary) {
+        IsoType number = binary ? IsoType.NUMERIC : IsoType.ALPHA;
+        try {
+            IsoMessage request = messageFactory.newMessage(mti);
+            request.setValue(3, processingCode, number, 6);
+            request.setValue(7, TRANSMISSION_TIME, IsoType.NUMERIC, 10);
+            request.setValue(11, stan, number, 6);
+            request.setValue(41, TERMINAL_ID, IsoType.ALPHA, 8);
+            if ((mti & 0x10) != 0) {
+                request.setValue(39, "00", IsoType.ALPHA, 2);
+            }
+            if ((mti & 0xff00) != 0x800 && (mti & 0xff00) != 0x500) {
+                if (binary) {
+                    request.setValue(2, PAN_BCD, IsoType.LLBCDBIN, 0);
+                } else {
+                    request.setValue(2, PAN, IsoType.LLVAR, 0);
+                }
+                request.setValue(4, String.format("%012d", 100 * Long.parseLong(stan)), number, 12);
+                request.setValue(42, MERCHANT_ID, IsoType.ALPHA, 15);
+            }
+            byte[] frame = request.writeData();
+            IsoMessage parsed = messageFactory.parseMessage(frame, headerLength(messageFactory, mti));
+            return readsBack(request, parsed) ? frame : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether a parsed message has every field of the one encoded, with the value it was set to
+     */
+    private static boolean readsBack(IsoMessage encoded, IsoMessage parsed) {
+        if (parsed == null || parsed.getType() != encoded.getType()) {
+            return false;
+        }
+        for (int i = 2; i <= 128; i++) {
+            IsoValue<?> value = encoded.getField(i);
+            if (value != null && (!parsed.hasField(i) || !value.toString().equals(parsed.getField(i).toString()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int headerLength(MessageFactory<IsoMessage> messageFactory, int mti) {
+        String header = messageFactory.getIsoHeader(mti);
+        return header != null ? header.length() : 0;
+    }
+
+    /**
+     * Processing codes that take each processor down its distinct paths
+     */
+    private static String[] processingCodes(int mti) {
+        switch (mti) {
+            case 0x100:
+                return new String[]{"000000", "300000"}; // purchase, balance inquiry
+            case 0x200:
+                return new String[]{"000000", "200000", "310000"}; // purchase, refund, cash withdrawal
+            case 0x500:
+                return new String[]{"920000"};
+            case 0x800:
+                return new String[]{"990000", "920000", "010000"}; // echo, key download, sign-on
+            default:
+                return new String[]{"000000"};
+        }
+    }
+
+    /**
+     * One encoded request
+     */
+    static final class Request {
+        final int mti;
+        final byte[] frame;
+
+        Request(int mti, byte[] frame) {
+            this.mti = mti;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.titp.server;
+
+import com.titp.server.listener.Framing;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Queued responses: a client that stops reading fills its own queue and holds up nobody else
+ */
+public class MessageSenderTest {
+    private static final int FRAME_SIZE = 16 * 1024;
+    private static final int CAPACITY = 64;
+
+    private final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread writer = new Thread(task, "test-writer");
+        writer.setDaemon(true);
+        return writer;
+    });
+    private final List<Socket> sockets = new ArrayList<>();
+    private ServerSocket serverSocket;
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        writers.shutdownNow();
+    }
+
+    @Test
+    public void stalledReaderHoldsUpOnlyItsOwnConnection() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Socket stalledClient = connect();
+        Socket stalledServer = accept();
+        Socket readingClient = connect();
+        Socket readingServer = accept();
+        CountDownLatch writeFailed = new CountDownLatch(1);
+        MessageSender stalled = sender(stalledServer, writeFailed::countDown);
+        MessageSender reading = sender(readingServer, () -> { });
+
+        // The stalled client never reads: sends never block, and fail once the queue is full
+        byte[] frame = new byte[FRAME_SIZE];
+        long start = System.nanoTime();
+        int sent = 0;
+        try {
+            while (sent < 100 * CAPACITY) {
+                stalled.sendFrame(frame);
+                sent++;
+            }
+            fail("Sent " + sent + " frames to a client that does not read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is not reading"));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+
+        // Meanwhile the other connection's frames still go out
+        byte[] response = {0, 3, 'a', 'b', 'c'};
+        reading.sendFrame(response);
+        byte[] received = new byte[response.length];
+        readingClient.setSoTimeout(5000);
+        new DataInputStream(readingClient.getInputStream()).readFully(received);
+        assertArrayEquals(response, received);
+
+        // Closing the stalled connection fails its writer, which reports it once
+        stalledClient.close();
+        assertTrue(writeFailed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closeWaitsForTheFramesQueuedBefore() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Socket client = connect();
+        MessageSender sender = sender(accept(), () -> { });
+
+        for (int i = 0; i < 10; i++) {
+            sender.sendFrame(new byte[]{0, 1, (byte) i});
+        }
+        sender.close();
+
+        DataInputStream input = new DataInputStream(client.getInputStream());
+        client.setSoTimeout(5000);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, Framing.BINARY2.readLength(input));
+            assertEquals(i, input.readByte());
+        }
+        assertEquals(-1, input.read());
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(FRAME_SIZE);
+        socket.connect(serverSocket.getLocalSocketAddress());
+        sockets.add(socket);
+        return socket;
+    }
+
+    private Socket accept() throws IOException {
+        Socket socket = serverSocket.accept();
+        socket.setSendBufferSize(FRAME_SIZE);
+        sockets.add(socket);
+        return socket;
+    }
+
+    private MessageSender sender(Socket socket, Runnable onWriteFailure) throws IOException {
+        return new MessageSender(new DataOutputStream(socket.getOutputStream()), Framing.BINARY2, 1, null,
+                writers, CAPACITY, onWriteFailure);
+    }
+}
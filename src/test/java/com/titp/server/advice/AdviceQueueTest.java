@@ -0,0 +1,242 @@
+package com.titp.server.advice;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Journal recovery after a crash or restart, and advices that fail for good or for a while
+ */
+public class AdviceQueueTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AdviceQueue queue;
+
+    @After
+    public void tearDown() throws IOException {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void unappliedAdvicesAreReplayedAfterRestart() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        RecordingHandler handler = new RecordingHandler();
+        // Never started, like a server stopped before its drainer got to them
+        queue = open(directory, handler);
+        for (int stan = 1; stan <= 3; stan++) {
+            queue.append(advice(stan));
+        }
+        queue.close();
+
+        queue = open(directory, handler);
+        assertEquals(3, queue.getPendingCount());
+        queue.start();
+        handler.awaitApplied(3);
+        assertEquals(List.of("000001", "000002", "000003"), handler.applied());
+        queue.close();
+
+        // Applied and committed, so nothing is replayed again and the journal was reclaimed
+        queue = open(directory, handler);
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(0, Files.size(journal(directory)));
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        queue = open(directory, new RecordingHandler());
+        queue.append(advice(1));
+        queue.append(advice(2));
+        queue.close();
+        long intact = Files.size(journal(directory));
+
+        // A record header promising more bytes than the crash left behind
+        ByteBuffer torn = ByteBuffer.allocate(12).putInt(100).putInt(0).putInt(0x01020304);
+        write(journal(directory), intact, torn.flip());
+
+        queue = open(directory, new RecordingHandler());
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(intact, Files.size(journal(directory)));
+        queue.close();
+
+        // A file extended with zeros before the record was written
+        write(journal(directory), intact, ByteBuffer.allocate(64));
+        queue = open(directory, new RecordingHandler());
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(intact, Files.size(journal(directory)));
+    }
+
+    @Test
+    public void lastRecordWithABadChecksumIsTruncated() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        queue = open(directory, new RecordingHandler());
+        queue.append(advice(1));
+        long first = Files.size(journal(directory));
+        queue.append(advice(2));
+        queue.close();
+
+        flipByte(journal(directory), Files.size(journal(directory)) - 1);
+
+        queue = open(directory, new RecordingHandler());
+        assertEquals(1, queue.getPendingCount());
+        assertEquals(first, Files.size(journal(directory)));
+    }
+
+    @Test
+    public void corruptRecordBeforeOthersIsRefused() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        queue = open(directory, new RecordingHandler());
+        for (int stan = 1; stan <= 3; stan++) {
+            queue.append(advice(stan));
+        }
+        queue.close();
+        long size = Files.size(journal(directory));
+
+        // Inside the payload of the first record, with acknowledged advices after it
+        flipByte(journal(directory), 10);
+
+        queue = null;
+        try {
+            open(directory, new RecordingHandler());
+            fail("Opened a journal corrupt ahead of acknowledged advices");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("is corrupt at offset 0"));
+        }
+        // Left as it was for the operator to repair
+        assertEquals(size, Files.size(journal(directory)));
+    }
+
+    @Test
+    public void invalidAdviceIsDeadLetteredAndTheRestApplied() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        RecordingHandler handler = new RecordingHandler();
+        handler.invalidStan = "000002";
+        queue = open(directory, handler);
+        queue.start();
+
+        for (int stan = 1; stan <= 3; stan++) {
+            queue.append(advice(stan));
+        }
+
+        handler.awaitApplied(2);
+        assertEquals(List.of("000001", "000003"), handler.applied());
+        assertEquals(1, queue.getDeadLetterCount());
+        assertTrue(Files.size(directory.resolve("advice.deadletter")) > 0);
+    }
+
+    @Test
+    public void transientFailureIsRetriedInOrder() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        RecordingHandler handler = new RecordingHandler();
+        handler.failuresLeft = 2;
+        queue = open(directory, handler);
+        queue.start();
+
+        queue.append(advice(1));
+        queue.append(advice(2));
+
+        handler.awaitApplied(2);
+        assertEquals(List.of("000001", "000002"), handler.applied());
+        assertEquals(0, queue.getDeadLetterCount());
+    }
+
+    private static AdviceQueue open(Path directory, AdviceHandler handler) throws IOException {
+        return new AdviceQueue(directory, null, handler, 10, false);
+    }
+
+    private static IsoMessage advice(int stan) {
+        IsoMessage advice = new IsoMessage();
+        advice.setType(0x220);
+        advice.setValue(3, "000000", IsoType.NUMERIC, 6);
+        advice.setValue(4, "000000001000", IsoType.NUMERIC, 12);
+        advice.setValue(11, String.format("%06d", stan), IsoType.NUMERIC, 6);
+        advice.setValue(41, "TERM0001", IsoType.ALPHA, 8);
+        return advice;
+    }
+
+    private static Path journal(Path directory) {
+        return directory.resolve("advice.journal");
+    }
+
+    private static void write(Path file, long position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+        }
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) ~one.get(0));
+            channel.write(one.rewind(), position);
+        }
+    }
+
+    /**
+     * Remembers the STAN of each advice applied; rejects one STAN for good and fails a number of times first
+     */
+    private static final class RecordingHandler implements AdviceHandler {
+        private final List<String> applied = new ArrayList<>();
+        volatile String invalidStan;
+        volatile int failuresLeft;
+
+        @Override
+        public void handle(IsoMessage advice) throws Exception {
+            String stan = advice.getObjectValue(11).toString();
+            if (stan.equals(invalidStan)) {
+                throw new InvalidAdviceException("Rejected " + stan);
+            }
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IOException("Backend unavailable");
+            }
+            synchronized (applied) {
+                applied.add(stan);
+                applied.notifyAll();
+            }
+        }
+
+        void awaitApplied(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            synchronized (applied) {
+                while (applied.size() < count) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    assertTrue("Applied only " + applied, remaining > 0);
+                    applied.wait(remaining);
+                }
+            }
+        }
+
+        List<String> applied() {
+            synchronized (applied) {
+                return Collections.unmodifiableList(new ArrayList<>(applied));
+            }
+        }
+    }
+}
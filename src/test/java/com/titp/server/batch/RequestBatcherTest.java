@@ -0,0 +1,145 @@
+package com.titp.server.batch;
+
+import com.solab.iso8583.IsoMessage;
+import com.titp.server.processor.MTIProcessor;
+import com.titp.server.utils.ISOResponseCode;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Batches handed over when full or when their first request has waited long enough, and no requests taken
+ * once stopped
+ */
+public class RequestBatcherTest {
+    private RequestBatcher batcher;
+
+    @After
+    public void tearDown() {
+        if (batcher != null) {
+            batcher.stop();
+        }
+    }
+
+    @Test
+    public void fullBatchIsHandedOverWithoutWaiting() throws InterruptedException {
+        batcher = new RequestBatcher("test", 4, TimeUnit.SECONDS.toMicros(30), new int[]{0x200}, 1);
+        batcher.start();
+        RecordingProcessor processor = new RecordingProcessor();
+        CountDownLatch answered = new CountDownLatch(8);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            batcher.submit(processor, request(), (result, enqueued, batchStart) -> answered.countDown());
+        }
+
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+        assertEquals(List.of(4, 4), processor.batchSizes());
+        assertEquals(2, batcher.getBatches());
+        assertEquals(0, batcher.getPending());
+    }
+
+    @Test
+    public void partBatchIsHandedOverAfterTheWait() throws InterruptedException {
+        long maxWaitMicros = TimeUnit.MILLISECONDS.toMicros(50);
+        batcher = new RequestBatcher("test", 100, maxWaitMicros, new int[]{0x200}, 1);
+        batcher.start();
+        RecordingProcessor processor = new RecordingProcessor();
+        CountDownLatch answered = new CountDownLatch(3);
+        List<Long> waits = Collections.synchronizedList(new ArrayList<>());
+        List<ISOResponseCode> codes = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 3; i++) {
+            batcher.submit(processor, request(), (result, enqueued, batchStart) -> {
+                codes.add(result.getResponseCode());
+                waits.add(batchStart - enqueued);
+                answered.countDown();
+            });
+        }
+
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(3), processor.batchSizes());
+        assertEquals(Collections.nCopies(3, ISOResponseCode.SUCCESS), codes);
+        // The first request waited out the whole wait; the others joined it later
+        assertTrue(Collections.max(waits) >= TimeUnit.MICROSECONDS.toNanos(maxWaitMicros));
+    }
+
+    @Test
+    public void stopHandsOverWhatWasCollectedAndRefusesMore() throws InterruptedException {
+        batcher = new RequestBatcher("test", 100, TimeUnit.SECONDS.toMicros(30), new int[]{0x200}, 1);
+        batcher.start();
+        RecordingProcessor processor = new RecordingProcessor();
+        CountDownLatch answered = new CountDownLatch(2);
+        batcher.submit(processor, request(), (result, enqueued, batchStart) -> answered.countDown());
+        batcher.submit(processor, request(), (result, enqueued, batchStart) -> answered.countDown());
+
+        batcher.stop();
+
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(2), processor.batchSizes());
+        try {
+            batcher.submit(processor, request(), (result, enqueued, batchStart) -> { });
+            fail("Request taken after stop");
+        } catch (IllegalStateException e) {
+            assertEquals(0, batcher.getPending());
+        }
+    }
+
+    @Test
+    public void onlyTheConfiguredMtisAreBatched() {
+        batcher = new RequestBatcher("test", 4, 1000, new int[]{0x100, 0x200}, 1);
+        assertTrue(batcher.batches(0x200));
+        assertFalse(batcher.batches(0x400));
+        assertEquals("0100,0200", batcher.getMtis());
+    }
+
+    private static IsoMessage request() {
+        IsoMessage request = new IsoMessage();
+        request.setType(0x200);
+        return request;
+    }
+
+    /**
+     * Approves every request and remembers the size of each batch it was given
+     */
+    private static final class RecordingProcessor extends MTIProcessor {
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingProcessor() {
+            super(null);
+        }
+
+        @Override
+        protected List<ProcessingResult> processBusinessLogicBatch(List<IsoMessage> requests) {
+            batchSizes.add(requests.size());
+            return super.processBusinessLogicBatch(requests);
+        }
+
+        @Override
+        protected ProcessingResult processBusinessLogic(IsoMessage request) {
+            return new ProcessingResult(true, ISOResponseCode.SUCCESS, "Approved");
+        }
+
+        @Override
+        public int getMTI() {
+            return 0x200;
+        }
+
+        List<Integer> batchSizes() {
+            synchronized (batchSizes) {
+                return new ArrayList<>(batchSizes);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.titp.server.keyed;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tasks of a key in submission order, other keys free to run meanwhile, and submissions after a stop
+ */
+public class KeyedExecutorTest {
+    private static final int KEYS = 4;
+    private static final int TASKS_PER_KEY = 1000;
+
+    private KeyedExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.stop();
+        }
+    }
+
+    @Test
+    public void eachKeyRunsInSubmissionOrder() throws InterruptedException {
+        executor = new KeyedExecutor("test", 3);
+        List<List<Integer>> runs = new ArrayList<>();
+        CountDownLatch allDone = new CountDownLatch(KEYS * TASKS_PER_KEY);
+        for (int key = 0; key < KEYS; key++) {
+            runs.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        // Interleaved, so every key's tasks arrive while its earlier ones are still queued or running
+        for (int i = 0; i < TASKS_PER_KEY; i++) {
+            for (int key = 0; key < KEYS; key++) {
+                List<Integer> run = runs.get(key);
+                int sequence = i;
+                executor.execute("TERM000" + key, () -> {
+                    run.add(sequence);
+                    allDone.countDown();
+                });
+            }
+        }
+
+        assertTrue(allDone.await(10, TimeUnit.SECONDS));
+        for (int key = 0; key < KEYS; key++) {
+            List<Integer> run = runs.get(key);
+            for (int i = 0; i < TASKS_PER_KEY; i++) {
+                assertEquals("Key " + key, i, (int) run.get(i));
+            }
+        }
+        assertEquals(KEYS * TASKS_PER_KEY, executor.getExecutedTasks());
+        assertEquals(0, executor.getPendingTasks());
+        awaitNoActiveKeys();
+    }
+
+    @Test
+    public void blockedKeyHoldsUpOnlyItsOwnTasks() throws InterruptedException {
+        executor = new KeyedExecutor("test", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherDone = new CountDownLatch(10);
+        List<String> blockedRuns = Collections.synchronizedList(new ArrayList<>());
+        try {
+            executor.execute("T1", () -> {
+                await(release);
+                blockedRuns.add("first");
+            });
+            executor.execute("T1", () -> blockedRuns.add("second"));
+            for (int i = 0; i < 10; i++) {
+                executor.execute("T2", otherDone::countDown);
+            }
+
+            assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.emptyList(), blockedRuns);
+        } finally {
+            release.countDown();
+        }
+        awaitNoActiveKeys();
+        assertEquals(List.of("first", "second"), blockedRuns);
+    }
+
+    @Test
+    public void tasksSubmittedAfterStopStillRun() {
+        executor = new KeyedExecutor("test", 2);
+        executor.stop();
+        List<Integer> run = new ArrayList<>();
+
+        // The first submission's drain is refused by the stopped pool; neither task may be left queued
+        executor.execute("T1", () -> run.add(1));
+        executor.execute("T1", () -> run.add(2));
+
+        assertEquals(List.of(1, 2), run);
+        assertEquals(0, executor.getPendingTasks());
+        assertEquals(0, executor.getActiveKeys());
+    }
+
+    private void awaitNoActiveKeys() throws InterruptedException {
+        // A drain retires its key just after its last task has run
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getActiveKeys() > 0) {
+            assertTrue("Keys still active", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
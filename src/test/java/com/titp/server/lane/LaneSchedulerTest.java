@@ -0,0 +1,121 @@
+package com.titp.server.lane;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Weighted picks between busy lanes, and a terminal's requests kept in order across lanes
+ */
+public class LaneSchedulerTest {
+    private static final int[] WEIGHTS = {16, 8, 4, 2, 1};
+
+    @Test
+    public void busyLanesAreServedInProportionToTheirWeights() throws InterruptedException {
+        List<Lane> picked = runQueuedBeforeStart(100);
+
+        // Five rounds of the total weight, 31 picks each
+        int[] counts = new int[Lane.values().length];
+        for (Lane lane : picked.subList(0, 5 * 31)) {
+            counts[lane.ordinal()]++;
+        }
+        assertEquals("[80, 40, 20, 10, 5]", Arrays.toString(counts));
+    }
+
+    @Test
+    public void adviceLaneIsServedInEveryRound() throws InterruptedException {
+        List<Lane> picked = runQueuedBeforeStart(100);
+
+        // Until the network lane runs dry, every round of 31 picks serves each lane at least once
+        for (int round = 0; round < 6; round++) {
+            List<Lane> picks = picked.subList(round * 31, (round + 1) * 31);
+            for (Lane lane : Lane.values()) {
+                assertTrue(lane + " starved in round " + round, picks.contains(lane));
+            }
+        }
+    }
+
+    @Test
+    public void terminalReversalWaitsForItsOriginal() throws InterruptedException {
+        LaneScheduler scheduler = new LaneScheduler("test", WEIGHTS, 16, 2);
+        scheduler.start();
+        List<String> done = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch saleStarted = new CountDownLatch(1);
+        CountDownLatch releaseSale = new CountDownLatch(1);
+        CountDownLatch otherReversalDone = new CountDownLatch(1);
+        CountDownLatch allDone = new CountDownLatch(3);
+        try {
+            scheduler.submit(Lane.FINANCIAL, "T1", enqueued -> {
+                saleStarted.countDown();
+                await(releaseSale);
+                done.add("T1 0200");
+                allDone.countDown();
+            });
+            assertTrue(saleStarted.await(5, TimeUnit.SECONDS));
+            scheduler.submit(Lane.REVERSAL, "T1", enqueued -> {
+                done.add("T1 0400");
+                allDone.countDown();
+            });
+            scheduler.submit(Lane.REVERSAL, "T2", enqueued -> {
+                done.add("T2 0400");
+                otherReversalDone.countDown();
+                allDone.countDown();
+            });
+
+            // Another terminal's reversal is free to go while T1's sale is still being processed
+            assertTrue(otherReversalDone.await(5, TimeUnit.SECONDS));
+            assertFalse(done.contains("T1 0400"));
+            assertEquals(1, scheduler.getQueueDepth(Lane.REVERSAL));
+
+            releaseSale.countDown();
+            assertTrue(allDone.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("T2 0400", "T1 0200", "T1 0400"), done);
+            assertEquals(0, scheduler.getQueueDepth(Lane.REVERSAL));
+        } finally {
+            releaseSale.countDown();
+            scheduler.stop();
+        }
+    }
+
+    /**
+     * Queue the same number of requests in every lane, then let a single worker take them all
+     * @return The lanes in the order their requests were processed
+     */
+    private static List<Lane> runQueuedBeforeStart(int perLane) throws InterruptedException {
+        LaneScheduler scheduler = new LaneScheduler("test", WEIGHTS, perLane, 1);
+        List<Lane> picked = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch allDone = new CountDownLatch(perLane * Lane.values().length);
+        for (int i = 0; i < perLane; i++) {
+            for (Lane lane : Lane.values()) {
+                scheduler.submit(lane, enqueued -> {
+                    picked.add(lane);
+                    allDone.countDown();
+                });
+            }
+        }
+        scheduler.start();
+        try {
+            assertTrue(allDone.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.stop();
+        }
+        return picked;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.titp.server.ledger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Postings, reversals in either order, and their recovery from a snapshot
+ */
+public class AccountLedgerTest {
+    private static final String PAN = "4000000000000002";
+    private static final long ACCOUNT = AccountLedger.accountOf(PAN);
+    private static final long OPENING_BALANCE = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reversalUndoesItsOriginal() throws IOException {
+        AccountLedger ledger = ledger(null);
+        assertEquals(Posting.APPLIED, ledger.post("TERM0001", "42", "000000000042", ACCOUNT, 2_500));
+        assertEquals(7_500, balance(ledger));
+
+        assertEquals(Reversal.REVERSED, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+        assertEquals(OPENING_BALANCE, balance(ledger));
+        assertEquals(1, ledger.getReversals());
+    }
+
+    @Test
+    public void reversalOfARefundDebitsItBack() throws IOException {
+        AccountLedger ledger = ledger(null);
+        assertEquals(Posting.APPLIED, ledger.post("TERM0001", "43", null, ACCOUNT, -1_000));
+        assertEquals(11_000, balance(ledger));
+
+        assertEquals(Reversal.REVERSED, ledger.reverse("TERM0001", "43", null, ACCOUNT, 1_000));
+        assertEquals(OPENING_BALANCE, balance(ledger));
+    }
+
+    @Test
+    public void duplicateReversalPostsOnce() throws IOException {
+        AccountLedger ledger = ledger(null);
+        ledger.post("TERM0001", "42", null, ACCOUNT, 2_500);
+
+        assertEquals(Reversal.REVERSED, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+        assertEquals(Reversal.ALREADY_REVERSED, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+        assertEquals(OPENING_BALANCE, balance(ledger));
+        assertEquals(1, ledger.getDuplicateReversals());
+    }
+
+    @Test
+    public void reversalBeforeOriginalDeclinesTheOriginal() throws IOException {
+        AccountLedger ledger = ledger(null);
+        assertEquals(Reversal.PENDING, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+        assertEquals(Reversal.ALREADY_REVERSED, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+
+        assertEquals(Posting.ALREADY_REVERSED, ledger.post("TERM0001", "42", "000000000042", ACCOUNT, 2_500));
+        assertEquals(OPENING_BALANCE, balance(ledger));
+        assertEquals(1, ledger.getPendingReversals());
+        assertEquals(1, ledger.getLateOriginals());
+        // The original's reversal is used up
+        assertEquals(Reversal.ALREADY_REVERSED, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+        assertEquals(OPENING_BALANCE, balance(ledger));
+    }
+
+    @Test
+    public void pendingReversalIgnoresAnotherTransaction() throws IOException {
+        AccountLedger ledger = ledger(null);
+        assertEquals(Reversal.PENDING, ledger.reverse("TERM0001", "42", null, ACCOUNT, 2_500));
+
+        assertEquals(Posting.APPLIED, ledger.post("TERM0001", "42", null, ACCOUNT, 3_000));
+        assertEquals(7_000, balance(ledger));
+        // Another terminal's transaction with the same STAN
+        assertEquals(Posting.APPLIED, ledger.post("TERM0002", "42", null, ACCOUNT, 2_500));
+        assertEquals(4_500, balance(ledger));
+    }
+
+    @Test
+    public void batchDeclinesOriginalsAlreadyReversed() throws IOException {
+        AccountLedger ledger = ledger(null);
+        ledger.reverse("TERM0001", "2", null, ACCOUNT, 200);
+
+        Posting[] postings = ledger.postAll(new String[]{"TERM0001", "TERM0001", "TERM0001"},
+                new String[]{"1", "2", "3"}, new String[3], new long[]{ACCOUNT, ACCOUNT, ACCOUNT},
+                new long[]{100, 200, 300});
+        assertArrayEquals(new Posting[]{Posting.APPLIED, Posting.ALREADY_REVERSED, Posting.APPLIED}, postings);
+        assertEquals(OPENING_BALANCE - 400, balance(ledger));
+    }
+
+    @Test
+    public void snapshotRestoresBalancesAndReversals() throws IOException {
+        Path snapshot = folder.getRoot().toPath().resolve("ledger.snapshot");
+        AccountLedger ledger = ledger(snapshot);
+        ledger.post("TERM0001", "1", null, ACCOUNT, 1_000);
+        ledger.post("TERM0001", "2", null, ACCOUNT, 2_000);
+        ledger.reverse("TERM0001", "2", null, ACCOUNT, 2_000);
+        ledger.reverse("TERM0001", "3", null, ACCOUNT, 3_000);
+        ledger.stop();
+
+        AccountLedger restored = ledger(snapshot);
+        assertEquals(9_000, balance(restored));
+        assertEquals(3, restored.getReversibleTransactions());
+        // Reversed before the restart, reversible after it, and reversed ahead of its original
+        assertEquals(Reversal.ALREADY_REVERSED, restored.reverse("TERM0001", "2", null, ACCOUNT, 2_000));
+        assertEquals(Reversal.REVERSED, restored.reverse("TERM0001", "1", null, ACCOUNT, 1_000));
+        assertEquals(Posting.ALREADY_REVERSED, restored.post("TERM0001", "3", null, ACCOUNT, 3_000));
+        assertEquals(OPENING_BALANCE, balance(restored));
+    }
+
+    private static AccountLedger ledger(Path snapshot) throws IOException {
+        return new AccountLedger(4, 16, OPENING_BALANCE, snapshot, 0, 1_000);
+    }
+
+    private static long balance(AccountLedger ledger) {
+        return ledger.getBalance(PAN);
+    }
+}
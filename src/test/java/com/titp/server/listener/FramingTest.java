@@ -0,0 +1,51 @@
+package com.titp.server.listener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Length prefixes written and read back, including lengths that need the top bit of the binary prefix
+ */
+public class FramingTest {
+
+    @Test
+    public void binaryPrefixIsUnsigned() throws IOException {
+        for (int length : new int[]{0, 1, 0x7FFF, 0x8000, 40_000, 0xFFFF}) {
+            assertEquals(length, roundTrip(Framing.BINARY2, length));
+        }
+    }
+
+    @Test
+    public void asciiPrefixRoundTrips() throws IOException {
+        for (int length : new int[]{0, 7, 123, 9999}) {
+            assertEquals(length, roundTrip(Framing.ASCII4, length));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lengthBeyondThePrefixIsRefused() {
+        Framing.BINARY2.writeLength(new byte[2], 0x10000);
+    }
+
+    @Test(expected = EOFException.class)
+    public void endOfStreamAtThePrefixIsEof() throws IOException {
+        Framing.BINARY2.readLength(new DataInputStream(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test(expected = EOFException.class)
+    public void endOfStreamInsideThePrefixIsEof() throws IOException {
+        Framing.ASCII4.readLength(new DataInputStream(new ByteArrayInputStream(new byte[]{'0', '1'})));
+    }
+
+    private static int roundTrip(Framing framing, int length) throws IOException {
+        byte[] prefix = new byte[framing.getPrefixLength()];
+        framing.writeLength(prefix, length);
+        return framing.readLength(new DataInputStream(new ByteArrayInputStream(prefix)));
+    }
+}
@@ -0,0 +1,74 @@
+package com.titp.server.mac;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * AES-CMAC against the examples of RFC 4493 section 4, truncated to the MAC length the server uses
+ */
+public class CmacTest {
+    private static final byte[] KEY = hex("2b7e151628aed2a6abf7158809cf4f3c");
+    private static final byte[] MESSAGE = hex("6bc1bee22e409f96e93d7e117393172a"
+            + "ae2d8a571e03ac9c9eb76fac45af8e51"
+            + "30c81c46a35ce411e5fbc1191a0a52ef"
+            + "f69f2445df4f9b17ad2b417be66c3710");
+
+    @Test
+    public void emptyMessage() throws Exception {
+        assertMac("bb1d6929e9593728", 0);
+    }
+
+    @Test
+    public void oneCompleteBlock() throws Exception {
+        assertMac("070a16b46b4d4144", 16);
+    }
+
+    @Test
+    public void partialLastBlock() throws Exception {
+        assertMac("dfa66747de9ae630", 40);
+    }
+
+    @Test
+    public void fourCompleteBlocks() throws Exception {
+        assertMac("51f0bebf7e3b9d92", 64);
+    }
+
+    @Test
+    public void rangeWithinLargerArray() throws Exception {
+        byte[] data = new byte[3 + 40 + 5];
+        System.arraycopy(MESSAGE, 0, data, 3, 40);
+        Cmac cmac = new Cmac();
+        cmac.init(KEY, KEY);
+        byte[] mac = new byte[MacAlgorithm.MAC_LENGTH];
+        cmac.compute(data, 3, 40, mac);
+        assertArrayEquals(hex("dfa66747de9ae630"), mac);
+    }
+
+    @Test
+    public void engineIsReusable() throws Exception {
+        Cmac cmac = new Cmac();
+        cmac.init(KEY, KEY);
+        byte[] mac = new byte[MacAlgorithm.MAC_LENGTH];
+        cmac.compute(MESSAGE, 0, 64, mac);
+        cmac.compute(MESSAGE, 0, 16, mac);
+        assertArrayEquals(hex("070a16b46b4d4144"), mac);
+    }
+
+    private static void assertMac(String expected, int length) throws Exception {
+        Cmac cmac = new Cmac();
+        cmac.init(KEY, KEY);
+        byte[] mac = new byte[MacAlgorithm.MAC_LENGTH];
+        cmac.compute(MESSAGE, 0, length, mac);
+        assertArrayEquals(hex(expected), mac);
+    }
+
+    static byte[] hex(String digits) {
+        byte[] bytes = new BigInteger("10" + digits, 16).toByteArray();
+        byte[] value = new byte[digits.length() / 2];
+        System.arraycopy(bytes, bytes.length - value.length, value, 0, value.length);
+        return value;
+    }
+}
@@ -0,0 +1,105 @@
+package com.titp.server.mac;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.IsoValue;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import com.titp.server.config.MessageFactoryManager;
+import com.titp.server.config.ServerConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.titp.server.mac.CmacTest.hex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * MAC verification of requests and generation for responses on the TITP dictionary
+ */
+public class MacServiceTest {
+    private static final byte[] KEK = hex("00112233445566778899aabbccddeeff");
+    private static final String TERMINAL_ID = "TERM0001";
+
+    private MessageFactory<IsoMessage> messageFactory;
+    private MacService macService;
+
+    @Before
+    public void setUp() throws Exception {
+        messageFactory = new MessageFactoryManager(ServerConfig.getDefault()).createMessageFactory();
+        macService = new MacService(MacAlgorithm.CMAC, KEK, false, 16);
+    }
+
+    @Test
+    public void signedRequestVerifies() throws Exception {
+        macService.issueKey(TERMINAL_ID);
+        byte[] frame = signedRequest();
+        macService.verify(messageFactory.parseMessage(frame, 0), frame);
+        assertEquals(1, macService.getVerified());
+    }
+
+    @Test
+    public void alteredRequestFails() throws Exception {
+        macService.issueKey(TERMINAL_ID);
+        byte[] frame = signedRequest();
+        // The last byte of the STAN, well before the MAC
+        IsoMessage request = messageFactory.parseMessage(frame, 0);
+        frame[frame.length - MacAlgorithm.MAC_LENGTH - TERMINAL_ID.length() - 1] ^= 0x01;
+        try {
+            macService.verify(request, frame);
+            fail("Altered request verified");
+        } catch (MacVerificationException e) {
+            assertEquals(1, macService.getVerifyFailures());
+        }
+    }
+
+    @Test
+    public void responseIsSignedInPlace() throws Exception {
+        macService.issueKey(TERMINAL_ID);
+        byte[] frame = signedRequest();
+        IsoMessage response = messageFactory.createResponse(messageFactory.parseMessage(frame, 0));
+        response.setField(39, new IsoValue<>(IsoType.ALPHA, "00", 2));
+        byte[] encoded = response.writeData();
+        long generated = macService.getGenerated();
+
+        byte[] signed = macService.sign(response, encoded);
+
+        assertSame(encoded, signed);
+        macService.verify(response, HeaderStripper.stripHeaderIfPresent(signed));
+        assertEquals(generated + 1, macService.getGenerated());
+    }
+
+    @Test
+    public void responseWithoutSessionKeyLosesTheCopiedMac() throws Exception {
+        macService.issueKey(TERMINAL_ID);
+        byte[] frame = signedRequest();
+        macService.revokeKey(TERMINAL_ID);
+        IsoMessage response = messageFactory.createResponse(messageFactory.parseMessage(frame, 0));
+        response.setField(39, new IsoValue<>(IsoType.ALPHA, "00", 2));
+
+        byte[] sent = macService.sign(response, response.writeData());
+
+        assertFalse(response.hasField(64));
+        IsoMessage parsed = messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(sent), 0);
+        assertFalse(parsed.hasField(64));
+        assertTrue(parsed.hasField(39));
+        assertEquals(1, macService.getUnsigned());
+    }
+
+    /**
+     * A 0800 as a terminal sends it, MAC'd with its session key; there is no ISO header to strip
+     */
+    private byte[] signedRequest() {
+        IsoMessage request = messageFactory.newMessage(0x800);
+        request.setIsoHeader(null);
+        request.setValue(3, "990000", IsoType.NUMERIC, 6);
+        request.setValue(7, "1019123456", IsoType.NUMERIC, 10);
+        request.setValue(11, "000123", IsoType.NUMERIC, 6);
+        request.setValue(41, TERMINAL_ID, IsoType.ALPHA, 8);
+        request.setValue(64, new byte[MacAlgorithm.MAC_LENGTH], IsoType.BINARY, MacAlgorithm.MAC_LENGTH);
+        return macService.sign(request, request.writeData());
+    }
+}
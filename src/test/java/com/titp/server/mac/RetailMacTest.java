@@ -0,0 +1,38 @@
+package com.titp.server.mac;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.titp.server.mac.CmacTest.hex;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * ISO 9797-1 algorithm 3 (ANSI X9.19 retail MAC) against the published test vector
+ */
+public class RetailMacTest {
+    private static final byte[] KEY = hex("0123456789abcdeffedcba9876543210");
+    private static final byte[] MESSAGE = "Now is the time for all ".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void x919Vector() throws Exception {
+        RetailMac retailMac = new RetailMac();
+        retailMac.init(KEY, KEY);
+        byte[] mac = new byte[MacAlgorithm.MAC_LENGTH];
+        retailMac.compute(MESSAGE, 0, MESSAGE.length, mac);
+        assertArrayEquals(hex("a1c72e74ea3fa9b6"), mac);
+    }
+
+    @Test
+    public void partialBlockIsZeroPadded() throws Exception {
+        byte[] padded = new byte[24];
+        System.arraycopy(MESSAGE, 0, padded, 0, 19);
+        RetailMac retailMac = new RetailMac();
+        retailMac.init(KEY, KEY);
+        byte[] expected = new byte[MacAlgorithm.MAC_LENGTH];
+        retailMac.compute(padded, 0, padded.length, expected);
+        byte[] mac = new byte[MacAlgorithm.MAC_LENGTH];
+        retailMac.compute(MESSAGE, 0, 19, mac);
+        assertArrayEquals(expected, mac);
+    }
+}
@@ -0,0 +1,155 @@
+package com.titp.server.pipeline;
+
+import com.solab.iso8583.IsoMessage;
+import com.titp.server.MessageProcessor;
+import com.titp.server.metrics.StageTimings;
+import com.titp.server.processor.ProcessorSet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Each connection's responses in request order, and a message stuck in processing holding up its own
+ * partition only
+ */
+public class MessagePipelineTest {
+    private MessagePipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void stalledMessageHoldsUpOnlyItsPartition() throws InterruptedException {
+        pipeline = new MessagePipeline("test", 64, 1, 2, 1, WaitStrategy.PARK);
+        pipeline.start();
+        CountDownLatch release = new CountDownLatch(1);
+        // Connections 0 and 1 fall into different partitions of the two process workers
+        FakeConnection stalled = new FakeConnection(0, release, 1);
+        FakeConnection other = new FakeConnection(1, null, -1);
+
+        publish(stalled, 1);
+        for (int i = 1; i <= 10; i++) {
+            publish(other, i);
+        }
+        publish(stalled, 2);
+
+        // Written while the first message of the other partition is still being processed
+        assertTrue(other.awaitWritten(10, 5, TimeUnit.SECONDS));
+        assertEquals(Collections.emptyList(), stalled.written());
+
+        release.countDown();
+        assertTrue(stalled.awaitWritten(2, 5, TimeUnit.SECONDS));
+        assertEquals(List.of(1L, 2L), stalled.written());
+    }
+
+    @Test
+    public void eachConnectionIsAnsweredInRequestOrder() throws InterruptedException {
+        pipeline = new MessagePipeline("test", 64, 2, 3, 2, WaitStrategy.YIELD);
+        pipeline.start();
+        List<FakeConnection> connections = new ArrayList<>();
+        for (int id = 0; id < 5; id++) {
+            connections.add(new FakeConnection(id, null, -1));
+        }
+
+        for (int i = 1; i <= 500; i++) {
+            for (FakeConnection connection : connections) {
+                publish(connection, i);
+            }
+        }
+
+        for (FakeConnection connection : connections) {
+            assertTrue(connection.awaitWritten(500, 10, TimeUnit.SECONDS));
+            List<Long> written = connection.written();
+            for (int i = 0; i < written.size(); i++) {
+                assertEquals("Connection " + connection.id, i + 1, (long) written.get(i));
+            }
+        }
+    }
+
+    private void publish(FakeConnection connection, long messageId) {
+        pipeline.publish(connection, new byte[0], messageId, false, null, new StageTimings());
+    }
+
+    /**
+     * A connection whose processor answers every message at once, but for one that waits for a latch
+     */
+    private static final class FakeConnection implements PipelineConnection {
+        private final long id;
+        private final List<Long> written = Collections.synchronizedList(new ArrayList<>());
+        private final MessageProcessor processor;
+
+        FakeConnection(long id, CountDownLatch release, long stalledMessageId) {
+            this.id = id;
+            this.processor = new MessageProcessor(() -> null, new StageTimings(), id) {
+                @Override
+                public IsoMessage parse(ProcessorSet processors, byte[] messageBytes, long messageId,
+                                        StageTimings stageTimings) {
+                    return new IsoMessage();
+                }
+
+                @Override
+                public MessageResult process(ProcessorSet processors, IsoMessage request, long messageId,
+                                             StageTimings stageTimings) {
+                    if (messageId == stalledMessageId) {
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return new MessageResult(true, request, null, null);
+                }
+            };
+        }
+
+        @Override
+        public MessageProcessor getMessageProcessor() {
+            return processor;
+        }
+
+        @Override
+        public long getConnectionId() {
+            return id;
+        }
+
+        @Override
+        public void completeStaged(PipelineSlot slot) {
+            synchronized (written) {
+                written.add(slot.getMessageId());
+                written.notifyAll();
+            }
+        }
+
+        boolean awaitWritten(int count, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (written) {
+                while (written.size() < count) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    written.wait(remaining);
+                }
+            }
+            return true;
+        }
+
+        List<Long> written() {
+            synchronized (written) {
+                return new ArrayList<>(written);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.titp.server.processor;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.config.MessageFactoryManager;
+import com.titp.server.config.ServerConfig;
+import com.titp.server.settlement.SettlementTotals;
+import com.titp.server.settlement.TransactionClass;
+import com.titp.server.utils.ISOResponseCode;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reversals totalled by the sign of their original, and a terminal's reconciliation against them
+ */
+public class ReconciliationProcessorTest {
+    private static final String TERMINAL = "TERM0001";
+
+    private MessageFactory<IsoMessage> messageFactory;
+    private SettlementTotals totals;
+    private ReversalProcessor reversals;
+    private ReconciliationProcessor reconciliations;
+
+    @Before
+    public void setUp() throws Exception {
+        messageFactory = new MessageFactoryManager(ServerConfig.getDefault()).createMessageFactory();
+        totals = new SettlementTotals();
+        reversals = new ReversalProcessor(messageFactory, totals);
+        reconciliations = new ReconciliationProcessor(messageFactory, totals);
+    }
+
+    @Test
+    public void reversedRefundIsACreditReversal() {
+        totals.record(TransactionClass.DEBIT, TERMINAL, 5_000);
+        totals.record(TransactionClass.CREDIT, TERMINAL, 800);
+        assertEquals(ISOResponseCode.SUCCESS, reversals.process(reversal("000000", 1_000)).getResponseCode());
+        assertEquals(ISOResponseCode.SUCCESS, reversals.process(reversal("200000", 800)).getResponseCode());
+
+        IsoMessage response = reconciliations.process(reconciliation()).getResponse();
+
+        assertEquals("00", response.getField(39).getValue());
+        assertEquals(1L, number(response, 77));
+        assertEquals(1_000L, number(response, 89));
+        assertEquals(1L, number(response, 75));
+        assertEquals(800L, number(response, 87));
+        // 5000 debited, 800 credited, 1000 of the debits and all of the credit reversed
+        assertEquals("D0000000000004000", response.getField(97).getValue());
+    }
+
+    @Test
+    public void terminalTotalsIncludingCreditReversalsMustMatch() {
+        totals.record(TransactionClass.CREDIT, TERMINAL, 800);
+        reversals.process(reversal("200000", 800));
+
+        IsoMessage inBalance = reconciliation();
+        inBalance.setValue(74, 1, IsoType.NUMERIC, 10);
+        inBalance.setValue(75, 1, IsoType.NUMERIC, 10);
+        inBalance.setValue(87, 800, IsoType.NUMERIC, 16);
+        assertEquals(ISOResponseCode.SUCCESS, reconciliations.process(inBalance).getResponseCode());
+
+        // A terminal that counted the reversal as a reversed debit is out of balance
+        IsoMessage outOfBalance = reconciliation();
+        outOfBalance.setValue(77, 1, IsoType.NUMERIC, 10);
+        outOfBalance.setValue(89, 800, IsoType.NUMERIC, 16);
+        assertEquals(ISOResponseCode.RECONCILIATION_ERROR,
+                reconciliations.process(outOfBalance).getResponseCode());
+    }
+
+    private IsoMessage reversal(String processingCode, long amount) {
+        IsoMessage request = messageFactory.newMessage(0x400);
+        request.setValue(3, processingCode, IsoType.NUMERIC, 6);
+        request.setValue(4, amount, IsoType.NUMERIC, 12);
+        request.setValue(41, TERMINAL, IsoType.ALPHA, 8);
+        return request;
+    }
+
+    private IsoMessage reconciliation() {
+        IsoMessage request = messageFactory.newMessage(0x500);
+        request.setValue(41, TERMINAL, IsoType.ALPHA, 8);
+        return request;
+    }
+
+    private static long number(IsoMessage response, int field) {
+        return Long.parseLong(response.getField(field).toString());
+    }
+}
@@ -0,0 +1,253 @@
+package com.titp.server.proxy;
+
+import com.solab.iso8583.IsoMessage;
+import com.solab.iso8583.IsoType;
+import com.solab.iso8583.MessageFactory;
+import com.titp.server.HeaderStripper;
+import com.titp.server.config.MessageFactoryManager;
+import com.titp.server.config.ServerConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Multiplexing, timeouts, duplicates and reconnects against a stub upstream host
+ */
+public class UpstreamConnectionPoolTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private MessageFactory<IsoMessage> messageFactory;
+    private StubUpstream upstream;
+    private UpstreamConnectionPool pool;
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        messageFactory = new MessageFactoryManager(ServerConfig.getDefault()).createMessageFactory();
+        upstream = new StubUpstream();
+        pool = new UpstreamConnectionPool("127.0.0.1", upstream.getPort(), 1, 16, messageFactory);
+        pool.start();
+        awaitConnected();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        callers.shutdownNow();
+        pool.close();
+        upstream.close();
+    }
+
+    @Test
+    public void responsesFindTheirRequestsOnASharedConnection() throws Exception {
+        List<Future<IsoMessage>> responses = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            IsoMessage request = request(i);
+            responses.add(callers.submit(() -> pool.exchange(request, TIMEOUT_MS)));
+        }
+        List<Received> received = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            received.add(upstream.next());
+        }
+
+        // Answered in reverse order of arrival
+        for (int i = received.size() - 1; i >= 0; i--) {
+            received.get(i).respond();
+        }
+        for (int i = 1; i <= 8; i++) {
+            IsoMessage response = responses.get(i - 1).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(stan(i), response.getField(11).toString());
+        }
+        assertEquals(0, pool.getInFlight());
+        assertEquals(8, pool.getRequestCount());
+    }
+
+    @Test
+    public void timedOutRequestIsForgotten() throws Exception {
+        try {
+            pool.exchange(request(1), 100);
+            fail("Answered without a response");
+        } catch (TimeoutException e) {
+            assertEquals(1, pool.getTimeoutCount());
+        }
+        assertEquals(0, pool.getInFlight());
+
+        // The late response matches nothing, and the key can be used again
+        upstream.next().respond();
+        Future<IsoMessage> retry = callers.submit(() -> pool.exchange(request(1), TIMEOUT_MS));
+        upstream.next().respond();
+        assertEquals(stan(1), retry.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).getField(11).toString());
+        assertEquals(0, pool.getInFlight());
+    }
+
+    @Test
+    public void duplicateRequestLeavesTheOriginalInFlight() throws Exception {
+        Future<IsoMessage> original = callers.submit(() -> pool.exchange(request(1), TIMEOUT_MS));
+        Received received = upstream.next();
+
+        try {
+            pool.exchange(request(1), TIMEOUT_MS);
+            fail("Duplicate request sent");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Duplicate in-flight upstream request"));
+        }
+        assertEquals(1, pool.getInFlight());
+
+        received.respond();
+        assertEquals(stan(1), original.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).getField(11).toString());
+        assertEquals(0, pool.getInFlight());
+    }
+
+    @Test
+    public void droppedConnectionFailsPendingRequestsAndReconnects() throws Exception {
+        Future<IsoMessage> pending = callers.submit(() -> pool.exchange(request(1), TIMEOUT_MS));
+        assertNotNull(upstream.next());
+
+        upstream.dropConnections();
+        try {
+            pending.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail("Answered after the connection dropped");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, pool.getInFlight());
+
+        awaitConnected();
+        Future<IsoMessage> retry = callers.submit(() -> pool.exchange(request(2), TIMEOUT_MS));
+        upstream.next().respond();
+        assertEquals(stan(2), retry.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).getField(11).toString());
+    }
+
+    private void awaitConnected() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (pool.getConnectedCount() < pool.getConnectionCount()) {
+            assertTrue("Upstream not connected", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private IsoMessage request(int sequence) {
+        IsoMessage request = messageFactory.newMessage(0x200);
+        request.setValue(3, "000000", IsoType.NUMERIC, 6);
+        request.setValue(4, "000000001000", IsoType.NUMERIC, 12);
+        request.setValue(11, stan(sequence), IsoType.NUMERIC, 6);
+        request.setValue(37, String.format("%012d", sequence), IsoType.ALPHA, 12);
+        request.setValue(41, "TERM0001", IsoType.ALPHA, 8);
+        return request;
+    }
+
+    private static String stan(int sequence) {
+        return String.format("%06d", sequence);
+    }
+
+    /**
+     * A request as the stub upstream received it, answered on demand
+     */
+    private final class Received {
+        final IsoMessage request;
+        final DataOutputStream out;
+
+        Received(IsoMessage request, DataOutputStream out) {
+            this.request = request;
+            this.out = out;
+        }
+
+        void respond() throws IOException {
+            IsoMessage response = messageFactory.createResponse(request);
+            response.setValue(39, "00", IsoType.ALPHA, 2);
+            byte[] bytes = response.writeData();
+            synchronized (out) {
+                out.writeShort(bytes.length);
+                out.write(bytes);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * An upstream host that queues the requests it reads for the test to answer
+     */
+    private final class StubUpstream {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+
+        StubUpstream() throws IOException {
+            Thread acceptor = new Thread(this::accept, "stub-upstream");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        Received next() throws InterruptedException {
+            Received next = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("No request reached the upstream", next);
+            return next;
+        }
+
+        void dropConnections() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            sockets.clear();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            dropConnections();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    Thread reader = new Thread(() -> read(socket), "stub-upstream-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void read(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                while (true) {
+                    byte[] bytes = new byte[in.readUnsignedShort()];
+                    in.readFully(bytes);
+                    received.add(new Received(messageFactory.parseMessage(HeaderStripper.stripHeaderIfPresent(bytes), 0), out));
+                }
+            } catch (Exception e) {
+                // Dropped
+            }
+        }
+    }
+}
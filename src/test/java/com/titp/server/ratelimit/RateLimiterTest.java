@@ -0,0 +1,80 @@
+package com.titp.server.ratelimit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Buckets per key, the bounded table and the MTI filter
+ */
+public class RateLimiterTest {
+
+    @Test
+    public void eachKeyHasItsOwnBurst() {
+        // One per second, so no token comes back during the test
+        RateLimiter limiter = new RateLimiter("terminal", 1, 3, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("TERM0001"));
+        }
+        assertFalse(limiter.tryAcquire("TERM0001"));
+        assertTrue(limiter.tryAcquire("TERM0002"));
+
+        assertEquals(4, limiter.getAllowed());
+        assertEquals(1, limiter.getRejected());
+        assertEquals(2, limiter.getTrackedKeys());
+    }
+
+    @Test
+    public void burstDefaultsToOneSecondOfTheRate() {
+        RateLimiter limiter = new RateLimiter("ip", 5, 0, 100);
+        assertEquals(5, limiter.getBurst());
+    }
+
+    @Test
+    public void fullTableLetsNewKeysThroughUntracked() {
+        RateLimiter limiter = new RateLimiter("ip", 1, 1, 2);
+        assertTrue(limiter.tryAcquire("10.0.0.1"));
+        assertTrue(limiter.tryAcquire("10.0.0.2"));
+
+        // Both tracked keys are still being limited, so neither is evicted for the newcomer
+        assertTrue(limiter.tryAcquire("10.0.0.3"));
+        assertTrue(limiter.tryAcquire("10.0.0.3"));
+        assertEquals(2, limiter.getTrackedKeys());
+        assertEquals(2, limiter.getUntracked());
+        assertFalse(limiter.tryAcquire("10.0.0.1"));
+    }
+
+    @Test
+    public void refilledBucketsAreEvicted() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("terminal", 1000, 1, 100);
+        assertTrue(limiter.tryAcquire("TERM0001"));
+        assertEquals(1, limiter.getTrackedKeys());
+
+        // One token at 1000 per second is back within a few milliseconds
+        Thread.sleep(20);
+        limiter.evictIdle();
+
+        assertEquals(0, limiter.getTrackedKeys());
+        assertEquals(1, limiter.getEvicted());
+        assertTrue(limiter.tryAcquire("TERM0001"));
+    }
+
+    @Test
+    public void onlyTheConfiguredMtisAreLimited() {
+        RateLimiter limiter = new RateLimiter("terminal", 1, 1, 100);
+        assertTrue(limiter.limits(0x800));
+
+        limiter.setMtis(0x100, 0x200);
+
+        assertTrue(limiter.limits(0x200));
+        assertFalse(limiter.limits(0x400));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void burstBeyondThePackedBitsIsRefused() {
+        new RateLimiter("terminal", 1, TokenBucket.MAX_CAPACITY_MILLI_TOKENS / TokenBucket.MILLI + 1, 100);
+    }
+}
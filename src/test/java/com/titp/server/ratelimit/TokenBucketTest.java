@@ -0,0 +1,124 @@
+package com.titp.server.ratelimit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lazy refill and the packed tokens and time, on a clock the test controls
+ */
+public class TokenBucketTest {
+    private static final long RATE = 100;
+    private static final long CAPACITY = 5 * TokenBucket.MILLI;
+
+    @Test
+    public void burstIsTakenAtOnceThenRefillsAtTheRate() {
+        TokenBucket bucket = new TokenBucket(CAPACITY, 1_000);
+
+        assertEquals(5, acquireAll(bucket, RATE, CAPACITY, 1_000));
+        assertFalse(bucket.tryAcquire(RATE, CAPACITY, 1_009));
+        // 100 per second is one token every 10 ms
+        assertTrue(bucket.tryAcquire(RATE, CAPACITY, 1_010));
+        assertFalse(bucket.tryAcquire(RATE, CAPACITY, 1_010));
+        assertEquals(2, acquireAll(bucket, RATE, CAPACITY, 1_030));
+    }
+
+    @Test
+    public void refillStopsAtCapacity() {
+        TokenBucket bucket = new TokenBucket(CAPACITY, 0);
+        assertEquals(5, acquireAll(bucket, RATE, CAPACITY, 0));
+        assertFalse(bucket.isFull(RATE, CAPACITY, 49));
+        assertTrue(bucket.isFull(RATE, CAPACITY, 50));
+
+        // An hour idle still refills only the burst
+        assertEquals(5, acquireAll(bucket, RATE, CAPACITY, 3_600_000));
+    }
+
+    @Test
+    public void clockGoingBackwardsAddsNothingAndKeepsTheLatestTime() {
+        TokenBucket bucket = new TokenBucket(CAPACITY, 1_000);
+        assertEquals(5, acquireAll(bucket, RATE, CAPACITY, 1_000));
+
+        assertFalse(bucket.tryAcquire(RATE, CAPACITY, 500));
+        // Measured from 1000, not from 500
+        assertFalse(bucket.tryAcquire(RATE, CAPACITY, 1_009));
+        assertTrue(bucket.tryAcquire(RATE, CAPACITY, 1_010));
+    }
+
+    @Test
+    public void largestBurstAndLateTimesPackWithoutOverflow() {
+        long capacity = TokenBucket.MAX_CAPACITY_MILLI_TOKENS;
+        long tokens = capacity / TokenBucket.MILLI;
+        // Close to the top of the 40 time bits, about 34 years of uptime
+        long now = (1L << 40) - 10_000;
+        TokenBucket bucket = new TokenBucket(capacity, now);
+
+        assertTrue(bucket.isFull(1, capacity, now));
+        assertEquals(tokens, acquireAll(bucket, 1, capacity, now));
+        assertFalse(bucket.isFull(1, capacity, now));
+        // The odd milli-tokens left over are kept exactly: at one token per second, one milli-token per
+        // millisecond tops them up to a whole token
+        long leftOver = capacity % TokenBucket.MILLI;
+        long toNextToken = TokenBucket.MILLI - leftOver;
+        assertFalse(bucket.tryAcquire(1, capacity, now + toNextToken - 1));
+        assertTrue(bucket.tryAcquire(1, capacity, now + toNextToken));
+    }
+
+    @Test
+    public void concurrentAcquiresTakeEachTokenOnce() throws Exception {
+        int threads = 4;
+        long tokens = 10_000;
+        long capacity = tokens * TokenBucket.MILLI;
+        TokenBucket bucket = new TokenBucket(capacity, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> acquired = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                Callable<Integer> task = () -> {
+                    start.await();
+                    // No time passes, so only the initial tokens can be taken
+                    int count = 0;
+                    for (int i = 0; i < tokens; i++) {
+                        if (bucket.tryAcquire(RATE, capacity, 0)) {
+                            count++;
+                        }
+                    }
+                    return count;
+                };
+                acquired.add(executor.submit(task));
+            }
+            start.countDown();
+            long total = 0;
+            for (Future<Integer> count : acquired) {
+                total += count.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(tokens, total);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Take tokens until the bucket refuses
+     * @return The number taken
+     */
+    private static long acquireAll(TokenBucket bucket, long ratePerSecond, long capacity, long nowMillis) {
+        long taken = 0;
+        while (bucket.tryAcquire(ratePerSecond, capacity, nowMillis)) {
+            taken++;
+        }
+        return taken;
+    }
+}
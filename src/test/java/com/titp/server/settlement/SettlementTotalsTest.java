@@ -0,0 +1,149 @@
+package com.titp.server.settlement;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batch totals and their cutover
+ */
+public class SettlementTotalsTest {
+
+    @Test
+    public void cutoverClosesTheBatchWithItsTotals() {
+        SettlementTotals totals = new SettlementTotals();
+        totals.record(TransactionClass.DEBIT, "TERM0001", 1_000);
+        totals.record(TransactionClass.CREDIT, "TERM0001", 300);
+        totals.record(TransactionClass.DEBIT, "TERM0002", 500);
+
+        SettlementTotals.BatchSnapshot closed = totals.cutover();
+
+        assertEquals(1, closed.getBatchNumber());
+        assertEquals(2, closed.getTotals().getDebitCount());
+        assertEquals(1_200, closed.getTotals().getNetAmount());
+        assertEquals(1_000, closed.getTerminalTotals().get("TERM0001").getDebitAmount());
+        assertEquals(2, totals.getCurrentBatchNumber());
+        assertEquals(0, totals.getBatchTotals().getDebitCount());
+        assertEquals(0, totals.getTerminalTotals("TERM0001").getDebitCount());
+    }
+
+    @Test
+    public void reversalsAreTotalledByTheSignOfTheirOriginal() {
+        SettlementTotals totals = new SettlementTotals();
+        totals.record(TransactionClass.DEBIT, "TERM0001", 1_000);
+        totals.record(TransactionClass.CREDIT, "TERM0001", 300);
+        totals.record(TransactionClass.reversalOf(0), "TERM0001", 1_000);
+        totals.record(TransactionClass.reversalOf(200000), "TERM0001", 300);
+        totals.record(TransactionClass.reversalOf(990000), "TERM0001", 50);
+
+        TotalsSnapshot snapshot = totals.getTerminalTotals("TERM0001");
+
+        assertEquals(1, snapshot.getDebitReversalCount());
+        assertEquals(1_000, snapshot.getDebitReversalAmount());
+        assertEquals(1, snapshot.getCreditReversalCount());
+        assertEquals(300, snapshot.getCreditReversalAmount());
+        assertEquals(0, snapshot.getNetAmount());
+    }
+
+    @Test
+    public void everyRecordLandsInExactlyOneBatchAcrossCutovers() throws Exception {
+        SettlementTotals totals = new SettlementTotals();
+        int writers = 4;
+        int perWriter = 50_000;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            String terminalId = "TERM000" + w;
+            done.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < perWriter; i++) {
+                    totals.record(TransactionClass.DEBIT, terminalId, 2);
+                }
+                return null;
+            }));
+        }
+
+        List<SettlementTotals.BatchSnapshot> closed = new ArrayList<>();
+        try {
+            start.countDown();
+            while (!allDone(done)) {
+                closed.add(totals.cutover());
+            }
+            for (Future<?> writer : done) {
+                writer.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        closed.add(totals.cutover());
+
+        long count = 0;
+        for (SettlementTotals.BatchSnapshot batch : closed) {
+            // Each closed batch is consistent: its terminals add up to it; together they hold every record
+            long terminalCount = 0;
+            for (TotalsSnapshot terminal : batch.getTerminalTotals().values()) {
+                terminalCount += terminal.getDebitCount();
+            }
+            assertEquals(batch.getTotals().getDebitCount(), terminalCount);
+            assertEquals(2 * batch.getTotals().getDebitCount(), batch.getTotals().getDebitAmount());
+            count += batch.getTotals().getDebitCount();
+        }
+        assertEquals((long) writers * perWriter, count);
+        assertTrue(closed.size() > 1);
+        assertEquals(0, totals.getBatchTotals().getDebitCount());
+    }
+
+    @Test
+    public void operatorClosesTheBatchThroughTheMBean() throws Exception {
+        SettlementTotals totals = new SettlementTotals();
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName name = new ObjectName("com.titp.server:type=SettlementTotals");
+        server.registerMBean(totals, name);
+        totals.record(TransactionClass.DEBIT, "TERM0001", 1_000);
+
+        assertEquals(1L, server.invoke(name, "closeBatch", null, null));
+
+        assertEquals(2L, server.getAttribute(name, "CurrentBatchNumber"));
+        assertEquals(1L, server.getAttribute(name, "LastClosedBatchNumber"));
+        assertEquals(1_000L, rows(server.getAttribute(name, "LastClosedBatch")).get("debitAmount"));
+        assertEquals(0L, rows(server.getAttribute(name, "OpenBatch")).get("debitAmount"));
+    }
+
+    private static boolean allDone(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A map attribute as a JMX client sees it
+     */
+    private static Map<Object, Object> rows(Object attribute) {
+        Map<Object, Object> map = new HashMap<>();
+        for (Object row : ((TabularData) attribute).values()) {
+            CompositeData data = (CompositeData) row;
+            map.put(data.get("key"), data.get("value"));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,52 @@
+package com.titp.server.shard;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Handler threads split between shards without losing any, and connections sent where a thread is free
+ */
+public class ShardSetTest {
+    private ShardSet shards;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (shards != null) {
+            shards.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void unevenSplitKeepsTheWholePool() {
+        shards = new ShardSet(4, 10, null, null, null, null, 16);
+
+        int total = 0;
+        for (Shard shard : shards.getShards()) {
+            total += shard.getHandlerThreads();
+        }
+        assertEquals(10, total);
+        assertEquals(3, shards.getShards().get(0).getHandlerThreads());
+        assertEquals(2, shards.getShards().get(3).getHandlerThreads());
+    }
+
+    @Test
+    public void everyThreadIsTakenBeforeAConnectionWaits() {
+        shards = new ShardSet(4, 10, null, null, null, null, 16);
+
+        for (int i = 0; i < 10; i++) {
+            shards.assign().connectionOpened();
+        }
+        for (Shard shard : shards.getShards()) {
+            assertEquals(shard.getHandlerThreads(), shard.getOpenConnections());
+        }
+
+        // Threads freed on one shard are found there, however busy the others are
+        Shard freed = shards.getShards().get(2);
+        freed.connectionClosed();
+        assertEquals(freed, shards.assign());
+    }
+}